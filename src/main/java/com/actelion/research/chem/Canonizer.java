@@ -41,6 +41,7 @@
 
 package com.actelion.research.chem;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -173,7 +174,7 @@ public class Canonizer {
 	private final int mMode;
 	private int mNoOfRanks,mNoOfPseudoGroups;
 	private boolean mIsOddParityRound;
-	private final boolean mZCoordinatesAvailable,mAllHydrogensAreExplicit;
+	private boolean mZCoordinatesAvailable,mAllHydrogensAreExplicit;
 	private boolean mCIPParityNoDistinctionProblem;
 	private boolean mEncodeAvoid127;
 	private boolean mGraphGenerated;
@@ -185,9 +186,11 @@ public class Canonizer {
 	private int[] mGraphClosure;
 
 	private String mIDCode, mEncodedCoords,mMapping;
-	private StringBuilder mEncodingBuffer;
-	private	int mEncodingBitsAvail,mEncodingTempData,mMaxConnAtoms;
-	private final int mAtomBits;
+	private byte[] mIDCodeBytes;
+	private byte[] mEncodingBuffer;
+	private	int mEncodingLength,mEncodingBitsAvail,mEncodingTempData,mMaxConnAtoms;
+	private int mAtomBits;
+	private CanonizerBaseValue[] mCanBasePool;
 
 	/**
 	 * Runs a canonicalization procedure for the given molecule that creates unique atom ranks,
@@ -211,13 +214,69 @@ public class Canonizer {
 	 * @param mode 0 or one or more of CONSIDER...TOPICITY, CREATE..., ENCODE_ATOM_CUSTOM_LABELS, ASSIGN_PARITIES_TO_TETRAHEDRAL_N, COORDS_ARE_3D
 	 */
 	public Canonizer(StereoMolecule mol, int mode) {
+		mMode = mode;
+		canonize(mol);
+		}
+
+
+	/**
+	 * Discards all results of the previous canonicalization and runs the canonicalization
+	 * procedure for the given molecule using the same mode. Internal buffers are recycled,
+	 * which makes one Canonizer per thread considerably cheaper than a new Canonizer per
+	 * molecule, when canonizing large numbers of molecules. The results are identical.
+	 * Arrays returned by the previous canonicalization, e.g. by getFinalRank(), are not touched.
+	 * @param mol
+	 */
+	public void reset(StereoMolecule mol) {
+		mCanRankBeforeTieBreaking = null;
+		mPseudoTHGroup = null;
+		mPseudoEZGroup = null;
+		mTHConfiguration = null;
+		mEZConfiguration = null;
+		mTHCIPParity = null;
+		mEZCIPParity = null;
+		mTHESRType = null;
+		mTHESRGroup = null;
+		mEZESRType = null;
+		mEZESRGroup = null;
+		mAbnormalValence = null;
+		mMesoHelper = null;
+		mIsMeso = false;
+		mStereoCentersFound = false;
+		mIsStereoCenter = null;
+		mTHParityIsMesoInverted = null;
+		mTHParityNeedsNormalization = null;
+		mTHESRTypeNeedsNormalization = null;
+		mProTHAtomsInSameFragment = null;
+		mProEZAtomsInSameFragment = null;
+		mFragmentList = null;
+		mTHParityNormalizationGroupList = null;
+		mNoOfRanks = 0;
+		mNoOfPseudoGroups = 0;
+		mIsOddParityRound = false;
+		mGraphGenerated = false;
+		mGraphRings = 0;
+		mFeatureBlock = 0;
+		mGraphAtom = null;
+		mGraphIndex = null;
+		mGraphBond = null;
+		mGraphFrom = null;
+		mGraphClosure = null;
+		mIDCode = null;
+		mIDCodeBytes = null;
+		mEncodedCoords = null;
+		mMapping = null;
+		canonize(mol);
+		}
+
+
+	private void canonize(StereoMolecule mol) {
 //		if (mol.getAllAtoms()>MAX_ATOMS)
 //			throw new IllegalArgumentException("Cannot canonize a molecule having more than "+MAX_ATOMS+" atoms");
 //		if (mol.getAllBonds()>MAX_BONDS)
 //			throw new IllegalArgumentException("Cannot canonize a molecule having more than "+MAX_BONDS+" bonds");
 
 		mMol = mol;
-		mMode = mode;
 
 		mMol.ensureHelperArrays(Molecule.cHelperRings);
 		mAtomBits = getNeededBits(mMol.getAtoms());
@@ -225,17 +284,17 @@ public class Canonizer {
 		if ((mMode & NEGLECT_ANY_STEREO_INFORMATION) == 0)
 			canFindNitrogenQualifyingForParity();
 
-		mZCoordinatesAvailable = ((mode & COORDS_ARE_3D) != 0) || mMol.is3D();
+		mZCoordinatesAvailable = ((mMode & COORDS_ARE_3D) != 0) || mMol.is3D();
 
 		mAllHydrogensAreExplicit = (mMol.getImplicitHydrogens() == 0);
 
 		if ((mMode & NEGLECT_ANY_STEREO_INFORMATION) == 0) {
-			mTHParity = new byte[mMol.getAtoms()];
-			mTHParityIsPseudo = new boolean[mMol.getAtoms()];
-			mTHParityRoundIsOdd = new boolean[mMol.getAtoms()];
-			mEZParity = new byte[mMol.getBonds()];
-			mEZParityRoundIsOdd = new boolean[mMol.getBonds()];
-			mEZParityIsPseudo = new boolean[mMol.getBonds()];
+			mTHParity = recycle(mTHParity, mMol.getAtoms());
+			mTHParityIsPseudo = recycle(mTHParityIsPseudo, mMol.getAtoms());
+			mTHParityRoundIsOdd = recycle(mTHParityRoundIsOdd, mMol.getAtoms());
+			mEZParity = recycle(mEZParity, mMol.getBonds());
+			mEZParityRoundIsOdd = recycle(mEZParityRoundIsOdd, mMol.getBonds());
+			mEZParityIsPseudo = recycle(mEZParityIsPseudo, mMol.getBonds());
 			}
 
 		mCIPParityNoDistinctionProblem = false;
@@ -261,7 +320,7 @@ public class Canonizer {
 	 * - flag ASSIGN_PARITIES_TO_TETRAHEDRAL_N is set
 	 */
 	private void canFindNitrogenQualifyingForParity() {
-		mNitrogenQualifiesForParity = new boolean[mMol.getAtoms()];
+		mNitrogenQualifiesForParity = recycle(mNitrogenQualifiesForParity, mMol.getAtoms());
 		for (int atom=0; atom<mMol.getAtoms(); atom++) {
 			if (mMol.getAtomicNo(atom) == 7) {
 				if (mMol.getConnAtoms(atom) == 4) {
@@ -688,9 +747,14 @@ System.out.println("mEZParity["+bond+"] = "+mEZParity[bond]);
 			  : (62 + mAtomBits + mMaxConnAtoms * (mAtomBits+5)) / 63);
 
 		mCanRank = new int[mMol.getAllAtoms()];
-		mCanBase = new CanonizerBaseValue[mMol.getAtoms()];
+		if (mCanBasePool == null)
+			mCanBasePool = new CanonizerBaseValue[mMol.getAtoms()];
+		else if (mCanBasePool.length < mMol.getAtoms())
+			mCanBasePool = Arrays.copyOf(mCanBasePool, mMol.getAtoms());
 		for (int atom=0; atom<mMol.getAtoms(); atom++)
-			mCanBase[atom] = new CanonizerBaseValue(baseValueSize);
+			if (mCanBasePool[atom] == null || mCanBasePool[atom].mValue.length < baseValueSize)
+				mCanBasePool[atom] = new CanonizerBaseValue(baseValueSize);
+		mCanBase = Arrays.copyOf(mCanBasePool, mMol.getAtoms());
 
 		boolean atomListFound = false;
 
@@ -2648,12 +2712,22 @@ System.out.println("noOfRanks:"+canRank);
 				idNormalizeESRGroupNumbers();
 				}
 			idCodeCreate();
+			mIDCodeBytes = Arrays.copyOf(mEncodingBuffer, mEncodingLength);
 			}
 
 		return mIDCode;
 		}
 
 
+	/**
+	 * @return the idcode as ASCII bytes, which avoids any charset encoding when writing idcodes to streams
+	 */
+	public byte[] getIDCodeBytes() {
+		getIDCode();
+		return mIDCodeBytes;
+		}
+
+
 	public int[] getFinalRank() {
 		// this is the final mCanRank after all tie breaking steps
 		return mCanRank;
@@ -3414,7 +3488,7 @@ System.out.println();
 
 		int resolutionBits = mZCoordinatesAvailable ? 16 : 8;	// must be an even number
 		encodeBitsStart(true);
-		mEncodingBuffer.append(includeHydrogenCoordinates ? '#' : '!');
+		encodeByte(includeHydrogenCoordinates ? '#' : '!');
 		encodeBits(mZCoordinatesAvailable ? 1 : 0, 1);
 		encodeBits(keepPositionAndScale ? 1 : 0, 1);
 		encodeBits(resolutionBits >> 1, 4);	// resolution bits divided by 2
@@ -3722,7 +3796,9 @@ System.out.println();
 
 
 	private void encodeBitsStart(boolean avoid127) {
-		mEncodingBuffer = new StringBuilder();
+		if (mEncodingBuffer == null)
+			mEncodingBuffer = new byte[64];
+		mEncodingLength = 0;
 		mEncodingBitsAvail = 6;
 		mEncodingTempData = 0;
 		mEncodeAvoid127 = avoid127;
@@ -3753,7 +3829,7 @@ System.out.println();
 			if (mEncodingBitsAvail == 0) {
 				if (!mEncodeAvoid127 || mEncodingTempData != 63)
 					mEncodingTempData += 64;
-				mEncodingBuffer.append((char)mEncodingTempData);
+				encodeByte(mEncodingTempData);
 				mEncodingBitsAvail = 6;
 				mEncodingTempData = 0;
 				}
@@ -3770,8 +3846,15 @@ System.out.println();
 		mEncodingTempData <<= mEncodingBitsAvail;
 		if (!mEncodeAvoid127 || mEncodingTempData != 63)
 			mEncodingTempData += 64;
-		mEncodingBuffer.append((char)mEncodingTempData);
-		return mEncodingBuffer.toString();
+		encodeByte(mEncodingTempData);
+		return new String(mEncodingBuffer, 0, mEncodingLength, StandardCharsets.ISO_8859_1);
+		}
+
+
+	private void encodeByte(int data) {
+		if (mEncodingLength == mEncodingBuffer.length)
+			mEncodingBuffer = Arrays.copyOf(mEncodingBuffer, 2 * mEncodingLength);
+		mEncodingBuffer[mEncodingLength++] = (byte)data;
 		}
 
 
@@ -4455,6 +4538,28 @@ System.out.println("");
 		return false;
 		}
 
+	/**
+	 * @return the given array with the first size elements set to 0 or a new array, if the given one is null or too small
+	 */
+	private static byte[] recycle(byte[] array, int size) {
+		if (array == null || array.length < size)
+			return new byte[size];
+		Arrays.fill(array, 0, size, (byte)0);
+		return array;
+		}
+
+
+	/**
+	 * @return the given array with the first size elements set to false or a new array, if the given one is null or too small
+	 */
+	private static boolean[] recycle(boolean[] array, int size) {
+		if (array == null || array.length < size)
+			return new boolean[size];
+		Arrays.fill(array, 0, size, false);
+		return array;
+		}
+
+
 	private int[] resize(int[] array, int newSize) {
 		int [] copy = new int[newSize];
 		System.arraycopy( array, 0, copy, 0, array.length );
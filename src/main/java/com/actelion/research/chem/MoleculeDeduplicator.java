@@ -0,0 +1,491 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem;
+
+import com.actelion.research.util.hash.OffHeapLongHashMap;
+import com.actelion.research.util.hash.OffHeapMemory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.*;
+
+/**
+ * Finds duplicates in large compound collections on one or more identity levels, e.g.
+ * exact structure, structure without stereo information, generic tautomer or backbone,
+ * as defined by CanonizerUtil.IDCODE_TYPE. Idcodes of all requested levels are calculated
+ * by multiple threads. For every level the 64-bit hash of the idcode is stored in an
+ * off-heap hash table, which refers to the first molecule's idcode in an off-heap idcode store.
+ * Whenever a hash is found, the idcodes are compared to exclude hash collisions.
+ * If a spill directory is defined, then tables and idcode stores are memory mapped files
+ * in that directory, which allows deduplicating billions of molecules without holding
+ * them in main memory.<br>
+ * Molecules are numbered consecutively over all calls of process() or processIDCodes(),
+ * such that e.g. a registry may be processed first and vendor catalogs afterwards.
+ * Results are passed to a DuplicateListener in input order and from the calling thread.
+ * Thus, the first occurrence of any structure is always the one with the lowest index.
+ */
+public class MoleculeDeduplicator implements Closeable {
+	private static final int BATCH_SIZE = 64;
+	private static final int QUEUED_BATCHES_PER_THREAD = 4;
+	private static final long COLLISION_KEY_FACTOR = 0x9E3779B97F4A7C15L;
+
+	public interface DuplicateListener {
+		void moleculeProcessed(DeduplicationResult result);
+		}
+
+	public static class DeduplicationResult {
+		private long mIndex;
+		private int[] mTypeIndex;
+		private String[] mIDCode;
+		private long[] mHash,mFirstIndex;
+
+		/**
+		 * @return zero based position of the molecule in the input of all processing runs
+		 */
+		public long getIndex() {
+			return mIndex;
+			}
+
+		/**
+		 * @param type one of the identity levels passed to the constructor
+		 * @return idcode of that level or null, if it couldn't be calculated
+		 */
+		public String getIDCode(CanonizerUtil.IDCODE_TYPE type) {
+			return mIDCode[mTypeIndex[type.ordinal()]];
+			}
+
+		/**
+		 * @param type one of the identity levels passed to the constructor
+		 * @return hash of the idcode as calculated by CanonizerUtil.StrongHasher or 0, if the idcode couldn't be calculated
+		 */
+		public long getHash(CanonizerUtil.IDCODE_TYPE type) {
+			return mHash[mTypeIndex[type.ordinal()]];
+			}
+
+		/**
+		 * @param type one of the identity levels passed to the constructor
+		 * @return index of the first molecule with the same idcode on that level, which may be this molecule's index; -1 if failed
+		 */
+		public long getFirstIndex(CanonizerUtil.IDCODE_TYPE type) {
+			return mFirstIndex[mTypeIndex[type.ordinal()]];
+			}
+
+		/**
+		 * @param type one of the identity levels passed to the constructor
+		 * @return true if an earlier molecule has the same idcode on that level
+		 */
+		public boolean isDuplicate(CanonizerUtil.IDCODE_TYPE type) {
+			long firstIndex = getFirstIndex(type);
+			return firstIndex != -1 && firstIndex != mIndex;
+			}
+		}
+
+	public static class Statistics {
+		private final CanonizerUtil.IDCODE_TYPE[] mType;
+		private long mMoleculeCount;
+		private final long[] mUniqueCount,mDuplicateCount,mFailedCount,mCollisionCount;
+		private long mElapsedMillis,mCanonizeNanos,mLookupNanos;
+
+		private Statistics(CanonizerUtil.IDCODE_TYPE[] type) {
+			mType = type;
+			mUniqueCount = new long[type.length];
+			mDuplicateCount = new long[type.length];
+			mFailedCount = new long[type.length];
+			mCollisionCount = new long[type.length];
+			}
+
+		private int indexOf(CanonizerUtil.IDCODE_TYPE type) {
+			for (int i=0; i<mType.length; i++)
+				if (mType[i] == type)
+					return i;
+			throw new IllegalArgumentException("identity level not processed: "+type);
+			}
+
+		/**
+		 * @return number of molecules processed in all runs
+		 */
+		public long getMoleculeCount() {
+			return mMoleculeCount;
+			}
+
+		public long getUniqueCount(CanonizerUtil.IDCODE_TYPE type) {
+			return mUniqueCount[indexOf(type)];
+			}
+
+		public long getDuplicateCount(CanonizerUtil.IDCODE_TYPE type) {
+			return mDuplicateCount[indexOf(type)];
+			}
+
+		public long getFailedCount(CanonizerUtil.IDCODE_TYPE type) {
+			return mFailedCount[indexOf(type)];
+			}
+
+		/**
+		 * @return number of cases, where different idcodes had the same 64-bit hash
+		 */
+		public long getCollisionCount(CanonizerUtil.IDCODE_TYPE type) {
+			return mCollisionCount[indexOf(type)];
+			}
+
+		/**
+		 * @return wall clock milliseconds of all processing runs
+		 */
+		public long getElapsedMillis() {
+			return mElapsedMillis;
+			}
+
+		/**
+		 * @return milliseconds for parsing and idcode calculation summed up over all threads
+		 */
+		public long getCanonizeMillis() {
+			return mCanonizeNanos / 1000000L;
+			}
+
+		/**
+		 * @return milliseconds for hash table lookups and idcode comparisons
+		 */
+		public long getLookupMillis() {
+			return mLookupNanos / 1000000L;
+			}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("molecules:").append(mMoleculeCount)
+			  .append(" millis:").append(mElapsedMillis)
+			  .append(" canonize:").append(getCanonizeMillis())
+			  .append(" lookup:").append(getLookupMillis()).append("\n");
+			for (int i=0; i<mType.length; i++)
+				sb.append(mType[i])
+				  .append(" unique:").append(mUniqueCount[i])
+				  .append(" duplicates:").append(mDuplicateCount[i])
+				  .append(" failed:").append(mFailedCount[i])
+				  .append(" collisions:").append(mCollisionCount[i]).append("\n");
+			return sb.toString();
+			}
+		}
+
+	/**
+	 * Append-only storage of idcodes with the index of the molecule they belong to.
+	 * Every entry starts at a position divisible by 8 and consists of the index (8 bytes),
+	 * the idcode length (4 bytes) and the idcode bytes.
+	 */
+	private static class IDCodeStore implements Closeable {
+		private final OffHeapMemory mMemory;
+		private long mSize;
+
+		private IDCodeStore(File directory) {
+			try {
+				mMemory = new OffHeapMemory(directory == null ? null : File.createTempFile("idcodes", ".tmp", directory));
+				}
+			catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+				}
+			}
+
+		private long add(long index, byte[] idcode) {
+			long position = mSize;
+			mSize += (12 + idcode.length + 7) & ~7L;
+			mMemory.ensureCapacity(mSize);
+			mMemory.putLong(position, index);
+			mMemory.putInt(position+8, idcode.length);
+			mMemory.put(position+12, idcode, 0, idcode.length);
+			return position;
+			}
+
+		private long getIndex(long position) {
+			return mMemory.getLong(position);
+			}
+
+		private boolean equals(long position, byte[] idcode) {
+			if (mMemory.getInt(position+8) != idcode.length)
+				return false;
+			position += 12;
+			for (int i=0; i<idcode.length; i++)
+				if (mMemory.get(position+i) != idcode[i])
+					return false;
+			return true;
+			}
+
+		@Override
+		public void close() {
+			mMemory.close();
+			}
+		}
+
+	private static class Batch {
+		DeduplicationResult[] result;
+		long canonizeNanos;
+		}
+
+	private final CanonizerUtil.IDCODE_TYPE[] mType;
+	private final int[] mTypeIndex;
+	private final boolean mLargestFragmentOnly,mNeedsCoordinates;
+	private final int mThreadCount;
+	private File mSpillDirectory;
+	private long mExpectedCount,mNextIndex;
+	private OffHeapLongHashMap[] mHashMap;
+	private IDCodeStore[] mIDCodeStore;
+	private final Statistics mStatistics;
+
+	/**
+	 * @param type identity levels to be considered
+	 * @param largestFragmentOnly whether idcodes are calculated from the largest neutralized fragment, see CanonizerUtil
+	 * @param threadCount number of threads calculating idcodes, 0 for all available processors
+	 */
+	public MoleculeDeduplicator(CanonizerUtil.IDCODE_TYPE[] type, boolean largestFragmentOnly, int threadCount) {
+		mType = type.clone();
+		mTypeIndex = new int[CanonizerUtil.IDCODE_TYPE.values().length];
+		for (int i=0; i<mType.length; i++)
+			mTypeIndex[mType[i].ordinal()] = i;
+		mLargestFragmentOnly = largestFragmentOnly;
+
+		// Stereo parities of idcode input are only reflected by the Canonizer, if 2D-coordinates are created.
+		// Levels without stereo information don't need them, which saves the costly coordinate invention.
+		boolean needsCoordinates = false;
+		for (CanonizerUtil.IDCODE_TYPE t:mType)
+			if (t == CanonizerUtil.IDCODE_TYPE.NORMAL || t == CanonizerUtil.IDCODE_TYPE.TAUTOMER)
+				needsCoordinates = true;
+		mNeedsCoordinates = needsCoordinates;
+
+		mThreadCount = (threadCount <= 0) ? Runtime.getRuntime().availableProcessors() : threadCount;
+		mStatistics = new Statistics(mType);
+		}
+
+	/**
+	 * Defines a directory for memory mapped hash tables and idcode stores, which are deleted on close().
+	 * Must be called before processing any molecules. Without spill directory all data are
+	 * held in direct memory outside of the Java heap.
+	 * @param directory
+	 */
+	public void setSpillDirectory(File directory) {
+		mSpillDirectory = directory;
+		}
+
+	/**
+	 * Sizes the hash tables such that the given number of molecules can be processed without rehashing.
+	 * Must be called before processing any molecules.
+	 * @param count
+	 */
+	public void setExpectedMoleculeCount(long count) {
+		mExpectedCount = count;
+		}
+
+	/**
+	 * @return statistics accumulated over all processing runs
+	 */
+	public Statistics getStatistics() {
+		return mStatistics;
+		}
+
+	/**
+	 * Processes all molecules of the iterator, which are not changed.
+	 * @param molecules
+	 * @param listener may be null
+	 * @return number of processed molecules
+	 */
+	public long process(Iterator<StereoMolecule> molecules, DuplicateListener listener) {
+		return process(molecules, null, listener);
+		}
+
+	/**
+	 * Processes all molecules of the iterator given as idcodes.
+	 * Invalid idcodes are reported as failed on all identity levels.
+	 * @param idcodes
+	 * @param listener may be null
+	 * @return number of processed molecules
+	 */
+	public long processIDCodes(Iterator<String> idcodes, DuplicateListener listener) {
+		return process(null, idcodes, listener);
+		}
+
+	private long process(Iterator<StereoMolecule> molecules, Iterator<String> idcodes, DuplicateListener listener) {
+		if (mHashMap == null) {
+			mHashMap = new OffHeapLongHashMap[mType.length];
+			mIDCodeStore = new IDCodeStore[mType.length];
+			for (int i=0; i<mType.length; i++) {
+				mHashMap[i] = new OffHeapLongHashMap(mExpectedCount, mSpillDirectory);
+				mIDCodeStore[i] = new IDCodeStore(mSpillDirectory);
+				}
+			}
+
+		long startMillis = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(mThreadCount, r -> {
+			Thread t = new Thread(r, "Molecule Deduplicator");
+			t.setDaemon(true);
+			return t;
+			});
+
+		long count = 0;
+		try {
+			ArrayDeque<Future<Batch>> pending = new ArrayDeque<>();
+			while (true) {
+				if (pending.size() < QUEUED_BATCHES_PER_THREAD * mThreadCount) {
+					ArrayList<Object> input = new ArrayList<>(BATCH_SIZE);
+					if (molecules != null)
+						while (input.size() < BATCH_SIZE && molecules.hasNext())
+							input.add(molecules.next());
+					else
+						while (input.size() < BATCH_SIZE && idcodes.hasNext())
+							input.add(idcodes.next());
+
+					if (!input.isEmpty()) {
+						long firstIndex = mNextIndex;
+						mNextIndex += input.size();
+						pending.add(executor.submit(() -> calculateBatch(input, firstIndex)));
+						continue;
+						}
+					}
+
+				if (pending.isEmpty())
+					break;
+
+				Batch batch = pending.poll().get();
+				mStatistics.mCanonizeNanos += batch.canonizeNanos;
+				long lookupStart = System.nanoTime();
+				for (DeduplicationResult result:batch.result)
+					lookup(result);
+				mStatistics.mLookupNanos += System.nanoTime() - lookupStart;
+
+				if (listener != null)
+					for (DeduplicationResult result:batch.result)
+						listener.moleculeProcessed(result);
+				count += batch.result.length;
+				}
+			}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+			}
+		finally {
+			executor.shutdownNow();
+			mStatistics.mElapsedMillis += System.currentTimeMillis() - startMillis;
+			}
+
+		return count;
+		}
+
+	private Batch calculateBatch(ArrayList<Object> input, long firstIndex) {
+		long start = System.nanoTime();
+		Batch batch = new Batch();
+		batch.result = new DeduplicationResult[input.size()];
+		IDCodeParser parser = null;
+		for (int i=0; i<input.size(); i++) {
+			DeduplicationResult result = new DeduplicationResult();
+			result.mIndex = firstIndex + i;
+			result.mTypeIndex = mTypeIndex;
+			result.mIDCode = new String[mType.length];
+			result.mHash = new long[mType.length];
+			result.mFirstIndex = new long[mType.length];
+
+			StereoMolecule mol = null;
+			if (input.get(i) instanceof StereoMolecule) {
+				mol = (StereoMolecule)input.get(i);
+				}
+			else if (input.get(i) != null) {
+				if (parser == null)
+					parser = new IDCodeParser(mNeedsCoordinates);
+				try {
+					mol = parser.getCompactMolecule((String)input.get(i));
+					}
+				catch (Exception e) {}
+				}
+
+			if (mol != null)
+				for (int j=0; j<mType.length; j++)
+					result.mIDCode[j] = CanonizerUtil.getIDCode(mol, mType[j], mLargestFragmentOnly);
+
+			batch.result[i] = result;
+			}
+		batch.canonizeNanos = System.nanoTime() - start;
+		return batch;
+		}
+
+	private void lookup(DeduplicationResult result) {
+		mStatistics.mMoleculeCount++;
+		for (int i=0; i<mType.length; i++) {
+			if (result.mIDCode[i] == null) {
+				result.mFirstIndex[i] = -1;
+				mStatistics.mFailedCount[i]++;
+				continue;
+				}
+
+			byte[] idcode = result.mIDCode[i].getBytes(StandardCharsets.ISO_8859_1);
+			long hash = CanonizerUtil.StrongHasher.hash(result.mIDCode[i]);
+			result.mHash[i] = hash;
+
+			// In case of a hash collision we probe further keys derived from the hash.
+			long key = hash;
+			while (true) {
+				long position = mHashMap[i].get(key);
+				if (position == OffHeapLongHashMap.NO_VALUE) {
+					mHashMap[i].putIfAbsent(key, mIDCodeStore[i].add(result.mIndex, idcode));
+					result.mFirstIndex[i] = result.mIndex;
+					mStatistics.mUniqueCount[i]++;
+					break;
+					}
+				if (mIDCodeStore[i].equals(position, idcode)) {
+					result.mFirstIndex[i] = mIDCodeStore[i].getIndex(position);
+					mStatistics.mDuplicateCount[i]++;
+					break;
+					}
+				mStatistics.mCollisionCount[i]++;
+				key = key * COLLISION_KEY_FACTOR + 1;
+				}
+			}
+		}
+
+	/**
+	 * Releases all hash tables and idcode stores and deletes their files, if any.
+	 */
+	@Override
+	public void close() {
+		if (mHashMap != null) {
+			for (int i=0; i<mType.length; i++) {
+				mHashMap[i].close();
+				mIDCodeStore[i].close();
+				}
+			mHashMap = null;
+			mIDCodeStore = null;
+			}
+		}
+	}
@@ -47,6 +47,7 @@ package com.actelion.research.chem;
 import com.actelion.research.io.BOMSkipper;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.TreeMap;
 
@@ -64,6 +65,11 @@ public class MolfileParser
 	private boolean mTreatAnyAsMetalBond,mDeduceMissingCharges,mChiralFlag,mIsV3000,mAssumeChiralTrue;
 	private int mMode;
 	private int[] mHydrogenMap;
+	private byte[] mBytes;
+	private int mLineStart,mLineEnd,mNextLineStart,mBytesEnd;
+
+	// atomic numbers of one- and two-letter atom labels in any letter case; 0: not in table, otherwise atomicNo+1
+	private static final short[] sLabelAtomicNo = createLabelTable();
 
 	/**
 	 * Constructor of a MolFileParser, which will mirror Y,Z coordinates
@@ -191,48 +197,12 @@ public class MolfileParser
 				}
 
 				int massDif = parseIntOrSpaces(line.substring(34,36).trim());
-				if(massDif != 0){
-					mMol.setAtomMass(atom,Molecule.cRoundedMass[mMol.getAtomicNo(atom)] + massDif);
-				}
-
 				int chargeDif = parseIntOrSpaces(line.substring(36,39).trim());
-				if(chargeDif != 0){
-					if (chargeDif == 4)
-						mMol.setAtomRadical(atom, Molecule.cAtomRadicalStateD);
-					else
-						mMol.setAtomCharge(atom,4 - chargeDif);
-				}
-
 				int mapNo = (line.length() < 63) ? 0 : parseIntOrSpaces(line.substring(60,63).trim());
-				mMol.setAtomMapNo(atom,mapNo,false);
-
 				//parity = parseIntOrSpaces(line.substring(39, 42).trim());
-
 				int hCount = (line.length() < 45) ? 0 : parseIntOrSpaces(line.substring(42,45).trim());
-				switch(hCount){
-					case 0:
-						break;
-					case 1: // no hydrogen
-						mMol.setAtomQueryFeature(atom, Molecule.cAtomQFNot1Hydrogen
-						                             | Molecule.cAtomQFNot2Hydrogen, true);
-						break;
-					case 2: // at least 1 hydrogen
-						mMol.setAtomQueryFeature(atom, Molecule.cAtomQFNot0Hydrogen, true);
-						break;
-					case 3: // at least 2 hydrogens
-                        mMol.setAtomQueryFeature(atom, Molecule.cAtomQFNot0Hydrogen
-                                                     | Molecule.cAtomQFNot1Hydrogen, true);
-                        break;
-					default: // at least 3,4 hydrogens
-						mMol.setAtomQueryFeature(atom, Molecule.cAtomQFNot0Hydrogen
-						                             | Molecule.cAtomQFNot1Hydrogen
-												     | Molecule.cAtomQFNot2Hydrogen, true);
-						break;
-				}
-
-				if(line.length() >= 48 && line.charAt(47) == '1') {
-					mMol.setAtomQueryFeature(atom,Molecule.cAtomQFMatchStereo,true);
-				}
+				boolean stereoCare = (line.length() >= 48 && line.charAt(47) == '1');
+				setV2AtomProperties(atom, massDif, chargeDif, mapNo, hCount, stereoCare);
 
                 int v = (line.length() < 51) ? 0 : parseIntOrSpaces(line.substring(48,51).trim());
 				if (v != 0) {
@@ -256,13 +226,7 @@ public class MolfileParser
 				int stereo = (line.length() < 12) ? 0 : parseIntOrSpaces(line.substring(9,12).trim());
 				int topology = (line.length() < 18) ? 0 : parseIntOrSpaces(line.substring(15,18).trim());
 
-				if (bondType == 8
-				 && (mTreatAnyAsMetalBond
-				  || mMol.isMetalAtom(atom1)
-				  || mMol.isMetalAtom(atom2)))
-					bondType = 9;      // metal ligand bond doesn't exist in molfile version 2
-
-				buildBond(atom1,atom2,bondType,stereo,topology);
+				addV2Bond(atom1,atom2,bondType,stereo,topology);
 			}
 
 			// skip atom list block
@@ -293,166 +257,7 @@ public class MolfileParser
 			}
 
 			while(line != null && (!(line.equals("M  END") || line.equals("$$$$")))){
-				if(line.startsWith("M  CHG")){
-					int aaa,vvv;
-					int j = Integer.parseInt(line.substring(6,9).trim());
-					if(j > 0){
-						aaa = 10;
-						vvv = 14;
-						for(int k = 1;k <= j;k++,aaa += 8,vvv += 8){
-							int atom = Integer.parseInt(line.substring(aaa,aaa + 3).trim()) - 1;
-							int charge = Integer.parseInt(line.substring(vvv,vvv + 3).trim());
-							mMol.setAtomCharge(atom,charge);
-						}
-					}
-				}
-
-				if(line.startsWith("M  ISO")){
-					int aaa,vvv;
-					int j = Integer.parseInt(line.substring(6,9).trim());
-					if(j > 0){
-						aaa = 10;
-						vvv = 14;
-						for(int k = 1;k <= j;k++,aaa += 8,vvv += 8){
-							int atom = Integer.parseInt(line.substring(aaa,aaa + 3).trim()) - 1;
-							int mass = Integer.parseInt(line.substring(vvv,vvv + 3).trim());
-							mMol.setAtomMass(atom,mass);
-						}
-					}
-				}
-
-				if(line.startsWith("M  RAD")){
-					int aaa,vvv;
-					int j = Integer.parseInt(line.substring(6,9).trim());
-					if(j > 0){
-						aaa = 10;
-						vvv = 14;
-						for(int k = 1;k <= j;k++,aaa += 8,vvv += 8){
-							int atom = Integer.parseInt(line.substring(aaa,aaa + 3).trim()) - 1;
-							int radical = Integer.parseInt(line.substring(vvv,vvv + 3).trim());
-							switch(radical){
-								case 1:
-									mMol.setAtomRadical(atom,Molecule.cAtomRadicalStateS);
-									break;
-								case 2:
-									mMol.setAtomRadical(atom,Molecule.cAtomRadicalStateD);
-									break;
-								case 3:
-									mMol.setAtomRadical(atom,Molecule.cAtomRadicalStateT);
-									break;
-							}
-						}
-					}
-				}
-
-				if(line.startsWith("M  RBC") || line.startsWith("M  RBD")){
-					int j = Integer.parseInt(line.substring(6,9).trim());
-					if(j > 0){
-						int aaa = 10;
-						int vvv = 14;
-						for(int k = 1;k <= j;k++,aaa += 8,vvv += 8){
-							int atom = Integer.parseInt(line.substring(aaa,aaa + 3).trim()) - 1;
-							int ringState = Integer.parseInt(line.substring(vvv,vvv + 3).trim());
-							switch(ringState){
-								case -1:
-									mMol.setAtomQueryFeature(atom,
-										Molecule.cAtomQFNot2RingBonds
-										| Molecule.cAtomQFNot3RingBonds
-										| Molecule.cAtomQFNot4RingBonds,
-										true);
-									break;
-								case 1:
-									mMol.setAtomQueryFeature(atom,
-										Molecule.cAtomQFNotChain,
-										true);
-									break;
-								case 2:
-									mMol.setAtomQueryFeature(atom,
-										Molecule.cAtomQFNotChain
-										| Molecule.cAtomQFNot3RingBonds
-										| Molecule.cAtomQFNot4RingBonds,
-										true);
-									break;
-								case 3:
-									mMol.setAtomQueryFeature(atom,
-										Molecule.cAtomQFNot2RingBonds
-										| Molecule.cAtomQFNot3RingBonds
-										| Molecule.cAtomQFNot4RingBonds,
-										true);
-									break;
-								case 4:
-									mMol.setAtomQueryFeature(atom,
-										Molecule.cAtomQFNotChain
-										| Molecule.cAtomQFNot2RingBonds
-										| Molecule.cAtomQFNot3RingBonds,
-										true);
-									break;
-							}
-						}
-					}
-				}
-
-				// The Atom list is implemented as an int[] of atomic numbers.
-				// NOT Lists are implemented as a sorted vector as negative Integers
-				if(line.startsWith("M  ALS")){
-					int atom = Integer.parseInt(line.substring(7,10).trim()) - 1;
-					if(atom >= 0){
-						int no = Integer.parseInt(line.substring(10,13).trim());
-						boolean bNotList = (line.charAt(14) == 'T');
-						int[] v = new int[no];
-						int aaa = 16;
-						for(int k = 0;k < no;k++,aaa += 4){
-							String sym = line.substring(aaa,aaa + 4).trim();
-							v[k] = Molecule.getAtomicNoFromLabel(sym, ALLOWED_ATOM_LABELS_IN_LIST);
-						}
-						mMol.setAtomicNo(atom, 6);
-						mMol.setAtomList(atom,v,bNotList);
-					}
-				}
-
-				if(line.startsWith("M  SUB")){
-					int aaa,vvv;
-					int j = Integer.parseInt(line.substring(6,9).trim());
-					if(j > 0){
-						aaa = 10;
-						vvv = 14;
-						for(int k = 1;k <= j;k++,aaa += 8,vvv += 8){
-							int atom = Integer.parseInt(line.substring(aaa,aaa + 3).trim()) - 1;
-							int substitution = Integer.parseInt(line.substring(vvv,vvv + 3).trim());
-							if(substitution == -2){
-								mMol.setAtomQueryFeature(atom,Molecule.cAtomQFNoMoreNeighbours,true);
-							} else if(substitution > 0){
-								int substitutionCount = 0;
-								for(int bond = 0;bond < mMol.getAllBonds();bond++){
-									if(mMol.getBondAtom(0,bond) == atom
-									   || mMol.getBondAtom(1,bond) == atom){
-										substitutionCount++;
-									}
-								}
-								if(substitution > substitutionCount){
-									mMol.setAtomQueryFeature(atom,Molecule.cAtomQFMoreNeighbours,true);
-								}
-							}
-						}
-					}
-				}
-
-				if(line.startsWith("M  RGP")){
-					int aaa,vvv;
-					int j = Integer.parseInt(line.substring(6,9).trim());
-					if(j > 0){
-						aaa = 10;
-						vvv = 14;
-						for(int k = 1;k <= j;k++,aaa += 8,vvv += 8){
-							int atom = Integer.parseInt(line.substring(aaa,aaa + 3).trim()) - 1;
-							int rno = Integer.parseInt(line.substring(vvv,vvv + 3).trim());
-							if(rno >= 1 && rno <= 20){
-								mMol.setAtomicNo(atom, Molecule.getAtomicNoFromLabel("R"+rno, Molecule.cPseudoAtomsRGroups));
-							}
-						}
-					}
-				}
-
+				interpretV2PropertyLine(line);
 				line = reader.readLine();
 			}
 		} catch(Exception e){
@@ -461,6 +266,11 @@ public class MolfileParser
 			return false;
 		}
 
+		completeV2Molecule(valence);
+		return true;
+	}
+
+	private void completeV2Molecule(int[] valence) {
 		if (mDeduceMissingCharges) {
 			introduceObviousMetalBonds();
 			deduceMissingCharges();
@@ -474,8 +284,218 @@ public class MolfileParser
 		handleValences(valence);
 
 		mMol.ensureHelperArrays(Molecule.cHelperParities);
+	}
 
-		return true;
+	private void setV2AtomProperties(int atom, int massDif, int chargeDif, int mapNo, int hCount, boolean stereoCare) {
+		if(massDif != 0){
+			mMol.setAtomMass(atom,Molecule.cRoundedMass[mMol.getAtomicNo(atom)] + massDif);
+		}
+
+		if(chargeDif != 0){
+			if (chargeDif == 4)
+				mMol.setAtomRadical(atom, Molecule.cAtomRadicalStateD);
+			else
+				mMol.setAtomCharge(atom,4 - chargeDif);
+		}
+
+		mMol.setAtomMapNo(atom,mapNo,false);
+
+		switch(hCount){
+			case 0:
+				break;
+			case 1: // no hydrogen
+				mMol.setAtomQueryFeature(atom, Molecule.cAtomQFNot1Hydrogen
+				                             | Molecule.cAtomQFNot2Hydrogen, true);
+				break;
+			case 2: // at least 1 hydrogen
+				mMol.setAtomQueryFeature(atom, Molecule.cAtomQFNot0Hydrogen, true);
+				break;
+			case 3: // at least 2 hydrogens
+				mMol.setAtomQueryFeature(atom, Molecule.cAtomQFNot0Hydrogen
+				                             | Molecule.cAtomQFNot1Hydrogen, true);
+				break;
+			default: // at least 3,4 hydrogens
+				mMol.setAtomQueryFeature(atom, Molecule.cAtomQFNot0Hydrogen
+				                             | Molecule.cAtomQFNot1Hydrogen
+				                             | Molecule.cAtomQFNot2Hydrogen, true);
+				break;
+		}
+
+		if(stereoCare) {
+			mMol.setAtomQueryFeature(atom,Molecule.cAtomQFMatchStereo,true);
+		}
+	}
+
+	private void addV2Bond(int atom1,int atom2,int bondType,int stereo,int topology) {
+		if (bondType == 8
+		 && (mTreatAnyAsMetalBond
+		  || mMol.isMetalAtom(atom1)
+		  || mMol.isMetalAtom(atom2)))
+			bondType = 9;      // metal ligand bond doesn't exist in molfile version 2
+
+		buildBond(atom1,atom2,bondType,stereo,topology);
+	}
+
+	private void interpretV2PropertyLine(String line) {
+		if(line.startsWith("M  CHG")){
+			int aaa,vvv;
+			int j = Integer.parseInt(line.substring(6,9).trim());
+			if(j > 0){
+				aaa = 10;
+				vvv = 14;
+				for(int k = 1;k <= j;k++,aaa += 8,vvv += 8){
+					int atom = Integer.parseInt(line.substring(aaa,aaa + 3).trim()) - 1;
+					int charge = Integer.parseInt(line.substring(vvv,vvv + 3).trim());
+					mMol.setAtomCharge(atom,charge);
+				}
+			}
+		}
+
+		if(line.startsWith("M  ISO")){
+			int aaa,vvv;
+			int j = Integer.parseInt(line.substring(6,9).trim());
+			if(j > 0){
+				aaa = 10;
+				vvv = 14;
+				for(int k = 1;k <= j;k++,aaa += 8,vvv += 8){
+					int atom = Integer.parseInt(line.substring(aaa,aaa + 3).trim()) - 1;
+					int mass = Integer.parseInt(line.substring(vvv,vvv + 3).trim());
+					mMol.setAtomMass(atom,mass);
+				}
+			}
+		}
+
+		if(line.startsWith("M  RAD")){
+			int aaa,vvv;
+			int j = Integer.parseInt(line.substring(6,9).trim());
+			if(j > 0){
+				aaa = 10;
+				vvv = 14;
+				for(int k = 1;k <= j;k++,aaa += 8,vvv += 8){
+					int atom = Integer.parseInt(line.substring(aaa,aaa + 3).trim()) - 1;
+					int radical = Integer.parseInt(line.substring(vvv,vvv + 3).trim());
+					switch(radical){
+						case 1:
+							mMol.setAtomRadical(atom,Molecule.cAtomRadicalStateS);
+							break;
+						case 2:
+							mMol.setAtomRadical(atom,Molecule.cAtomRadicalStateD);
+							break;
+						case 3:
+							mMol.setAtomRadical(atom,Molecule.cAtomRadicalStateT);
+							break;
+					}
+				}
+			}
+		}
+
+		if(line.startsWith("M  RBC") || line.startsWith("M  RBD")){
+			int j = Integer.parseInt(line.substring(6,9).trim());
+			if(j > 0){
+				int aaa = 10;
+				int vvv = 14;
+				for(int k = 1;k <= j;k++,aaa += 8,vvv += 8){
+					int atom = Integer.parseInt(line.substring(aaa,aaa + 3).trim()) - 1;
+					int ringState = Integer.parseInt(line.substring(vvv,vvv + 3).trim());
+					switch(ringState){
+						case -1:
+							mMol.setAtomQueryFeature(atom,
+								Molecule.cAtomQFNot2RingBonds
+								| Molecule.cAtomQFNot3RingBonds
+								| Molecule.cAtomQFNot4RingBonds,
+								true);
+							break;
+						case 1:
+							mMol.setAtomQueryFeature(atom,
+								Molecule.cAtomQFNotChain,
+								true);
+							break;
+						case 2:
+							mMol.setAtomQueryFeature(atom,
+								Molecule.cAtomQFNotChain
+								| Molecule.cAtomQFNot3RingBonds
+								| Molecule.cAtomQFNot4RingBonds,
+								true);
+							break;
+						case 3:
+							mMol.setAtomQueryFeature(atom,
+								Molecule.cAtomQFNot2RingBonds
+								| Molecule.cAtomQFNot3RingBonds
+								| Molecule.cAtomQFNot4RingBonds,
+								true);
+							break;
+						case 4:
+							mMol.setAtomQueryFeature(atom,
+								Molecule.cAtomQFNotChain
+								| Molecule.cAtomQFNot2RingBonds
+								| Molecule.cAtomQFNot3RingBonds,
+								true);
+							break;
+					}
+				}
+			}
+		}
+
+		// The Atom list is implemented as an int[] of atomic numbers.
+		// NOT Lists are implemented as a sorted vector as negative Integers
+		if(line.startsWith("M  ALS")){
+			int atom = Integer.parseInt(line.substring(7,10).trim()) - 1;
+			if(atom >= 0){
+				int no = Integer.parseInt(line.substring(10,13).trim());
+				boolean bNotList = (line.charAt(14) == 'T');
+				int[] v = new int[no];
+				int aaa = 16;
+				for(int k = 0;k < no;k++,aaa += 4){
+					String sym = line.substring(aaa,aaa + 4).trim();
+					v[k] = Molecule.getAtomicNoFromLabel(sym, ALLOWED_ATOM_LABELS_IN_LIST);
+				}
+				mMol.setAtomicNo(atom, 6);
+				mMol.setAtomList(atom,v,bNotList);
+			}
+		}
+
+		if(line.startsWith("M  SUB")){
+			int aaa,vvv;
+			int j = Integer.parseInt(line.substring(6,9).trim());
+			if(j > 0){
+				aaa = 10;
+				vvv = 14;
+				for(int k = 1;k <= j;k++,aaa += 8,vvv += 8){
+					int atom = Integer.parseInt(line.substring(aaa,aaa + 3).trim()) - 1;
+					int substitution = Integer.parseInt(line.substring(vvv,vvv + 3).trim());
+					if(substitution == -2){
+						mMol.setAtomQueryFeature(atom,Molecule.cAtomQFNoMoreNeighbours,true);
+					} else if(substitution > 0){
+						int substitutionCount = 0;
+						for(int bond = 0;bond < mMol.getAllBonds();bond++){
+							if(mMol.getBondAtom(0,bond) == atom
+							   || mMol.getBondAtom(1,bond) == atom){
+								substitutionCount++;
+							}
+						}
+						if(substitution > substitutionCount){
+							mMol.setAtomQueryFeature(atom,Molecule.cAtomQFMoreNeighbours,true);
+						}
+					}
+				}
+			}
+		}
+
+		if(line.startsWith("M  RGP")){
+			int aaa,vvv;
+			int j = Integer.parseInt(line.substring(6,9).trim());
+			if(j > 0){
+				aaa = 10;
+				vvv = 14;
+				for(int k = 1;k <= j;k++,aaa += 8,vvv += 8){
+					int atom = Integer.parseInt(line.substring(aaa,aaa + 3).trim()) - 1;
+					int rno = Integer.parseInt(line.substring(vvv,vvv + 3).trim());
+					if(rno >= 1 && rno <= 20){
+						mMol.setAtomicNo(atom, Molecule.getAtomicNoFromLabel("R"+rno, Molecule.cPseudoAtomsRGroups));
+					}
+				}
+			}
+		}
 	}
 
 	/**
@@ -1024,6 +1044,384 @@ public class MolfileParser
 		}
 	}
 
+	/**
+	 * Parses a molfile from UTF-8 or ASCII encoded bytes into the given molecule, which is cleared first.
+	 * V2000 atom and bond blocks are parsed directly from the byte array without creating
+	 * Strings for individual lines. V3000 molfiles are converted and parsed conventionally.
+	 * @param mol
+	 * @param bytes
+	 * @param offset position of the molfile's first byte
+	 * @param length number of bytes of the molfile
+	 * @return true if successful
+	 */
+	public boolean parse(StereoMolecule mol, byte[] bytes, int offset, int length)
+	{
+		mMol = mol;
+		return readMoleculeFromBytes(bytes, offset, length);
+	}
+
+	/**
+	 * Parses the molfile contained in the buffer's remaining bytes without changing the buffer's position.
+	 * Heap buffers are parsed without copying.
+	 * @param mol
+	 * @param buffer
+	 * @return true if successful
+	 */
+	public boolean parse(StereoMolecule mol, ByteBuffer buffer)
+	{
+		if (buffer.hasArray())
+			return parse(mol, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return parse(mol, bytes, 0, bytes.length);
+	}
+
+	// with given UTF-8 bytes, create a compact sized Molecule
+	public StereoMolecule getCompactMolecule(byte[] bytes, int offset, int length)
+	{
+		mMol = null;
+		return readMoleculeFromBytes(bytes, offset, length) ? mMol : null;
+	}
+
+	private boolean readMoleculeFromBytes(byte[] bytes, int offset, int length) {
+		mBytes = bytes;
+		mNextLineStart = offset;
+		mBytesEnd = offset + length;
+		try {
+			int result = readV2MoleculeFromBytes();
+			if (result != -1)
+				return result == 1;
+		} finally {
+			mBytes = null;
+		}
+
+		// V3000 and empty molecules are rare and taken care of by the String based parser
+		return readMoleculeFromBuffer(new BufferedReader(new StringReader(new String(bytes, offset, length, StandardCharsets.UTF_8))));
+	}
+
+	/**
+	 * @return 1: success; 0: failure; -1: needs String based parsing
+	 */
+	private int readV2MoleculeFromBytes() {
+		int[] valence = null;
+
+		try{
+			int natoms,nbonds,nlists;
+
+			mHydrogenMap = null;
+
+			if(mMol != null){
+				mMol.clear();
+				mMol.setFragment(false);
+			}
+
+			if(!nextLine()){
+				TRACE("readMoleculeFromBytes: No Header Line\n");
+				return 0;
+			}
+			String name = getLineString();
+			if(!nextLine()){
+				TRACE("Error [readMoleculeFromBytes]: No Program Line\n");
+				return 0;
+			}
+			if(!nextLine()){
+				TRACE("Error [readMoleculeFromBytes]: No Comment Line\n");
+				return 0;
+			}
+
+			String comment = getLineString();
+			mTreatAnyAsMetalBond = comment.contains("From CSD data. Using bond type 'Any'");
+			mDeduceMissingCharges = comment.contains("From CSD data.");
+
+			if(!nextLine()){
+				TRACE("Error [readMoleculeFromBytes]: No Counts Line\n");
+				return 0;
+			}
+
+			mIsV3000 = false;
+			mChiralFlag = mAssumeChiralTrue;
+			try{
+				natoms = parseLineInt(0, 3, false);
+				nbonds = parseLineInt(3, 6, false);
+				nlists = parseLineInt(6, 9, true);
+				mChiralFlag |= (1 == parseLineInt(12, 15, true));
+				mIsV3000 = (mLineEnd - mLineStart >= 39 && lineStartsWith("V3000", 34));
+			} catch(Exception e){
+				TRACE("Warning [readMoleculeFromBytes]: Unable to interpret counts line\n");
+				return 0;
+			}
+
+			if(mIsV3000 || natoms == 0)
+				return -1;
+
+			if(mMol == null){
+				mMol = new StereoMolecule(natoms,nbonds);
+			}
+
+			mMol.setName(name);
+
+			if(!mChiralFlag){
+				mMol.setToRacemate();
+			}
+
+			for(int i = 0;i < natoms;i++){
+				if(!nextLine()){
+					TRACE("Error [readMoleculeFromBytes]: No Atom Line\n");
+					return 0;
+				}
+
+				float x = parseLineFloat(0, 10);
+				float y = parseLineFloat(10, 20);
+				float z = parseLineFloat(20, 30);
+
+				int atom = mMol.addAtom(x, -y, -z);
+
+				int labelStart = trimStart(mLineStart+31, mLineStart+34);
+				int labelEnd = trimEnd(labelStart, mLineStart+34);
+				if(labelEnd - labelStart == 1 && (mBytes[labelStart] == 'A' || mBytes[labelStart] == '*')){
+					mMol.setAtomQueryFeature(atom,Molecule.cAtomQFAny,true);
+				} else if(labelEnd - labelStart == 1 && mBytes[labelStart] == 'Q') {
+					int[] list = new int[1];
+					list[0] = 6;
+					mMol.setAtomList(atom, list, true);
+				} else {
+					mMol.setAtomicNo(atom,getAtomicNoFromLabel(labelStart, labelEnd));
+				}
+
+				int lineLength = mLineEnd - mLineStart;
+				int massDif = parseLineInt(34, 36, true);
+				int chargeDif = parseLineInt(36, 39, true);
+				int mapNo = (lineLength < 63) ? 0 : parseLineInt(60, 63, true);
+				int hCount = (lineLength < 45) ? 0 : parseLineInt(42, 45, true);
+				boolean stereoCare = (lineLength >= 48 && mBytes[mLineStart+47] == '1');
+				setV2AtomProperties(atom, massDif, chargeDif, mapNo, hCount, stereoCare);
+
+				int v = (lineLength < 51) ? 0 : parseLineInt(48, 51, true);
+				if (v != 0) {
+					if (valence == null)
+						valence = new int[natoms];
+					valence[atom] = v;
+				}
+			}
+
+			for(int i = 0;i < nbonds;i++){
+				if(!nextLine()){
+					TRACE("Error [readMoleculeFromBytes]:No Bond Line\n");
+					return 0;
+				}
+
+				int lineLength = mLineEnd - mLineStart;
+				int atom1 = parseLineInt(0, 3, false) - 1;
+				int atom2 = parseLineInt(3, 6, false) - 1;
+				int bondType = parseLineInt(6, 9, false);
+				int stereo = (lineLength < 12) ? 0 : parseLineInt(9, 12, true);
+				int topology = (lineLength < 18) ? 0 : parseLineInt(15, 18, true);
+				addV2Bond(atom1,atom2,bondType,stereo,topology);
+			}
+
+			// skip atom list block
+			for(int i = 0;i < nlists;i++){
+				if(!nextLine()){
+					TRACE("Error [readMoleculeFromBytes]: No List Line\n");
+					return 0;
+				}
+			}
+
+			if(!nextLine()){
+				TRACE("Error readMoleculeFromBytes Missing M END or $$$$\n");
+
+				if ((mMode & MODE_KEEP_HYDROGEN_MAP) != 0)
+					mHydrogenMap = mMol.getHandleHydrogenMap();
+
+				handleValences(valence);
+
+				// to run the racemization scheduled with mMol.setToRacemate()
+				if(!mChiralFlag)
+					mMol.ensureHelperArrays(Molecule.cHelperParities);
+
+				return 1;
+			}
+
+			do {
+				if(lineEquals("M  END") || lineEquals("$$$$"))
+					break;
+				if(lineStartsWith("M  ", 0))
+					interpretV2PropertyLine(getLineString());
+			} while(nextLine());
+		} catch(Exception e){
+			e.printStackTrace();
+			System.err.println("error reading molfile " + e);
+			return 0;
+		}
+
+		completeV2Molecule(valence);
+		return 1;
+	}
+
+	private boolean nextLine() {
+		if (mNextLineStart >= mBytesEnd)
+			return false;
+
+		mLineStart = mNextLineStart;
+		int i = mLineStart;
+		while (i < mBytesEnd && mBytes[i] != '\n')
+			i++;
+		mNextLineStart = i + 1;
+		if (i > mLineStart && mBytes[i-1] == '\r')
+			i--;
+		mLineEnd = i;
+		return true;
+	}
+
+	private String getLineString() {
+		return new String(mBytes, mLineStart, mLineEnd - mLineStart, StandardCharsets.UTF_8);
+	}
+
+	private boolean lineStartsWith(String s, int index) {
+		if (mLineStart + index + s.length() > mLineEnd)
+			return false;
+		for (int i=0; i<s.length(); i++)
+			if (mBytes[mLineStart+index+i] != s.charAt(i))
+				return false;
+		return true;
+	}
+
+	private boolean lineEquals(String s) {
+		return mLineEnd - mLineStart == s.length() && lineStartsWith(s, 0);
+	}
+
+	private int trimStart(int start, int end) {
+		while (start < end && (mBytes[start] & 0xFF) <= ' ')
+			start++;
+		return start;
+	}
+
+	private int trimEnd(int start, int end) {
+		while (end > start && (mBytes[end-1] & 0xFF) <= ' ')
+			end--;
+		return end;
+	}
+
+	/**
+	 * Parses the integer from the given columns of the current line, which corresponds to
+	 * Integer.parseInt(line.substring(from, to).trim()) including its exceptions.
+	 * @param allowEmpty if true, empty columns are interpreted as 0
+	 * @return
+	 * @throws NumberFormatException
+	 */
+	private int parseLineInt(int from, int to, boolean allowEmpty) throws NumberFormatException {
+		if (mLineStart + to > mLineEnd)
+			throw new NumberFormatException("line too short");
+
+		int start = trimStart(mLineStart+from, mLineStart+to);
+		int end = trimEnd(start, mLineStart+to);
+		if (start == end) {
+			if (allowEmpty)
+				return 0;
+			throw new NumberFormatException("empty column");
+		}
+
+		boolean isNegative = (mBytes[start] == '-');
+		if (isNegative || mBytes[start] == '+')
+			start++;
+		if (start == end)
+			throw new NumberFormatException("no digits");
+
+		int value = 0;
+		for (int i=start; i<end; i++) {
+			int digit = mBytes[i] - '0';
+			if (digit < 0 || digit > 9)
+				throw new NumberFormatException("unexpected character");
+			value = 10 * value + digit;
+		}
+		return isNegative ? -value : value;
+	}
+
+	/**
+	 * Parses plain decimal numbers from the given columns of the current line.
+	 * Anything else, e.g. exponents, is passed to Float.parseFloat().
+	 * @return
+	 * @throws NumberFormatException
+	 */
+	private float parseLineFloat(int from, int to) throws NumberFormatException {
+		if (mLineStart + to > mLineEnd)
+			throw new NumberFormatException("line too short");
+
+		int start = trimStart(mLineStart+from, mLineStart+to);
+		int end = trimEnd(start, mLineStart+to);
+
+		int i = start;
+		boolean isNegative = (i < end && mBytes[i] == '-');
+		if (isNegative || (i < end && mBytes[i] == '+'))
+			i++;
+
+		long mantissa = 0;
+		int digits = 0;
+		int decimals = -1;
+		for (; i<end; i++) {
+			int digit = mBytes[i] - '0';
+			if (digit >= 0 && digit <= 9 && digits < 18) {
+				mantissa = 10 * mantissa + digit;
+				digits++;
+				if (decimals != -1)
+					decimals++;
+			}
+			else if (mBytes[i] == '.' && decimals == -1) {
+				decimals = 0;
+			}
+			else {
+				return Float.parseFloat(new String(mBytes, start, end - start, StandardCharsets.UTF_8));
+			}
+		}
+
+		if (digits == 0)
+			return Float.parseFloat(new String(mBytes, start, end - start, StandardCharsets.UTF_8));
+
+		double value = (decimals <= 0) ? mantissa : mantissa / POWER_OF_TEN[decimals];
+		return (float)(isNegative ? -value : value);
+	}
+
+	private static final double[] POWER_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+			1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18 };
+
+	/**
+	 * Resolves every one- or two-letter label of Molecule.cAtomLabel in all letter case variants
+	 * with Molecule.getAtomicNoFromLabel(), such that table lookups give identical results.
+	 * @return table indexed by (c1 << 7) | c2 with c2 = 0 for one-letter labels
+	 */
+	private static short[] createLabelTable() {
+		short[] table = new short[1 << 14];
+		for (String label:Molecule.cAtomLabel) {
+			if (label.length() == 1 || label.length() == 2) {
+				for (int variant=0; variant<(1 << label.length()); variant++) {
+					char[] c = label.toCharArray();
+					for (int i=0; i<c.length; i++)
+						c[i] = ((variant & (1 << i)) == 0) ? Character.toUpperCase(c[i]) : Character.toLowerCase(c[i]);
+					if (c[0] < 128 && (c.length == 1 || c[1] < 128))
+						table[(c[0] << 7) | (c.length == 1 ? 0 : c[1])]
+								= (short)(Molecule.getAtomicNoFromLabel(new String(c), ALLOWED_ATOM_LABELS) + 1);
+				}
+			}
+		}
+		return table;
+	}
+
+	private int getAtomicNoFromLabel(int start, int end) {
+		int length = end - start;
+		if (length == 1 || length == 2) {
+			int c1 = mBytes[start];
+			int c2 = (length == 1) ? 0 : mBytes[start+1];
+			if (c1 > 0 && c2 >= 0) {
+				int key = (c1 << 7) | c2;
+				if (sLabelAtomicNo[key] != 0)
+					return sLabelAtomicNo[key] - 1;
+			}
+		}
+
+		return Molecule.getAtomicNoFromLabel(new String(mBytes, start, length, StandardCharsets.UTF_8), ALLOWED_ATOM_LABELS);
+	}
+
 	private int buildBond(int atom1,int atom2,int bondType,
 						  int stereo,int topology)
 	{
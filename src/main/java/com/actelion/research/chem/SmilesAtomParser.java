@@ -23,12 +23,26 @@ public class SmilesAtomParser {
 		mParentParser = parser;
 		mMode = mode;
 		mAllowCactvs = (mode & SmilesParser.MODE_NO_CACTUS_SYNTAX) == 0;
+		reset();
+	}
+
+	/**
+	 * Resets all atom properties to their defaults, such that this parser
+	 * can be used to parse the next atom of the same SMILES or SMARTS.
+	 */
+	protected void reset() {
+		parityFound = false;
+		isClockwise = false;
+		smartsFeatureFound = false;
 		atomicNo = -1;
 		charge = 0;
 		mapNo = 0;
 		abnormalValence = -1;
 		explicitHydrogens = HYDROGEN_ANY;
 		atomQueryFeatures = 0L;
+		atomList = null;
+		recursiveSmartsList = null;
+		excludeGroupList = null;
 	}
 
 	private void addAtomToList(int atomicNo) {
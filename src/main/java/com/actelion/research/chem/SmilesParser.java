@@ -390,6 +390,8 @@ public class SmilesParser {
 		int bondType = Molecule.cBondTypeSingle;
 		int bondQueryFeatures = 0;
 
+		SmilesAtomParser atomParser = new SmilesAtomParser(this, mMode | mSmartsMode);
+
 		while (smiles[position] <= 32)
 			position++;
 
@@ -401,7 +403,7 @@ public class SmilesParser {
 					|| (theChar == '!' && allowSmarts && squareBracketOpen)
 					|| (theChar == '#' && allowSmarts && squareBracketOpen)
 					|| (theChar == '$' && allowSmarts && squareBracketOpen)) {
-				SmilesAtomParser atomParser = new SmilesAtomParser(this, mMode | mSmartsMode);
+				atomParser.reset();
 
 				if (!squareBracketOpen) {
 					position = atomParser.parseAtomOutsideBrackets(smiles, position, endIndex, allowSmarts);
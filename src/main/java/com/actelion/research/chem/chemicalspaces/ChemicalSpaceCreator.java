@@ -10,15 +10,31 @@ import com.actelion.research.chem.reaction.Reactor;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 
 public class ChemicalSpaceCreator {
 
+	private static final String WORK_DIRECTORY = "work";
+	private static final String BB_FILE = "buildingblocks.txt";
+	private static final String SYNTHON_DIRECTORY = "synthons";
+	private static final String PRODUCT_DIRECTORY = "products";
+	private static final String SYNTHON_CHECKPOINT = "synthons.checkpoint";
+	private static final String LIBRARY_CHECKPOINT = "libraries.checkpoint";
+	private static final String SYNTHON_STATE_KEY = "#synthons";
+	private static final String DELIMITER = "\t";
+	private static final int CHUNK_SIZE = 10000;
+
 	private File outdirectory;
+	private File workdirectory;
 	private Set<String> bbs;
 	private Map<String,Map<String,List<String>>> bbData;
 	private List<Reaction> reactions;
@@ -52,18 +68,81 @@ public class ChemicalSpaceCreator {
 		this.reactions = reactions;
 	}
 	
+	public void setWorkDirectory(File workdirectory) {
+		this.workdirectory = workdirectory;
+	}
+
+	private File getWorkDirectory() {
+		return workdirectory != null ? workdirectory : new File(outdirectory, WORK_DIRECTORY);
+	}
+
+	/**
+	 * creates the space in stages, which keep their results in the work directory (by default outdirectory/work):
+	 * 1. building blocks are standardized and fingerprinted; only building blocks not yet in the work directory are processed
+	 * 2. synthons are created for all reactions, one chunk of building blocks at a time, and appended to one file per reaction role
+	 * 3. combinatorial libraries are written for every reaction; libraries of the current synthon state are not written again
+	 * after every chunk and every library a checkpoint is written, such that an interrupted run continues where it stopped.
+	 * calling create() again with additional building blocks or reactions only processes the new ones and rewrites
+	 * the combinatorial libraries
+	 */
 	public void create() {
-		Map<String,List<Reaction>> allSynthonTransformations = new HashMap<String,List<Reaction>>();
-		generateSynthonTransformations(reactions,allSynthonTransformations);
-		ConcurrentMap<String,String> processedToOrigIDCode = new ConcurrentHashMap<String,String>();
-		ConcurrentMap<String,List<Map<String,String>>> reactionsWithSynthons = new ConcurrentHashMap<String,List<Map<String,String>>>(); 
-		processBuildingBlocks(this.bbs,processedToOrigIDCode,functionalizations);
-		ConcurrentMap<String, long[]> fps = new ConcurrentHashMap<>();
-		calcFragFPs(processedToOrigIDCode.keySet(), fps);
-		generateSynthons(reactions, processedToOrigIDCode, reactionsWithSynthons, fps,allSynthonTransformations);
-		generateCombinatoriaLibraries(reactionsWithSynthons, allSynthonTransformations);
+		try {
+			File workDir = getWorkDirectory();
+			new File(workDir, SYNTHON_DIRECTORY).mkdirs();
+			new File(workDir, PRODUCT_DIRECTORY).mkdirs();
+			Map<String,List<Reaction>> allSynthonTransformations = new HashMap<String,List<Reaction>>();
+			generateSynthonTransformations(reactions,allSynthonTransformations);
+			File bbFile = new File(workDir, BB_FILE);
+			updateBuildingBlocks(this.bbs, bbFile, functionalizations);
+			updateSynthons(reactions, bbFile, workDir, allSynthonTransformations);
+			Map<String,List<Map<String,String>>> reactionsWithSynthons = readSynthons(reactions, workDir, allSynthonTransformations);
+			generateCombinatoriaLibraries(reactionsWithSynthons, allSynthonTransformations, workDir);
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
 	}
-	
+
+	/**
+	 * standardizes new building blocks, applies functionalizations and appends them together with their fragment fingerprint
+	 * to the building block file (processed idcode, original idcode, FFP512). Building blocks, whose original idcode is
+	 * already in the file, are skipped.
+	 */
+	private static void updateBuildingBlocks(Collection<String> bbs, File bbFile, List<Reaction> functionalizations) throws IOException {
+		truncateToLastLine(bbFile);
+		Set<String> knownBBs = new HashSet<>();
+		Set<String> processedIDCodes = ConcurrentHashMap.newKeySet();
+		if(bbFile.exists()) {
+			try(BufferedReader reader = Files.newBufferedReader(bbFile.toPath(), StandardCharsets.UTF_8)) {
+				String line;
+				while((line = reader.readLine()) != null) {
+					String[] entries = line.split(DELIMITER, -1);
+					processedIDCodes.add(entries[0]);
+					knownBBs.add(entries[1]);
+				}
+			}
+		}
+		List<String> newBBs = bbs.stream().filter(idcode -> !knownBBs.contains(idcode)).collect(Collectors.toList());
+		try(FileOutputStream fos = new FileOutputStream(bbFile, true);
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8))) {
+			for(int start=0;start<newBBs.size();start+=CHUNK_SIZE) {
+				ConcurrentMap<String,String> processedToOrigIDCode = new ConcurrentHashMap<String,String>();
+				processBuildingBlocks(newBBs.subList(start, Math.min(start+CHUNK_SIZE, newBBs.size())), processedIDCodes,
+						processedToOrigIDCode, functionalizations);
+				ConcurrentMap<String, long[]> fps = new ConcurrentHashMap<>();
+				calcFragFPs(processedToOrigIDCode.keySet(), fps);
+				DescriptorHandlerLongFFP512 dhf = DescriptorHandlerLongFFP512.getDefaultInstance();
+				for(Map.Entry<String,String> e : processedToOrigIDCode.entrySet()) {
+					long[] fp = fps.get(e.getKey());
+					writer.write(e.getKey() + DELIMITER + e.getValue() + DELIMITER + (fp == null ? "" : dhf.encode(fp)));
+					writer.newLine();
+				}
+				writer.flush();
+				fos.getFD().sync();
+			}
+		}
+	}
+
 	private static void calcFragFPs(Collection<String> idcodes, ConcurrentMap<String,long[]> fps) {
 		idcodes.parallelStream().forEach(idc -> {
 			IDCodeParser parser = new IDCodeParser();
@@ -78,14 +157,15 @@ public class ChemicalSpaceCreator {
 		});
 	}
 	
-	private static void processBuildingBlocks(Collection<String> bbs, ConcurrentMap<String,String> processedToOrigIDCode, List<Reaction> functionalizations) {
+	private static void processBuildingBlocks(Collection<String> bbs, Set<String> processedIDCodes,
+			ConcurrentMap<String,String> processedToOrigIDCode, List<Reaction> functionalizations) {
 		bbs.parallelStream().forEach( idcode -> {
 			StereoMolecule mol = new IDCodeParser().getCompactMolecule(idcode);
 			if (mol != null) {
 				mol.ensureHelperArrays(Molecule.cHelperCIP);
 				mol.stripSmallFragments();
 				mol.normalizeAmbiguousBonds();
-				if(processedToOrigIDCode.get(mol.getIDCode())!=null)
+				if(!processedIDCodes.add(mol.getIDCode()))
 					return;
 				processedToOrigIDCode.put(mol.getIDCode(), idcode);
 				
@@ -96,7 +176,7 @@ public class ChemicalSpaceCreator {
 					
 					if (searcher.isFragmentInMolecule()) {
 						StereoMolecule product = getProduct(functionalization,Arrays.asList(mol));
-						if(product!=null)
+						if(product!=null && processedIDCodes.add(product.getIDCode()))
 							processedToOrigIDCode.put(product.getIDCode(), idcode);
 					}
 				}
@@ -104,16 +184,6 @@ public class ChemicalSpaceCreator {
 		});
 	}
 	
-	private static void generateSynthons(List<Reaction> reactions,
-		ConcurrentMap<String,String> processedBBToBB,
-		ConcurrentMap<String,List<Map<String,String>>> reactionsWithSynthons,ConcurrentMap<String,long[]> fps,
-		Map<String,List<Reaction>> allSynthonTransformations) {
-
-		for(Reaction rxn : reactions) {
-			processReaction(rxn, processedBBToBB, reactionsWithSynthons, fps, allSynthonTransformations);
-        }
-  	}
-	
 	private static void generateSynthonTransformations(List<Reaction> reactions, Map<String,List<Reaction>> allSynthonTransformations) {
 		for(Reaction rxn : reactions) {
 			List<Reaction> synthonTransformations = new ArrayList<>();
@@ -127,77 +197,226 @@ public class ChemicalSpaceCreator {
 	     	allSynthonTransformations.put(rxn.getName(), synthonTransformations);
 		}
 	}
-	
-	private static void processReaction(Reaction rxn,  ConcurrentMap<String,String> processedToOrigBB, 
-			ConcurrentMap<String,List<Map<String,String>>> reactionsWithSynthons, ConcurrentMap<String,long[]> fps,
-			Map<String,List<Reaction>> synthonTransformations) {
 
-		List<List<String>> reactants = new ArrayList<>();
-     	//System.out.println(rxn);
-     	getReactants(rxn, processedToOrigBB, reactants,fps);
+	/**
+	 * creates the synthons of all building blocks, which were not yet processed for the respective reaction, and
+	 * appends them to one file per reaction role (synthon idcode, original building block idcode).
+	 * building blocks are processed in chunks; after every chunk the number of processed building blocks and the
+	 * lengths of the synthon files are written to the synthon checkpoint. Synthons written after the last checkpoint are discarded.
+	 */
+	private static void updateSynthons(List<Reaction> reactions, File bbFile, File workDir,
+			Map<String,List<Reaction>> synthonTransformations) throws IOException {
+		File checkpointFile = new File(workDir, SYNTHON_CHECKPOINT);
+		Map<String,long[]> checkpoint = readCheckpoint(checkpointFile);
 
-     	reactionsWithSynthons.putIfAbsent(rxn.getName(), new ArrayList<>());
-		
-     	//System.out.println("bbs");
-
-     	for(int i=0;i<reactants.size();i++) {
-     		List<String> rList = reactants.get(i);
-     		ConcurrentMap<String,String> synthonList = new ConcurrentHashMap<String,String>();
-     		reactionsWithSynthons.get(rxn.getName()).add(synthonList);
-     		Reaction synthonTransformation = synthonTransformations.get(rxn.getName()).get(i);
-
-     		//for(String idcode : rList) {
-
-     		rList.parallelStream().forEach(idcode -> {
-     			IDCodeParser parser = new IDCodeParser();
-     			StereoMolecule bb = new StereoMolecule();
-     			parser.parse(bb, idcode);
-     			bb.ensureHelperArrays(Molecule.cHelperCIP);
-     			String synthonIDCode = transformToSynthon(synthonTransformation,bb);
-     			String origIDCode = processedToOrigBB.get(idcode);
-     			if(synthonIDCode!=null) {
-     				synthonList.put(synthonIDCode, origIDCode);
-     			}
-     		});
-     	}
-   	}
-
-	private static void getReactants(Reaction rxn,  ConcurrentMap<String,String> processedToOrigIDCode,
-			List<List<String>> reactants, Map<String,long[]> fps) {
-		
+		List<Reaction> validReactions = new ArrayList<>();
+		for(Reaction rxn : reactions) {
+			if(synthonTransformations.get(rxn.getName()).size() != rxn.getReactants())
+				continue;
+			validReactions.add(rxn);
+			long[] state = checkpoint.get(rxn.getName());
+			if(state == null || state.length != rxn.getReactants()+1) {
+				state = new long[rxn.getReactants()+1];
+				checkpoint.put(rxn.getName(), state);
+			}
+			for(int i=0;i<rxn.getReactants();i++) {
+				File synthonFile = getSynthonFile(workDir, rxn, i);
+				try(RandomAccessFile file = new RandomAccessFile(synthonFile, "rw")) {
+					file.setLength(state[i+1]);
+				}
+			}
+		}
+
+		// reactant fingerprints and idcodes are calculated once, before they are used by multiple threads
+		Map<String,long[][]> reactantFFPs = new HashMap<>();
+		DescriptorHandlerLongFFP512 dhf = new DescriptorHandlerLongFFP512();
+		for(Reaction rxn : validReactions) {
+			long[][] ffps = new long[rxn.getReactants()][];
+			for(int i=0;i<rxn.getReactants();i++) {
+				ffps[i] = dhf.createDescriptor(rxn.getReactant(i));
+				rxn.getReactant(i).getIDCode();
+			}
+			reactantFFPs.put(rxn.getName(), ffps);
+		}
+		ThreadLocal<Map<String,SSSearcherWithIndex[]>> threadSearchers = ThreadLocal.withInitial(HashMap::new);
+
+		try(BufferedReader reader = Files.newBufferedReader(bbFile.toPath(), StandardCharsets.UTF_8)) {
+			long index = 0;
+			while(true) {
+				List<String> chunk = new ArrayList<>();
+				String line;
+				while(chunk.size()<CHUNK_SIZE && (line = reader.readLine()) != null)
+					chunk.add(line);
+				if(chunk.isEmpty())
+					break;
+
+				final long firstIndex = index;
+				List<Reaction> pendingReactions = validReactions.stream().filter(
+						rxn -> checkpoint.get(rxn.getName())[0] < firstIndex+chunk.size()).collect(Collectors.toList());
+				if(!pendingReactions.isEmpty()) {
+					Map<String,List<Queue<String>>> newSynthons = new HashMap<>();
+					for(Reaction rxn : pendingReactions) {
+						List<Queue<String>> roles = new ArrayList<>();
+						for(int i=0;i<rxn.getReactants();i++)
+							roles.add(new ConcurrentLinkedQueue<>());
+						newSynthons.put(rxn.getName(), roles);
+					}
+
+					IntStream.range(0, chunk.size()).parallel().forEach(c -> {
+						String[] entries = chunk.get(c).split(DELIMITER, -1);
+						if(entries.length<3 || entries[2].isEmpty())
+							return;
+						long[] fp = DescriptorHandlerLongFFP512.getDefaultInstance().decode(entries[2]);
+						StereoMolecule mol = new IDCodeParser().getCompactMolecule(entries[0]);
+						if(fp == null || mol == null)
+							return;
+						Map<String,SSSearcherWithIndex[]> searcherMap = threadSearchers.get();
+						for(Reaction rxn : pendingReactions) {
+							if(checkpoint.get(rxn.getName())[0] > firstIndex+c)
+								continue;
+							SSSearcherWithIndex[] searchers = searcherMap.computeIfAbsent(rxn.getName(),
+									name -> createSearchers(rxn, reactantFFPs.get(name)));
+							for(int i=0;i<rxn.getReactants();i++) {
+								if(!matchesReactionRole(rxn, searchers, i, mol, fp))
+									continue;
+								StereoMolecule bb = new StereoMolecule();
+								new IDCodeParser().parse(bb, entries[0]);
+								bb.ensureHelperArrays(Molecule.cHelperCIP);
+								String synthonIDCode = transformToSynthon(synthonTransformations.get(rxn.getName()).get(i),bb);
+								if(synthonIDCode!=null)
+									newSynthons.get(rxn.getName()).get(i).add(synthonIDCode + DELIMITER + entries[1]);
+							}
+						}
+					});
+
+					for(Reaction rxn : pendingReactions) {
+						long[] state = checkpoint.get(rxn.getName());
+						for(int i=0;i<rxn.getReactants();i++) {
+							File synthonFile = getSynthonFile(workDir, rxn, i);
+							try(FileOutputStream fos = new FileOutputStream(synthonFile, true);
+								BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8))) {
+								for(String entry : newSynthons.get(rxn.getName()).get(i)) {
+									writer.write(entry);
+									writer.newLine();
+								}
+								writer.flush();
+								fos.getFD().sync();
+							}
+							state[i+1] = synthonFile.length();
+						}
+						state[0] = firstIndex+chunk.size();
+					}
+					writeCheckpoint(checkpointFile, checkpoint);
+				}
+				index += chunk.size();
+			}
+		}
+	}
+
+	private static SSSearcherWithIndex[] createSearchers(Reaction rxn, long[][] reactantFFPs) {
 		SSSearcherWithIndex[] searchers = new SSSearcherWithIndex[rxn.getReactants()];
 		for(int i=0;i<rxn.getReactants();i++) {
-			DescriptorHandlerLongFFP512 dhf = new DescriptorHandlerLongFFP512();
-			StereoMolecule r = rxn.getReactant(i);
-			long[] reactantFFP = dhf.createDescriptor(r);
+			StereoMolecule r = new StereoMolecule(rxn.getReactant(i));
+			r.ensureHelperArrays(Molecule.cHelperParities);
 			SSSearcherWithIndex searcher = new SSSearcherWithIndex();
-			searcher.setFragment(r, reactantFFP);
+			searcher.setFragment(r, reactantFFPs[i]);
 			searchers[i] = searcher;
 		}
-		for(int i=0;i<rxn.getReactants();i++) {
-			List<String> reactantList = Collections.synchronizedList(new ArrayList<String>());
-			final int ii = i;
-			
-			processedToOrigIDCode.keySet().stream().forEach(processedIDcode -> { 
-				StereoMolecule mol = new IDCodeParser().getCompactMolecule(processedIDcode);
-				if (mol != null) {
-					long[] fp = fps.get(processedIDcode);
-					if(fp==null)
-						return;
-					boolean matchesReaction = matchesReactionRole(rxn, searchers,ii,mol,fp);
-					if(matchesReaction)
-						reactantList.add(processedIDcode);
-						
-				
-				}	
-			});
-			reactants.add(reactantList);
+		return searchers;
+	}
+
+	private static Map<String,List<Map<String,String>>> readSynthons(List<Reaction> reactions, File workDir,
+			Map<String,List<Reaction>> synthonTransformations) throws IOException {
+		Map<String,List<Map<String,String>>> reactionsWithSynthons = new HashMap<>();
+		for(Reaction rxn : reactions) {
+			List<Map<String,String>> synthonLists = new ArrayList<>();
+			reactionsWithSynthons.put(rxn.getName(), synthonLists);
+			if(synthonTransformations.get(rxn.getName()).size() != rxn.getReactants())
+				continue;
+			for(int i=0;i<rxn.getReactants();i++) {
+				Map<String,String> synthonList = new HashMap<>();
+				try(BufferedReader reader = Files.newBufferedReader(getSynthonFile(workDir, rxn, i).toPath(), StandardCharsets.UTF_8)) {
+					String line;
+					while((line = reader.readLine()) != null) {
+						int tab = line.indexOf(DELIMITER);
+						synthonList.put(line.substring(0, tab), line.substring(tab+1));
+					}
+				}
+				synthonLists.add(synthonList);
+			}
+		}
+		return reactionsWithSynthons;
+	}
+
+	private static File getSynthonFile(File workDir, Reaction rxn, int reactant) {
+		return new File(new File(workDir, SYNTHON_DIRECTORY), rxn.getName() + "_" + reactant + ".txt");
+	}
+
+	/**
+	 * @return checkpoint entries: name followed by numbers
+	 */
+	private static Map<String,long[]> readCheckpoint(File checkpointFile) throws IOException {
+		Map<String,long[]> checkpoint = new LinkedHashMap<>();
+		if(!checkpointFile.exists())
+			return checkpoint;
+		try(BufferedReader reader = Files.newBufferedReader(checkpointFile.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				String[] entries = line.split(DELIMITER);
+				long[] values = new long[entries.length-1];
+				for(int i=1;i<entries.length;i++)
+					values[i-1] = Long.parseLong(entries[i]);
+				checkpoint.put(entries[0], values);
+			}
+		}
+		catch(NumberFormatException e) {
+			throw new IOException("invalid checkpoint file: "+checkpointFile);
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * replaces the checkpoint file atomically
+	 */
+	private static void writeCheckpoint(File checkpointFile, Map<String,long[]> checkpoint) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<String,long[]> e : checkpoint.entrySet()) {
+			sb.append(e.getKey());
+			for(long v : e.getValue())
+				sb.append(DELIMITER).append(v);
+			sb.append('\n');
+		}
+		File tmp = new File(checkpointFile.getPath()+".tmp");
+		Files.write(tmp.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+		try {
+			Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * removes an incomplete last line, which may be left after a crash while writing
+	 */
+	private static void truncateToLastLine(File file) throws IOException {
+		if(!file.exists())
+			return;
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			long length = raf.length();
+			while(length>0) {
+				raf.seek(length-1);
+				if(raf.read() == '\n')
+					break;
+				length--;
+			}
+			raf.setLength(length);
 		}
 	}
 	
 	private static String transformToSynthon(Reaction synthonTransformation, StereoMolecule bb) {
 		String synthonIDCode = null;
-		Reactor reactor = new Reactor(synthonTransformation, Reactor.MODE_RETAIN_COORDINATES
+		Reactor reactor = new Reactor(new Reaction(synthonTransformation), Reactor.MODE_RETAIN_COORDINATES
 					+Reactor.MODE_FULLY_MAP_REACTIONS+Reactor.MODE_REMOVE_DUPLICATE_PRODUCTS+Reactor.MODE_ALLOW_CHARGE_CORRECTIONS, Integer.MAX_VALUE);
 		bb.ensureHelperArrays(Molecule.cHelperCIP);
 		reactor.setReactant(0, bb);
@@ -214,7 +433,7 @@ public class ChemicalSpaceCreator {
 	}
 	
 	private static StereoMolecule getProduct(Reaction rxn, List<StereoMolecule> reactants) {
-		Reactor reactor = new Reactor(rxn, Reactor.MODE_RETAIN_COORDINATES
+		Reactor reactor = new Reactor(new Reaction(rxn), Reactor.MODE_RETAIN_COORDINATES
 					+Reactor.MODE_FULLY_MAP_REACTIONS+Reactor.MODE_REMOVE_DUPLICATE_PRODUCTS+Reactor.MODE_ALLOW_CHARGE_CORRECTIONS, Integer.MAX_VALUE);
 		for(int i=0;i<reactants.size();i++)
 			reactor.setReactant(i, reactants.get(i));
@@ -232,23 +451,44 @@ public class ChemicalSpaceCreator {
 		return normalizedProducts.size();
 	}
 	
-	private void generateCombinatoriaLibraries(ConcurrentMap<String,List<Map<String,String>>> reactionsWithSynthons,
-			Map<String,List<Reaction>> synthonTransformations) {
-
-		// iterate over reactions twice (inner loop, outer loop)
-		// check if synthons from the first reaction match the generic substructure of the second
-		Map<String,List<String>> productsWithSynthons = new HashMap<String,List<String>>();
-		Map<String,List<String>> productsWithBBs = new HashMap<String,List<String>>();
-		Map<String,List<String>> productsWithReactions = new HashMap<String,List<String>>();
-		Set<Reaction> functionalizations = new HashSet<Reaction>();
-		for(Reaction rxn : reactions) {
-			if(rxn.getReactants()==1)
-				functionalizations.add(rxn);
+	/**
+	 * writes the combinatorial libraries of all reactions in parallel. Completed reactions are recorded in the library
+	 * checkpoint together with their size; their random products are kept in the work directory. The checkpoint is only
+	 * valid for the synthon state it was written for and is reset, whenever synthons were added.
+	 */
+	private void generateCombinatoriaLibraries(Map<String,List<Map<String,String>>> reactionsWithSynthons,
+			Map<String,List<Reaction>> synthonTransformations, File workDir) throws IOException {
+		File checkpointFile = new File(workDir, LIBRARY_CHECKPOINT);
+		long[] synthonState = getSynthonState(workDir);
+		Map<String,long[]> checkpoint = readCheckpoint(checkpointFile);
+		if(!Arrays.equals(checkpoint.get(SYNTHON_STATE_KEY), synthonState)) {
+			checkpoint.clear();
+			checkpoint.put(SYNTHON_STATE_KEY, synthonState);
+			writeCheckpoint(checkpointFile, checkpoint);
 		}
-		List<Long> sizes = new ArrayList<>();
-		reactions.stream().forEach(reaction -> {
-			if(reaction.getReactants()<2)
+		Map<String,long[]> completedLibraries = new ConcurrentHashMap<>(checkpoint);
+
+		List<IOException> exceptions = Collections.synchronizedList(new ArrayList<>());
+		reactions.parallelStream().forEach(sharedReaction -> {
+			if(sharedReaction.getReactants()<2 || completedLibraries.containsKey(sharedReaction.getName())
+			 || reactionsWithSynthons.get(sharedReaction.getName()).size() != sharedReaction.getReactants())
 				return;
+			// searchers and reactors update helper arrays of the reaction molecules; thus, every task needs its own copies
+			Reaction reaction = new Reaction(sharedReaction);
+			List<Reaction> precursorReactions = new ArrayList<>();
+			for(Reaction rxn : reactions)
+				precursorReactions.add(new Reaction(rxn));
+
+			// iterate over reactions twice (inner loop, outer loop)
+			// check if synthons from the first reaction match the generic substructure of the second
+			Set<Reaction> functionalizations = new HashSet<Reaction>();
+			for(Reaction rxn : precursorReactions) {
+				if(rxn.getReactants()==1)
+					functionalizations.add(rxn);
+			}
+			Map<String,List<String>> productsWithSynthons = new HashMap<String,List<String>>();
+			Map<String,List<String>> productsWithBBs = new HashMap<String,List<String>>();
+			Map<String,List<String>> productsWithReactions = new HashMap<String,List<String>>();
 			IDCodeParser parser = new IDCodeParser();
 			CombinatorialLibrary combiLibrary = new CombinatorialLibrary();
 			combiLibrary.reaction = reaction;
@@ -258,12 +498,12 @@ public class ChemicalSpaceCreator {
 			combiLibrary.precursorLibs = precursorLibs;
 			if(reaction.getReactants()>2) { //no addditional steps for 3-cmpd reactions
 				combiLibrary.cleanup();
-				sizes.add(combiLibrary.getSize());
 				try {
 					writeCombinatorialLibrary(combiLibrary);
+					completeLibrary(reaction, combiLibrary.getSize(), productsWithSynthons, productsWithBBs, productsWithReactions,
+							workDir, completedLibraries, checkpointFile);
 				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+					exceptions.add(e);
 				}
 				return;
 			}
@@ -277,15 +517,15 @@ public class ChemicalSpaceCreator {
 			for(int libReactantID=0;libReactantID<reactionsWithSynthons.get(libraryReaction).size();libReactantID++) {
 				Map<String,List<Map<String,String>>> precursorLib = new HashMap<String,List<Map<String,String>>>();
 				precursorLibs.add(precursorLib);
-				Reaction synthonTransformation = synthonTransformations.get(libraryReaction).get(libReactantID);
+				Reaction synthonTransformation = new Reaction(synthonTransformations.get(libraryReaction).get(libReactantID));
 				StereoMolecule genericProduct = synthonTransformation.getProduct(0);
 				int offset = 0; //offset is required to correctly mutate connector atoms
-				for(int a=0;a<genericProduct.getAtoms();a++) {
+				for(int a=0;a<genericProduct.getAllAtoms();a++) {
 					if(genericProduct.getAtomicNo(a)>=92)
 						offset++;
 				}
 				
-				for(Reaction reactionPrec : reactions) { // precursor reaction
+				for(Reaction reactionPrec : precursorReactions) { // precursor reaction
 					if(reactionPrec.getReactants()!=2) 
 						continue;
 					String precursorReaction = reactionPrec.getName();
@@ -394,18 +634,28 @@ public class ChemicalSpaceCreator {
 				}
 			}
 			combiLibrary.cleanup();
-			sizes.add(combiLibrary.getSize());
-			System.out.println(reaction.getName());
 			combiLibrary.generateRandomProducts(1000,productsWithSynthons,productsWithBBs,productsWithReactions);
 			try {
 				writeCombinatorialLibrary(combiLibrary);
+				completeLibrary(reaction, combiLibrary.getSize(), productsWithSynthons, productsWithBBs, productsWithReactions,
+						workDir, completedLibraries, checkpointFile);
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				exceptions.add(e);
 			}
 		});
+		if(!exceptions.isEmpty())
+			throw exceptions.get(0);
+
+		// collect random products of all libraries; a product found by multiple reactions is listed once
+		Map<String,List<String>> productsWithSynthons = new LinkedHashMap<String,List<String>>();
+		Map<String,List<String>> productsWithBBs = new HashMap<String,List<String>>();
+		Map<String,List<String>> productsWithReactions = new HashMap<String,List<String>>();
+		for(Reaction reaction : reactions)
+			if(completedLibraries.containsKey(reaction.getName()))
+				readProducts(getProductFile(workDir, reaction), productsWithSynthons, productsWithBBs, productsWithReactions);
+
 		try {
-			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("space.dwar"), StandardCharsets.UTF_8));
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outdirectory, "space.dwar")), StandardCharsets.UTF_8));
 			DWARFileCreator creator = new DWARFileCreator(writer);
 			List<Integer> synthonColumns = new ArrayList<>();
 			for(int i=0;i<4;i++) {
@@ -450,12 +700,84 @@ public class ChemicalSpaceCreator {
 			System.out.println("########");
 			e.printStackTrace();
 		}
-
-		long size = sizes.stream().reduce(0L,(e1,e2) -> e1+e2);
-		System.out.println("totSize");
-		System.out.println(size);
 	}
 	
+	/**
+	 * writes the random products of a completed library to the work directory, before the library is added to the checkpoint
+	 */
+	private static void completeLibrary(Reaction reaction, long size, Map<String,List<String>> productsWithSynthons,
+			Map<String,List<String>> productsWithBBs, Map<String,List<String>> productsWithReactions,
+			File workDir, Map<String,long[]> completedLibraries, File checkpointFile) throws IOException {
+		File productFile = getProductFile(workDir, reaction);
+		try(FileOutputStream fos = new FileOutputStream(productFile);
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8))) {
+			for(String product : productsWithSynthons.keySet()) {
+				writer.write(product);
+				writeList(writer, productsWithSynthons.get(product));
+				writeList(writer, productsWithBBs.get(product));
+				writeList(writer, productsWithReactions.get(product));
+				writer.newLine();
+			}
+			writer.flush();
+			fos.getFD().sync();
+		}
+		synchronized(completedLibraries) {
+			completedLibraries.put(reaction.getName(), new long[] {size});
+			writeCheckpoint(checkpointFile, new TreeMap<>(completedLibraries));
+		}
+	}
+
+	private static void writeList(BufferedWriter writer, List<String> values) throws IOException {
+		writer.write(DELIMITER + values.size());
+		for(String value : values)
+			writer.write(DELIMITER + value);
+	}
+
+	private static void readProducts(File productFile, Map<String,List<String>> productsWithSynthons,
+			Map<String,List<String>> productsWithBBs, Map<String,List<String>> productsWithReactions) throws IOException {
+		try(BufferedReader reader = Files.newBufferedReader(productFile.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				String[] entries = line.split(DELIMITER, -1);
+				if(productsWithSynthons.containsKey(entries[0]))
+					continue;
+				int index = 1;
+				List<List<String>> lists = new ArrayList<>();
+				for(int i=0;i<3;i++) {
+					int count = Integer.parseInt(entries[index++]);
+					lists.add(new ArrayList<>(Arrays.asList(entries).subList(index, index+count)));
+					index += count;
+				}
+				productsWithSynthons.put(entries[0], lists.get(0));
+				productsWithBBs.put(entries[0], lists.get(1));
+				productsWithReactions.put(entries[0], lists.get(2));
+			}
+		}
+		catch(NumberFormatException | IndexOutOfBoundsException e) {
+			throw new IOException("invalid product file: "+productFile);
+		}
+	}
+
+	private static File getProductFile(File workDir, Reaction rxn) {
+		return new File(new File(workDir, PRODUCT_DIRECTORY), rxn.getName() + ".txt");
+	}
+
+	/**
+	 * @return maximum number of processed building blocks, total length of all synthon files and number of reactions
+	 * as written to the synthon checkpoint
+	 */
+	private static long[] getSynthonState(File workDir) throws IOException {
+		Map<String,long[]> checkpoint = readCheckpoint(new File(workDir, SYNTHON_CHECKPOINT));
+		long[] state = new long[3];
+		state[2] = checkpoint.size();
+		for(long[] values : checkpoint.values()) {
+			state[0] = Math.max(state[0], values[0]);
+			for(int i=1;i<values.length;i++)
+				state[1] += values[i];
+		}
+		return state;
+	}
+
 	private static StereoMolecule dummyReaction(String bbIDCode, Reaction rxn, Map<Integer,StereoMolecule> reactants, int reactantID){
 		StereoMolecule product = null;
 		SSSearcher searcher = new SSSearcher();
@@ -464,7 +786,7 @@ public class ChemicalSpaceCreator {
 		if (mol != null) {
 			searcher.setMolecule(mol);
 			if (searcher.isFragmentInMolecule()) {
-				Reactor reactor = new Reactor(rxn, Reactor.MODE_RETAIN_COORDINATES
+				Reactor reactor = new Reactor(new Reaction(rxn), Reactor.MODE_RETAIN_COORDINATES
      					+Reactor.MODE_FULLY_MAP_REACTIONS+Reactor.MODE_REMOVE_DUPLICATE_PRODUCTS+Reactor.MODE_ALLOW_CHARGE_CORRECTIONS, Integer.MAX_VALUE);
 				reactor.setReactant(reactantID, mol);
 				for(int i : reactants.keySet()) {
@@ -1,6 +1,7 @@
 package com.actelion.research.chem.chemicalspaces.ptree.search;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Set;
@@ -9,7 +10,13 @@ import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import com.actelion.research.chem.StereoMolecule;
@@ -44,7 +51,11 @@ import com.actelion.research.chem.descriptor.pharmacophoretree.TreeMatcher.TreeM
  * hits with high chemical similarity (SkelSpheres) 
  * In order to make the search more efficient, initially only a chemically diverse set of fragments is matched (cluster centroids).
  * Only if the similarity of the cluster centroid is below a given threshold, the remaining members of the cluster are matched.
- *   
+ * The entries of the edge-link table are independent of each other and can be computed by multiple threads (setThreadCount()).
+ * Results of matching query subtrees to synthon subtrees are cached for the lifetime of the search object and reused
+ * across all cuts of the query tree. With setMaxHits() only the top-N hits are kept, combinations that cannot enter the
+ * current top-N are not enumerated and a HitListener is notified as soon as a hit enters the top-N.
+ *
  * @author Joel Wahl
  *
  */
@@ -60,19 +71,38 @@ public class FragmentPTreeSearch {
 
 
 	private static final double SUBTREE_MATCHING_BUFFER = 0.3;
+	private static final double BOUND_PRUNING_BUFFER = 0.2;
 	private static final int N_BEST_SOLUTIONS = 2000;
-	
+
 	private PharmacophoreTree queryTree;
 	private PharmTreeSynthonLibrary synthonLib;
 	private PharmTreeSynthonReactionHelper rxnHelper;
-	private SearchResult[][] edgeLinkTable;
+	private SearchResult[][] edgeLinkTable;			// matchings above the similarity cutoff, from which hits are built
+	private SearchResult[][] compatibleMatchTable;	// unfiltered matchings of synthons attached to a link node
+	private Object[][] compatibleMatchLocks;
 	private double pTreeSimilarityCutoff;
 	private Map<Integer,Map<PharmTreeSynthon,int[]>> linkerToSynthons; //maps the linkerID+synthonID to the corresponding trees, the index of the linker node and the index of the edge attached to the linker node are stored
+	private Map<Integer,Map<PharmTreeSynthon,SubTreeProperties>> linkerToSubTrees; //same keys, size and functionalities of the synthon subtree attached to the linker node
+	private Map<PharmTreeSynthon,PharmacophoreTree> fragmentTrees; //decoded once, synthons store their trees encoded
+	private Map<PharmTreeSynthon,Map<NodeSetPair,TreeMatching>> matchingCache;
 
 	private int[] cuts;
 	private int nBestSolutions;
+	private int threadCount;
+	private int maxHits;
+	private boolean boundPruning;
+
+
+	public interface HitListener {
+		/**
+		 * Is called whenever a hit enters the current top-N hits or the similarity of a top-N hit improves.
+		 * Calls never overlap, even if multiple threads are searching.
+		 * @param hit idcode of the product, synthon ids and reaction id separated by '____'
+		 * @param sim
+		 */
+		void hitFound(String hit, double sim);
+	}
 
-	
 	public FragmentPTreeSearch(StereoMolecule queryMol,PharmacophoreTree queryTree, PharmTreeSynthonLibrary synthonLib,
 			double pTreeSimilarityCutoff) {
 		this.queryTree = queryTree;
@@ -82,9 +112,40 @@ public class FragmentPTreeSearch {
 		cuts = new int[] {PharmacophoreTree.CUT_LEFT,PharmacophoreTree.CUT_RIGHT};
 		nBestSolutions = N_BEST_SOLUTIONS;
 		linkerToSynthons = new HashMap<Integer,Map<PharmTreeSynthon,int[]>>();
+		linkerToSubTrees = new HashMap<Integer,Map<PharmTreeSynthon,SubTreeProperties>>();
+		fragmentTrees = new HashMap<PharmTreeSynthon,PharmacophoreTree>();
+		matchingCache = new ConcurrentHashMap<PharmTreeSynthon,Map<NodeSetPair,TreeMatching>>();
+		threadCount = 1;
+		maxHits = Integer.MAX_VALUE;
 
 	}
-	
+
+	/**
+	 * @param threadCount number of threads used for matching the synthons and for enumerating the hits, 0 for all available processors
+	 */
+	public void setThreadCount(int threadCount) {
+		this.threadCount = threadCount == 0 ? Runtime.getRuntime().availableProcessors() : Math.max(1, threadCount);
+	}
+
+	/**
+	 * Only the maxHits most similar hits are returned. Synthon combinations, whose similarity is too low to enter
+	 * the current top hits, are not reacted.
+	 * @param maxHits
+	 */
+	public void setMaxHits(int maxHits) {
+		this.maxHits = maxHits;
+	}
+
+	/**
+	 * If set, synthons without further linkers are not matched to a query subtree, if the similarity estimated from
+	 * the total sizes and functionalities of both subtrees (see FragmentMatchSearch.getSimilarityEstimate()) is far
+	 * below the similarity cutoff. The estimate is not a strict upper bound, therefore a few hits may be lost.
+	 * @param boundPruning
+	 */
+	public void setBoundPruning(boolean boundPruning) {
+		this.boundPruning = boundPruning;
+	}
+
 	private void processFragments() {
 
 		Set<Integer> allLinkers = new HashSet<Integer>();
@@ -95,11 +156,17 @@ public class FragmentPTreeSearch {
 				highestLinkerID = linkerID;
 		List<List<PharmTreeSynthon>> allSynthons = synthonLib.getSynthons();
 		edgeLinkTable = new SearchResult[highestLinkerID*allSynthons.size()][queryTree.getEdges().size()*2];
+		compatibleMatchTable = new SearchResult[edgeLinkTable.length][edgeLinkTable[0].length];
+		compatibleMatchLocks = new Object[edgeLinkTable.length][edgeLinkTable[0].length];
+		for(Object[] locks : compatibleMatchLocks)
+			for(int j=0;j<locks.length;j++)
+				locks[j] = new Object();
 		for(int i=0;i<allSynthons.size();i++) {
 			List<PharmTreeSynthon> synthons = allSynthons.get(i);
 			for(int j=0;j<synthons.size();j++) {
 				PharmTreeSynthon synthon = synthons.get(j);
 				PharmacophoreTree fragmentTree = synthon.getPharmTree();
+				fragmentTrees.put(synthon, fragmentTree);
 				for(int n=0;n<fragmentTree.getNodes().size();n++) {
 					PharmacophoreNode node = fragmentTree.getNodes().get(n);
 					if(node.isLinkNode()) {
@@ -116,7 +183,13 @@ public class FragmentPTreeSearch {
 						linkerToSynthons.putIfAbsent(id, new HashMap<PharmTreeSynthon,int[]>());
 						Map<PharmTreeSynthon,int[]> map = linkerToSynthons.get(id);
 						map.put(synthon,new int[] {n,linkerEdge});
-						
+						List<Integer> subTreeEdgeIndeces = new ArrayList<Integer>();
+						int headNode = processFragmentTree(n,fragmentTree,subTreeEdgeIndeces,new ArrayList<Integer>());
+						Set<Integer> subTreeNodes = fragmentTree.getNodesFromEdges(subTreeEdgeIndeces);
+						subTreeNodes.add(headNode);
+						linkerToSubTrees.putIfAbsent(id, new HashMap<PharmTreeSynthon,SubTreeProperties>());
+						linkerToSubTrees.get(id).put(synthon, new SubTreeProperties(fragmentTree, subTreeNodes));
+
 					}
 				}
 				
@@ -128,80 +201,88 @@ public class FragmentPTreeSearch {
 	
 	
 	public Map<String,Double> search() {
-		LinkedHashMap<String,Double> hits = new LinkedHashMap<String,Double>();
+		return search(null);
+	}
+
+	/**
+	 * @param listener is notified about new top hits while the search is running, may be null
+	 * @return hits sorted by decreasing similarity
+	 */
+	public Map<String,Double> search(HitListener listener) {
 		processFragments();
-	
-		
+		List<Runnable> tasks = new ArrayList<Runnable>();
+
 		for(int i=0;i<queryTree.getEdges().size();i++) {
+			final int cutEdge = i;
 			List<Integer> querySourceTreeEdgeIndeces = new ArrayList<Integer>();
 			List<Integer> queryTargetTreeEdgeIndeces = new ArrayList<Integer>();
 			List<Integer> querySourceTreeEdgeParentIndeces = new ArrayList<Integer>();
 			List<Integer> queryTargetTreeEdgeParentIndeces = new ArrayList<Integer>();
 			int [] headNodes = queryTree.initialCut(cuts[0],i,querySourceTreeEdgeIndeces, querySourceTreeEdgeParentIndeces, 
 					queryTargetTreeEdgeIndeces , queryTargetTreeEdgeParentIndeces);
+			SubTreeProperties[] querySubTrees = new SubTreeProperties[cuts.length];
+			for(int cutDirIndex=0;cutDirIndex<cuts.length;cutDirIndex++) {
+				boolean isSource = cuts[cutDirIndex] == PharmacophoreTree.CUT_LEFT;
+				Set<Integer> nodes = queryTree.getNodesFromEdges(isSource ? querySourceTreeEdgeIndeces : queryTargetTreeEdgeIndeces);
+				nodes.add(isSource ? headNodes[0] : headNodes[1]);
+				querySubTrees[cutDirIndex] = new SubTreeProperties(queryTree, nodes);
+			}
 			for(int l : linkerToSynthons.keySet()) {
-				int synthonID = (l & SYNTHON_ID_MASK)>>SYNTHON_SHIFT ;
-				int linkerID = l & LINKER_ID_MASK;
 				for(int cutDirIndex=0;cutDirIndex<cuts.length;cutDirIndex++) {
-					SearchResult result = edgeLinkTable[(linkerID-1)*synthonLib.getSynthons().size()+synthonID][2*i+cutDirIndex];
-					if(result==null) {
-						List<Integer> querySubTreeEdgeIndeces;
-						List<Integer> querySubTreeEdgeParentIndeces;
-						int queryCutDir; 
-						int querySubTreeHeadNode;
-						//match to source side of cut query tree
-						if(cuts[cutDirIndex] == PharmacophoreTree.CUT_LEFT) {
-							querySubTreeEdgeIndeces = querySourceTreeEdgeIndeces;
-							querySubTreeEdgeParentIndeces = querySourceTreeEdgeParentIndeces;
-							queryCutDir = PharmacophoreTree.CUT_LEFT;
-							querySubTreeHeadNode = headNodes[0];
-						}
+					final int dirIndex = cutDirIndex;
+					//match to source side of cut query tree
+					if(cuts[cutDirIndex] == PharmacophoreTree.CUT_LEFT)
+						tasks.add(() -> matchEdgeLink(l, cutEdge, dirIndex, PharmacophoreTree.CUT_LEFT, headNodes[0],
+								querySourceTreeEdgeIndeces, querySourceTreeEdgeParentIndeces, querySubTrees[dirIndex]));
+					//match to target side of cut query tree
+					else
+						tasks.add(() -> matchEdgeLink(l, cutEdge, dirIndex, PharmacophoreTree.CUT_RIGHT, headNodes[1],
+								queryTargetTreeEdgeIndeces, queryTargetTreeEdgeParentIndeces, querySubTrees[dirIndex]));
+				}
+			}
+		}
+		runTasks(tasks);
 
-						else {
-							//match to target side of cut query tree
-							querySubTreeEdgeIndeces = queryTargetTreeEdgeIndeces;
-							querySubTreeEdgeParentIndeces = queryTargetTreeEdgeParentIndeces;
-							queryCutDir = PharmacophoreTree.CUT_RIGHT;
-							querySubTreeHeadNode = headNodes[1];
-						}
-						result = new SearchResult();
-						Map<PharmTreeSynthon,int[]> treeToLinkerHead = linkerToSynthons.get(l);
-						for(PharmTreeSynthon synthon: treeToLinkerHead.keySet()) {
-							FragmentMatching matching = matchFragmentSubtree(synthon, treeToLinkerHead,synthonID, linkerID, queryCutDir,
-									querySubTreeHeadNode, i,  querySubTreeEdgeIndeces,
-									querySubTreeEdgeParentIndeces);
-							if(matching.sim > (pTreeSimilarityCutoff-SUBTREE_MATCHING_BUFFER)) {
-								//similarity of cluster centroid below threshold
-								result.addResult(matching);		
-
-								 
-							}
-						
-						}
-						if(result.getResults().size()> nBestSolutions) { //prune matchings, store only best solutionsJu
-							List<FragmentMatching> prunedMatchings = result.getResults().subList(0, nBestSolutions);
-							result.setResult(prunedMatchings);
-						}
+		HitCollector collector = new HitCollector(maxHits, listener);
+		getHits(collector);
 
+		return collector.getSortedHits();
+	}
 
-						edgeLinkTable[(linkerID-1)*synthonLib.getSynthons().size()+synthonID][2*i+cutDirIndex] = result;
-					}
-					
+	/**
+	 * fills the entry of the edge-link table for one linker of one synthon set and one side of a cut query edge.
+	 * Every entry is filled by exactly one task.
+	 */
+	private void matchEdgeLink(int l, int queryCutEdge, int cutDirIndex, int queryCutDir, int querySubTreeHeadNode,
+			List<Integer> querySubTreeEdgeIndeces, List<Integer> querySubTreeEdgeParentIndeces, SubTreeProperties querySubTree) {
+		int synthonID = (l & SYNTHON_ID_MASK)>>SYNTHON_SHIFT ;
+		int linkerID = l & LINKER_ID_MASK;
+		int row = (linkerID-1)*synthonLib.getSynthons().size()+synthonID;
+		int col = 2*queryCutEdge+cutDirIndex;
+		double minSim = pTreeSimilarityCutoff-SUBTREE_MATCHING_BUFFER;
+		SearchResult result = new SearchResult();
+		List<FragmentMatching> matchings = new ArrayList<FragmentMatching>();
+		Map<PharmTreeSynthon,int[]> treeToLinkerHead = linkerToSynthons.get(l);
+		Map<PharmTreeSynthon,SubTreeProperties> subTrees = linkerToSubTrees.get(l);
+		for(PharmTreeSynthon synthon: treeToLinkerHead.keySet()) {
+			if(boundPruning && subTrees.get(synthon).isPrunable(querySubTree, minSim-BOUND_PRUNING_BUFFER))
+				continue;
+			FragmentMatching matching = matchFragmentSubtree(synthon, treeToLinkerHead,synthonID, linkerID, queryCutDir,
+					querySubTreeHeadNode, queryCutEdge,  querySubTreeEdgeIndeces,
+					querySubTreeEdgeParentIndeces);
+			if(matching.sim > minSim) {
+				//similarity of cluster centroid below threshold
+				matchings.add(matching);
 			}
-			
-		
+
 		}
+		result.addResult(matchings);
+		if(result.getResults().size()> nBestSolutions) { //prune matchings, store only best solutionsJu
+			List<FragmentMatching> prunedMatchings = result.getResults().subList(0, nBestSolutions);
+			result.setResult(prunedMatchings);
 		}
 
-		getHits(hits);
-		hits = hits.entrySet().stream().sorted(Map.Entry.<String,Double>comparingByValue().reversed()).collect(Collectors.toMap(Map.Entry::getKey,Map.Entry::getValue,
-				(e1, e2) -> e1, LinkedHashMap::new));
-
-
-		return hits;
-		
-		
-		
+		edgeLinkTable[row][col] = result;
 	}
 	
 	private FragmentMatching matchFragmentSubtree(PharmTreeSynthon synthon, Map<PharmTreeSynthon,int[]> treeToLinkerHead,
@@ -210,7 +291,7 @@ public class FragmentPTreeSearch {
 		int fragTreeHeadNode = treeToLinkerHead.get(synthon)[0];
 		List<Integer> fragmentTreeEdgeIndeces = new ArrayList<Integer>();
 		List<Integer> fragmentTreeEdgeParentIndeces = new ArrayList<Integer>();
-		PharmacophoreTree fragmentTree = synthon.getPharmTree();
+		PharmacophoreTree fragmentTree = getFragmentTree(synthon);
 		fragTreeHeadNode = processFragmentTree(fragTreeHeadNode,fragmentTree,fragmentTreeEdgeIndeces,fragmentTreeEdgeParentIndeces);
 		FragmentMatchSearch matchSearch;
 		//match to source side of cut query tree
@@ -220,87 +301,124 @@ public class FragmentPTreeSearch {
 
 		return matchSearch.matchSearch();
 	}
+
+	private PharmacophoreTree getFragmentTree(PharmTreeSynthon synthon) {
+		PharmacophoreTree fragmentTree = fragmentTrees.get(synthon);
+		return fragmentTree != null ? fragmentTree : synthon.getPharmTree();
+	}
+
+	private Map<NodeSetPair,TreeMatching> getMatchingCache(PharmTreeSynthon synthon) {
+		return matchingCache.computeIfAbsent(synthon, s -> new ConcurrentHashMap<NodeSetPair,TreeMatching>());
+	}
+
+	/**
+	 * runs the tasks with the given number of threads and returns when all tasks are finished
+	 * @param tasks
+	 */
+	private void runTasks(List<Runnable> tasks) {
+		if(threadCount<=1 || tasks.size()<=1) {
+			for(Runnable task : tasks)
+				task.run();
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, tasks.size()), r -> {
+			Thread t = new Thread(r, "FragmentPTreeSearch");
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for(Runnable task : tasks)
+				futures.add(executor.submit(task));
+			for(Future<?> future : futures)
+				future.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch(ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
 	
 	public void getHits(LinkedHashMap<String,Double> hits) {
+		HitCollector collector = new HitCollector(Integer.MAX_VALUE, null);
+		getHits(collector);
+		hits.putAll(collector.hits);
+	}
 
-		final double buffer = 0.05; 
+	private void getHits(HitCollector collector) {
+		List<Runnable> tasks = new ArrayList<Runnable>();
 		for(int i=0;i<edgeLinkTable.length;i++) {
 			for(int j=0;j<edgeLinkTable[0].length;j++) {
-				SearchResult result = edgeLinkTable[i][j];
-				if(result==null)
+				if(edgeLinkTable[i][j]==null)
 					continue;
+				final int row = i;
+				final int col = j;
+				tasks.add(() -> combineSolutions(row, col, collector));
+			}
+		}
+		runTasks(tasks);
+	}
 
-				int edge = j/2;
-				int cutDirIndex = j%2; 
-				List<List<FragmentMatching>> solutions = constructSolutions(result);
-				int linkerID = (i/synthonLib.getSynthons().size()) + 1;
-				int synthonID = i%synthonLib.getSynthons().size();
-				// find compatible matches 
-				int compatibleCutDirIndex = cutDirIndex == 0 ? 1 : 0;
-
-				for(int k=0;k<synthonLib.getSynthons().size();k++) {
-					if(k==synthonID)
-						continue;
-					int id = (linkerID-1)*synthonLib.getSynthons().size()+k;
-						//same linker ID, different synthonID
-					
-					SearchResult compatibleResult = edgeLinkTable[id][2*edge+compatibleCutDirIndex];
-					if(compatibleResult==null)
+	/**
+	 * combines the solutions of one entry of the edge-link table with the compatible solutions
+	 * from the other side of the cut edge and reacts the synthons of promising combinations
+	 */
+	private void combineSolutions(int i, int j, HitCollector collector) {
+		final double buffer = 0.05; 
+		SearchResult result = edgeLinkTable[i][j];
+
+		int edge = j/2;
+		int cutDirIndex = j%2; 
+		List<List<FragmentMatching>> solutions = constructSolutions(result);
+		int linkerID = (i/synthonLib.getSynthons().size()) + 1;
+		int synthonID = i%synthonLib.getSynthons().size();
+		// find compatible matches 
+		int compatibleCutDirIndex = cutDirIndex == 0 ? 1 : 0;
+
+		for(int k=0;k<synthonLib.getSynthons().size();k++) {
+			if(k==synthonID)
+				continue;
+			int id = (linkerID-1)*synthonLib.getSynthons().size()+k;
+				//same linker ID, different synthonID
+			
+			SearchResult compatibleResult = edgeLinkTable[id][2*edge+compatibleCutDirIndex];
+			if(compatibleResult==null)
+				continue;
+			List<List<FragmentMatching>> compatibleSolutions = constructSolutions(compatibleResult);
+			for(List<FragmentMatching> solution1 : solutions) {
+				for(List<FragmentMatching> solution2 : compatibleSolutions) {
+					List<FragmentMatching> combinedSolution = new ArrayList<FragmentMatching>();	
+					combinedSolution.addAll(solution1);
+					combinedSolution.addAll(solution2);
+					double sim = getTotalSimilarity(combinedSolution);
+
+					if(sim<(pTreeSimilarityCutoff-buffer))
+						break;
+					if(combinedSolution.size()!=synthonLib.getSynthons().size() || !collector.isCandidate(sim))
 						continue;
-					List<List<FragmentMatching>> compatibleSolutions = constructSolutions(compatibleResult);
-					for(List<FragmentMatching> solution1 : solutions) {
-						double bestScore = 0.0;
-						for(List<FragmentMatching> solution2 : compatibleSolutions) {
-							List<FragmentMatching> combinedSolution = new ArrayList<FragmentMatching>();	
-							combinedSolution.addAll(solution1);
-							combinedSolution.addAll(solution2);
-							double sim = getTotalSimilarity(combinedSolution);
-
-							if(sim<(pTreeSimilarityCutoff-buffer))
-								break;
-							else {
-								List<StereoMolecule> reactants = combinedSolution.stream().map(r -> r.synthon.getStructure()).collect(Collectors.toList());
-								if(reactants.size()!=synthonLib.getSynthons().size())
-									continue;
-								StereoMolecule product = SynthonReactor.react(reactants);
+					List<StereoMolecule> reactants = combinedSolution.stream().map(r -> r.synthon.getStructure()).collect(Collectors.toList());
+					StereoMolecule product = SynthonReactor.react(reactants);
 
-								boolean accept = true;
-	
+					StringBuilder resultString = new StringBuilder();
+					resultString.append(product.getIDCode());
 
-									if(accept) {	
-										StringBuilder resultString = new StringBuilder();
-										resultString.append(product.getIDCode());
-
-										resultString.append("____");
-										combinedSolution.stream().forEach(r -> {
-											resultString.append(r.synthon.getId());
-											resultString.append("____");
-										});
-										resultString.append(synthonLib.getReactionID());
-
-										String rs = resultString.toString();
-										if(hits.containsKey(rs)) {
-											double oldSim = hits.get(rs);
-											if(oldSim<sim)
-												hits.put(rs, sim);
-										}
-										else {
-											hits.put(rs, sim);
-										}
-										if(sim>bestScore) {
-											bestScore = sim;
-										}
+					resultString.append("____");
+					combinedSolution.stream().forEach(r -> {
+						resultString.append(r.synthon.getId());
+						resultString.append("____");
+					});
+					resultString.append(synthonLib.getReactionID());
 
-								}
-								}
-								}
-
-					}
+					collector.add(resultString.toString(), sim);
 				}
-				
 			}
 		}
-
 	}
 	
 	
@@ -383,13 +501,20 @@ public class FragmentPTreeSearch {
 			Map<PharmTreeSynthon,int[]> compatibleTrees = linkerToSynthons.get(index);
 			if(compatibleTrees==null)
 				continue;
-			SearchResult result = edgeLinkTable[(linkerID-1)*synthonLib.getSynthons().size()+i][2*querySubtreeCutEdge+cutDirIndex];
+			int row = (linkerID-1)*synthonLib.getSynthons().size()+i;
+			int col = 2*querySubtreeCutEdge+cutDirIndex;
+			// Entries are calculated without holding the lock, because matching may recursively need other entries.
+			// If two threads calculate the same entry, both get the same result and the first one is kept.
+			SearchResult result;
+			synchronized(compatibleMatchLocks[row][col]) {
+				result = compatibleMatchTable[row][col];
+			}
 			if(result!=null) 
 				matchings = result.getResults();
 			
 			else {
 				for(PharmTreeSynthon synthon : compatibleTrees.keySet()) {
-					PharmacophoreTree fragTree = synthon.getPharmTree();
+					PharmacophoreTree fragTree = getFragmentTree(synthon);
 					List<Integer> fragmentTreeEdgeIndeces = new ArrayList<Integer>();
 					List<Integer> fragmentTreeEdgeParentIndeces = new ArrayList<Integer>();
 					int[] res = compatibleTrees.get(synthon);
@@ -413,7 +538,11 @@ public class FragmentPTreeSearch {
 			    	matchings = matchings.subList(0,nBestSolutions);
 			    SearchResult sr = new SearchResult();
 			    sr.setResult(matchings);
-			    edgeLinkTable[(linkerID-1)*synthonLib.getSynthons().size()+i][2*querySubtreeCutEdge+cutDirIndex] = sr;
+			    synchronized(compatibleMatchLocks[row][col]) {
+			    	if(compatibleMatchTable[row][col]==null)
+			    		compatibleMatchTable[row][col] = sr;
+			    	matchings = compatibleMatchTable[row][col].getResults();
+			    }
 			}
 			allCompatibleMatchings.addAll(matchings);
 			}
@@ -475,6 +604,7 @@ public static class FragmentMatchSearch {
 	private FragmentPTreeSearch pTreeSearch;
 	private List<PharmacophoreNode> queryNodes;
 	private List<PharmacophoreNode> fragmentNodes;
+	private Map<NodeSetPair,TreeMatching> matchingCache;
 	
 	
 	public FragmentMatchSearch(FragmentPTreeSearch pTreeSearch, PharmacophoreTree queryTree, PharmTreeSynthon synthon, int fragmentTreeSynthonID, int fragmentTreeLinkerID, int queryTreeHeadNode, int fragTreeHeadNode, int cutEdgeQueryTree, 
@@ -495,7 +625,8 @@ public static class FragmentMatchSearch {
 		this.fragmentTreeLinkerID = fragmentTreeLinkerID;
 		this.pTreeSearch = pTreeSearch;
 		this.queryNodes = queryTree.getNodes();
-		this.fragmentTree = synthon.getPharmTree();
+		this.fragmentTree = pTreeSearch.getFragmentTree(synthon);
+		this.matchingCache = pTreeSearch.getMatchingCache(synthon);
 		this.fragmentNodes = fragmentTree.getNodes();
 
 		if(fragmentTree.getEdges().get(cutEdgeFragmentTree)[1] == fragTreeHeadNode)
@@ -542,6 +673,7 @@ public static class FragmentMatchSearch {
 		nodes1.add(headNode1);
 		Set<Integer> nodes2 = fragmentTree.getNodesFromEdges(subTreeEdgeIndeces2);
 		nodes2.add(headNode2);
+		NodeSetPair nodeSets = null;
 		if(fragmentTree.getNodes().get(headNode2).isLinkNode() && nodes2.size()==1) { //node is link node -> needs a new call for a match search
 			// look for fragments that have compatible links!
 			int linkerID = fragmentTree.getNodes().get(headNode2).getFunctionalities()[0];
@@ -552,8 +684,15 @@ public static class FragmentMatchSearch {
 			
 		}
 		else {
-			
-			if(dpMatchMatrix[index1][index2]!= null) {
+			//subtrees without link nodes match independent of the other synthons, their matching can be reused for other cuts of the query tree
+			if(!containsLinkNodes(nodes2))
+				nodeSets = new NodeSetPair(nodes1, nodes2);
+			TreeMatching cachedMatching = nodeSets == null ? null : matchingCache.get(nodeSets);
+			if(cachedMatching!=null) {
+				fragmentMatching.setTreeMatching(cachedMatching);
+				nodeSets = null;
+			}
+			else if(dpMatchMatrix[index1][index2]!= null) {
 				//result found in dynamic-programing matrix
 				treeMatching = dpMatchMatrix[index1][index2];
 				fragmentMatching.setTreeMatching(treeMatching);
@@ -573,6 +712,16 @@ public static class FragmentMatchSearch {
 					List<int[]> cuts1 = queryTree.getExtensionCuts(subTreeEdgeIndeces1,subTreeEdgeParentIndeces1);
 					List<int[]> cuts2 = fragmentTree.getExtensionCuts(subTreeEdgeIndeces2,subTreeEdgeParentIndeces2);
 					double[][] scores = new double[cuts1.size()][cuts2.size()];
+					List<Set<Integer>> allExtensionNodes2 = new ArrayList<Set<Integer>>();
+					List<Set<Integer>> allSourceNodes2 = new ArrayList<Set<Integer>>();
+					for(int j=0;j<cuts2.size();j++) {
+						Set<Integer> extensionNodes2 = new HashSet<Integer>();
+						Set<Integer> sourceNodes2 = new HashSet<Integer>();
+						fragmentTree.enumerateExtensionCutFast(headNode2,cuts2.get(j), subTreeEdgeIndeces2,
+								extensionNodes2, sourceNodes2);
+						allExtensionNodes2.add(extensionNodes2);
+						allSourceNodes2.add(sourceNodes2);
+					}
 					for(int i=0;i<cuts1.size();i++) {
 						int[] cut1 = cuts1.get(i);
 						Set<Integer> extensionNodes1 = new HashSet<Integer>();
@@ -580,13 +729,8 @@ public static class FragmentMatchSearch {
 						queryTree.enumerateExtensionCutFast(headNode1,cut1, subTreeEdgeIndeces1,
 							extensionNodes1, sourceNodes1);
 						for(int j=0;j<cuts2.size();j++) {
-							int[] cut2 = cuts2.get(j);
-							Set<Integer> extensionNodes2 = new HashSet<Integer>();
-							Set<Integer> sourceNodes2 = new HashSet<Integer>();
-							fragmentTree.enumerateExtensionCutFast(headNode2,cut2, subTreeEdgeIndeces2,
-									extensionNodes2, sourceNodes2);
-							scores[i][j] = scoreExtensionMatch(queryTree,fragmentTree,extensionNodes1, extensionNodes2,
-										sourceNodes1, sourceNodes2);
+							scores[i][j] = scoreExtensionMatch(queryTree,fragmentTree,extensionNodes1, allExtensionNodes2.get(j),
+										sourceNodes1, allSourceNodes2.get(j));
 	
 						}
 					}
@@ -712,6 +856,8 @@ public static class FragmentMatchSearch {
 			}
 		}
 		fragmentMatching.calculate();
+		if(nodeSets!=null)
+			matchingCache.putIfAbsent(nodeSets, fragmentMatching.getTreeMatching());
 
 		return fragmentMatching;
 		
@@ -888,6 +1034,25 @@ public static class FragmentMatchSearch {
 		
 	}
 	
+	/**
+	 * Similarity of two subtrees, if they were matched as a whole, calculated from their total sizes
+	 * and functionalities only. The volume contribution to the steric similarity is assumed to be perfect.
+	 * @return
+	 */
+	public static double getSimilarityEstimate(double size1, int[] functionalities1, double size2, int[] functionalities2) {
+		double sterSim = size1+size2<0.001 ? 1.0 : 0.5*2*Math.min(size1, size2)/(size1+size2)+0.5;
+		double chemSim = PharmacophoreNode.calcFeatureSim(functionalities1, functionalities2);
+		return (1.0-PharmacophoreNode.CHEM_SIM_WEIGHT)*sterSim+PharmacophoreNode.CHEM_SIM_WEIGHT*chemSim;
+	}
+	
+	private boolean containsLinkNodes(Set<Integer> nodes) {
+		for(int n : nodes) {
+			if(fragmentNodes.get(n).isLinkNode())
+				return true;
+		}
+		return false;
+	}
+	
 	public static int[] getFunctionalitiesOfNodeSet(Set<Integer> nodes, PharmacophoreTree pTree) {
 		int[] functionalities = new int[PharmacophoreNode.FUNCTIONALITY_WEIGHTS.length];
 		List<PharmacophoreNode> n = pTree.getNodes(nodes);
@@ -1044,6 +1209,120 @@ public static class FragmentMatchSearch {
 		}
 	}
 	
+	/**
+	 * total size and functionalities of a subtree, used to skip synthons that cannot match a query subtree
+	 */
+	private static class SubTreeProperties {
+		private double size;
+		private int[] functionalities;
+		private boolean hasLinkNodes;
+		
+		private SubTreeProperties(PharmacophoreTree pTree, Set<Integer> nodes) {
+			size = FragmentMatchSearch.getSizeOfNodeSet(nodes, pTree);
+			functionalities = FragmentMatchSearch.getFunctionalitiesOfNodeSet(nodes, pTree);
+			for(int n : nodes)
+				if(pTree.getNodes().get(n).isLinkNode())
+					hasLinkNodes = true;
+		}
+		
+		/**
+		 * synthon subtrees with link nodes are never pruned, since further synthons contribute to their matching
+		 */
+		private boolean isPrunable(SubTreeProperties querySubTree, double minSim) {
+			return !hasLinkNodes && FragmentMatchSearch.getSimilarityEstimate(querySubTree.size, querySubTree.functionalities,
+					size, functionalities) < minSim;
+		}
+	}
+	
+	/**
+	 * node sets of a query subtree and a synthon subtree, used as key for cached matchings
+	 */
+	private static class NodeSetPair {
+		private int[] nodes1;
+		private int[] nodes2;
+		private int hash;
+		
+		private NodeSetPair(Set<Integer> nodes1, Set<Integer> nodes2) {
+			this.nodes1 = nodes1.stream().mapToInt(x -> x).sorted().toArray();
+			this.nodes2 = nodes2.stream().mapToInt(x -> x).sorted().toArray();
+			hash = 31*Arrays.hashCode(this.nodes1)+Arrays.hashCode(this.nodes2);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof NodeSetPair))
+				return false;
+			NodeSetPair p = (NodeSetPair)o;
+			return Arrays.equals(nodes1, p.nodes1) && Arrays.equals(nodes2, p.nodes2);
+		}
+	}
+	
+	/**
+	 * keeps the maxHits most similar hits, hits pushed out of the top-N are dropped
+	 */
+	private static class HitCollector {
+		private final int maxHits;
+		private final HitListener listener;
+		private final LinkedHashMap<String,Double> hits;
+		private final PriorityQueue<Map.Entry<String,Double>> queue; //lowest similarity first, may contain outdated entries
+		
+		private HitCollector(int maxHits, HitListener listener) {
+			this.maxHits = maxHits;
+			this.listener = listener;
+			hits = new LinkedHashMap<String,Double>();
+			queue = new PriorityQueue<Map.Entry<String,Double>>(Map.Entry.comparingByValue());
+		}
+		
+		private synchronized boolean isCandidate(double sim) {
+			return hits.size()<maxHits || sim>getLowestSimilarity();
+		}
+		
+		private synchronized void add(String hit, double sim) {
+			Double oldSim = hits.get(hit);
+			if(oldSim!=null && oldSim>=sim)
+				return;
+			if(oldSim==null && hits.size()>=maxHits && sim<=getLowestSimilarity())
+				return;
+			hits.put(hit, sim);
+			if(maxHits!=Integer.MAX_VALUE) {
+				queue.add(new AbstractMap.SimpleEntry<String,Double>(hit, sim));
+				while(hits.size()>maxHits)
+					hits.remove(pollValid().getKey());
+			}
+			if(listener!=null)
+				listener.hitFound(hit, sim);
+		}
+		
+		private double getLowestSimilarity() {
+			Map.Entry<String,Double> lowest = queue.peek();
+			while(lowest!=null && isOutdated(lowest)) {
+				queue.poll();
+				lowest = queue.peek();
+			}
+			return lowest==null ? -Double.MAX_VALUE : lowest.getValue();
+		}
+		
+		private Map.Entry<String,Double> pollValid() {
+			getLowestSimilarity();
+			return queue.poll();
+		}
+		
+		private boolean isOutdated(Map.Entry<String,Double> entry) {
+			Double sim = hits.get(entry.getKey());
+			return sim==null || sim.doubleValue()!=entry.getValue().doubleValue();
+		}
+		
+		private synchronized Map<String,Double> getSortedHits() {
+			return hits.entrySet().stream().sorted(Map.Entry.<String,Double>comparingByValue().reversed()).collect(Collectors.toMap(Map.Entry::getKey,Map.Entry::getValue,
+					(e1, e2) -> e1, LinkedHashMap::new));
+		}
+	}
+	
 		
 		
 		
@@ -23,13 +23,11 @@ public class PharmTreeSynthon {
 	private Map<String,Integer> connectorLabels;
 	private String pharmTreeEncoded;
 	private DescriptorHandlerPTree dhp;
-	private IDCodeParser idcParser;
 	private String id;
 	
 	public PharmTreeSynthon(StereoMolecule mol) {
 		connectorLabels = new HashMap<String,Integer>();
 		dhp = new DescriptorHandlerPTree();
-		idcParser = new IDCodeParser();
 		process(mol);
 	}
 	
@@ -64,8 +62,12 @@ public class PharmTreeSynthon {
 	}
 
 
+	/**
+	 * thread-safe, a new parser is used for every call
+	 * @return
+	 */
 	public StereoMolecule getStructure() {
-		return idcParser.getCompactMolecule(idcode);
+		return new IDCodeParser().getCompactMolecule(idcode);
 	}
 	
 	/**
@@ -0,0 +1,178 @@
+package com.actelion.research.chem.conf;
+
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.alignment3d.KabschAlignment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Keeps track of the conformers of one molecule that were accepted as being distinct and
+ * quickly tells, whether a new conformer is redundant to one of them. Conformers are
+ * considered redundant, if their TorsionDescriptors are equivalent or, if an RMSD threshold
+ * is given, if their symmetry corrected heavy atom RMSD after Kabsch alignment is below the threshold.
+ * To avoid comparing new conformers with all previous ones, the torsion space of the most
+ * relevant rotatable bonds is divided into cells. A new conformer is only compared to conformers
+ * in its own or adjacent cells. Since cells are wider than the torsion equivalence tolerance,
+ * no redundant conformer with equivalent torsions is missed. RMSD comparisons are restricted
+ * to conformers whose central torsions are similar.
+ */
+public class ConformerDiversityIndex {
+	private static final int MAX_INDEXED_BONDS = 3;
+	private static final float MIN_CELL_WIDTH = (float)Math.PI / 6f;	// must not be smaller than the torsion equivalence tolerance
+
+	private final int[] mIndexedBond;
+	private final int[] mCellCount;
+	private final double mRMSDThreshold;
+	private final TorsionDescriptorHelper mTorsionHelper;
+	private final HashMap<Long,ArrayList<Entry>> mCellMap;
+	private int mSize,mTorsionComparisons,mRMSDComparisons;
+
+	/**
+	 * @param mol molecule, of which all conformers are indexed; must not change later
+	 * @param rmsdThreshold 0.0 to consider conformers redundant only if their torsions are equivalent
+	 */
+	public ConformerDiversityIndex(StereoMolecule mol, double rmsdThreshold) {
+		int[] rotatableBond = TorsionDescriptorHelper.findRotatableBonds(mol);
+		mTorsionHelper = new TorsionDescriptorHelper(mol, rotatableBond);
+		mRMSDThreshold = rmsdThreshold;
+		mCellMap = new HashMap<>();
+
+		// index the most central bonds, because they have the highest impact on the overall shape
+		float[] weight = TorsionDescriptor.getRotatableBondWeights(mol, rotatableBond);
+		Integer[] bondIndex = new Integer[rotatableBond.length];
+		for (int i=0; i<bondIndex.length; i++)
+			bondIndex[i] = i;
+		Arrays.sort(bondIndex, (b1, b2) -> Float.compare(weight[b2], weight[b1]));
+
+		mIndexedBond = new int[Math.min(MAX_INDEXED_BONDS, rotatableBond.length)];
+		for (int i=0; i<mIndexedBond.length; i++)
+			mIndexedBond[i] = bondIndex[i];
+
+		mCellCount = new int[mIndexedBond.length];
+		}
+
+	/**
+	 * @return number of conformers added to the index
+	 */
+	public int size() {
+		return mSize;
+		}
+
+	/**
+	 * @return number of torsion descriptor comparisons performed so far
+	 */
+	public int getTorsionComparisonCount() {
+		return mTorsionComparisons;
+		}
+
+	/**
+	 * @return number of RMSD calculations performed so far
+	 */
+	public int getRMSDComparisonCount() {
+		return mRMSDComparisons;
+		}
+
+	/**
+	 * Checks whether the conformer has torsions equivalent to one of the indexed conformers.
+	 * This is cheap and may be used to discard conformers before an expensive minimization.
+	 * @param conformer
+	 * @return true, if an indexed conformer with equivalent torsions exists
+	 */
+	public boolean hasEquivalentTorsions(Conformer conformer) {
+		return isRedundant(conformer, mTorsionHelper.getTorsionDescriptor(conformer), false);
+		}
+
+	/**
+	 * Adds the conformer to the index, unless it is redundant to an already indexed conformer.
+	 * @param conformer
+	 * @return true, if the conformer was added; false if it is redundant
+	 */
+	public boolean add(Conformer conformer) {
+		TorsionDescriptor td = mTorsionHelper.getTorsionDescriptor(conformer);
+		if (isRedundant(conformer, td, mRMSDThreshold != 0.0))
+			return false;
+
+		mCellMap.computeIfAbsent(getCellKey(td), k -> new ArrayList<>()).add(new Entry(conformer, td));
+		mSize++;
+		return true;
+		}
+
+	private boolean isRedundant(Conformer conformer, TorsionDescriptor td, boolean checkRMSD) {
+		if (mSize == 0)
+			return false;
+
+		int[] cell = new int[mIndexedBond.length];
+		for (int i=0; i<mIndexedBond.length; i++)
+			cell[i] = getCell(td, i);
+
+		// visit own and all adjacent cells
+		int neighbourCount = 1;
+		for (int i=0; i<mIndexedBond.length; i++)
+			neighbourCount *= 3;
+		for (int n=0; n<neighbourCount; n++) {
+			long key = 0;
+			boolean isDuplicateCell = false;
+			int code = n;
+			for (int i=0; i<mIndexedBond.length; i++) {
+				int delta = code % 3 - 1;
+				code /= 3;
+				if (delta != 0 && mCellCount[i] <= 2 && (delta == 1 || mCellCount[i] == 1)) {
+					isDuplicateCell = true;	// with two or less cells the neighbours are visited already
+					break;
+					}
+				key = key * mCellCount[i] + (cell[i] + delta + mCellCount[i]) % mCellCount[i];
+				}
+			if (isDuplicateCell)
+				continue;
+
+			ArrayList<Entry> entryList = mCellMap.get(key);
+			if (entryList != null) {
+				for (Entry entry:entryList) {
+					mTorsionComparisons++;
+					if (td.equals(entry.torsionDescriptor))
+						return true;
+					if (checkRMSD) {
+						mRMSDComparisons++;
+						if (calculateRMSD(entry.conformer, conformer) < mRMSDThreshold)
+							return true;
+						}
+					}
+				}
+			}
+
+		return false;
+		}
+
+	private long getCellKey(TorsionDescriptor td) {
+		long key = 0;
+		for (int i=0; i<mIndexedBond.length; i++)
+			key = key * mCellCount[i] + getCell(td, i);
+		return key;
+		}
+
+	private int getCell(TorsionDescriptor td, int i) {
+		float maxTorsion = td.getMaxTorsion(mIndexedBond[i]);
+		if (mCellCount[i] == 0)
+			mCellCount[i] = Math.max(1, (int)(maxTorsion / MIN_CELL_WIDTH));
+		return Math.min(mCellCount[i]-1, (int)(td.getTorsion(mIndexedBond[i]) * mCellCount[i] / maxTorsion));
+		}
+
+	private double calculateRMSD(Conformer c1, Conformer c2) {
+		Conformer reference = new Conformer(c1);
+		Conformer aligned = new Conformer(c2);
+		new KabschAlignment(reference, aligned).align();
+		return new SymmetryCorrectedRMSDCalculator(reference, aligned).calculate();
+		}
+
+	private static class Entry {
+		Conformer conformer;
+		TorsionDescriptor torsionDescriptor;
+
+		public Entry(Conformer conformer, TorsionDescriptor torsionDescriptor) {
+			this.conformer = conformer;
+			this.torsionDescriptor = torsionDescriptor;
+			}
+		}
+	}
@@ -10,6 +10,7 @@ import org.openmolecules.chem.conf.so.ConformationSelfOrganizer;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Consumer;
 
 public class ConformerSetGenerator {
 
@@ -19,6 +20,8 @@ public class ConformerSetGenerator {
 	private int mStrategy;
 	private boolean mUseFF;
 	private long mSeed;
+	private int mDiversityTarget;
+	private double mRMSDThreshold;
 	private static long DEFAULT_SEED = 12345L;
 	private ThreadMaster threadMaster;
 	
@@ -58,6 +61,25 @@ public class ConformerSetGenerator {
 		this.threadMaster = tm;
 	}
 
+	/**
+	 * Defines the number of distinct conformers after which generateConformers() stops
+	 * creating new conformers, even if maxNrConfs conformers were not tried yet.
+	 * @param diversityTarget 0 to generate up to maxNrConfs conformers
+	 */
+	public void setDiversityTarget(int diversityTarget) {
+		mDiversityTarget = diversityTarget;
+	}
+
+	/**
+	 * By default, generateConformers() discards conformers with torsions equivalent to an earlier conformer.
+	 * If an RMSD threshold is set, then it also discards conformers, which after alignment are closer than
+	 * this threshold to an earlier conformer with similar central torsions.
+	 * @param rmsdThreshold symmetry corrected heavy atom RMSD in Angstrom or 0.0
+	 */
+	public void setRMSDThreshold(double rmsdThreshold) {
+		mRMSDThreshold = rmsdThreshold;
+	}
+
 	/**
 	 * Generates a set of distinct conformers of the canonical largest fragment of the passed molecule.
 	 * @param mol
@@ -81,12 +103,7 @@ public class ConformerSetGenerator {
 		int maxTorsionSets = (int) Math.max(2 * mMaxNrConfs, (1000 * Math.sqrt(mMaxNrConfs)));
 		ConformerGenerator cg = new ConformerGenerator(mSeed,false);
 		cg.setThreadMaster(this.threadMaster);
-		Map<String, Object> ffOptions = null;
-		if(mUseFF) {
-			ForceFieldMMFF94.initialize(ForceFieldMMFF94.MMFF94SPLUS);
-			ffOptions = new HashMap<String, Object>();
-			ffOptions.put("dielectric constant", 4.0);
-		}
+		Map<String, Object> ffOptions = createForceFieldOptions();
 
 		if (cg.initializeConformers(canonicalFragment, mStrategy, maxTorsionSets, false)) {
 			for (int i = 0; i < mMaxNrConfs; i++) {
@@ -99,12 +116,8 @@ public class ConformerSetGenerator {
 				if (conformer == null)
 					break;
 
-				if(mUseFF) {
-					conformer.copyTo(canonicalFragment);
-					ForceFieldMMFF94 mmff = new ForceFieldMMFF94(canonicalFragment, ForceFieldMMFF94.MMFF94SPLUS, ffOptions);
-					mmff.minimise();
-					conformer.copyFrom(canonicalFragment);
-				}
+				if(mUseFF)
+					minimize(conformer, canonicalFragment, ffOptions);
 				confSet.add(conformer);
 				if(threadMaster!=null && threadMaster.threadMustDie())
 					break;
@@ -113,4 +126,79 @@ public class ConformerSetGenerator {
 
 		return confSet;
 	}
+
+	/**
+	 * Generates distinct conformers of the canonical largest fragment of the passed molecule
+	 * and passes every one to the consumer as soon as it is created. In contrast to generateConformerSet()
+	 * conformers are not collected. Redundant conformers are recognized on the fly by a ConformerDiversityIndex:
+	 * Conformers with torsions equivalent to an earlier one are discarded before they are minimized.
+	 * If an RMSD threshold was set, conformers close to an earlier one are discarded after minimization.
+	 * The generation stops after maxNrConfs attempts or as soon as the diversity target is reached.
+	 * @param mol
+	 * @param consumer receives distinct conformers in the order of their creation
+	 * @return number of conformers passed to the consumer
+	 */
+	public int generateConformers(StereoMolecule mol, Consumer<Conformer> consumer) {
+		StereoMolecule largestFragment = mol.getCompactCopy();
+		largestFragment.stripSmallFragments();
+		StereoMolecule canonicalFragment = new Canonizer(largestFragment).getCanMolecule(true);
+
+		int maxTorsionSets = (int) Math.max(2 * mMaxNrConfs, (1000 * Math.sqrt(mMaxNrConfs)));
+		ConformerGenerator cg = new ConformerGenerator(mSeed,false);
+		cg.setThreadMaster(this.threadMaster);
+		Map<String, Object> ffOptions = createForceFieldOptions();
+
+		if (!cg.initializeConformers(canonicalFragment, mStrategy, maxTorsionSets, false))
+			return 0;
+
+		ConformerDiversityIndex index = null;
+		for (int i = 0; i < mMaxNrConfs; i++) {
+			Conformer conformer = cg.getNextConformer();
+			if (conformer == null && i==0) {
+				ConformationSelfOrganizer sampler = new ConformationSelfOrganizer(canonicalFragment, true);
+				conformer = sampler.generateOneConformer(mSeed);
+			}
+
+			if (conformer == null)
+				break;
+
+			// hydrogens were added during initialization; the index must know the complete molecule
+			if (index == null)
+				index = new ConformerDiversityIndex(conformer.getMolecule(), mRMSDThreshold);
+
+			if (index.hasEquivalentTorsions(conformer))
+				continue;
+
+			if(mUseFF)
+				minimize(conformer, canonicalFragment, ffOptions);
+
+			if (index.add(conformer)) {
+				consumer.accept(conformer);
+				if (mDiversityTarget != 0 && index.size() >= mDiversityTarget)
+					break;
+			}
+
+			if(threadMaster!=null && threadMaster.threadMustDie())
+				break;
+		}
+
+		return index == null ? 0 : index.size();
+	}
+
+	private Map<String, Object> createForceFieldOptions() {
+		if(!mUseFF)
+			return null;
+
+		ForceFieldMMFF94.initialize(ForceFieldMMFF94.MMFF94SPLUS);
+		Map<String, Object> ffOptions = new HashMap<String, Object>();
+		ffOptions.put("dielectric constant", 4.0);
+		return ffOptions;
+	}
+
+	private void minimize(Conformer conformer, StereoMolecule mol, Map<String, Object> ffOptions) {
+		conformer.copyTo(mol);
+		ForceFieldMMFF94 mmff = new ForceFieldMMFF94(mol, ForceFieldMMFF94.MMFF94SPLUS, ffOptions);
+		mmff.minimise();
+		conformer.copyFrom(mol);
+	}
 }
@@ -81,6 +81,26 @@ public class TorsionDescriptor implements Comparable<TorsionDescriptor> {
 			}
 		}*/
 
+	public int getTorsionCount() {
+		return mTorsion.length;
+		}
+
+	/**
+	 * @param i rotatable bond index
+	 * @return normalized torsion angle from 0 to getMaxTorsion(i)
+	 */
+	public float getTorsion(int i) {
+		return mTorsion[i];
+		}
+
+	/**
+	 * @param i rotatable bond index
+	 * @return symmetry dependent torsion range of the rotatable bond
+	 */
+	public float getMaxTorsion(int i) {
+		return mMaxTorsion[i];
+		}
+
 	/**
 	 * Returns true, if none of the torsion angles are more different
 	 * than TORSION_EQUIVALENCE_TOLERANCE;
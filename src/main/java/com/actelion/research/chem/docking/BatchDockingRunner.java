@@ -0,0 +1,300 @@
+package com.actelion.research.chem.docking;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.actelion.research.calc.ThreadMaster;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.forcefield.mmff.ForceFieldMMFF94;
+
+/**
+ * docks a stream of ligands into one prepared receptor using multiple threads.
+ * every thread owns a DockingEngine built from the shared DockingContext, so the receptor is prepared only once.
+ * results are written in input order, one line per ligand: the 0-based input index, a TAB and
+ * DockingResult.encode(), which is empty if the docking of the ligand failed.
+ * when writing to a file, a checkpoint file records the number of completed ligands and the corresponding
+ * output length, such that an interrupted run continues where it stopped when called again with the same files.
+ */
+public class BatchDockingRunner {
+
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 100;
+	private static final int MAX_PENDING_RESULTS_PER_THREAD = 8;
+	private static final String CHECKPOINT_DELIMITER = "\t";
+
+	private final DockingContext context;
+	private final int threadCount;
+	private int mcSteps;
+	private int startPositions;
+	private int checkpointInterval;
+	private ThreadMaster threadMaster;
+	private final AtomicLong failureCount;
+
+	// state of the running batch, guarded by lock
+	private final Object lock = new Object();
+	private Iterator<StereoMolecule> ligands;
+	private Output output;
+	private Map<Long,String> pendingResults;
+	private long nextInputIndex;
+	private long nextOutputIndex;
+	private boolean stop;
+	private Exception exception;
+
+	/**
+	 *
+	 * @param context prepared receptor
+	 * @param threadCount 0 for all available processors
+	 */
+	public BatchDockingRunner(DockingContext context, int threadCount) {
+		this.context = context;
+		this.threadCount = threadCount == 0 ? Runtime.getRuntime().availableProcessors() : Math.max(1, threadCount);
+		mcSteps = DockingEngine.DEFAULT_NR_MC_STEPS;
+		startPositions = DockingEngine.DEFAULT_START_POSITIONS;
+		checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+		failureCount = new AtomicLong();
+	}
+
+	public void setMCSteps(int mcSteps) {
+		this.mcSteps = mcSteps;
+	}
+
+	public void setStartPositions(int startPositions) {
+		this.startPositions = startPositions;
+	}
+
+	/**
+	 * @param checkpointInterval number of ligands between two checkpoints
+	 */
+	public void setCheckpointInterval(int checkpointInterval) {
+		this.checkpointInterval = Math.max(1, checkpointInterval);
+	}
+
+	public void setThreadMaster(ThreadMaster tm) {
+		threadMaster = tm;
+	}
+
+	/**
+	 * @return number of ligands, for which docking failed, since construction of this runner
+	 */
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/**
+	 * docks all ligands and writes the results to writer. No checkpoints are written.
+	 * @param ligands
+	 * @param writer
+	 * @return number of docked ligands including failed ones
+	 * @throws IOException
+	 */
+	public long dock(Iterator<StereoMolecule> ligands, Writer writer) throws IOException {
+		Output out = new Output() {
+			@Override
+			public void write(long index, String result) throws IOException {
+				writeLine(writer, index, result);
+			}
+
+			@Override
+			public void checkpoint(long processed) throws IOException {
+				writer.flush();
+			}
+		};
+		return run(ligands, 0, out);
+	}
+
+	/**
+	 * docks all ligands and writes the results to outputFile. If checkpointFile exists, the first ligands
+	 * that were completed in a previous run are skipped and outputFile is continued; results written after
+	 * the last checkpoint are discarded and recalculated.
+	 * @param ligands the same ligands in the same order as in the previous run
+	 * @param outputFile
+	 * @param checkpointFile
+	 * @return number of ligands docked in this call including failed ones
+	 * @throws IOException
+	 */
+	public long dock(Iterator<StereoMolecule> ligands, File outputFile, File checkpointFile) throws IOException {
+		long processed = 0;
+		long outputLength = 0;
+		if(checkpointFile.exists()) {
+			try(BufferedReader reader = Files.newBufferedReader(checkpointFile.toPath(), StandardCharsets.UTF_8)) {
+				String line = reader.readLine();
+				String[] entries = line == null ? new String[0] : line.split(CHECKPOINT_DELIMITER);
+				if(entries.length != 2)
+					throw new IOException("invalid checkpoint file: "+checkpointFile);
+				processed = Long.parseLong(entries[0]);
+				outputLength = Long.parseLong(entries[1]);
+			}
+			catch(NumberFormatException e) {
+				throw new IOException("invalid checkpoint file: "+checkpointFile);
+			}
+		}
+
+		for(long i=0; i<processed; i++) {
+			if(!ligands.hasNext())
+				throw new IOException("checkpoint refers to more ligands than available");
+			ligands.next();
+		}
+
+		try(FileOutputStream fos = new FileOutputStream(outputFile, true)) {
+			FileChannel channel = fos.getChannel();
+			channel.truncate(outputLength);
+			Writer writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+			Output out = new Output() {
+				@Override
+				public void write(long index, String result) throws IOException {
+					writeLine(writer, index, result);
+				}
+
+				@Override
+				public void checkpoint(long completed) throws IOException {
+					writer.flush();
+					fos.getFD().sync();
+					writeCheckpoint(checkpointFile, completed, channel.position());
+				}
+			};
+			long count = run(ligands, processed, out);
+			writer.flush();
+			return count;
+		}
+	}
+
+	private static void writeLine(Writer writer, long index, String result) throws IOException {
+		writer.write(Long.toString(index));
+		writer.write('\t');
+		writer.write(result);
+		writer.write('\n');
+	}
+
+	private static void writeCheckpoint(File checkpointFile, long completed, long outputLength) throws IOException {
+		File tmp = new File(checkpointFile.getPath()+".tmp");
+		Files.write(tmp.toPath(), (completed+CHECKPOINT_DELIMITER+outputLength+"\n").getBytes(StandardCharsets.UTF_8));
+		try {
+			Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private long run(Iterator<StereoMolecule> ligands, long firstIndex, Output output) throws IOException {
+		if(ForceFieldMMFF94.table(ForceFieldMMFF94.MMFF94SPLUS)==null)
+			ForceFieldMMFF94.initialize(ForceFieldMMFF94.MMFF94SPLUS);
+
+		synchronized(lock) {
+			this.ligands = ligands;
+			this.output = output;
+			pendingResults = new HashMap<>();
+			nextInputIndex = firstIndex;
+			nextOutputIndex = firstIndex;
+			stop = false;
+			exception = null;
+		}
+
+		Thread[] t = new Thread[threadCount];
+		for(int i=0; i<threadCount; i++) {
+			t[i] = new Thread("Batch Docking "+(i+1)) {
+				public void run() {
+					dockLigands();
+				}
+			};
+			t[i].start();
+		}
+		for(int i=0; i<threadCount; i++)
+			try { t[i].join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+
+		synchronized(lock) {
+			if(exception == null && nextOutputIndex != firstIndex)
+				output.checkpoint(nextOutputIndex);
+			this.ligands = null;
+			this.output = null;
+			pendingResults = null;
+			if(exception instanceof IOException)
+				throw (IOException)exception;
+			if(exception != null)
+				throw new IOException(exception);
+			return nextOutputIndex - firstIndex;
+		}
+	}
+
+	private void dockLigands() {
+		DockingEngine engine = new DockingEngine(context, mcSteps, startPositions);
+		engine.setThreadMaster(threadMaster);
+		while(true) {
+			long index;
+			StereoMolecule ligand;
+			synchronized(lock) {
+				try {
+					while(!stop && nextInputIndex - nextOutputIndex >= MAX_PENDING_RESULTS_PER_THREAD * threadCount)
+						lock.wait();
+					if(stop || (threadMaster != null && threadMaster.threadMustDie()) || !ligands.hasNext())
+						return;
+					ligand = ligands.next();
+				}
+				catch(InterruptedException e) {
+					return;
+				}
+				catch(RuntimeException e) {
+					fail(e);
+					return;
+				}
+				index = nextInputIndex++;
+			}
+
+			String result;
+			try {
+				result = engine.dockMolecule(ligand).encode();
+			}
+			catch(Exception e) {
+				failureCount.incrementAndGet();
+				result = "";
+			}
+
+			synchronized(lock) {
+				if(stop)
+					return;
+				pendingResults.put(index, result);
+				try {
+					while(pendingResults.containsKey(nextOutputIndex)) {
+						output.write(nextOutputIndex, pendingResults.remove(nextOutputIndex));
+						nextOutputIndex++;
+						if(nextOutputIndex % checkpointInterval == 0)
+							output.checkpoint(nextOutputIndex);
+					}
+				}
+				catch(IOException e) {
+					fail(e);
+					return;
+				}
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * must be called while holding the lock
+	 */
+	private void fail(Exception e) {
+		if(exception == null)
+			exception = e;
+		stop = true;
+		lock.notifyAll();
+	}
+
+	private interface Output {
+		void write(long index, String result) throws IOException;
+		void checkpoint(long completed) throws IOException;
+	}
+}
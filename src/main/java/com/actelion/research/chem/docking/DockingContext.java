@@ -0,0 +1,157 @@
+package com.actelion.research.chem.docking;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.actelion.research.chem.Coordinates;
+import com.actelion.research.chem.Molecule;
+import com.actelion.research.chem.Molecule3D;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.alignment3d.transformation.Rotation;
+import com.actelion.research.chem.alignment3d.transformation.TransformationSequence;
+import com.actelion.research.chem.alignment3d.transformation.Translation;
+import com.actelion.research.chem.conf.Conformer;
+import com.actelion.research.chem.docking.DockingEngine.ScoringFunction;
+import com.actelion.research.chem.docking.receptorpharmacophore.NegativeReceptorImageCreator;
+import com.actelion.research.chem.docking.scoring.AbstractScoringEngine;
+import com.actelion.research.chem.docking.scoring.ChemPLP;
+import com.actelion.research.chem.docking.scoring.IdoScore;
+import com.actelion.research.chem.docking.scoring.gridmap.ReceptorGridMaps;
+import com.actelion.research.chem.docking.shape.ShapeDocking;
+import com.actelion.research.chem.io.pdb.converter.MoleculeGrid;
+import com.actelion.research.chem.phesa.MolecularVolume;
+import com.actelion.research.chem.phesa.ShapeVolume;
+
+/**
+ * receptor preparation for docking, done once per receptor and binding site:
+ * orientation of receptor and native ligand, binding site grid and atoms, receptor atom types,
+ * negative receptor image and optionally precalculated potential grid maps.
+ * a DockingContext is not modified after construction and may be shared by any number of
+ * DockingEngines running in different threads.
+ */
+public class DockingContext {
+
+	private final Molecule3D receptor;
+	private final StereoMolecule nativeLigand;
+	private final Rotation rotation;
+	private final Coordinates origCOM;
+	private final ShapeVolume negativeReceptorImage;
+	private final TransformationSequence negativeReceptorImageTransform;
+	private final MoleculeGrid grid;
+	private final Set<Integer> bindingSiteAtoms;
+	private final int[] receptorAtomTypes;
+	private final ScoringFunction scoringFunction;
+	private final ReceptorGridMaps gridMaps;
+
+	public DockingContext(StereoMolecule rec, StereoMolecule nativeLig, double gridDimension,
+			ScoringFunction scoringFunction) throws DockingFailedException {
+		this(rec, nativeLig, gridDimension, scoringFunction, 0.0);
+	}
+
+	/**
+	 *
+	 * @param rec receptor with explicit hydrogens
+	 * @param nativeLig ligand in its bound conformation, defines the location of the binding site
+	 * @param gridDimension extension of the binding site box around the native ligand
+	 * @param scoringFunction
+	 * @param gridMapSpacing if larger than 0.0, receptor potential grid maps with this spacing are precalculated
+	 * @throws DockingFailedException
+	 */
+	public DockingContext(StereoMolecule rec, StereoMolecule nativeLig, double gridDimension,
+			ScoringFunction scoringFunction, double gridMapSpacing) throws DockingFailedException {
+		for(int ra=0;ra<rec.getAtoms();ra++) {
+			if(rec.getImplicitHydrogens(ra)>0)
+				throw new DockingFailedException("please add hydrogen atoms to receptor structure!");
+		}
+		this.scoringFunction = scoringFunction;
+		nativeLigand = new Molecule3D(nativeLig);
+		nativeLigand.ensureHelperArrays(Molecule.cHelperCIP);
+		receptor = new Molecule3D(rec);
+		receptor.ensureHelperArrays(Molecule.cHelperCIP);
+		MolecularVolume molVol = new MolecularVolume(nativeLigand);
+		origCOM  = new Coordinates(molVol.getCOM());
+		Conformer conf = new Conformer(nativeLigand);
+		rotation = molVol.preProcess(conf);
+		preprocess(receptor,nativeLigand);
+
+		negativeReceptorImageTransform = new TransformationSequence();
+		negativeReceptorImage = NegativeReceptorImageCreator.create(nativeLigand, receptor, negativeReceptorImageTransform);
+
+		grid = new MoleculeGrid(nativeLigand,DockingEngine.GRID_RESOLUTION,
+				new Coordinates(gridDimension,gridDimension,
+						gridDimension));
+
+		Set<Integer> siteAtoms = new HashSet<Integer>();
+		DockingEngine.getBindingSiteAtoms(receptor, siteAtoms, grid, scoringFunction==ScoringFunction.CHEMPLP);
+		bindingSiteAtoms = Collections.unmodifiableSet(siteAtoms);
+		receptorAtomTypes = scoringFunction==ScoringFunction.IDOSCORE ? DockingEngine.getReceptorAtomTypes(receptor) : null;
+
+		gridMaps = gridMapSpacing>0.0 ? createScoringEngine().createGridMaps(gridMapSpacing) : null;
+	}
+
+	/**
+	 * rotates receptor and ligand to principal moments of inertia of ligand, for efficient grid creation
+	 */
+	private void preprocess(StereoMolecule receptor, StereoMolecule ligand) {
+		Translation translate = new Translation(new double[] {-origCOM.x,-origCOM.y,-origCOM.z});
+		translate.apply(ligand);
+		rotation.apply(ligand);
+		translate.apply(receptor);
+		rotation.apply(receptor);
+	}
+
+	/**
+	 * creates a new scoring engine for the prepared receptor; scoring engines are not thread-safe,
+	 * every thread needs its own one
+	 * @return
+	 */
+	public synchronized AbstractScoringEngine createScoringEngine() {
+		AbstractScoringEngine engine;
+		if(scoringFunction==ScoringFunction.IDOSCORE)
+			engine = new IdoScore(receptor, bindingSiteAtoms, receptorAtomTypes, grid);
+		else
+			engine = new ChemPLP(receptor, bindingSiteAtoms, grid);
+		if(gridMaps!=null)
+			engine.setGridMaps(gridMaps);
+		return engine;
+	}
+
+	/**
+	 * @return a new ShapeDocking instance working on a private copy of the negative receptor image
+	 */
+	public ShapeDocking createShapeDocking() {
+		return new ShapeDocking(new ShapeVolume(negativeReceptorImage), negativeReceptorImageTransform);
+	}
+
+	/**
+	 * @return a copy of the native ligand in the docking coordinate frame
+	 */
+	public StereoMolecule getNativeLigand() {
+		Molecule3D lig = new Molecule3D(nativeLigand);
+		lig.ensureHelperArrays(Molecule.cHelperCIP);
+		return lig;
+	}
+
+	/**
+	 * @return rotation from the original receptor frame into the docking frame; don't modify
+	 */
+	public Rotation getRotation() {
+		return rotation;
+	}
+
+	/**
+	 * @return center of mass of the native ligand in the original receptor frame; don't modify
+	 */
+	public Coordinates getOrigCOM() {
+		return origCOM;
+	}
+
+	public ScoringFunction getScoringFunction() {
+		return scoringFunction;
+	}
+
+	public ReceptorGridMaps getGridMaps() {
+		return gridMaps;
+	}
+}
@@ -6,15 +6,12 @@ import com.actelion.research.calc.ThreadMaster;
 import com.actelion.research.chem.*;
 import com.actelion.research.chem.alignment3d.KabschAlignment;
 import com.actelion.research.chem.alignment3d.transformation.Rotation;
-import com.actelion.research.chem.alignment3d.transformation.TransformationSequence;
 import com.actelion.research.chem.alignment3d.transformation.Translation;
 import com.actelion.research.chem.conf.Conformer;
 import com.actelion.research.chem.conf.ConformerSet;
 import com.actelion.research.chem.conf.ConformerSetGenerator;
-import com.actelion.research.chem.docking.receptorpharmacophore.NegativeReceptorImageCreator;
 import com.actelion.research.chem.docking.scoring.AbstractScoringEngine;
-import com.actelion.research.chem.docking.scoring.ChemPLP;
-import com.actelion.research.chem.docking.scoring.IdoScore;
+import com.actelion.research.chem.docking.scoring.gridmap.ReceptorGridMaps;
 import com.actelion.research.chem.docking.shape.ShapeDocking;
 import com.actelion.research.chem.forcefield.mmff.ForceFieldMMFF94;
 import com.actelion.research.chem.forcefield.mmff.MMFFPositionConstraint;
@@ -23,9 +20,7 @@ import com.actelion.research.chem.io.pdb.converter.MoleculeGrid;
 import com.actelion.research.chem.mcs.MCS;
 import com.actelion.research.chem.optimization.OptimizerLBFGS;
 import com.actelion.research.chem.phesa.EncodeFunctions;
-import com.actelion.research.chem.phesa.MolecularVolume;
 import com.actelion.research.chem.phesa.PheSAAlignment;
-import com.actelion.research.chem.phesa.ShapeVolume;
 import com.actelion.research.chem.potentialenergy.PositionConstraint;
 import org.openmolecules.chem.conf.gen.ConformerGenerator;
 
@@ -34,6 +29,12 @@ import java.util.*;
 import java.util.Base64.Decoder;
 import java.util.Base64.Encoder;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 public class DockingEngine {
@@ -46,8 +47,8 @@ public class DockingEngine {
  */
 	
 	public enum ScoringFunction {CHEMPLP,IDOSCORE;}
-	private static final int DEFAULT_NR_MC_STEPS = 50;
-	private static final int DEFAULT_START_POSITIONS = 10;
+	public static final int DEFAULT_NR_MC_STEPS = 50;
+	public static final int DEFAULT_START_POSITIONS = 10;
 	private static final double BOLTZMANN_FACTOR = 1.2; //as for AutoDock Vina
 	public static final double GRID_DIMENSION = 6.0;
 	public static final double GRID_RESOLUTION = 0.5;
@@ -67,49 +68,39 @@ public class DockingEngine {
 	private StereoMolecule mcsRef;
 	private List<Integer> mcsConstrainedBonds;
 	private List<Integer> mcsConstrainedAtoms;
-	private double gridDimension;
+	private DockingContext context;
+	private int threadCount;
+	private ExecutorService executor;
+	private BlockingQueue<AbstractScoringEngine> enginePool;
 
 	
 	public DockingEngine(StereoMolecule rec, StereoMolecule nativeLig, int mcSteps, int startPositions, double gridDimension,
 			ScoringFunction scoringFunction) throws DockingFailedException {
-		for(int ra=0;ra<rec.getAtoms();ra++) {
-			if(rec.getImplicitHydrogens(ra)>0)
-				throw new DockingFailedException("please add hydrogen atoms to receptor structure!");
-		}
-		nativeLigand = new Molecule3D(nativeLig);
-		nativeLigand.ensureHelperArrays(Molecule.cHelperCIP);
-		Molecule3D receptor = new Molecule3D(rec);
-		receptor.ensureHelperArrays(Molecule.cHelperCIP);
-		MolecularVolume molVol = new MolecularVolume(nativeLigand);
-		origCOM  = new Coordinates(molVol.getCOM());
-		Conformer conf = new Conformer(nativeLigand);
-		rotation = molVol.preProcess(conf);
+		this(new DockingContext(rec, nativeLig, gridDimension, scoringFunction), mcSteps, startPositions);
+	}
+	
+	/**
+	 * creates a DockingEngine for a receptor that has already been prepared. Preparing the receptor
+	 * once and sharing the DockingContext is much cheaper than constructing every engine from scratch,
+	 * if many engines (e.g. one per thread) dock into the same binding site.
+	 * @param context
+	 * @param mcSteps
+	 * @param startPositions
+	 */
+	public DockingEngine(DockingContext context, int mcSteps, int startPositions) {
+		this.context = context;
+		nativeLigand = context.getNativeLigand();
+		origCOM = context.getOrigCOM();
+		rotation = context.getRotation();
+		shapeDocking = context.createShapeDocking();
+		engine = context.createScoringEngine();
 		this.startPositions = startPositions;
-		preprocess(receptor,nativeLigand);
-		
-		TransformationSequence transform = new TransformationSequence();
-		ShapeVolume bsVolume = NegativeReceptorImageCreator.create(nativeLigand, receptor, transform);
-		shapeDocking = new ShapeDocking(bsVolume,transform);
-		
-		MoleculeGrid grid = new MoleculeGrid(nativeLigand,GRID_RESOLUTION,
-				new Coordinates(gridDimension,gridDimension,
-						gridDimension));
-		
-		Set<Integer> bindingSiteAtoms = new HashSet<Integer>();
-		
-		if(scoringFunction==ScoringFunction.CHEMPLP) {
-			DockingEngine.getBindingSiteAtoms(receptor, bindingSiteAtoms, grid, true);
-			engine = new ChemPLP(receptor,bindingSiteAtoms,grid);
-		}
-		else if(scoringFunction==ScoringFunction.IDOSCORE) {
-			DockingEngine.getBindingSiteAtoms(receptor, bindingSiteAtoms, grid, false);
-			engine = new IdoScore(receptor,bindingSiteAtoms, getReceptorAtomTypes(receptor),grid);
-		}
-		
 		this.mcSteps = mcSteps;
 		this.random = new Random(LigandPose.SEED);
-
-
+	}
+	
+	public DockingEngine(DockingContext context) {
+		this(context,DEFAULT_NR_MC_STEPS,DEFAULT_START_POSITIONS);
 	}
 	
 	public DockingEngine(StereoMolecule receptor, StereoMolecule nativeLigand, double gridDimension) throws DockingFailedException {
@@ -125,6 +116,57 @@ public class DockingEngine {
 		shapeDocking.setThreadMaster(tm);
 	}
 	
+	/**
+	 * precalculates receptor potential maps over the binding site, which makes pose scoring
+	 * scale with the number of ligand atoms only. Worthwhile when many ligands are docked into the same receptor.
+	 * @param spacing grid spacing in Angstrom, e.g. ReceptorGridMaps.DEFAULT_SPACING
+	 * @return the maps, which can be passed to other DockingEngines for the same receptor and native ligand or written to disk
+	 */
+	public ReceptorGridMaps createGridMaps(double spacing) {
+		ReceptorGridMaps gridMaps = engine.createGridMaps(spacing);
+		enginePool = null;
+		return gridMaps;
+	}
+	
+	/**
+	 * @param gridMaps maps created by a DockingEngine with identical receptor, native ligand, grid dimension and scoring function;
+	 * null to use pairwise receptor-ligand terms
+	 */
+	public void setGridMaps(ReceptorGridMaps gridMaps) {
+		engine.setGridMaps(gridMaps);
+		enginePool = null;
+	}
+	
+	public ReceptorGridMaps getGridMaps() {
+		return engine.getGridMaps();
+	}
+	
+	/**
+	 * lets dockMolecule() optimize the start positions of one ligand concurrently.
+	 * In this mode every start position uses its own random number generator seeded from its index,
+	 * such that results don't depend on the thread count, but differ from single-threaded results.
+	 * Call shutdown() when done.
+	 * @param threadCount 0 for all available processors, 1 for sequential processing
+	 */
+	public void setThreadCount(int threadCount) {
+		int count = threadCount == 0 ? Runtime.getRuntime().availableProcessors() : Math.max(1, threadCount);
+		if(count!=this.threadCount) {
+			shutdown();
+			this.threadCount = count;
+		}
+	}
+	
+	/**
+	 * stops the threads used for concurrent start position optimization
+	 */
+	public void shutdown() {
+		if(executor!=null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		enginePool = null;
+	}
+	
 
 	
 	/**
@@ -324,25 +366,28 @@ public class DockingEngine {
 		}
 
 		Map<String,Double> contributions = null;
-		for(Conformer ligConf : startPoints) {
-			Conformer newLigConf = new Conformer(ligConf);		
-			LigandPose pose = initiate(newLigConf,eMin);
-			if(mcsRef!=null) {
-				pose.setMCSBondConstraints(mcsConstrainedBonds);
-				for(int a : mcsConstrainedAtoms) {
-					PositionConstraint constr = new PositionConstraint(newLigConf,a,50,1.0);
-					pose.addConstraint(constr);
-				}
-				
+		if(threadCount>1 && startPoints.size()>1) {
+			StartPositionResult best = dockStartPositionsSMP(startPoints, eMin, steps);
+			if(best!=null) {
+				bestEnergy = best.score;
+				bestPose = best.pose;
+				contributions = best.contributions;
 			}
-			double energy = mcSearch(pose,steps);
-			if(energy<bestEnergy) {
-				bestEnergy = pose.getScore();
-				bestPose = pose.getLigConf();
-				contributions = pose.getContributions();
+		}
+		else {
+			for(Conformer ligConf : startPoints) {
+				Conformer newLigConf = new Conformer(ligConf);		
+				LigandPose pose = initiate(newLigConf,eMin);
+				addMCSConstraints(pose, newLigConf);
+				double energy = mcSearch(pose,steps,random);
+				if(energy<bestEnergy) {
+					bestEnergy = pose.getScore();
+					bestPose = pose.getLigConf();
+					contributions = pose.getContributions();
+				}
+				if(threadMaster!=null && threadMaster.threadMustDie())
+					break;
 			}
-			if(threadMaster!=null && threadMaster.threadMustDie())
-				break;
 		}
 		
 		if(bestPose!=null) {
@@ -361,13 +406,96 @@ public class DockingEngine {
 	
 	
 
+	private void addMCSConstraints(LigandPose pose, Conformer ligConf) {
+		if(mcsRef!=null) {
+			pose.setMCSBondConstraints(mcsConstrainedBonds);
+			for(int a : mcsConstrainedAtoms) {
+				PositionConstraint constr = new PositionConstraint(ligConf,a,50,1.0);
+				pose.addConstraint(constr);
+			}
+		}
+	}
+	
+	private static class StartPositionResult {
+		private final int index;
+		private final double score;
+		private final Conformer pose;
+		private final Map<String,Double> contributions;
+		
+		private StartPositionResult(int index, double score, Conformer pose, Map<String,Double> contributions) {
+			this.index = index;
+			this.score = score;
+			this.pose = pose;
+			this.contributions = contributions;
+		}
+	}
+	
+	/**
+	 * optimizes all start positions concurrently, each with a scoring engine from the pool
+	 * @return the best result; on equal scores the one with the lower start position index
+	 */
+	private StartPositionResult dockStartPositionsSMP(List<Conformer> startPoints, double eMin, int steps) throws DockingFailedException {
+		if(executor==null)
+			executor = Executors.newFixedThreadPool(threadCount, r -> {
+				Thread t = new Thread(r, "DockingEngine start position");
+				t.setDaemon(true);
+				return t;
+			});
+		if(enginePool==null) {
+			enginePool = new ArrayBlockingQueue<>(threadCount);
+			for(int i=0;i<threadCount;i++) {
+				AbstractScoringEngine e = context.createScoringEngine();
+				if(engine.getGridMaps()!=null)
+					e.setGridMaps(engine.getGridMaps());
+				enginePool.add(e);
+			}
+		}
+		final BlockingQueue<AbstractScoringEngine> pool = enginePool;
+		List<Future<StartPositionResult>> futures = new ArrayList<>();
+		for(int i=0;i<startPoints.size();i++) {
+			final int index = i;
+			final Conformer ligConf = startPoints.get(i);
+			futures.add(executor.submit(() -> {
+				if(threadMaster!=null && threadMaster.threadMustDie())
+					return null;
+				AbstractScoringEngine scoringEngine = pool.take();
+				try {
+					Conformer newLigConf = new Conformer(ligConf);
+					LigandPose pose = new LigandPose(newLigConf, scoringEngine, eMin);
+					addMCSConstraints(pose, newLigConf);
+					mcSearch(pose, steps, new Random(LigandPose.SEED+index));
+					return new StartPositionResult(index, pose.getScore(), pose.getLigConf(), pose.getContributions());
+				}
+				finally {
+					pool.put(scoringEngine);
+				}
+			}));
+		}
+		StartPositionResult best = null;
+		try {
+			for(Future<StartPositionResult> future : futures) {
+				StartPositionResult result = future.get();
+				if(result!=null && (best==null || result.score<best.score))
+					best = result;
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DockingFailedException("docking interrupted");
+		}
+		catch(ExecutionException e) {
+			throw new DockingFailedException("docking failed: "+e.getCause());
+		}
+		return best;
+	}
+	
 	/**
 	 * use monte carlo steps to permute molecular rotation, translation, torsion angles
 	 * promising poses (below a certain cutoff) are optimized
 	 * @param pose
 	 * @return
 	 */
-	private double mcSearch(LigandPose pose, int steps) {
+	private double mcSearch(LigandPose pose, int steps, Random random) {
 		double[] bestState = new double[pose.getState().length];
 		double[] oldState = new double[pose.getState().length];
 		double[] state = new double[pose.getState().length];
@@ -467,20 +595,6 @@ public class DockingEngine {
 		return receptorAtomTypes;
 		
 		
-	}
-	/**
-	 * rotates receptor and ligand to principal moments of inertia of ligand, for efficient grid creation
-	 * @param receptor
-	 * @param ligand
-	 * @return
-	 */
-	private void preprocess(StereoMolecule receptor, StereoMolecule ligand) {
-		Translation translate = new Translation(new double[] {-origCOM.x,-origCOM.y,-origCOM.z});
-		translate.apply(ligand);
-		rotation.apply(ligand);
-		translate.apply(receptor);
-		rotation.apply(receptor);
-		
 	}
 	/**
 	 * the parameter d defines how much the atoms are allowed to move from their original position
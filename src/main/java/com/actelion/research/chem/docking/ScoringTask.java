@@ -1,9 +1,7 @@
 package com.actelion.research.chem.docking;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 import com.actelion.research.chem.Coordinates;
 import com.actelion.research.chem.Molecule3D;
@@ -12,7 +10,7 @@ import com.actelion.research.chem.conf.Conformer;
 import com.actelion.research.chem.docking.scoring.idoscore.InteractionTerm;
 import com.actelion.research.chem.interactionstatistics.InteractionDistanceStatistics;
 import com.actelion.research.chem.interactionstatistics.SplineFunction;
-import com.actelion.research.chem.io.pdb.converter.MoleculeGrid;
+import com.actelion.research.chem.io.pdb.converter.SpatialHash;
 import com.actelion.research.chem.potentialenergy.PotentialEnergyTerm;
 
 
@@ -27,16 +25,18 @@ public class ScoringTask {
 	 * @return
 	 */
 	public static double calcScore(StereoMolecule receptor, StereoMolecule ligand, int[] receptorAtomTypes, int[] ligandAtomTypes) {
-		Set<Integer> receptorAtoms = new HashSet<Integer>(); 
+		boolean[] isReceptorAtom = new boolean[receptor.getAllAtoms()];
 		List<InteractionTerm> terms = new ArrayList<InteractionTerm>();
-		MoleculeGrid molGrid = new MoleculeGrid(receptor);
+		SpatialHash molGrid = new SpatialHash(receptor, InteractionDistanceStatistics.CUTOFF_RADIUS/2);
 		for(int l=0;l<ligand.getAtoms();l++) 
-			receptorAtoms.addAll(molGrid.getNeighbours(ligand.getCoordinates(l), InteractionDistanceStatistics.CUTOFF_RADIUS));
+			molGrid.forEachNeighbour(ligand.getCoordinates(l), InteractionDistanceStatistics.CUTOFF_RADIUS, p -> isReceptorAtom[p] = true);
 		
-		for(int p : receptorAtoms) {
+		Conformer recConf = new Conformer(receptor);
+		Conformer ligConf = new Conformer(ligand);
+		for(int p=0;p<isReceptorAtom.length;p++) {
+			if(!isReceptorAtom[p])
+				continue;
 			for(int l=0;l<ligand.getAtoms();l++) {
-				Conformer recConf = new Conformer(receptor);
-				Conformer ligConf = new Conformer(ligand);
 				terms.add(InteractionTerm.create(recConf, ligConf, p,l, receptorAtomTypes, ligandAtomTypes));
 			}
 		}
@@ -66,10 +66,11 @@ public class ScoringTask {
 	 */
 	public static double calcScore(StereoMolecule receptor, int probeAtomType, Coordinates c, int[] receptorAtomTypes) {
 		double score = 0.0;
-		Set<Integer> receptorAtoms = new HashSet<Integer>(); 
-		MoleculeGrid grid = new MoleculeGrid(receptor);
-		receptorAtoms.addAll(grid.getNeighbours(c, InteractionDistanceStatistics.CUTOFF_RADIUS));
-		for(int p : receptorAtoms) {
+		SpatialHash grid = new SpatialHash(receptor, InteractionDistanceStatistics.CUTOFF_RADIUS/2);
+		int[] receptorAtoms = new int[receptor.getAllAtoms()];
+		int count = grid.getNeighbours(c, InteractionDistanceStatistics.CUTOFF_RADIUS, receptorAtoms);
+		for(int i=0;i<count;i++) {
+			int p = receptorAtoms[i];
 			SplineFunction f = InteractionDistanceStatistics.getInstance().getFunction(receptorAtomTypes[p], probeAtomType);
 			double dist = c.distance(receptor.getCoordinates(p));
 			score+=f.getFGValue(dist)[0];
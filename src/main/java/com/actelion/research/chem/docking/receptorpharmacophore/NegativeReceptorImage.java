@@ -5,6 +5,7 @@ import com.actelion.research.chem.StereoMolecule;
 import com.actelion.research.chem.docking.DockingUtils;
 import com.actelion.research.chem.docking.scoring.ProbeScanning;
 import com.actelion.research.chem.io.pdb.converter.MoleculeGrid;
+import com.actelion.research.chem.io.pdb.converter.SpatialHash;
 import com.actelion.research.chem.phesa.AtomicGaussian;
 import com.actelion.research.chem.phesa.Gaussian3D;
 import com.actelion.research.chem.phesa.MolecularVolume;
@@ -155,52 +156,20 @@ public class NegativeReceptorImage extends MoleculeGrid {
 	 */
 	private void createShapeAtoms(List<AtomicGaussian> shapeGaussians) {
 		List<AtomicGaussian> gaussians = new ArrayList<>();
-		double radiusSq = NONPOLAR_RADIUS*NONPOLAR_RADIUS;
-		double gaussDistSq = GAUSSIAN_DISTANCE*GAUSSIAN_DISTANCE;
+		SpatialHash gaussianHash = new SpatialHash(GAUSSIAN_DISTANCE, 64);
+		SpatialHash receptorHash = new SpatialHash(receptor, receptorAtoms, NONPOLAR_RADIUS);
 		int cutoff = (int) (NONPOLAR_RADIUS / this.gridWidth);
 		for(int x=cutoff;x<this.gridSize[0];x++) {
 			for(int y=cutoff;y<this.gridSize[1];y++) {
 				for(int z=cutoff;z<this.gridSize[2];z++) {
-					boolean clash = false;
 					Coordinates probeCoords = this.getCartCoordinates(new int[] {x,y,z});
-					for(AtomicGaussian ag : gaussians) {
-						double dx = (ag.getCenter().x-probeCoords.x);
-						double dy = (ag.getCenter().y-probeCoords.y);
-						double dz = (ag.getCenter().z-probeCoords.z);
-						double rSq = dx*dx + dy*dy + dz*dz;
-						if(rSq>gaussDistSq ) {
-							continue;
-						}
-						else {
-							double r = Math.sqrt(rSq);
-							if(r<GAUSSIAN_DISTANCE) { // too close to another automic gaussian
-								clash = true;
-								break;
-							}
-						}
-					}
-					if(!clash) {
-						for(int atom : receptorAtoms) {
-							Coordinates c = receptor.getCoordinates(atom);
-							double dx = (c.x-probeCoords.x);
-							double dy = (c.y-probeCoords.y);
-							double dz = (c.z-probeCoords.z);
-							double rSq = dx*dx + dy*dy + dz*dz;
-							if(rSq>radiusSq) {
-								continue;
-							}
-							else {
-								double r = Math.sqrt(rSq);
-								if(r<NONPOLAR_RADIUS) {
-									clash = true;
-									break;
-								}
-							}
-						}
-					}					
+					// too close to another atomic gaussian or to the receptor
+					boolean clash = gaussianHash.hasNeighbour(probeCoords, GAUSSIAN_DISTANCE)
+							|| receptorHash.hasNeighbour(probeCoords, NONPOLAR_RADIUS);
 					boolean isBuried = getBuriedness(new int[] {x,y,z});
 					if(!clash && isBuried) {
 						AtomicGaussian ag = new AtomicGaussian(-1,6,probeCoords);
+						gaussianHash.put(gaussians.size(), probeCoords);
 						gaussians.add(ag);
 					}
 				}		 
@@ -11,6 +11,7 @@ import com.actelion.research.chem.StereoMolecule;
 import com.actelion.research.chem.conf.BondRotationHelper;
 import com.actelion.research.chem.conf.Conformer;
 import com.actelion.research.chem.docking.LigandPose;
+import com.actelion.research.chem.docking.scoring.gridmap.ReceptorGridMaps;
 import com.actelion.research.chem.io.pdb.converter.MoleculeGrid;
 import com.actelion.research.chem.optimization.Evaluable;
 import com.actelion.research.chem.potentialenergy.PotentialEnergyTerm;
@@ -30,6 +31,7 @@ public abstract class AbstractScoringEngine  {
 	protected LigandPose candidatePose;
 	protected MoleculeGrid grid;
 	protected List<PotentialEnergyTerm> constraints;
+	protected ReceptorGridMaps gridMaps;
 	
 	public AbstractScoringEngine(StereoMolecule receptor, Set<Integer> bindingSiteAtoms, MoleculeGrid grid) {
 		this.receptorConf = new Conformer(receptor);
@@ -69,6 +71,30 @@ public abstract class AbstractScoringEngine  {
 		return bumpTerm;
 		}
 	
+	/**
+	 * precalculates the receptor potential on a grid covering the binding site, such that the
+	 * receptor-ligand interaction is evaluated per ligand atom instead of per atom pair.
+	 * takes effect with the next call of init()
+	 * @param spacing grid spacing in Angstrom
+	 * @return the maps, which may be shared with other engines for the same receptor or written to disk
+	 */
+	public abstract ReceptorGridMaps createGridMaps(double spacing);
+	
+	/**
+	 * uses grid maps previously created for the same receptor and binding site; null reverts to pairwise terms.
+	 * takes effect with the next call of init()
+	 * @param gridMaps
+	 */
+	public void setGridMaps(ReceptorGridMaps gridMaps) {
+		if(gridMaps!=null && !getClass().getSimpleName().equals(gridMaps.getScoringFunction()))
+			throw new IllegalArgumentException("grid maps were created for "+gridMaps.getScoringFunction());
+		this.gridMaps = gridMaps;
+	}
+	
+	public ReceptorGridMaps getGridMaps() {
+		return gridMaps;
+	}
+	
 	public void addConstraint(PotentialEnergyTerm constraint) {
 		this.constraints.add(constraint);
 	}
@@ -7,6 +7,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.DoubleUnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -21,6 +22,8 @@ import com.actelion.research.chem.docking.LigandPose;
 import com.actelion.research.chem.docking.scoring.chemscore.HBTerm;
 import com.actelion.research.chem.docking.scoring.chemscore.MetalTerm;
 import com.actelion.research.chem.docking.scoring.chemscore.SimpleMetalTerm;
+import com.actelion.research.chem.docking.scoring.gridmap.GridMapTerm;
+import com.actelion.research.chem.docking.scoring.gridmap.ReceptorGridMaps;
 import com.actelion.research.chem.docking.scoring.plp.PLPTerm;
 import com.actelion.research.chem.docking.scoring.plp.REPTerm;
 import com.actelion.research.chem.forcefield.mmff.ForceFieldMMFF94;
@@ -43,6 +46,13 @@ public class ChemPLP extends AbstractScoringEngine {
 	private static final double METAL_INTERACTION_CUTOFF = 2.6;
 	private static final double STRAIN_CUTOFF = 10;
 	private static final double METAL_OPTIMAL_DIST = 2.2;
+	private static final double PLP_CUTOFF = 5.5; // largest range of PLP and repulsive terms
+	
+	// ligand heavy atom classes, used as keys of the grid maps
+	private static final int LIGAND_NONPOLAR = 0;
+	private static final int LIGAND_DONOR = 1;
+	private static final int LIGAND_ACCEPTOR = 2;
+	private static final int LIGAND_DONOR_ACCEPTOR = 3;
 			
 	
 	private Set<Integer> receptorAcceptors;
@@ -175,6 +185,12 @@ public class ChemPLP extends AbstractScoringEngine {
 		StereoMolecule receptor = receptorConf.getMolecule();
 		identifyHBondFunctionality(ligand,ligandAcceptors,ligandDonorHs, ligandDonors, new HashSet<Integer>(),ligandAcceptorNeg,
 				ligandDonorHPos);
+		
+		boolean useGridMaps = gridMaps!=null;
+		if(useGridMaps) {
+			for(int l=0;l<ligand.getAtoms();l++)
+				plp.add(GridMapTerm.create(gridMaps.getMap(getLigandClass(l)), candidatePose.getLigConf(), l));
+		}
 
 		for(int p : bindingSiteAtoms) {
 			if(receptor.getAtomicNo(p)==1) { // receptor hydrogen atom
@@ -198,7 +214,13 @@ public class ChemPLP extends AbstractScoringEngine {
 			}
 			}
 			else { //receptor heavy atom
-				if(receptorDonors.contains(p)) { // receptor donor heavy atom -> only plp terms 
+				if(!receptorDonors.contains(p) && receptorAcceptors.contains(p)) // directional hbond terms are never covered by the grid maps
+					addAcceptorHBondTerms(receptor, ligand, p);
+				if(useGridMaps) { // PLP terms are covered by the grid maps
+					if(!receptorDonors.contains(p) && !receptorAcceptors.contains(p) && receptorMetals.contains(p))
+						addChemscoreMetalTerms(receptor, ligand, p);
+				}
+				else if(receptorDonors.contains(p)) { // receptor donor heavy atom -> only plp terms 
 					for(int l=0;l<ligand.getAtoms();l++) { //only consider ligand heavy atoms
 						if(ligandAcceptors.contains(l)) {  //plp hbond donor-acceptor
 							PLPTerm plpTerm = PLPTerm.create(receptorConf, candidatePose.getLigConf(), p, l, PLPTerm.HBOND_TERM);
@@ -215,21 +237,8 @@ public class ChemPLP extends AbstractScoringEngine {
 					}
 				}
 				else if(receptorAcceptors.contains(p)) { // receptor acceptor heavy atom
-					int[] acceptorNeighbours = IntStream.range(0, receptor.getConnAtoms(p)).map(i -> receptor.getConnAtom(p, i)).toArray();
-					boolean chargedP = receptorAcceptorNeg.keySet().contains(p);
 					for(int l=0;l<ligand.getAllAtoms();l++) { 
-						if(ligand.getAtomicNo(l)==1) { //ligand hydrogen atom
-							if(ligandDonorHs.contains(l)) {
-								boolean chargedL = ligandDonorHPos.keySet().contains(l);
-								int d = ligand.getConnAtom(l, 0);
-								double scale = 1.0;
-								if(chargedP && chargedL)
-									scale+= (receptorAcceptorNeg.get(p) * ligandDonorHPos.get(l));
-								HBTerm hbTerm = HBTerm.create(receptorConf, candidatePose.getLigConf(), p, d,l, false, true, acceptorNeighbours, scale);
-								chemscoreHbond.add(hbTerm);
-							}
-						}
-						else { //ligand heavy atom
+						if(ligand.getAtomicNo(l)!=1) { //ligand heavy atom
 							if(ligandDonors.contains(l)) {  //plp hbond donor-acceptor
 								PLPTerm plpTerm = PLPTerm.create(receptorConf, candidatePose.getLigConf(), p, l, PLPTerm.HBOND_TERM);
 								plp.add(plpTerm);
@@ -264,37 +273,7 @@ public class ChemPLP extends AbstractScoringEngine {
 							}	
 						}
 					
-					if(SIMPLE_METAL_ATOMS.contains(receptor.getAtomicNo(p))) {
-						for(int l : ligandAcceptors) {
-							double scale = 1.0;
-							if(ligandAcceptorNeg.keySet().contains(l))
-								scale += ligandAcceptorNeg.get(l);
-							int[] acceptorNeighbours = IntStream.range(0, ligand.getConnAtoms(l)).map(i -> ligand.getConnAtom(l, i)).toArray();
-							SimpleMetalTerm metTerm = SimpleMetalTerm.create(receptorConf, candidatePose.getLigConf(), 
-									l, p, acceptorNeighbours, scale);
-							chemscoreMetal.add(metTerm);
-						}
-					}
-	
-					
-					
-					else { //standard metal term;
-						List<Coordinates> interactionSites = metalInteractionSites.get(p);
-						for(int l : ligandAcceptors) {
-							double scale = 1.0;
-							if(ligandAcceptorNeg.keySet().contains(l))
-								scale += ligandAcceptorNeg.get(l);
-							int[] acceptorNeighbours = IntStream.range(0, ligand.getConnAtoms(l)).map(i -> ligand.getConnAtom(l, i)).toArray();
-							for(Coordinates site : interactionSites) {
-								MetalTerm metTerm = MetalTerm.create(candidatePose.getLigConf(), l, receptorConf,p, acceptorNeighbours, site,scale);
-								chemscoreMetal.add(metTerm);
-							}
-					}
-					
-					
-					}
-					
-
+					addChemscoreMetalTerms(receptor, ligand, p);
 					
 				}
 				else { // non-polar heavy atom
@@ -319,6 +298,112 @@ public class ChemPLP extends AbstractScoringEngine {
 		
 	}
 	
+	private void addAcceptorHBondTerms(StereoMolecule receptor, StereoMolecule ligand, int p) {
+		int[] acceptorNeighbours = IntStream.range(0, receptor.getConnAtoms(p)).map(i -> receptor.getConnAtom(p, i)).toArray();
+		boolean chargedP = receptorAcceptorNeg.keySet().contains(p);
+		for(int l=0;l<ligand.getAllAtoms();l++) {
+			if(ligand.getAtomicNo(l)==1 && ligandDonorHs.contains(l)) { //ligand donor hydrogen atom
+				boolean chargedL = ligandDonorHPos.keySet().contains(l);
+				int d = ligand.getConnAtom(l, 0);
+				double scale = 1.0;
+				if(chargedP && chargedL)
+					scale+= (receptorAcceptorNeg.get(p) * ligandDonorHPos.get(l));
+				HBTerm hbTerm = HBTerm.create(receptorConf, candidatePose.getLigConf(), p, d,l, false, true, acceptorNeighbours, scale);
+				chemscoreHbond.add(hbTerm);
+			}
+		}
+	}
+	
+	private void addChemscoreMetalTerms(StereoMolecule receptor, StereoMolecule ligand, int p) {
+		if(SIMPLE_METAL_ATOMS.contains(receptor.getAtomicNo(p))) {
+			for(int l : ligandAcceptors) {
+				double scale = 1.0;
+				if(ligandAcceptorNeg.keySet().contains(l))
+					scale += ligandAcceptorNeg.get(l);
+				int[] acceptorNeighbours = IntStream.range(0, ligand.getConnAtoms(l)).map(i -> ligand.getConnAtom(l, i)).toArray();
+				SimpleMetalTerm metTerm = SimpleMetalTerm.create(receptorConf, candidatePose.getLigConf(), 
+						l, p, acceptorNeighbours, scale);
+				chemscoreMetal.add(metTerm);
+			}
+		}
+		else { //standard metal term;
+			List<Coordinates> interactionSites = metalInteractionSites.get(p);
+			for(int l : ligandAcceptors) {
+				double scale = 1.0;
+				if(ligandAcceptorNeg.keySet().contains(l))
+					scale += ligandAcceptorNeg.get(l);
+				int[] acceptorNeighbours = IntStream.range(0, ligand.getConnAtoms(l)).map(i -> ligand.getConnAtom(l, i)).toArray();
+				for(Coordinates site : interactionSites) {
+					MetalTerm metTerm = MetalTerm.create(candidatePose.getLigConf(), l, receptorConf,p, acceptorNeighbours, site,scale);
+					chemscoreMetal.add(metTerm);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * precalculates the PLP and repulsive terms of all binding site heavy atoms for the four classes
+	 * of ligand heavy atoms (nonpolar, donor, acceptor, donor and acceptor).
+	 * directional hydrogen bond and metal terms remain pairwise.
+	 */
+	@Override
+	public ReceptorGridMaps createGridMaps(double spacing) {
+		ReceptorGridMaps maps = new ReceptorGridMaps(getClass().getSimpleName(), grid, spacing);
+		for(int ligandClass=LIGAND_NONPOLAR;ligandClass<=LIGAND_DONOR_ACCEPTOR;ligandClass++) {
+			final int lc = ligandClass;
+			maps.putMap(ligandClass, maps.createMap(receptorConf, bindingSiteAtoms, p -> getPLPPotential(p, lc), PLP_CUTOFF));
+		}
+		gridMaps = maps;
+		return maps;
+	}
+	
+	private int getLigandClass(int l) {
+		boolean donor = ligandDonors.contains(l);
+		boolean acceptor = ligandAcceptors.contains(l);
+		return donor ? (acceptor ? LIGAND_DONOR_ACCEPTOR : LIGAND_DONOR) : (acceptor ? LIGAND_ACCEPTOR : LIGAND_NONPOLAR);
+	}
+	
+	/**
+	 * same term selection as for the pairwise terms in init()
+	 */
+	private DoubleUnaryOperator getPLPPotential(int p, int ligandClass) {
+		StereoMolecule receptor = receptorConf.getMolecule();
+		if(receptor.getAtomicNo(p)==1)
+			return null;
+		boolean donor = ligandClass==LIGAND_DONOR || ligandClass==LIGAND_DONOR_ACCEPTOR;
+		boolean acceptor = ligandClass==LIGAND_ACCEPTOR || ligandClass==LIGAND_DONOR_ACCEPTOR;
+		Map<String,Double> term;
+		if(receptorDonors.contains(p)) {
+			if(acceptor)
+				term = PLPTerm.HBOND_TERM;
+			else if(donor)
+				return r -> REPTerm.getEnergy(r);
+			else
+				term = PLPTerm.BURIED_TERM;
+		}
+		else if(receptorAcceptors.contains(p)) {
+			if(donor)
+				term = PLPTerm.HBOND_TERM;
+			else if(acceptor)
+				return r -> REPTerm.getEnergy(r);
+			else
+				term = PLPTerm.BURIED_TERM;
+		}
+		else if(receptorMetals.contains(p)) {
+			if(donor)
+				return r -> REPTerm.getEnergy(r);
+			else if(acceptor)
+				term = PLPTerm.METAL_TERM;
+			else
+				term = PLPTerm.BURIED_TERM;
+		}
+		else {
+			term = (donor || acceptor) ? PLPTerm.BURIED_TERM : PLPTerm.NONPOLAR_TERM;
+		}
+		final Map<String,Double> t = term;
+		return r -> PLPTerm.getEnergy(t, r);
+	}
+	
 	//tries tetrahedral or octahedral coordination at metal and choses the one that gives the better fit with the alignment
 	private static List<Coordinates> processMetalCoordination(Conformer receptor, int metalAtom, Set<Integer> receptorAcceptors) {
 		List<Coordinates> interactionPoints = new ArrayList<Coordinates>();
@@ -18,10 +18,14 @@ import com.actelion.research.chem.conf.Conformer;
 import com.actelion.research.chem.conf.torsionstrain.StatisticalTorsionPotential;
 import com.actelion.research.chem.conf.torsionstrain.StatisticalTorsionTerm;
 import com.actelion.research.chem.docking.LigandPose;
+import com.actelion.research.chem.docking.scoring.gridmap.GridMapTerm;
+import com.actelion.research.chem.docking.scoring.gridmap.PotentialGridMap;
+import com.actelion.research.chem.docking.scoring.gridmap.ReceptorGridMaps;
 import com.actelion.research.chem.docking.scoring.idoscore.InteractionTerm;
 import com.actelion.research.chem.forcefield.mmff.ForceFieldMMFF94;
 import com.actelion.research.chem.interactionstatistics.InteractionAtomTypeCalculator;
 import com.actelion.research.chem.interactionstatistics.InteractionDistanceStatistics;
+import com.actelion.research.chem.interactionstatistics.SplineFunction;
 import com.actelion.research.chem.io.pdb.converter.MoleculeGrid;
 import com.actelion.research.chem.potentialenergy.AngleConstraint;
 import com.actelion.research.chem.potentialenergy.BondConstraint;
@@ -78,6 +82,13 @@ public class IdoScore extends AbstractScoringEngine {
 	}
 	
 	private void initiateInteractionTerms() {
+		if(gridMaps!=null) {
+			for(int l=0;l<candidatePose.getLigConf().getMolecule().getAtoms();l++) {
+				PotentialGridMap map = gridMaps.getMap(ligAtomTypes[l], t -> createInteractionMap(gridMaps, t));
+				interactionEnergy.add(GridMapTerm.create(map, candidatePose.getLigConf(), l));
+			}
+			return;
+		}
 		for(int p : bindingSiteAtoms) {
 			for(int l=0;l<candidatePose.getLigConf().getMolecule().getAtoms();l++) {
 				PotentialEnergyTerm term = InteractionTerm.create(receptorConf, candidatePose.getLigConf(), p,l, receptorAtomTypes, ligAtomTypes);
@@ -91,6 +102,24 @@ public class IdoScore extends AbstractScoringEngine {
 	
 
 	
+	/**
+	 * creates empty grid maps; the map of a ligand atom type is calculated when the type
+	 * is encountered for the first time in init() and reused for all subsequent ligands
+	 */
+	@Override
+	public ReceptorGridMaps createGridMaps(double spacing) {
+		gridMaps = new ReceptorGridMaps(getClass().getSimpleName(), grid, spacing);
+		return gridMaps;
+	}
+	
+	private PotentialGridMap createInteractionMap(ReceptorGridMaps maps, int ligAtomType) {
+		InteractionDistanceStatistics statistics = InteractionDistanceStatistics.getInstance();
+		return maps.createMap(receptorConf, bindingSiteAtoms, p -> {
+			SplineFunction f = statistics.getFunction(receptorAtomTypes[p], ligAtomType);
+			return f==null ? null : r -> f.getFGValue(r)[0];
+		}, InteractionTerm.CUTOFF);
+	}
+	
 	public double getStrain(double[] gradient) {
 		double energy = 0.0;
 		for(PotentialEnergyTerm term : ligStrain) {
@@ -0,0 +1,31 @@
+package com.actelion.research.chem.docking.scoring.gridmap;
+
+import com.actelion.research.chem.conf.Conformer;
+import com.actelion.research.chem.potentialenergy.PotentialEnergyTerm;
+
+/**
+ * interaction of one ligand atom with the whole receptor, looked up in a precalculated PotentialGridMap
+ * replaces all pairwise receptor-ligand terms of this atom for the respective potential
+ */
+public class GridMapTerm implements PotentialEnergyTerm {
+
+	private final PotentialGridMap map;
+	private final Conformer ligand;
+	private final int ligAtom;
+
+	private GridMapTerm(PotentialGridMap map, Conformer ligand, int ligAtom) {
+		this.map = map;
+		this.ligand = ligand;
+		this.ligAtom = ligAtom;
+	}
+
+	public static GridMapTerm create(PotentialGridMap map, Conformer ligand, int ligAtom) {
+		return new GridMapTerm(map, ligand, ligAtom);
+	}
+
+	@Override
+	public double getFGValue(double[] gradient) {
+		return map.getFGValue(ligand.getCoordinates(ligAtom), gradient, ligAtom);
+	}
+
+}
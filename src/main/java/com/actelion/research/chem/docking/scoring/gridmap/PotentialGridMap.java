@@ -0,0 +1,107 @@
+package com.actelion.research.chem.docking.scoring.gridmap;
+
+import java.io.Serializable;
+
+import com.actelion.research.chem.Coordinates;
+
+/**
+ * precalculated potential of the receptor on a regular grid for one ligand atom type
+ * values between grid points are obtained by trilinear interpolation, the gradient is the analytical
+ * gradient of the interpolated function, so that value and gradient are consistent for the optimizer.
+ * outside of the grid the potential is zero.
+ * instances are immutable once created and may be shared between threads
+ */
+public class PotentialGridMap implements Serializable {
+
+	private static final long serialVersionUID = 20230601L;
+
+	private final double minX;
+	private final double minY;
+	private final double minZ;
+	private final double spacing;
+	private final int nx;
+	private final int ny;
+	private final int nz;
+	private final float[] values;
+
+	PotentialGridMap(double minX, double minY, double minZ, double spacing, int nx, int ny, int nz, float[] values) {
+		this.minX = minX;
+		this.minY = minY;
+		this.minZ = minZ;
+		this.spacing = spacing;
+		this.nx = nx;
+		this.ny = ny;
+		this.nz = nz;
+		this.values = values;
+	}
+
+	/**
+	 *
+	 * @param c position of the ligand atom
+	 * @return interpolated potential
+	 */
+	public double getValue(Coordinates c) {
+		return getFGValue(c, null, 0);
+	}
+
+	/**
+	 *
+	 * @param c position of the ligand atom
+	 * @param gradient if not null, dE/dx,dE/dy,dE/dz are added at position 3*atom
+	 * @param atom
+	 * @return interpolated potential
+	 */
+	public double getFGValue(Coordinates c, double[] gradient, int atom) {
+		double fx = (c.x-minX)/spacing;
+		double fy = (c.y-minY)/spacing;
+		double fz = (c.z-minZ)/spacing;
+		int ix = (int)Math.floor(fx);
+		int iy = (int)Math.floor(fy);
+		int iz = (int)Math.floor(fz);
+		if(ix<0 || iy<0 || iz<0 || ix>=nx-1 || iy>=ny-1 || iz>=nz-1)
+			return 0.0;
+		double tx = fx-ix;
+		double ty = fy-iy;
+		double tz = fz-iz;
+		int i000 = (ix*ny+iy)*nz+iz;
+		int i100 = i000+ny*nz;
+		int i010 = i000+nz;
+		int i110 = i100+nz;
+		double v000 = values[i000];
+		double v001 = values[i000+1];
+		double v010 = values[i010];
+		double v011 = values[i010+1];
+		double v100 = values[i100];
+		double v101 = values[i100+1];
+		double v110 = values[i110];
+		double v111 = values[i110+1];
+		// interpolate along z first
+		double v00 = v000+tz*(v001-v000);
+		double v01 = v010+tz*(v011-v010);
+		double v10 = v100+tz*(v101-v100);
+		double v11 = v110+tz*(v111-v110);
+		double v0 = v00+ty*(v01-v00);
+		double v1 = v10+ty*(v11-v10);
+		if(gradient!=null) {
+			double dz00 = v001-v000;
+			double dz01 = v011-v010;
+			double dz10 = v101-v100;
+			double dz11 = v111-v110;
+			double dz0 = dz00+ty*(dz01-dz00);
+			double dz1 = dz10+ty*(dz11-dz10);
+			gradient[3*atom] += (v1-v0)/spacing;
+			gradient[3*atom+1] += ((v01-v00)+tx*((v11-v10)-(v01-v00)))/spacing;
+			gradient[3*atom+2] += (dz0+tx*(dz1-dz0))/spacing;
+		}
+		return v0+tx*(v1-v0);
+	}
+
+	public double getSpacing() {
+		return spacing;
+	}
+
+	public int[] getGridSize() {
+		return new int[] {nx,ny,nz};
+	}
+
+}
@@ -0,0 +1,165 @@
+package com.actelion.research.chem.docking.scoring.gridmap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import java.util.function.DoubleUnaryOperator;
+
+import com.actelion.research.chem.Coordinates;
+import com.actelion.research.chem.conf.Conformer;
+import com.actelion.research.chem.io.pdb.converter.MoleculeGrid;
+
+/**
+ * set of PotentialGridMaps covering the binding site of one receptor, one map per ligand atom type
+ * the type keys are defined by the scoring function that creates the maps (see ChemPLP and IdoScore)
+ * maps are calculated once per receptor and may be shared by all scoring engines docking into the same
+ * receptor (also across threads) or written to disk and reused later
+ */
+public class ReceptorGridMaps implements Serializable {
+
+	private static final long serialVersionUID = 20230601L;
+	public static final double DEFAULT_SPACING = 0.375;
+
+	private final String scoringFunction;
+	private final double minX;
+	private final double minY;
+	private final double minZ;
+	private final double spacing;
+	private final int nx;
+	private final int ny;
+	private final int nz;
+	private final ConcurrentHashMap<Integer,PotentialGridMap> maps;
+
+	/**
+	 *
+	 * @param scoringFunction name of the scoring function the maps belong to
+	 * @param min lower corner of the mapped box
+	 * @param max upper corner of the mapped box
+	 * @param spacing distance between grid points
+	 */
+	public ReceptorGridMaps(String scoringFunction, Coordinates min, Coordinates max, double spacing) {
+		this.scoringFunction = scoringFunction;
+		this.minX = min.x;
+		this.minY = min.y;
+		this.minZ = min.z;
+		this.spacing = spacing;
+		nx = (int)Math.ceil((max.x-min.x)/spacing)+1;
+		ny = (int)Math.ceil((max.y-min.y)/spacing)+1;
+		nz = (int)Math.ceil((max.z-min.z)/spacing)+1;
+		maps = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * creates empty maps covering the same box as the MoleculeGrid that defines the binding site
+	 */
+	public ReceptorGridMaps(String scoringFunction, MoleculeGrid grid, double spacing) {
+		this(scoringFunction, grid.getCartCoordinates(new int[] {0,0,0}), grid.getCartCoordinates(grid.getGridSize()), spacing);
+	}
+
+	public String getScoringFunction() {
+		return scoringFunction;
+	}
+
+	public double getSpacing() {
+		return spacing;
+	}
+
+	/**
+	 *
+	 * @param type
+	 * @return the map of the given ligand atom type or null, if it was not calculated yet
+	 */
+	public PotentialGridMap getMap(int type) {
+		return maps.get(type);
+	}
+
+	/**
+	 * returns the map of the given ligand atom type and calculates it, if it is not available yet
+	 * @param type
+	 * @param creator called at most once per type
+	 * @return
+	 */
+	public PotentialGridMap getMap(int type, IntFunction<PotentialGridMap> creator) {
+		return maps.computeIfAbsent(type, t -> creator.apply(t));
+	}
+
+	public void putMap(int type, PotentialGridMap map) {
+		maps.put(type, map);
+	}
+
+	public int getMapCount() {
+		return maps.size();
+	}
+
+	/**
+	 * sums radial pair potentials of receptor atoms on all grid points of this box
+	 * @param receptor
+	 * @param receptorAtoms atoms to be considered
+	 * @param potential returns the pair potential as function of the distance for a given receptor atom, or null
+	 * if the atom does not interact with the ligand atom type
+	 * @param cutoff distance beyond which all pair potentials are zero
+	 * @return
+	 */
+	public PotentialGridMap createMap(Conformer receptor, Collection<Integer> receptorAtoms,
+			IntFunction<DoubleUnaryOperator> potential, double cutoff) {
+		double[] sum = new double[nx*ny*nz];
+		double cutoffSq = cutoff*cutoff;
+		for(int p : receptorAtoms) {
+			DoubleUnaryOperator f = potential.apply(p);
+			if(f==null)
+				continue;
+			Coordinates c = receptor.getCoordinates(p);
+			int x0 = Math.max(0, (int)Math.floor((c.x-cutoff-minX)/spacing));
+			int x1 = Math.min(nx-1, (int)Math.ceil((c.x+cutoff-minX)/spacing));
+			int y0 = Math.max(0, (int)Math.floor((c.y-cutoff-minY)/spacing));
+			int y1 = Math.min(ny-1, (int)Math.ceil((c.y+cutoff-minY)/spacing));
+			int z0 = Math.max(0, (int)Math.floor((c.z-cutoff-minZ)/spacing));
+			int z1 = Math.min(nz-1, (int)Math.ceil((c.z+cutoff-minZ)/spacing));
+			for(int x=x0;x<=x1;x++) {
+				double dx = minX+x*spacing-c.x;
+				for(int y=y0;y<=y1;y++) {
+					double dy = minY+y*spacing-c.y;
+					double dxy2 = dx*dx+dy*dy;
+					if(dxy2>cutoffSq)
+						continue;
+					int index = (x*ny+y)*nz;
+					for(int z=z0;z<=z1;z++) {
+						double dz = minZ+z*spacing-c.z;
+						double r2 = dxy2+dz*dz;
+						if(r2<=cutoffSq)
+							sum[index+z] += f.applyAsDouble(Math.sqrt(r2));
+					}
+				}
+			}
+		}
+		float[] values = new float[sum.length];
+		for(int i=0;i<sum.length;i++)
+			values[i] = (float)sum[i];
+		return new PotentialGridMap(minX, minY, minZ, spacing, nx, ny, nz, values);
+	}
+
+	public void write(File file) throws IOException {
+		try(ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeObject(this);
+		}
+	}
+
+	public static ReceptorGridMaps read(File file) throws IOException {
+		try(ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			return (ReceptorGridMaps)in.readObject();
+		}
+		catch(ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+}
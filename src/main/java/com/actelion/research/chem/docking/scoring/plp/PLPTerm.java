@@ -89,6 +89,28 @@ public class PLPTerm implements PotentialEnergyTerm {
 		return new PLPTerm(receptor, ligand, recAtom, ligAtom, term);
 	}
 	
+	/**
+	 * energy of a receptor-ligand atom pair at distance r, used to precalculate grid maps
+	 */
+	public static double getEnergy(Map<String,Double> term, double r) {
+		double A = term.get("A");
+		double B = term.get("B");
+		double C = term.get("C");
+		double D = term.get("D");
+		double E = term.get("E");
+		double F = term.get("F");
+		if(r>D)
+			return 0.0;
+		else if(r<A)
+			return (F*(A-r))/A;
+		else if(r<B)
+			return (E*(r-A))/(B-A);
+		else if(r<C)
+			return E;
+		else
+			return (E*(D-r))/(D-C);
+	}
+	
 
 	
 	
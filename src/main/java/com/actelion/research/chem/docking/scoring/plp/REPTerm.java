@@ -38,6 +38,18 @@ public class REPTerm implements PotentialEnergyTerm {
 	public static REPTerm create(Conformer receptor, Conformer ligand, int recAtom, int ligAtom) {
 		return new REPTerm(receptor,ligand,recAtom,ligAtom);
 	}
+	
+	/**
+	 * energy of a receptor-ligand atom pair at distance r, used to precalculate grid maps
+	 */
+	public static double getEnergy(double r) {
+		if(r>B)
+			return 0.0;
+		else if(r<A)
+			return r*(C-D)/A + D;
+		else
+			return -C*(r-A)/(B-A) + C;
+	}
 		
 	@Override
 	public double getFGValue(double[] gradient) {
@@ -0,0 +1,645 @@
+package com.actelion.research.chem.hyperspace;
+
+import com.actelion.research.chem.StructureSearchDataSource;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+
+/**
+ *
+ * Flattened version of the BitSetTree for fast superset filtering of long[] fingerprints.
+ *
+ * Nodes are stored in int arrays (split bit, children, leaf range), and the fingerprints of all
+ * leaves are packed into one long[] block, in which the entries of every leaf are contiguous.
+ * In addition, every node stores the union of the fingerprints below it, such that subtrees
+ * that cannot contain a superset of the query are skipped.
+ *
+ * The tree can be written to a file and either be read into the heap or memory-mapped from the file,
+ * in which case only the node arrays and rows are loaded and the leaf fingerprints stay on disk.
+ *
+ * The tree is built in parallel: after partitioning a node, both children are built as separate fork-join tasks.
+ *
+ * Usage:
+ *
+ * CompactBitSetTree tree = CompactBitSetTree.createTree(fingerprints, rows, 512, 64, 0);
+ * tree.write(file);
+ * CompactBitSetTree mapped = CompactBitSetTree.map(file);
+ * int[] hits = mapped.filterRows(query, 2000);
+ *
+ */
+public class CompactBitSetTree implements Serializable {
+
+    private static final long serialVersionUID = 6914352099723871540L;
+
+    private static final int MAGIC = 0x43425354; // "CBST"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+    private static final int SPLIT_SAMPLE_SIZE = 2048;
+    private static final int PARALLEL_THRESHOLD = 8192;
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    private final int numBits;
+    private final int words;
+
+    // node arrays, the root is node 0. for leaves bit is -1
+    private final int[] nodeBit;
+    private final int[] nodeLeft;
+    private final int[] nodeRight;
+    private final int[] nodeStart;
+    private final int[] nodeEnd;
+    private final long[] nodeUnion;
+
+    // entries in leaf order
+    private final int[] rows;
+    private transient LongBuffer[] bits;
+    private transient int entriesPerSegment;
+
+    public interface SuperSetConsumer {
+        /**
+         * @param row
+         * @param fingerprint fingerprint of the row; the array is reused and must not be kept
+         * @return false to stop the search
+         */
+        boolean accept(int row, long[] fingerprint);
+    }
+
+    private CompactBitSetTree(int numBits, int[] nodeBit, int[] nodeLeft, int[] nodeRight, int[] nodeStart, int[] nodeEnd,
+                              long[] nodeUnion, int[] rows, LongBuffer[] bits, int entriesPerSegment) {
+        this.numBits = numBits;
+        this.words = (numBits + 63) / 64;
+        this.nodeBit = nodeBit;
+        this.nodeLeft = nodeLeft;
+        this.nodeRight = nodeRight;
+        this.nodeStart = nodeStart;
+        this.nodeEnd = nodeEnd;
+        this.nodeUnion = nodeUnion;
+        this.rows = rows;
+        this.bits = bits;
+        this.entriesPerSegment = entriesPerSegment;
+    }
+
+    public int getNumBits() {
+        return numBits;
+    }
+
+    public int getNodeCount() {
+        return nodeBit.length;
+    }
+
+    public int size() {
+        return rows.length;
+    }
+
+    /**
+     * Returns all rows that contain supersets of the supplied fingerprint.
+     *
+     * @param fingerprint
+     * @param maxResults
+     * @return
+     */
+    public int[] filterRows(long[] fingerprint, int maxResults) {
+        int[] result = new int[Math.min(maxResults, 1024)];
+        int[] count = new int[1];
+        int[][] buffer = { result };
+        forEachSuperSet(fingerprint, (row, fp) -> {
+            if(count[0] == buffer[0].length) {
+                buffer[0] = Arrays.copyOf(buffer[0], (int)Math.min((long)maxResults, 2L * buffer[0].length));
+            }
+            buffer[0][count[0]++] = row;
+            return count[0] < maxResults;
+        });
+        return Arrays.copyOf(buffer[0], count[0]);
+    }
+
+    /**
+     * Passes all rows that contain supersets of the query to the consumer.
+     * The tree may be queried by multiple threads concurrently.
+     *
+     * @param query
+     * @param consumer
+     * @return false, if the consumer stopped the search
+     */
+    public boolean forEachSuperSet(long[] query, SuperSetConsumer consumer) {
+        if(rows.length == 0) {
+            return true;
+        }
+        long[] q = Arrays.copyOf(query, words);
+        long[] fp = new long[words];
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        while(top > 0) {
+            int node = stack[--top];
+            if(!isSubset(q, nodeUnion, node * words)) {
+                continue;
+            }
+            int bit = nodeBit[node];
+            if(bit < 0) {
+                for(int e = nodeStart[node]; e < nodeEnd[node]; e++) {
+                    LongBuffer segment = bits[e / entriesPerSegment];
+                    int offset = (e % entriesPerSegment) * words;
+                    boolean superset = true;
+                    for(int w = 0; w < words; w++) {
+                        fp[w] = segment.get(offset + w);
+                        if((q[w] & ~fp[w]) != 0) {
+                            superset = false;
+                            break;
+                        }
+                    }
+                    if(superset && !consumer.accept(rows[e], fp)) {
+                        return false;
+                    }
+                }
+                continue;
+            }
+            if(top + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+            }
+            // the "1" child is processed first
+            if((q[bit >>> 6] & (1L << (bit & 63))) == 0) {
+                stack[top++] = nodeLeft[node];
+            }
+            stack[top++] = nodeRight[node];
+        }
+        return true;
+    }
+
+    /**
+     * @return the row of the given entry, entries being numbered in leaf order
+     */
+    public int getRow(int entry) {
+        return rows[entry];
+    }
+
+    private static boolean isSubset(long[] q, long[] set, int offset) {
+        for(int w = 0; w < q.length; w++) {
+            if((q[w] & ~set[offset + w]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the tree from fingerprints and rows. Neither array is changed.
+     *
+     * @param fingerprints one fingerprint per entry, with at least (numBits+63)/64 longs
+     * @param rows row that is returned for the entry, or null to use the index of the fingerprint
+     * @param numBits
+     * @param binSize max. number of entries per leaf
+     * @param threads 0 for all available processors
+     * @return
+     */
+    public static CompactBitSetTree createTree(long[][] fingerprints, int[] rows, int numBits, int binSize, int threads) {
+        int words = (numBits + 63) / 64;
+        int n = fingerprints.length;
+        int[] order = new int[n];
+        for(int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+
+        Builder builder = new Builder(fingerprints, order, numBits, Math.max(1, binSize));
+        ForkJoinPool pool = (threads <= 0) ? ForkJoinPool.commonPool() : new ForkJoinPool(threads);
+        TmpNode root;
+        try {
+            root = pool.invoke(builder.task(0, n, new boolean[numBits]));
+        }
+        finally {
+            if(threads > 0) {
+                pool.shutdown();
+            }
+        }
+
+        int nodeCount = root.count();
+        int[] nodeBit = new int[nodeCount];
+        int[] nodeLeft = new int[nodeCount];
+        int[] nodeRight = new int[nodeCount];
+        int[] nodeStart = new int[nodeCount];
+        int[] nodeEnd = new int[nodeCount];
+        long[] nodeUnion = new long[nodeCount * words];
+        flatten(root, 0, nodeBit, nodeLeft, nodeRight, nodeStart, nodeEnd, nodeUnion, words);
+
+        int[] leafRows = new int[n];
+        long[] leafBits = new long[n * words];
+        for(int e = 0; e < n; e++) {
+            leafRows[e] = (rows == null) ? order[e] : rows[order[e]];
+            System.arraycopy(fingerprints[order[e]], 0, leafBits, e * words, words);
+        }
+        return new CompactBitSetTree(numBits, nodeBit, nodeLeft, nodeRight, nodeStart, nodeEnd, nodeUnion, leafRows,
+                new LongBuffer[] { LongBuffer.wrap(leafBits) }, Math.max(1, n));
+    }
+
+    /**
+     * @param ssds
+     * @param descriptorShortName name of a descriptor that returns long[] objects
+     * @param descriptorBits number of bits in the long[] descriptors
+     * @param binSize
+     * @param threads 0 for all available processors
+     * @return
+     */
+    public static CompactBitSetTree createFromStructureSearchDataSource(StructureSearchDataSource ssds, String descriptorShortName,
+                                                                        int descriptorBits, int binSize, int threads) {
+        int dcol = ssds.getDescriptorColumn(descriptorShortName);
+        long[][] fps = new long[ssds.getRowCount()][];
+        for(int zi = 0; zi < fps.length; zi++) {
+            fps[zi] = (long[]) ssds.getDescriptor(dcol, zi, 0, false);
+        }
+        return createTree(fps, null, descriptorBits, binSize, threads);
+    }
+
+    /**
+     * converts an existing BitSetTree, keeping its structure
+     *
+     * @param tree
+     * @param numBits
+     * @return
+     */
+    public static CompactBitSetTree fromBitSetTree(BitSetTree tree, int numBits) {
+        int words = (numBits + 63) / 64;
+        List<BitSetTree.BitSetWithRow> entries = new ArrayList<>();
+        TmpNode root = convert(tree.root, entries, words);
+        int nodeCount = root.count();
+        int[] nodeBit = new int[nodeCount];
+        int[] nodeLeft = new int[nodeCount];
+        int[] nodeRight = new int[nodeCount];
+        int[] nodeStart = new int[nodeCount];
+        int[] nodeEnd = new int[nodeCount];
+        long[] nodeUnion = new long[nodeCount * words];
+        flatten(root, 0, nodeBit, nodeLeft, nodeRight, nodeStart, nodeEnd, nodeUnion, words);
+
+        int[] leafRows = new int[entries.size()];
+        long[] leafBits = new long[entries.size() * words];
+        for(int e = 0; e < entries.size(); e++) {
+            leafRows[e] = entries.get(e).row;
+            long[] fp = entries.get(e).bitset.toLongArray();
+            System.arraycopy(fp, 0, leafBits, e * words, Math.min(words, fp.length));
+        }
+        return new CompactBitSetTree(numBits, nodeBit, nodeLeft, nodeRight, nodeStart, nodeEnd, nodeUnion, leafRows,
+                new LongBuffer[] { LongBuffer.wrap(leafBits) }, Math.max(1, entries.size()));
+    }
+
+    private static TmpNode convert(BitSetTree.Node node, List<BitSetTree.BitSetWithRow> entries, int words) {
+        TmpNode tmp = new TmpNode();
+        tmp.union = new long[words];
+        if(node.isLeaf()) {
+            tmp.bit = -1;
+            tmp.start = entries.size();
+            for(BitSetTree.BitSetWithRow lei : node.getLeafData()) {
+                entries.add(lei);
+                long[] fp = lei.bitset.toLongArray();
+                for(int w = 0; w < Math.min(words, fp.length); w++) {
+                    tmp.union[w] |= fp[w];
+                }
+            }
+            tmp.end = entries.size();
+            return tmp;
+        }
+        tmp.bit = node.bit;
+        tmp.left = convert(node.left, entries, words);
+        tmp.right = convert(node.right, entries, words);
+        for(int w = 0; w < words; w++) {
+            tmp.union[w] = tmp.left.union[w] | tmp.right.union[w];
+        }
+        return tmp;
+    }
+
+    /**
+     * writes nodes, rows and leaf fingerprints into a binary file that can be read with read() or map()
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.BIG_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(numBits).putInt(nodeBit.length).putInt(rows.length).putInt(0);
+            header.flip();
+            writeFully(channel, header);
+            for(int[] a : new int[][] { nodeBit, nodeLeft, nodeRight, nodeStart, nodeEnd }) {
+                writeInts(channel, a);
+            }
+            writeLongs(channel, LongBuffer.wrap(nodeUnion));
+            writeInts(channel, rows);
+            if(((long)rows.length & 1) != 0) {
+                writeInts(channel, new int[1]); // align fingerprints to 8 bytes
+            }
+            for(int s = 0; s < bits.length; s++) {
+                LongBuffer b = bits[s].duplicate();
+                b.position(0);
+                b.limit(Math.max(0, Math.min(entriesPerSegment, rows.length - s * entriesPerSegment)) * words);
+                writeLongs(channel, b);
+            }
+        }
+    }
+
+    /**
+     * reads a tree written by write() into the heap
+     */
+    public static CompactBitSetTree read(File file) throws IOException {
+        return load(file, false);
+    }
+
+    /**
+     * reads nodes and rows of a tree written by write(), and maps the leaf fingerprints into memory
+     * without loading them into the heap. The file must not be changed while the tree is in use.
+     */
+    public static CompactBitSetTree map(File file) throws IOException {
+        return load(file, true);
+    }
+
+    private static CompactBitSetTree load(File file, boolean map) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = readFully(channel, HEADER_BYTES);
+            if(header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("not a CompactBitSetTree file: " + file);
+            }
+            int numBits = header.getInt();
+            int nodeCount = header.getInt();
+            int entryCount = header.getInt();
+            int words = (numBits + 63) / 64;
+
+            int[][] nodeArrays = new int[5][];
+            for(int i = 0; i < 5; i++) {
+                nodeArrays[i] = readInts(channel, nodeCount);
+            }
+            long[] nodeUnion = readLongs(channel, nodeCount * words);
+            int[] rows = readInts(channel, entryCount);
+            if((entryCount & 1) != 0) {
+                readInts(channel, 1);
+            }
+
+            int entriesPerSegment = Math.max(1, Math.min(entryCount, MAX_SEGMENT_BYTES / (8 * words)));
+            int segmentCount = Math.max(1, (entryCount + entriesPerSegment - 1) / entriesPerSegment);
+            LongBuffer[] bits = new LongBuffer[segmentCount];
+            long position = channel.position();
+            for(int s = 0; s < segmentCount; s++) {
+                int entries = Math.min(entriesPerSegment, entryCount - s * entriesPerSegment);
+                if(map) {
+                    bits[s] = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * entries * words)
+                            .order(ByteOrder.BIG_ENDIAN).asLongBuffer();
+                    position += 8L * entries * words;
+                }
+                else {
+                    bits[s] = LongBuffer.wrap(readLongs(channel, entries * words));
+                }
+            }
+            return new CompactBitSetTree(numBits, nodeArrays[0], nodeArrays[1], nodeArrays[2], nodeArrays[3], nodeArrays[4],
+                    nodeUnion, rows, bits, entriesPerSegment);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        long[] all = new long[rows.length * words];
+        for(int e = 0; e < rows.length; e++) {
+            LongBuffer segment = bits[e / entriesPerSegment];
+            int offset = (e % entriesPerSegment) * words;
+            for(int w = 0; w < words; w++) {
+                all[e * words + w] = segment.get(offset + w);
+            }
+        }
+        out.writeObject(all);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        bits = new LongBuffer[] { LongBuffer.wrap((long[])in.readObject()) };
+        entriesPerSegment = Math.max(1, rows.length);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void writeInts(FileChannel channel, int[] a) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(65536).order(ByteOrder.BIG_ENDIAN);
+        for(int i = 0; i < a.length; i++) {
+            if(buffer.remaining() < 4) {
+                buffer.flip();
+                writeFully(channel, buffer);
+                buffer.clear();
+            }
+            buffer.putInt(a[i]);
+        }
+        buffer.flip();
+        writeFully(channel, buffer);
+    }
+
+    private static void writeLongs(FileChannel channel, LongBuffer a) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(65536).order(ByteOrder.BIG_ENDIAN);
+        while(a.hasRemaining()) {
+            if(buffer.remaining() < 8) {
+                buffer.flip();
+                writeFully(channel, buffer);
+                buffer.clear();
+            }
+            buffer.putLong(a.get());
+        }
+        buffer.flip();
+        writeFully(channel, buffer);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, int bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.BIG_ENDIAN);
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int[] readInts(FileChannel channel, int count) throws IOException {
+        int[] a = new int[count];
+        int i = 0;
+        while(i < count) {
+            int n = Math.min(count - i, 16384);
+            readFully(channel, 4 * n).asIntBuffer().get(a, i, n);
+            i += n;
+        }
+        return a;
+    }
+
+    private static long[] readLongs(FileChannel channel, int count) throws IOException {
+        long[] a = new long[count];
+        int i = 0;
+        while(i < count) {
+            int n = Math.min(count - i, 8192);
+            readFully(channel, 8 * n).asLongBuffer().get(a, i, n);
+            i += n;
+        }
+        return a;
+    }
+
+    private static int flatten(TmpNode node, int index, int[] nodeBit, int[] nodeLeft, int[] nodeRight, int[] nodeStart,
+                               int[] nodeEnd, long[] nodeUnion, int words) {
+        nodeBit[index] = node.bit;
+        nodeStart[index] = node.start;
+        nodeEnd[index] = node.end;
+        System.arraycopy(node.union, 0, nodeUnion, index * words, words);
+        int next = index + 1;
+        if(node.bit >= 0) {
+            nodeLeft[index] = next;
+            next = flatten(node.left, next, nodeBit, nodeLeft, nodeRight, nodeStart, nodeEnd, nodeUnion, words);
+            nodeRight[index] = next;
+            next = flatten(node.right, next, nodeBit, nodeLeft, nodeRight, nodeStart, nodeEnd, nodeUnion, words);
+        }
+        else {
+            nodeLeft[index] = -1;
+            nodeRight[index] = -1;
+        }
+        return next;
+    }
+
+    private static class TmpNode {
+        int bit;
+        int start;
+        int end;
+        long[] union;
+        TmpNode left;
+        TmpNode right;
+
+        int count() {
+            return (bit < 0) ? 1 : 1 + left.count() + right.count();
+        }
+    }
+
+    /**
+     * partitions the entry order in place; each node covers a contiguous range of the order array
+     */
+    private static class Builder {
+        final long[][] fps;
+        final int[] order;
+        final int numBits;
+        final int words;
+        final int binSize;
+
+        Builder(long[][] fps, int[] order, int numBits, int binSize) {
+            this.fps = fps;
+            this.order = order;
+            this.numBits = numBits;
+            this.words = (numBits + 63) / 64;
+            this.binSize = binSize;
+        }
+
+        RecursiveTask<TmpNode> task(int start, int end, boolean[] used) {
+            return new RecursiveTask<TmpNode>() {
+                @Override
+                protected TmpNode compute() {
+                    return build(start, end, used);
+                }
+            };
+        }
+
+        TmpNode build(int start, int end, boolean[] used) {
+            TmpNode node = new TmpNode();
+            node.start = start;
+            node.end = end;
+            int bit = (end - start <= binSize) ? -1 : findSplitBit(start, end, used);
+            int mid = (bit < 0) ? start : partition(start, end, bit);
+            if(bit < 0 || mid == start || mid == end) {
+                // small enough, or no bit separates the entries anymore
+                node.bit = -1;
+                node.union = new long[words];
+                for(int e = start; e < end; e++) {
+                    long[] fp = fps[order[e]];
+                    for(int w = 0; w < words; w++) {
+                        node.union[w] |= fp[w];
+                    }
+                }
+                return node;
+            }
+
+            node.bit = bit;
+            boolean[] childUsed = used.clone();
+            childUsed[bit] = true;
+            if(end - start > PARALLEL_THRESHOLD) {
+                RecursiveTask<TmpNode> left = task(start, mid, childUsed);
+                left.fork();
+                node.right = build(mid, end, childUsed);
+                node.left = left.join();
+            }
+            else {
+                node.left = build(start, mid, childUsed);
+                node.right = build(mid, end, childUsed);
+            }
+            node.union = new long[words];
+            for(int w = 0; w < words; w++) {
+                node.union[w] = node.left.union[w] | node.right.union[w];
+            }
+            return node;
+        }
+
+        /**
+         * @return the unused bit that is set in the fraction of a sample of entries closest to 0.5, or -1
+         */
+        int findSplitBit(int start, int end, boolean[] used) {
+            int n = end - start;
+            int step = Math.max(1, n / SPLIT_SAMPLE_SIZE);
+            int[] counts = new int[numBits];
+            int sampled = 0;
+            for(int e = start; e < end; e += step) {
+                long[] fp = fps[order[e]];
+                for(int w = 0; w < words; w++) {
+                    long v = fp[w];
+                    while(v != 0) {
+                        int b = (w << 6) + Long.numberOfTrailingZeros(v);
+                        if(b < numBits) {
+                            counts[b]++;
+                        }
+                        v &= v - 1;
+                    }
+                }
+                sampled++;
+            }
+            int best = -1;
+            int bestScore = 0;
+            for(int b = 0; b < numBits; b++) {
+                if(!used[b]) {
+                    int score = Math.min(counts[b], sampled - counts[b]);
+                    if(score > bestScore) {
+                        bestScore = score;
+                        best = b;
+                    }
+                }
+            }
+            return best;
+        }
+
+        /**
+         * moves entries without the bit to the front
+         * @return index of the first entry with the bit
+         */
+        int partition(int start, int end, int bit) {
+            int w = bit >>> 6;
+            long mask = 1L << (bit & 63);
+            int i = start;
+            int j = end - 1;
+            while(i <= j) {
+                if((fps[order[i]][w] & mask) == 0) {
+                    i++;
+                }
+                else {
+                    int tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                    j--;
+                }
+            }
+            return i;
+        }
+    }
+
+}
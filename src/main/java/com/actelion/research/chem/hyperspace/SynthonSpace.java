@@ -0,0 +1,228 @@
+package com.actelion.research.chem.hyperspace;
+
+import com.actelion.research.chem.IDCodeParser;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.chemicalspaces.synthon.SynthonReactor;
+import com.actelion.research.chem.descriptor.DescriptorHandlerLongFFP512;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+
+/**
+ *
+ * Combinatorial space defined by reactions with one synthon set per reactant.
+ *
+ * Synthons carry connector atoms (atomic no 92 and higher, see SynthonReactor) at the positions
+ * of the bonds formed by the reaction. Both synthons that form a bond carry the same connector atom.
+ *
+ * The FragFp (FFP512) fingerprints of every synthon set are indexed by a CompactBitSetTree, such that
+ * the synthons containing a given fragment can be screened without scanning the full synthon set.
+ *
+ * Usage:
+ *
+ * List<SimpleSynthon> synthons;
+ * SynthonSpace space = SynthonSpace.createSpace(synthons, 0);
+ * SynthonSpaceSubstructureSearch search = new SynthonSpaceSubstructureSearch(space);
+ *
+ */
+public class SynthonSpace implements Serializable {
+
+    private static final long serialVersionUID = 6382741910552877513L;
+
+    public static final int FINGERPRINT_BITS = 512;
+    public static final int DEFAULT_TREE_BIN_SIZE = 64;
+
+    /**
+     * Synthons of one reactant of one reaction.
+     */
+    public static class SynthonSet implements Serializable {
+        private static final long serialVersionUID = 8126935009843262275L;
+        public final String rxnId;
+        public final String synthonSet;
+        final SimpleSynthon[] synthons;
+        final int[] connectors;
+        final CompactBitSetTree tree;
+
+        SynthonSet(String rxnId, String synthonSet, SimpleSynthon[] synthons, int[] connectors, CompactBitSetTree tree) {
+            this.rxnId = rxnId;
+            this.synthonSet = synthonSet;
+            this.synthons = synthons;
+            this.connectors = connectors;
+            this.tree = tree;
+        }
+
+        public int size() {
+            return synthons.length;
+        }
+
+        public SimpleSynthon getSynthon(int row) {
+            return synthons[row];
+        }
+
+        /**
+         * @return tree of the synthon fingerprints, its rows refer to getSynthon()
+         */
+        public CompactBitSetTree getTree() {
+            return tree;
+        }
+
+        /**
+         * @return sorted atomic numbers of the connector atoms of this synthon set
+         */
+        public int[] getConnectors() {
+            return connectors;
+        }
+
+        public boolean hasConnector(int connector) {
+            return Arrays.binarySearch(connectors, connector) >= 0;
+        }
+    }
+
+    private final Map<String,SynthonSet[]> reactions;
+
+    SynthonSpace(Map<String,SynthonSet[]> reactions) {
+        this.reactions = reactions;
+    }
+
+    public Set<String> getReactionIds() {
+        return Collections.unmodifiableSet(reactions.keySet());
+    }
+
+    /**
+     * @param rxnId
+     * @return synthon sets of the reaction sorted by synthon set name, or null if the reaction is unknown
+     */
+    public SynthonSet[] getSynthonSets(String rxnId) {
+        return reactions.get(rxnId);
+    }
+
+    /**
+     * @return number of products, i.e. the sum over all reactions of the product of their synthon set sizes
+     */
+    public long getSize() {
+        long size = 0;
+        for(SynthonSet[] sets : reactions.values()) {
+            long ri = 1;
+            for(SynthonSet si : sets) {
+                ri *= si.size();
+            }
+            size += ri;
+        }
+        return size;
+    }
+
+    public static SynthonSpace createSpace(Collection<SimpleSynthon> synthons, int threads) {
+        return createSpace(synthons, threads, DEFAULT_TREE_BIN_SIZE);
+    }
+
+    /**
+     * Groups the synthons by reaction and synthon set, calculates the fingerprints and builds
+     * one CompactBitSetTree per synthon set. Synthons that cannot be parsed are skipped.
+     *
+     * @param synthons
+     * @param threads number of threads for fingerprint calculation and tree building, 0 for all available processors
+     * @param treeBinSize
+     * @return
+     */
+    public static SynthonSpace createSpace(Collection<SimpleSynthon> synthons, int threads, int treeBinSize) {
+        Map<String,Map<String,List<SimpleSynthon>>> grouped = new TreeMap<>();
+        for(SimpleSynthon si : synthons) {
+            grouped.computeIfAbsent(si.rxnId, k -> new TreeMap<>()).computeIfAbsent(si.synthonSet, k -> new ArrayList<>()).add(si);
+        }
+
+        Map<String,SynthonSet[]> reactions = new LinkedHashMap<>();
+        for(Map.Entry<String,Map<String,List<SimpleSynthon>>> rxn : grouped.entrySet()) {
+            List<SynthonSet> sets = new ArrayList<>();
+            for(Map.Entry<String,List<SimpleSynthon>> set : rxn.getValue().entrySet()) {
+                sets.add(createSynthonSet(rxn.getKey(), set.getKey(), set.getValue(), threads, treeBinSize));
+            }
+            reactions.put(rxn.getKey(), sets.toArray(new SynthonSet[0]));
+        }
+        return new SynthonSpace(reactions);
+    }
+
+    private static SynthonSet createSynthonSet(String rxnId, String setName, List<SimpleSynthon> synthons, int threads,
+                                               int treeBinSize) {
+        SimpleSynthon[] all = synthons.toArray(new SimpleSynthon[0]);
+        long[][] all_fps = new long[all.length][];
+        int[][] all_connectors = new int[all.length][];
+
+        ThreadLocal<DescriptorHandlerLongFFP512> dh = ThreadLocal.withInitial(DescriptorHandlerLongFFP512::new);
+        Runnable task = () -> IntStream.range(0, all.length).parallel().forEach(zi -> {
+            try {
+                StereoMolecule mi = new IDCodeParser().getCompactMolecule(all[zi].idcode);
+                if (mi != null) {
+                    all_fps[zi] = dh.get().createDescriptor(mi);
+                    all_connectors[zi] = getConnectors(mi);
+                }
+            }
+            catch(Exception e) {
+                // skip synthon
+            }
+        });
+        runWithThreads(task, threads);
+
+        int count = 0;
+        Set<Integer> connectors = new TreeSet<>();
+        for(int zi=0;zi<all.length;zi++) {
+            if(all_fps[zi] != null) {
+                count++;
+                for(int ci : all_connectors[zi]) {
+                    connectors.add(ci);
+                }
+            }
+        }
+
+        SimpleSynthon[] set_synthons = new SimpleSynthon[count];
+        long[][] set_fps = new long[count][];
+        count = 0;
+        for(int zi=0;zi<all.length;zi++) {
+            if(all_fps[zi] != null) {
+                set_synthons[count] = all[zi];
+                set_fps[count] = all_fps[zi];
+                count++;
+            }
+        }
+
+        CompactBitSetTree tree = CompactBitSetTree.createTree(set_fps, null, FINGERPRINT_BITS, treeBinSize, threads);
+        int[] set_connectors = connectors.stream().mapToInt(ci -> ci).toArray();
+        return new SynthonSet(rxnId, setName, set_synthons, set_connectors, tree);
+    }
+
+    /**
+     * @param mol
+     * @return sorted atomic numbers of the connector atoms in mol
+     */
+    public static int[] getConnectors(StereoMolecule mol) {
+        return IntStream.range(0, mol.getAllAtoms()).map(ai -> mol.getAtomicNo(ai))
+                .filter(ai -> ai >= SynthonReactor.CONNECTOR_OFFSET).distinct().sorted().toArray();
+    }
+
+    /**
+     * runs a task that uses parallel streams with the given number of threads.
+     */
+    static void runWithThreads(Runnable task, int threads) {
+        if(threads <= 0) {
+            task.run();
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(task).get();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+}
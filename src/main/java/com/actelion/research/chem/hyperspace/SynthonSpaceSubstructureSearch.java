@@ -0,0 +1,509 @@
+package com.actelion.research.chem.hyperspace;
+
+import com.actelion.research.chem.IDCodeParser;
+import com.actelion.research.chem.Molecule;
+import com.actelion.research.chem.SSSearcher;
+import com.actelion.research.chem.SSSearcherWithIndex;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.chemicalspaces.synthon.SynthonReactor;
+import com.actelion.research.chem.descriptor.DescriptorHandlerLongFFP512;
+
+import java.util.*;
+
+
+/**
+ *
+ * Substructure search in a SynthonSpace without enumeration of the products.
+ *
+ * The query is split into fragments by cutting up to maxCuts non-ring bonds. Every cut bond is
+ * labeled with one of the connector atoms of a reaction, and every fragment, including the connector
+ * atoms at its cut bonds, is assigned to a synthon set of the reaction that carries these connectors.
+ * Each synthon set with an assigned fragment is screened with its CompactBitSetTree on the
+ * FragFp of the fragment, and the remaining synthons are verified with a substructure search of the
+ * fragment. Synthon sets without assigned fragment contribute all of their synthons.
+ *
+ * Every successful assignment is reported as one SimpleCombinatorialHit, which contains all matching
+ * synthons per synthon set of the reaction. All products of the query are contained in the reported hits.
+ * However, a hit may also contain products that don't contain the query, because fragments are screened
+ * independently. These are removed when enumerating the products of a hit with getVerifiedProducts().
+ *
+ * Bonds formed in ring closure reactions are not considered as cut bonds, i.e. in products of these
+ * reactions the query is only found, if it is not split across the new ring bonds.
+ *
+ * Usage:
+ *
+ * SynthonSpaceSubstructureSearch search = new SynthonSpaceSubstructureSearch(space);
+ * search.setTimeBudget(10000);
+ * search.search(query, hit -> { ...; return true; });
+ *
+ */
+public class SynthonSpaceSubstructureSearch {
+
+    public static final int DEFAULT_MAX_CUTS = 3;
+
+    private final SynthonSpace space;
+
+    private int maxCuts = DEFAULT_MAX_CUTS;
+    private long timeBudget = 0;
+
+    private long deadline;
+    private boolean timeBudgetExceeded;
+
+    public interface HitConsumer {
+        /**
+         * @param hit synthons per synthon set; arrays must not be modified, as they may be shared with the SynthonSpace
+         * @return false to stop the search
+         */
+        boolean accept(SimpleCombinatorialHit hit);
+    }
+
+    public SynthonSpaceSubstructureSearch(SynthonSpace space) {
+        this.space = space;
+    }
+
+    /**
+     * @param maxCuts max. number of bonds that are cut to split the query
+     */
+    public void setMaxCuts(int maxCuts) {
+        this.maxCuts = maxCuts;
+    }
+
+    /**
+     * @param millis max. duration of one search in milliseconds, 0 for no limit
+     */
+    public void setTimeBudget(long millis) {
+        this.timeBudget = millis;
+    }
+
+    /**
+     * @return true, if the last search was stopped, because the time budget was exceeded
+     */
+    public boolean isTimeBudgetExceeded() {
+        return timeBudgetExceeded;
+    }
+
+    /**
+     * Searches all reactions of the space and passes the combinatorial hits to the consumer, as soon as they are found.
+     * Identical hits that result from different splits of the query are reported once.
+     *
+     * @param query substructure query
+     * @param consumer
+     * @return number of hits passed to the consumer
+     */
+    public int search(StereoMolecule query, HitConsumer consumer) {
+        deadline = (timeBudget > 0) ? System.currentTimeMillis() + timeBudget : Long.MAX_VALUE;
+        timeBudgetExceeded = false;
+
+        StereoMolecule q = new StereoMolecule(query);
+        q.setFragment(true);
+        q.ensureHelperArrays(Molecule.cHelperRings);
+
+        int max_labels = 0;
+        for(String rxn : space.getReactionIds()) {
+            max_labels = Math.max(max_labels, getLabels(space.getSynthonSets(rxn)).length);
+        }
+
+        List<Integer> cut_candidates = new ArrayList<>();
+        for(int bi=0;bi<q.getBonds();bi++) {
+            if(!q.isRingBond(bi)) {
+                cut_candidates.add(bi);
+            }
+        }
+
+        SearchState state = new SearchState(q, consumer);
+        int max_c = Math.min(maxCuts, Math.min(max_labels, cut_candidates.size()));
+        for(int ci=0;ci<=max_c && !state.stop;ci++) {
+            int[] cut = new int[ci];
+            searchCutSets(state, cut_candidates, cut, 0, 0);
+        }
+        return state.hitCount;
+    }
+
+    /**
+     * Enumerates the products of a combinatorial hit, assembles them with SynthonReactor and returns
+     * those that contain the query. Products are assembled lazily, when the iterator is advanced.
+     *
+     * @param hit
+     * @param query
+     * @return
+     */
+    public static Iterator<StereoMolecule> getVerifiedProducts(SimpleCombinatorialHit hit, StereoMolecule query) {
+        return new VerifiedProductIterator(hit, query);
+    }
+
+    private class SearchState {
+        final StereoMolecule query;
+        final HitConsumer consumer;
+        final Map<String,FragmentQuery> fragments = new HashMap<>();
+        final Map<String,SimpleSynthon[]> screened = new HashMap<>();
+        final Set<String> reported = new HashSet<>();
+        int hitCount = 0;
+        boolean stop = false;
+
+        SearchState(StereoMolecule query, HitConsumer consumer) {
+            this.query = query;
+            this.consumer = consumer;
+        }
+    }
+
+    private static class FragmentQuery {
+        final StereoMolecule mol;
+        final String idcode;
+        final long[] fp;
+        final int[] connectors;
+
+        FragmentQuery(StereoMolecule mol, long[] fp) {
+            this.mol = mol;
+            this.idcode = mol.getIDCode();
+            this.fp = fp;
+            this.connectors = SynthonSpace.getConnectors(mol);
+        }
+    }
+
+    private boolean checkTimeBudget(SearchState state) {
+        if(System.currentTimeMillis() > deadline) {
+            timeBudgetExceeded = true;
+            state.stop = true;
+        }
+        return state.stop;
+    }
+
+    private void searchCutSets(SearchState state, List<Integer> candidates, int[] cut, int pos, int first) {
+        if(state.stop) {
+            return;
+        }
+        if(pos == cut.length) {
+            searchCutSet(state, cut);
+            return;
+        }
+        for(int zi=first;zi<=candidates.size()-(cut.length-pos) && !state.stop;zi++) {
+            cut[pos] = candidates.get(zi);
+            searchCutSets(state, candidates, cut, pos+1, zi+1);
+        }
+    }
+
+    private void searchCutSet(SearchState state, int[] cut) {
+        if(checkTimeBudget(state)) {
+            return;
+        }
+
+        StereoMolecule q = state.query;
+        int[] fragment_no = getFragmentNumbers(q, cut);
+        int fragment_count = cut.length + 1;
+
+        for(String rxn : space.getReactionIds()) {
+            SynthonSpace.SynthonSet[] sets = space.getSynthonSets(rxn);
+            int[] labels = getLabels(sets);
+            if(cut.length > labels.length || fragment_count > sets.length) {
+                continue;
+            }
+            int[] labeling = new int[cut.length];
+            boolean[] used = new boolean[labels.length];
+            searchLabelings(state, rxn, sets, cut, fragment_no, labels, labeling, used, 0);
+            if(state.stop) {
+                return;
+            }
+        }
+    }
+
+    private void searchLabelings(SearchState state, String rxn, SynthonSpace.SynthonSet[] sets, int[] cut, int[] fragment_no,
+                                 int[] labels, int[] labeling, boolean[] used, int pos) {
+        if(state.stop) {
+            return;
+        }
+        if(pos == cut.length) {
+            FragmentQuery[] fragments = new FragmentQuery[cut.length+1];
+            for(int fi=0;fi<fragments.length;fi++) {
+                fragments[fi] = getFragment(state, cut, fragment_no, labeling, fi);
+            }
+            int[] assignment = new int[fragments.length];
+            boolean[] set_used = new boolean[sets.length];
+            searchAssignments(state, rxn, sets, fragments, assignment, set_used, 0);
+            return;
+        }
+        for(int li=0;li<labels.length;li++) {
+            if(!used[li]) {
+                used[li] = true;
+                labeling[pos] = labels[li];
+                searchLabelings(state, rxn, sets, cut, fragment_no, labels, labeling, used, pos+1);
+                used[li] = false;
+            }
+        }
+    }
+
+    private void searchAssignments(SearchState state, String rxn, SynthonSpace.SynthonSet[] sets, FragmentQuery[] fragments,
+                                   int[] assignment, boolean[] set_used, int pos) {
+        if(state.stop) {
+            return;
+        }
+        if(pos == fragments.length) {
+            reportHit(state, rxn, sets, fragments, assignment);
+            return;
+        }
+        for(int si=0;si<sets.length;si++) {
+            if(set_used[si] || !hasConnectors(sets[si], fragments[pos].connectors)) {
+                continue;
+            }
+            set_used[si] = true;
+            assignment[pos] = si;
+            searchAssignments(state, rxn, sets, fragments, assignment, set_used, pos+1);
+            set_used[si] = false;
+        }
+    }
+
+    private void reportHit(SearchState state, String rxn, SynthonSpace.SynthonSet[] sets, FragmentQuery[] fragments, int[] assignment) {
+        String[] set_fragments = new String[sets.length];
+        for(int fi=0;fi<fragments.length;fi++) {
+            set_fragments[assignment[fi]] = fragments[fi].idcode;
+        }
+        String key = rxn + "\t" + Arrays.toString(set_fragments);
+        if(state.reported.contains(key)) {
+            return;
+        }
+
+        SimpleSynthon[][] hit_synthons = new SimpleSynthon[sets.length][];
+        for(int fi=0;fi<fragments.length;fi++) {
+            SimpleSynthon[] hits = screen(state, sets[assignment[fi]], fragments[fi]);
+            if(hits == null || hits.length == 0) {
+                return;
+            }
+            hit_synthons[assignment[fi]] = hits;
+        }
+        for(int si=0;si<sets.length;si++) {
+            if(hit_synthons[si] == null) {
+                if(sets[si].size() == 0) {
+                    return;
+                }
+                hit_synthons[si] = sets[si].synthons;
+            }
+        }
+
+        state.reported.add(key);
+        state.hitCount++;
+        if(!state.consumer.accept(new SimpleCombinatorialHit(rxn, hit_synthons))) {
+            state.stop = true;
+        }
+    }
+
+    /**
+     * @return synthons of the set that contain the fragment, or null if the time budget was exceeded
+     */
+    private SimpleSynthon[] screen(SearchState state, SynthonSpace.SynthonSet set, FragmentQuery fragment) {
+        String key = set.rxnId + "\t" + set.synthonSet + "\t" + fragment.idcode;
+        SimpleSynthon[] cached = state.screened.get(key);
+        if(cached != null) {
+            return cached;
+        }
+
+        SSSearcherWithIndex searcher = new SSSearcherWithIndex();
+        searcher.setFragment(fragment.mol, fragment.fp);
+        List<SimpleSynthon> hits = new ArrayList<>();
+        int[] count = new int[1];
+        boolean complete = set.tree.forEachSuperSet(fragment.fp, (row, fp) -> {
+            if((++count[0] & 0x3FF) == 0 && checkTimeBudget(state)) {
+                return false;
+            }
+            searcher.setMolecule(set.synthons[row].idcode, fp);
+            if(searcher.isFragmentInMolecule()) {
+                hits.add(set.synthons[row]);
+            }
+            return true;
+        });
+        if(!complete) {
+            return null;
+        }
+
+        SimpleSynthon[] result = hits.toArray(new SimpleSynthon[0]);
+        state.screened.put(key, result);
+        return result;
+    }
+
+    /**
+     * @return fragment with connector atoms at the cut bonds, which are labeled according to labeling
+     */
+    private FragmentQuery getFragment(SearchState state, int[] cut, int[] fragment_no, int[] labeling, int fragment) {
+        StereoMolecule q = state.query;
+        boolean[] include = new boolean[q.getAllAtoms()];
+        for(int ai=0;ai<include.length;ai++) {
+            include[ai] = (fragment_no[ai] == fragment);
+        }
+
+        StringBuilder key = new StringBuilder();
+        for(int ai=0;ai<include.length;ai++) {
+            if(include[ai]) {
+                key.append(ai).append(',');
+            }
+        }
+        for(int ci=0;ci<cut.length;ci++) {
+            key.append(';').append(cut[ci]).append(':').append(labeling[ci]);
+        }
+        FragmentQuery cached = state.fragments.get(key.toString());
+        if(cached != null) {
+            return cached;
+        }
+
+        StereoMolecule frag = new StereoMolecule();
+        int[] atom_map = new int[q.getAllAtoms()];
+        q.copyMoleculeByAtoms(frag, include, true, atom_map);
+        for(int ci=0;ci<cut.length;ci++) {
+            for(int i=0;i<2;i++) {
+                int atom = q.getBondAtom(i, cut[ci]);
+                if(include[atom]) {
+                    int connector = frag.addAtom(labeling[ci]);
+                    int bond = frag.addBond(atom_map[atom], connector, q.getBondTypeSimple(cut[ci]));
+                    int features = q.getBondQueryFeatures(cut[ci]);
+                    if(features != 0) {
+                        frag.setBondQueryFeature(bond, features, true);
+                    }
+                }
+            }
+        }
+        frag.setFragment(true);
+        frag.ensureHelperArrays(Molecule.cHelperParities);
+
+        FragmentQuery fq = new FragmentQuery(frag, new DescriptorHandlerLongFFP512().createDescriptor(frag));
+        state.fragments.put(key.toString(), fq);
+        return fq;
+    }
+
+    /**
+     * @return fragment index of every atom after removing the cut bonds
+     */
+    private static int[] getFragmentNumbers(StereoMolecule q, int[] cut) {
+        boolean[] is_cut = new boolean[q.getAllBonds()];
+        for(int bi : cut) {
+            is_cut[bi] = true;
+        }
+        boolean[] include_bond = new boolean[q.getAllBonds()];
+        for(int bi=0;bi<q.getAllBonds();bi++) {
+            include_bond[bi] = !is_cut[bi];
+        }
+
+        int[] fragment_no = new int[q.getAllAtoms()];
+        Arrays.fill(fragment_no, -1);
+        int fragment_count = 0;
+        int[] graph = new int[q.getAllAtoms()];
+        for(int ai=0;ai<q.getAllAtoms();ai++) {
+            if(fragment_no[ai] != -1) {
+                continue;
+            }
+            fragment_no[ai] = fragment_count;
+            graph[0] = ai;
+            int current = 0;
+            int highest = 0;
+            while(current <= highest) {
+                int atom = graph[current++];
+                for(int ni=0;ni<q.getAllConnAtoms(atom);ni++) {
+                    int conn = q.getConnAtom(atom, ni);
+                    if(fragment_no[conn] == -1 && include_bond[q.getConnBond(atom, ni)]) {
+                        fragment_no[conn] = fragment_count;
+                        graph[++highest] = conn;
+                    }
+                }
+            }
+            fragment_count++;
+        }
+        return fragment_no;
+    }
+
+    /**
+     * @return sorted connector atomic numbers used by the synthon sets of a reaction
+     */
+    private static int[] getLabels(SynthonSpace.SynthonSet[] sets) {
+        Set<Integer> labels = new TreeSet<>();
+        for(SynthonSpace.SynthonSet si : sets) {
+            for(int ci : si.getConnectors()) {
+                labels.add(ci);
+            }
+        }
+        return labels.stream().mapToInt(li -> li).toArray();
+    }
+
+    private static boolean hasConnectors(SynthonSpace.SynthonSet set, int[] connectors) {
+        for(int ci : connectors) {
+            if(!set.hasConnector(ci)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class VerifiedProductIterator implements Iterator<StereoMolecule> {
+        private final SimpleCombinatorialHit hit;
+        private final SSSearcher searcher;
+        private final int[] index;
+        private boolean exhausted;
+        private StereoMolecule next;
+
+        VerifiedProductIterator(SimpleCombinatorialHit hit, StereoMolecule query) {
+            this.hit = hit;
+            StereoMolecule q = new StereoMolecule(query);
+            q.setFragment(true);
+            this.searcher = new SSSearcher();
+            this.searcher.setFragment(q);
+            this.index = new int[hit.synthons.length];
+            for(SimpleSynthon[] si : hit.synthons) {
+                if(si.length == 0) {
+                    exhausted = true;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while(next == null && !exhausted) {
+                StereoMolecule product = assemble();
+                advance();
+                if(product != null) {
+                    searcher.setMolecule(product);
+                    if(searcher.isFragmentInMolecule()) {
+                        next = product;
+                    }
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public StereoMolecule next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            StereoMolecule product = next;
+            next = null;
+            return product;
+        }
+
+        private StereoMolecule assemble() {
+            List<StereoMolecule> synthons = new ArrayList<>();
+            StringBuilder name = new StringBuilder();
+            IDCodeParser parser = new IDCodeParser();
+            for(int si=0;si<index.length;si++) {
+                SimpleSynthon synthon = hit.synthons[si][index[si]];
+                synthons.add(parser.getCompactMolecule(synthon.idcode));
+                name.append(si == 0 ? "" : " ").append(synthon.synthonId);
+            }
+            try {
+                StereoMolecule product = SynthonReactor.react(synthons);
+                if(product != null) {
+                    product.setName(name.toString());
+                }
+                return product;
+            }
+            catch(Exception e) {
+                return null;
+            }
+        }
+
+        private void advance() {
+            for(int si=index.length-1;si>=0;si--) {
+                if(++index[si] < hit.synthons[si].length) {
+                    return;
+                }
+                index[si] = 0;
+            }
+            exhausted = true;
+        }
+    }
+
+}
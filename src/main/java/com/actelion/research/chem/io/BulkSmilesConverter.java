@@ -0,0 +1,426 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.io;
+
+import com.actelion.research.chem.Canonizer;
+import com.actelion.research.chem.SmilesParser;
+import com.actelion.research.chem.StereoMolecule;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.*;
+
+/**
+ * Converts large numbers of SMILES into idcodes using multiple threads.
+ * Every thread uses its own SmilesParser, StereoMolecule and Canonizer, which are reused
+ * for all SMILES converted by that thread. Atom coordinates are not generated, because idcodes
+ * don't depend on them. Input lines are expected in the common SMILES file format, i.e.
+ * a SMILES optionally followed by white space and a compound name. Empty lines are skipped.
+ * Lines are converted in batches and results are passed to a ConversionListener
+ * in the order of the input lines and from the calling thread, i.e. the listener
+ * doesn't need to be thread-safe. Timings per processing stage and failure counts
+ * are collected and can be retrieved after conversion with getStatistics().
+ */
+public class BulkSmilesConverter {
+	public static final int DEFAULT_BATCH_SIZE = 256;
+	public static final int STAGE_NONE = 0;
+	public static final int STAGE_PARSE = 1;
+	public static final int STAGE_CANONIZE = 2;
+	private static final int QUEUED_BATCHES_PER_THREAD = 4;
+
+	public interface ConversionListener {
+		void smilesConverted(ConversionResult result);
+		}
+
+	public static class ConversionResult {
+		private int mIndex,mFailedStage;
+		private String mSmiles,mName,mIDCode,mError;
+
+		/**
+		 * @return zero based position of the SMILES in the input not counting empty lines
+		 */
+		public int getIndex() {
+			return mIndex;
+			}
+
+		public String getSmiles() {
+			return mSmiles;
+			}
+
+		/**
+		 * @return text following the SMILES on the same line or null
+		 */
+		public String getName() {
+			return mName;
+			}
+
+		/**
+		 * @return idcode or null, if the SMILES couldn't be parsed or canonized
+		 */
+		public String getIDCode() {
+			return mIDCode;
+			}
+
+		/**
+		 * @return null or the reason, why the SMILES couldn't be converted
+		 */
+		public String getError() {
+			return mError;
+			}
+
+		/**
+		 * @return STAGE_NONE if the conversion succeeded, otherwise STAGE_PARSE or STAGE_CANONIZE
+		 */
+		public int getFailedStage() {
+			return mFailedStage;
+			}
+		}
+
+	public static class Statistics {
+		private int mSmilesCount,mParseFailureCount,mCanonizeFailureCount;
+		private long mElapsedMillis,mReadNanos,mParseNanos,mCanonizeNanos,mListenerNanos;
+
+		private void add(Statistics s) {
+			mSmilesCount += s.mSmilesCount;
+			mParseFailureCount += s.mParseFailureCount;
+			mCanonizeFailureCount += s.mCanonizeFailureCount;
+			mParseNanos += s.mParseNanos;
+			mCanonizeNanos += s.mCanonizeNanos;
+			}
+
+		public int getSmilesCount() {
+			return mSmilesCount;
+			}
+
+		public int getFailedCount() {
+			return mParseFailureCount + mCanonizeFailureCount;
+			}
+
+		public int getParseFailureCount() {
+			return mParseFailureCount;
+			}
+
+		public int getCanonizeFailureCount() {
+			return mCanonizeFailureCount;
+			}
+
+		/**
+		 * @return wall clock milliseconds of the conversion run
+		 */
+		public long getElapsedMillis() {
+			return mElapsedMillis;
+			}
+
+		/**
+		 * @return milliseconds spent reading input lines in the calling thread
+		 */
+		public long getReadMillis() {
+			return mReadNanos / 1000000L;
+			}
+
+		/**
+		 * @return milliseconds spent parsing SMILES including stereo perception summed up over all threads
+		 */
+		public long getParseMillis() {
+			return mParseNanos / 1000000L;
+			}
+
+		/**
+		 * @return milliseconds spent creating idcodes summed up over all threads
+		 */
+		public long getCanonizeMillis() {
+			return mCanonizeNanos / 1000000L;
+			}
+
+		/**
+		 * @return milliseconds spent in the ConversionListener
+		 */
+		public long getListenerMillis() {
+			return mListenerNanos / 1000000L;
+			}
+
+		public double getSmilesPerSecond() {
+			return mElapsedMillis == 0 ? 0.0 : 1000.0 * mSmilesCount / mElapsedMillis;
+			}
+
+		@Override
+		public String toString() {
+			return "smiles:" + mSmilesCount
+				 + " parseFailures:" + mParseFailureCount
+				 + " canonizeFailures:" + mCanonizeFailureCount
+				 + " millis:" + mElapsedMillis
+				 + " smiles/s:" + String.format("%.1f", getSmilesPerSecond()) + "\n"
+				 + "read:" + getReadMillis()
+				 + " parse:" + getParseMillis()
+				 + " canonize:" + getCanonizeMillis()
+				 + " listener:" + getListenerMillis() + " (millis)";
+			}
+		}
+
+	private static class Batch {
+		ConversionResult[] result;
+		Statistics statistics;
+		}
+
+	private static class Worker {
+		SmilesParser parser;
+		StereoMolecule mol;
+		Canonizer canonizer;
+		}
+
+	private final int mThreadCount;
+	private int mBatchSize,mParserMode;
+	private Statistics mStatistics;
+
+	/**
+	 * @param threadCount number of conversion threads, 0 for all available processors
+	 */
+	public BulkSmilesConverter(int threadCount) {
+		mThreadCount = (threadCount <= 0) ? Runtime.getRuntime().availableProcessors() : threadCount;
+		mBatchSize = DEFAULT_BATCH_SIZE;
+		mParserMode = SmilesParser.SMARTS_MODE_IS_SMILES;
+		}
+
+	/**
+	 * @param size number of input lines converted as one task by one thread
+	 */
+	public void setBatchSize(int size) {
+		mBatchSize = Math.max(1, size);
+		}
+
+	/**
+	 * @param mode SmilesParser mode, by default SMARTS_MODE_IS_SMILES
+	 */
+	public void setParserMode(int mode) {
+		mParserMode = mode;
+		}
+
+	/**
+	 * @return statistics of the last conversion run
+	 */
+	public Statistics getStatistics() {
+		return mStatistics;
+		}
+
+	/**
+	 * Converts all SMILES of a SMILES file.
+	 * @param file
+	 * @param listener
+	 * @return number of converted SMILES including failed ones, which were passed to the listener
+	 * @throws IOException
+	 */
+	public int convert(File file, ConversionListener listener) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+			return convert(reader, listener);
+			}
+		}
+
+	/**
+	 * Converts all SMILES read from the reader, which is not closed.
+	 * @param reader
+	 * @param listener
+	 * @return number of converted SMILES including failed ones, which were passed to the listener
+	 * @throws IOException
+	 */
+	public int convert(BufferedReader reader, ConversionListener listener) throws IOException {
+		try {
+			return convert(new Iterator<String>() {
+				private String mNext = readLine();
+
+				private String readLine() {
+					try {
+						return reader.readLine();
+						}
+					catch (IOException ioe) {
+						throw new UncheckedIOException(ioe);
+						}
+					}
+
+				@Override
+				public boolean hasNext() {
+					return mNext != null;
+					}
+
+				@Override
+				public String next() {
+					String line = mNext;
+					mNext = readLine();
+					return line;
+					}
+				}, listener);
+			}
+		catch (UncheckedIOException uioe) {
+			throw uioe.getCause();
+			}
+		}
+
+	/**
+	 * Converts the SMILES of all lines provided by the iterator.
+	 * If the calling thread is interrupted, then the conversion stops and only SMILES
+	 * of batches already passed to the listener are counted.
+	 * @param lines
+	 * @param listener
+	 * @return number of converted SMILES including failed ones, which were passed to the listener
+	 */
+	public int convert(Iterator<String> lines, ConversionListener listener) {
+		mStatistics = new Statistics();
+
+		long startMillis = System.currentTimeMillis();
+		ThreadLocal<Worker> worker = ThreadLocal.withInitial(() -> {
+			Worker w = new Worker();
+			w.parser = new SmilesParser(mParserMode);
+			w.mol = new StereoMolecule();
+			return w;
+			});
+		ExecutorService executor = Executors.newFixedThreadPool(mThreadCount, r -> {
+			Thread t = new Thread(r, "Bulk SMILES Converter");
+			t.setDaemon(true);
+			return t;
+			});
+
+		int index = 0;
+		int count = 0;
+		try {
+			ArrayDeque<Future<Batch>> pending = new ArrayDeque<>();
+			while (!Thread.currentThread().isInterrupted()) {
+				if (pending.size() < QUEUED_BATCHES_PER_THREAD * mThreadCount) {
+					long readStart = System.nanoTime();
+					ArrayList<String> lineList = new ArrayList<>(mBatchSize);
+					while (lineList.size() < mBatchSize && lines.hasNext()) {
+						String line = lines.next();
+						if (line != null && !line.trim().isEmpty())
+							lineList.add(line);
+						}
+					mStatistics.mReadNanos += System.nanoTime() - readStart;
+
+					if (!lineList.isEmpty()) {
+						int firstIndex = index;
+						index += lineList.size();
+						pending.add(executor.submit(() -> convertBatch(lineList, firstIndex, worker.get())));
+						continue;
+						}
+					}
+
+				if (pending.isEmpty())
+					break;
+
+				Batch batch = pending.poll().get();
+				mStatistics.add(batch.statistics);
+				count += batch.result.length;
+				if (listener != null) {
+					long listenerStart = System.nanoTime();
+					for (ConversionResult result:batch.result)
+						listener.smilesConverted(result);
+					mStatistics.mListenerNanos += System.nanoTime() - listenerStart;
+					}
+				}
+			}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+			}
+		finally {
+			executor.shutdownNow();
+			mStatistics.mElapsedMillis = System.currentTimeMillis() - startMillis;
+			}
+
+		return count;
+		}
+
+	private Batch convertBatch(ArrayList<String> lineList, int firstIndex, Worker worker) {
+		Batch batch = new Batch();
+		batch.statistics = new Statistics();
+		batch.result = new ConversionResult[lineList.size()];
+		for (int i=0; i<lineList.size(); i++)
+			batch.result[i] = convertLine(lineList.get(i), firstIndex+i, worker, batch.statistics);
+		return batch;
+		}
+
+	private ConversionResult convertLine(String line, int index, Worker worker, Statistics statistics) {
+		ConversionResult result = new ConversionResult();
+		result.mIndex = index;
+		statistics.mSmilesCount++;
+
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		int start = 0;
+		while (start < bytes.length && (bytes[start] & 0xFF) <= ' ')
+			start++;
+		int end = start;
+		while (end < bytes.length && (bytes[end] & 0xFF) > ' ')
+			end++;
+
+		result.mSmiles = new String(bytes, start, end-start, StandardCharsets.UTF_8);
+		if (end < bytes.length) {
+			String name = new String(bytes, end, bytes.length-end, StandardCharsets.UTF_8).trim();
+			if (!name.isEmpty())
+				result.mName = name;
+			}
+
+		long parseStart = System.nanoTime();
+		try {
+			worker.parser.parse(worker.mol, bytes, start, end, false, true);
+			worker.mol.setUnknownParitiesToExplicitlyUnknown();
+			}
+		catch (Exception e) {
+			result.mError = (e.getMessage() == null) ? e.toString() : e.getMessage();
+			result.mFailedStage = STAGE_PARSE;
+			statistics.mParseFailureCount++;
+			}
+		long canonizeStart = System.nanoTime();
+		statistics.mParseNanos += canonizeStart - parseStart;
+
+		if (result.mError == null) {
+			try {
+				if (worker.canonizer == null)
+					worker.canonizer = new Canonizer(worker.mol);
+				else
+					worker.canonizer.reset(worker.mol);
+				result.mIDCode = worker.canonizer.getIDCode();
+				}
+			catch (Exception e) {
+				result.mError = (e.getMessage() == null) ? e.toString() : e.getMessage();
+				result.mFailedStage = STAGE_CANONIZE;
+				statistics.mCanonizeFailureCount++;
+				}
+			statistics.mCanonizeNanos += System.nanoTime() - canonizeStart;
+			}
+
+		return result;
+		}
+	}
@@ -0,0 +1,200 @@
+package com.actelion.research.chem.io;
+
+import com.actelion.research.chem.Canonizer;
+import com.actelion.research.chem.IDCodeParserWithoutCoordinateInvention;
+import com.actelion.research.chem.Molecule;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.conf.Conformer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Writes a compact binary multi-conformer archive, which can be read with a ConformerArchiveParser.
+ * Every row of the archive contains the conformers of one molecule. A row consists of one topology record
+ * (idcode and encoded coordinates of the first conformer) followed by one fixed size coordinate block per
+ * conformer. Coordinate blocks contain the origin and the scale of the conformer's bounding box as floats
+ * and every x,y,z coordinate quantized to 16 bits, which retains a precision of better than 0.001 Angstrom
+ * for drug-sized molecules. A row offset index at the end of the file allows random access to any row.<br>
+ * File layout (big endian):<br>
+ * - int MAGIC, int VERSION<br>
+ * - rows: int idcode length, idcode bytes, int coords length, coords bytes, int atom count, int conformer count,
+ *   then per conformer: float x0, y0, z0, scale and atomCount*3 unsigned shorts<br>
+ * - index: long row offset for every row, int row count, long index offset, int MAGIC
+ */
+public class ConformerArchiveCreator implements Closeable {
+	public static final int MAGIC = 0x4F434C43;	// 'OCLC'
+	public static final int VERSION = 1;
+
+	protected static final int TRAILER_SIZE = 16;
+	protected static final int BLOCK_HEADER_SIZE = 16;
+	protected static final int QUANTIZATION_MAX = 65535;
+
+	private DataOutputStream mOutputStream;
+	private long mPosition;
+	private long[] mRowOffset;
+	private int mRowCount;
+
+	/**
+	 * Creates a new archive file. Rows are added with addConformers(), which streams
+	 * them to the file immediately. The file is completed by calling close().
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public ConformerArchiveCreator(String fileName) throws IOException {
+		mOutputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+		mOutputStream.writeInt(MAGIC);
+		mOutputStream.writeInt(VERSION);
+		mPosition = 8;
+		mRowOffset = new long[1024];
+	}
+
+	/**
+	 * @return number of rows written so far
+	 */
+	public int getRowCount() {
+		return mRowCount;
+	}
+
+	/**
+	 * Writes one row containing all conformers of one molecule. All conformers must share the same
+	 * molecule, i.e. the same atoms in the same order, e.g. conformers of one ConformerSet.
+	 * Conformer names and energies are not stored.
+	 * @param conformers non-empty collection of conformers of the same molecule
+	 * @return index of the new row
+	 * @throws IOException
+	 */
+	public int addConformers(Collection<Conformer> conformers) throws IOException {
+		if (conformers.isEmpty())
+			throw new IllegalArgumentException("No conformers given.");
+
+		Conformer first = conformers.iterator().next();
+		StereoMolecule mol = first.toMolecule();
+		Canonizer canonizer = new Canonizer(mol, Canonizer.COORDS_ARE_3D);
+		byte[] idcode = canonizer.getIDCode().getBytes(StandardCharsets.UTF_8);
+		byte[] coords = canonizer.getEncodedCoordinates(true).getBytes(StandardCharsets.UTF_8);
+		int[] atomOrder = getParserAtomOrder(canonizer, mol, idcode, coords);
+
+		ByteArrayOutputStream byteStream = new ByteArrayOutputStream(
+				16 + idcode.length + coords.length + conformers.size() * (BLOCK_HEADER_SIZE + 6 * atomOrder.length));
+		DataOutputStream out = new DataOutputStream(byteStream);
+		out.writeInt(idcode.length);
+		out.write(idcode);
+		out.writeInt(coords.length);
+		out.write(coords);
+		out.writeInt(atomOrder.length);
+		out.writeInt(conformers.size());
+		for (Conformer conformer:conformers)
+			writeCoordinateBlock(out, conformer, atomOrder);
+		out.flush();
+
+		if (mRowCount == mRowOffset.length)
+			mRowOffset = Arrays.copyOf(mRowOffset, 2 * mRowCount);
+		mRowOffset[mRowCount] = mPosition;
+
+		byteStream.writeTo(mOutputStream);
+		mPosition += byteStream.size();
+		return mRowCount++;
+	}
+
+	/**
+	 * Writes the row index and closes the file.
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		if (mOutputStream == null)
+			return;
+
+		long indexOffset = mPosition;
+		for (int row=0; row<mRowCount; row++)
+			mOutputStream.writeLong(mRowOffset[row]);
+		mOutputStream.writeInt(mRowCount);
+		mOutputStream.writeLong(indexOffset);
+		mOutputStream.writeInt(MAGIC);
+		mOutputStream.close();
+		mOutputStream = null;
+	}
+
+	private void writeCoordinateBlock(DataOutputStream out, Conformer conformer, int[] atomOrder) throws IOException {
+		float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		float range = 0f;
+		for (int atom:atomOrder) {
+			min[0] = Math.min(min[0], (float)conformer.getX(atom));
+			min[1] = Math.min(min[1], (float)conformer.getY(atom));
+			min[2] = Math.min(min[2], (float)conformer.getZ(atom));
+		}
+		for (int atom:atomOrder) {
+			range = Math.max(range, (float)conformer.getX(atom) - min[0]);
+			range = Math.max(range, (float)conformer.getY(atom) - min[1]);
+			range = Math.max(range, (float)conformer.getZ(atom) - min[2]);
+		}
+		float scale = (range == 0f) ? 1f : range / QUANTIZATION_MAX;
+
+		out.writeFloat(min[0]);
+		out.writeFloat(min[1]);
+		out.writeFloat(min[2]);
+		out.writeFloat(scale);
+		for (int atom:atomOrder) {
+			out.writeChar(quantize(conformer.getX(atom), min[0], scale));
+			out.writeChar(quantize(conformer.getY(atom), min[1], scale));
+			out.writeChar(quantize(conformer.getZ(atom), min[2], scale));
+		}
+	}
+
+	private static int quantize(double value, float min, float scale) {
+		return Math.max(0, Math.min(QUANTIZATION_MAX, (int)Math.round((value - min) / scale)));
+	}
+
+	/**
+	 * The IDCodeParser creates atoms in the order of the Canonizer's graph followed by the
+	 * hydrogen atoms of every graph atom, provided that hydrogen coordinates were encoded.
+	 * Because coordinates are stored in this order, the assumed order is validated by comparing
+	 * atomic numbers and neighbours of every parsed atom with the ones of the original atom.
+	 * @return original atom index for every atom of the molecule created by the parser
+	 * @throws IOException if the parsed molecule doesn't match the expected atom order
+	 */
+	private static int[] getParserAtomOrder(Canonizer canonizer, StereoMolecule mol, byte[] idcode, byte[] coords) throws IOException {
+		StereoMolecule parsedMol = new IDCodeParserWithoutCoordinateInvention().getCompactMolecule(idcode, coords);
+		parsedMol.ensureHelperArrays(Molecule.cHelperNeighbours);
+		if (parsedMol.getAllAtoms() != mol.getAtoms() && parsedMol.getAllAtoms() != mol.getAllAtoms())
+			throw new IOException("Unexpected atom count of parsed molecule.");
+
+		int[] graphAtom = canonizer.getGraphAtoms();
+		int[] atomOrder = new int[parsedMol.getAllAtoms()];
+		int index = 0;
+		for (int i=0; i<mol.getAtoms(); i++)
+			atomOrder[index++] = graphAtom[i];
+		if (atomOrder.length > mol.getAtoms())
+			for (int i=0; i<mol.getAtoms(); i++)
+				for (int j=mol.getConnAtoms(graphAtom[i]); j<mol.getAllConnAtoms(graphAtom[i]); j++)
+					atomOrder[index++] = mol.getConnAtom(graphAtom[i], j);
+
+		for (int atom=0; atom<atomOrder.length; atom++) {
+			int originalAtom = atomOrder[atom];
+			if (parsedMol.getAtomicNo(atom) != mol.getAtomicNo(originalAtom))
+				throw new IOException("Unexpected atom order of parsed molecule.");
+
+			int neighbours = (atomOrder.length == mol.getAllAtoms()) ? mol.getAllConnAtoms(originalAtom) : mol.getConnAtoms(originalAtom);
+			if (parsedMol.getAllConnAtoms(atom) != neighbours)
+				throw new IOException("Unexpected neighbours of parsed atom.");
+
+			for (int i=0; i<neighbours; i++) {
+				int originalNeighbour = atomOrder[parsedMol.getConnAtom(atom, i)];
+				boolean found = false;
+				for (int j=0; j<neighbours; j++) {
+					if (mol.getConnAtom(originalAtom, j) == originalNeighbour) {
+						found = true;
+						break;
+					}
+				}
+				if (!found)
+					throw new IOException("Unexpected neighbours of parsed atom.");
+			}
+		}
+
+		return atomOrder;
+	}
+}
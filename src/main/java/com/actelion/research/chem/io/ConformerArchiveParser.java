@@ -0,0 +1,165 @@
+package com.actelion.research.chem.io;
+
+import com.actelion.research.chem.IDCodeParserWithoutCoordinateInvention;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.conf.Conformer;
+import com.actelion.research.chem.conf.ConformerSet;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import static com.actelion.research.chem.io.ConformerArchiveCreator.*;
+
+/**
+ * Provides random access to the rows of a binary multi-conformer archive written by a ConformerArchiveCreator.
+ * Only the row index is read when opening the file. The molecule of a row is parsed when the row is accessed
+ * first and conformer coordinate blocks are read individually on demand. Thus, accessing single conformers of
+ * large archives is cheap and does not require parsing any text besides the row's idcode.
+ * A ConformerArchiveParser is not thread-safe. Use one instance per thread.
+ */
+public class ConformerArchiveParser implements Closeable {
+	private FileChannel mChannel;
+	private long[] mRowOffset;
+	private int mCurrentRow,mAtomCount,mConformerCount;
+	private long mFirstBlockOffset;
+	private String mIDCode;
+	private StereoMolecule mMolecule;
+
+	public ConformerArchiveParser(String fileName) throws IOException {
+		mChannel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+
+		ByteBuffer header = read(0, 8);
+		if (header.getInt() != MAGIC)
+			throw new IOException("Not a conformer archive.");
+		if (header.getInt() > VERSION)
+			throw new IOException("Unsupported conformer archive version.");
+
+		ByteBuffer trailer = read(mChannel.size() - TRAILER_SIZE, TRAILER_SIZE);
+		int rowCount = trailer.getInt();
+		long indexOffset = trailer.getLong();
+		if (trailer.getInt() != MAGIC)
+			throw new IOException("Conformer archive is incomplete.");
+
+		ByteBuffer index = read(indexOffset, 8 * rowCount);
+		mRowOffset = new long[rowCount];
+		for (int row=0; row<rowCount; row++)
+			mRowOffset[row] = index.getLong();
+
+		mCurrentRow = -1;
+	}
+
+	public int getRowCount() {
+		return mRowOffset.length;
+	}
+
+	public String getIDCode(int row) throws IOException {
+		selectRow(row);
+		return mIDCode;
+	}
+
+	public int getConformerCount(int row) throws IOException {
+		selectRow(row);
+		return mConformerCount;
+	}
+
+	/**
+	 * @param row
+	 * @return new molecule of the row including explicit hydrogens with coordinates of the first conformer
+	 * @throws IOException
+	 */
+	public StereoMolecule getMolecule(int row) throws IOException {
+		selectRow(row);
+		return new StereoMolecule(mMolecule);
+	}
+
+	/**
+	 * Reads one conformer's coordinate block. All conformers of the same row share the same molecule.
+	 * @param row
+	 * @param conformer index of the conformer within the row
+	 * @return
+	 * @throws IOException
+	 */
+	public Conformer getConformer(int row, int conformer) throws IOException {
+		selectRow(row);
+		if (conformer < 0 || conformer >= mConformerCount)
+			throw new IndexOutOfBoundsException("Conformer index "+conformer+" out of range.");
+
+		int blockSize = BLOCK_HEADER_SIZE + 6 * mAtomCount;
+		return readConformer(read(mFirstBlockOffset + (long)conformer * blockSize, blockSize));
+	}
+
+	/**
+	 * Reads all conformers of one row with one read operation.
+	 * @param row
+	 * @return
+	 * @throws IOException
+	 */
+	public ConformerSet getConformerSet(int row) throws IOException {
+		selectRow(row);
+		ConformerSet conformerSet = new ConformerSet();
+		ByteBuffer buffer = read(mFirstBlockOffset, mConformerCount * (BLOCK_HEADER_SIZE + 6 * mAtomCount));
+		for (int i=0; i<mConformerCount; i++)
+			conformerSet.add(readConformer(buffer));
+		return conformerSet;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mChannel.close();
+	}
+
+	private Conformer readConformer(ByteBuffer buffer) {
+		float x0 = buffer.getFloat();
+		float y0 = buffer.getFloat();
+		float z0 = buffer.getFloat();
+		float scale = buffer.getFloat();
+		Conformer conformer = new Conformer(mMolecule);
+		for (int atom=0; atom<mAtomCount; atom++) {
+			conformer.setX(atom, x0 + scale * buffer.getChar());
+			conformer.setY(atom, y0 + scale * buffer.getChar());
+			conformer.setZ(atom, z0 + scale * buffer.getChar());
+		}
+		return conformer;
+	}
+
+	private void selectRow(int row) throws IOException {
+		if (row == mCurrentRow)
+			return;
+
+		long offset = mRowOffset[row];
+		int idcodeLength = read(offset, 4).getInt();
+		byte[] idcode = new byte[idcodeLength];
+		read(offset + 4, idcodeLength).get(idcode);
+		offset += 4 + idcodeLength;
+
+		int coordsLength = read(offset, 4).getInt();
+		byte[] coords = new byte[coordsLength];
+		ByteBuffer buffer = read(offset + 4, coordsLength + 8);
+		buffer.get(coords);
+		mAtomCount = buffer.getInt();
+		mConformerCount = buffer.getInt();
+		mFirstBlockOffset = offset + 12 + coordsLength;
+
+		mIDCode = new String(idcode, StandardCharsets.UTF_8);
+		mMolecule = new IDCodeParserWithoutCoordinateInvention().getCompactMolecule(idcode, coords);
+		if (mMolecule == null || mMolecule.getAllAtoms() != mAtomCount)
+			throw new IOException("Corrupt topology record in row "+row+".");
+
+		mCurrentRow = row;
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining())
+			if (mChannel.read(buffer, position + buffer.position()) == -1)
+				throw new EOFException();
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -323,7 +323,8 @@ public class DWARFileCreator {
 	 * @param column
 	 */
 	public void setRowValue(String value, int column) {
-		value = value.replaceAll("\\r?\\n|\\r", NEWLINE_STRING);
+		if (value.indexOf('\n') != -1 || value.indexOf('\r') != -1)	// avoid regex overhead for the usual single line values
+			value = value.replaceAll("\\r?\\n|\\r", NEWLINE_STRING);
 		value = value.replace("\t", TAB_STRING);
 		mRow[column] = value;
 		}
@@ -356,7 +357,7 @@ public class DWARFileCreator {
 				mWriter.write(propertyLine);
 				mWriter.newLine();
 			}
-			mWriter.write(CompoundTableConstants.cPropertiesStart);
+			mWriter.write(CompoundTableConstants.cPropertiesEnd);
 			mWriter.newLine();
 		}
 	}
@@ -0,0 +1,353 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Provides random access to the rows of a DataWarrior file by row index. When opened, the file
+ * is scanned once to locate the start of every table row. This row offset index may be persisted
+ * to a separate file, which is used instead of scanning again, as long as the DWAR-file's length
+ * and modification date are unchanged.<br>
+ * A column projection limits the decoding of rows to the columns of interest. Cell content of other
+ * columns, e.g. large descriptors or 3D-coordinates, is skipped on byte level without creating Strings.
+ * Cell content is returned as by DWARFileParser.getFieldData(), i.e. with line feeds and tabs restored.
+ * Rows may be read concurrently from multiple threads.
+ */
+public class IndexedDWARFileReader implements Closeable,CompoundTableConstants {
+	private static final int INDEX_FILE_MAGIC = 0x44574958;	// 'DWIX'
+	private static final int INDEX_FILE_VERSION = 1;
+	private static final int SCAN_BUFFER_SIZE = 1 << 20;
+
+	private final File mFile;
+	private final FileChannel mChannel;
+	private final DWARFileParser mHeaderParser;
+	private final String[] mColumnName;
+	private long[] mRowOffset;	// row start positions plus end position of the last row
+	private int[] mProjectedColumn;
+	private int mMaxProjectedColumn;
+	private int[] mSlotOfColumn;
+
+	/**
+	 * Opens the DWAR-file and creates the row offset index by scanning the entire file.
+	 * @param file
+	 * @throws IOException
+	 */
+	public IndexedDWARFileReader(File file) throws IOException {
+		this(file, null);
+		}
+
+	/**
+	 * Opens the DWAR-file and loads the row offset index from indexFile, if it exists and matches
+	 * the DWAR-file. Otherwise, the index is created by scanning the DWAR-file and written to indexFile.
+	 * @param file
+	 * @param indexFile null or file to persist the row offset index
+	 * @throws IOException
+	 */
+	public IndexedDWARFileReader(File file, File indexFile) throws IOException {
+		mFile = file;
+		mHeaderParser = new DWARFileParser(file, DWARFileParser.MODE_COORDINATES_PREFER_2D | DWARFileParser.MODE_BUFFER_HEAD_AND_TAIL);
+		if (!mHeaderParser.isOpen())
+			throw new IOException("not a valid DataWarrior file: "+file.getName());
+		mHeaderParser.close();
+
+		// the last header line holds the column titles
+		ArrayList<String> header = mHeaderParser.getHeadOrTail();
+		mColumnName = header.get(header.size()-1).split("\\t", -1);
+
+		mChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			if (indexFile == null || !readIndex(indexFile)) {
+				createIndex(header.size());
+				if (indexFile != null)
+					writeIndex(indexFile);
+				}
+			}
+		catch (IOException ioe) {
+			mChannel.close();
+			throw ioe;
+			}
+
+		setColumnProjection(null);
+		}
+
+	/**
+	 * @return titles of all columns in file order including structure, coordinate and descriptor columns
+	 */
+	public String[] getColumnNames() {
+		return mColumnName;
+		}
+
+	/**
+	 * @param columnName
+	 * @return index of the column in file order or -1
+	 */
+	public int getColumnIndex(String columnName) {
+		for (int i=0; i<mColumnName.length; i++)
+			if (mColumnName[i].equals(columnName))
+				return i;
+		return -1;
+		}
+
+	/**
+	 * @param columnName
+	 * @return the column's properties as defined in the file header or null
+	 */
+	public Properties getColumnProperties(String columnName) {
+		return mHeaderParser.getColumnProperties(columnName);
+		}
+
+	/**
+	 * @return header parser, e.g. to query special fields; its rows cannot be read
+	 */
+	public DWARFileParser getHeaderParser() {
+		return mHeaderParser;
+		}
+
+	public int getRowCount() {
+		return mRowOffset.length - 1;
+		}
+
+	/**
+	 * Defines which columns are decoded by getRow(). The returned cell arrays contain the
+	 * cells of the given columns in the given order. This must not be called while other threads are reading rows.
+	 * @param columnName null to decode all columns in file order
+	 * @throws IllegalArgumentException if a column doesn't exist
+	 */
+	public void setColumnProjection(String[] columnName) {
+		if (columnName == null) {
+			mProjectedColumn = new int[mColumnName.length];
+			for (int i=0; i<mColumnName.length; i++)
+				mProjectedColumn[i] = i;
+			}
+		else {
+			mProjectedColumn = new int[columnName.length];
+			for (int i=0; i<columnName.length; i++) {
+				mProjectedColumn[i] = getColumnIndex(columnName[i]);
+				if (mProjectedColumn[i] == -1)
+					throw new IllegalArgumentException("column not found: "+columnName[i]);
+				}
+			}
+
+		mMaxProjectedColumn = -1;
+		mSlotOfColumn = new int[mColumnName.length];
+		Arrays.fill(mSlotOfColumn, -1);
+		for (int i=0; i<mProjectedColumn.length; i++) {
+			mSlotOfColumn[mProjectedColumn[i]] = i;
+			mMaxProjectedColumn = Math.max(mMaxProjectedColumn, mProjectedColumn[i]);
+			}
+		}
+
+	/**
+	 * Reads and decodes the projected cells of one row. Empty cells are returned as empty Strings.
+	 * @param row
+	 * @return cell content in the order defined by the column projection
+	 * @throws IOException
+	 */
+	public String[] getRow(int row) throws IOException {
+		int[] slotOfColumn = mSlotOfColumn;
+		int maxColumn = mMaxProjectedColumn;
+		int slotCount = mProjectedColumn.length;
+
+		long start = mRowOffset[row];
+		int length = (int)(mRowOffset[row+1] - start);
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining())
+			if (mChannel.read(buffer, start + buffer.position()) == -1)
+				throw new EOFException("DWAR-file was truncated");
+		byte[] bytes = buffer.array();
+
+		// strip line end
+		while (length != 0 && (bytes[length-1] == '\n' || bytes[length-1] == '\r'))
+			length--;
+
+		String[] cell = new String[slotCount];
+		int column = 0;
+		int cellStart = 0;
+		for (int i=0; i<=length && column<=maxColumn; i++) {
+			if (i == length || bytes[i] == '\t') {
+				if (column < slotOfColumn.length && slotOfColumn[column] != -1)
+					cell[slotOfColumn[column]] = new String(bytes, cellStart, i - cellStart, StandardCharsets.UTF_8)
+							.replace(NEWLINE_STRING, cLineSeparator).replace(TAB_STRING, "\t");
+				column++;
+				cellStart = i+1;
+				}
+			}
+
+		for (int i=0; i<slotCount; i++)
+			if (cell[i] == null)
+				cell[i] = "";
+
+		return cell;
+		}
+
+	/**
+	 * Reads multiple rows in file order, which is faster than random order on large files.
+	 * @param row
+	 * @return decoded rows in the order of the row parameter
+	 * @throws IOException
+	 */
+	public String[][] getRows(int[] row) throws IOException {
+		Integer[] order = new Integer[row.length];
+		for (int i=0; i<row.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (i1, i2) -> Integer.compare(row[i1], row[i2]));
+
+		String[][] cells = new String[row.length][];
+		for (int i:order)
+			cells[i] = getRow(row[i]);
+		return cells;
+		}
+
+	@Override
+	public void close() throws IOException {
+		mChannel.close();
+		}
+
+	/**
+	 * Locates the start of every row behind the given number of header lines. The table ends with
+	 * the end of the file or with the first line starting any of the sections, which DWARFileParser
+	 * considers to follow the table.
+	 */
+	private void createIndex(int headerLineCount) throws IOException {
+		long[] offset = new long[1024];
+		int rowCount = 0;
+
+		ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+		byte[] bytes = buffer.array();
+		byte[] lineHead = new byte[64];	// enough to recognize the end of the table
+		int lineHeadLength = 0;
+		long lineStart = 0;
+		long position = 0;
+		int lineCount = 0;
+		boolean isEndOfTable = false;
+
+		mChannel.position(0);
+		while (!isEndOfTable) {
+			buffer.clear();
+			int count = mChannel.read(buffer);
+			if (count == -1)
+				break;
+
+			for (int i=0; i<count; i++) {
+				if (bytes[i] != '\n') {
+					if (lineHeadLength < lineHead.length)
+						lineHead[lineHeadLength++] = bytes[i];
+					continue;
+					}
+
+				if (lineCount >= headerLineCount) {
+					if (isTableEnd(lineHead, lineHeadLength)) {
+						isEndOfTable = true;
+						break;
+						}
+					if (rowCount == offset.length-1)
+						offset = Arrays.copyOf(offset, 2*offset.length);
+					offset[rowCount++] = lineStart;
+					}
+
+				lineCount++;
+				lineStart = position + i + 1;
+				lineHeadLength = 0;
+				}
+
+			position += count;
+			}
+
+		// last row without line feed
+		if (!isEndOfTable && lineStart < position && lineCount >= headerLineCount && !isTableEnd(lineHead, lineHeadLength)) {
+			if (rowCount == offset.length-1)
+				offset = Arrays.copyOf(offset, offset.length+1);
+			offset[rowCount++] = lineStart;
+			lineStart = position;
+			}
+
+		offset[rowCount] = lineStart;
+		mRowOffset = Arrays.copyOf(offset, rowCount+1);
+		}
+
+	private static boolean isTableEnd(byte[] lineHead, int length) {
+		while (length != 0 && lineHead[length-1] == '\r')
+			length--;
+		if (length == 0 || lineHead[0] != '<')
+			return false;
+
+		String head = new String(lineHead, 0, length, StandardCharsets.UTF_8);
+		return head.equals(cPropertiesStart)
+			|| head.equals(cHitlistDataStart)
+			|| head.equals(cDetailDataStart)
+			|| head.startsWith(cDataDependentPropertiesStart);
+		}
+
+	private boolean readIndex(File indexFile) {
+		if (!indexFile.exists())
+			return false;
+
+		try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			if (is.readInt() != INDEX_FILE_MAGIC
+			 || is.readInt() != INDEX_FILE_VERSION
+			 || is.readLong() != mFile.length()
+			 || is.readLong() != mFile.lastModified())
+				return false;
+
+			long[] offset = new long[is.readInt()+1];
+			for (int i=0; i<offset.length; i++)
+				offset[i] = is.readLong();
+			mRowOffset = offset;
+			return true;
+			}
+		catch (IOException ioe) {
+			return false;
+			}
+		}
+
+	private void writeIndex(File indexFile) throws IOException {
+		try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+			os.writeInt(INDEX_FILE_MAGIC);
+			os.writeInt(INDEX_FILE_VERSION);
+			os.writeLong(mFile.length());
+			os.writeLong(mFile.lastModified());
+			os.writeInt(mRowOffset.length-1);
+			for (long offset:mRowOffset)
+				os.writeLong(offset);
+			}
+		}
+	}
@@ -0,0 +1,383 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.io;
+
+import com.actelion.research.chem.Canonizer;
+import com.actelion.research.chem.MolfileParser;
+import com.actelion.research.chem.StereoMolecule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * Reads large SD-files using multiple threads. The file is read in large chunks, which are
+ * cut behind the last complete record, i.e. behind a '$$$$' line. Every chunk is then parsed
+ * by a worker thread: field data by an SDFileParser, molecules directly from the chunk's bytes
+ * by a MolfileParser, and, if requested, idcodes are created. Records are passed to a RecordListener from the calling thread, either in
+ * file order or in the order in which chunks were finished. In both cases every record
+ * carries its position in the file.
+ * Lines must be terminated by '\n' (LF or CRLF). Files with CR-only line endings are not
+ * supported: no chunk end is ever found and the whole file would be read into one buffer.
+ */
+public class ParallelSDFileParser {
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 22;
+	private static final int QUEUED_CHUNKS_PER_THREAD = 2;
+	private static final byte[] RECORD_END = { '$', '$', '$', '$' };
+	private static final byte[] M_END = { 'M', ' ', ' ', 'E', 'N', 'D' };
+
+	public interface RecordListener {
+		void recordParsed(SDRecord record);
+		}
+
+	public static class SDRecord {
+		private int mIndex;
+		private StereoMolecule mMol;
+		private String mName,mIDCode,mCoordinates;
+		private String[] mFieldData;
+
+		/**
+		 * @return zero based position of the record in the SD-file
+		 */
+		public int getIndex() {
+			return mIndex;
+			}
+
+		/**
+		 * @return the record's molecule or null in case of a parsing error
+		 */
+		public StereoMolecule getMolecule() {
+			return mMol;
+			}
+
+		public String getMoleculeName() {
+			return mName;
+			}
+
+		/**
+		 * @return idcode of the normalized molecule or null, if idcode creation was not requested or failed
+		 */
+		public String getIDCode() {
+			return mIDCode;
+			}
+
+		/**
+		 * @return encoded coordinates matching the idcode or null
+		 */
+		public String getCoordinates() {
+			return mCoordinates;
+			}
+
+		/**
+		 * @param index field index referring to getFieldNames() of the ParallelSDFileParser
+		 * @return field content or null, if the record doesn't contain this field
+		 */
+		public String getFieldData(int index) {
+			return mFieldData == null ? null : mFieldData[index];
+			}
+		}
+
+	private final File mFile;
+	private final int mThreadCount;
+	private String[] mFieldName;
+	private boolean mAssumeChiralTrue,mCreateIDCodes;
+	private int mChunkSize;
+
+	/**
+	 * @param file SD-file
+	 * @param fieldName names of data fields to be extracted; if null, the first records are inspected to find field names
+	 * @param threadCount number of parsing threads, 0 for all available processors
+	 */
+	public ParallelSDFileParser(File file, String[] fieldName, int threadCount) {
+		mFile = file;
+		mFieldName = fieldName;
+		mThreadCount = (threadCount <= 0) ? Runtime.getRuntime().availableProcessors() : threadCount;
+		mChunkSize = DEFAULT_CHUNK_SIZE;
+		}
+
+	/**
+	 * @param b see SDFileParser.setAssumeChiralTrue()
+	 */
+	public void setAssumeChiralTrue(boolean b) {
+		mAssumeChiralTrue = b;
+		}
+
+	/**
+	 * If set, idcodes and coordinates are created on the worker threads and can be retrieved from every record.
+	 * @param b
+	 */
+	public void setCreateIDCodes(boolean b) {
+		mCreateIDCodes = b;
+		}
+
+	/**
+	 * @param bytes approximate number of bytes being parsed as one unit by one thread
+	 */
+	public void setChunkSize(int bytes) {
+		mChunkSize = Math.max(1024, bytes);
+		}
+
+	/**
+	 * If no field names were passed to the constructor, then the first records of the file
+	 * are inspected to determine the field names.
+	 * @return field names, which define the field indexes of SDRecord.getFieldData()
+	 */
+	public String[] getFieldNames() {
+		if (mFieldName == null)
+			mFieldName = new SDFileParser(mFile).getFieldNames();
+
+		return mFieldName;
+		}
+
+	/**
+	 * Parses the entire SD-file and passes all records to the listener.
+	 * @param listener is called from the calling thread only
+	 * @param inOrder if false, records are passed as soon as their chunk is parsed, which avoids waiting for slow chunks
+	 * @return number of records
+	 * @throws IOException also as InterruptedIOException, if the calling thread was interrupted
+	 */
+	public int parse(RecordListener listener, boolean inOrder) throws IOException {
+		String[] fieldName = getFieldNames();
+
+		ExecutorService executor = Executors.newFixedThreadPool(mThreadCount, r -> {
+			Thread t = new Thread(r, "Parallel SD-File Parser");
+			t.setDaemon(true);
+			return t;
+			});
+		CompletionService<ArrayList<SDRecord>> completionService = new ExecutorCompletionService<>(executor);
+		ArrayDeque<Future<ArrayList<SDRecord>>> pending = new ArrayDeque<>();
+		int maxPendingCount = QUEUED_CHUNKS_PER_THREAD * mThreadCount;
+		int pendingCount = 0;
+
+		int recordCount = 0;
+		try (FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ)) {
+			skipBOM(channel);
+
+			byte[] buffer = new byte[mChunkSize];
+			int length = 0;
+			while (true) {
+				ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, length, buffer.length - length);
+				boolean isEOF = false;
+				while (byteBuffer.hasRemaining() && !isEOF)
+					isEOF = (channel.read(byteBuffer) == -1);
+				length = byteBuffer.position();
+				if (length == 0)
+					break;
+
+				int chunkEnd = isEOF ? length : findChunkEnd(buffer, length);
+				if (chunkEnd == -1) {	// record larger than buffer
+					buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+					continue;
+					}
+
+				byte[] chunk = buffer;
+				int firstIndex = recordCount;
+				recordCount += countRecords(chunk, chunkEnd);
+
+				buffer = new byte[Math.max(mChunkSize, 2 * (length - chunkEnd))];
+				System.arraycopy(chunk, chunkEnd, buffer, 0, length - chunkEnd);
+				length -= chunkEnd;
+
+				Callable<ArrayList<SDRecord>> task = () -> parseChunk(chunk, chunkEnd, firstIndex, fieldName);
+				if (inOrder) {
+					pending.add(executor.submit(task));
+					if (pending.size() >= maxPendingCount)
+						deliver(pending.poll().get(), listener);
+					}
+				else {
+					completionService.submit(task);
+					if (++pendingCount >= maxPendingCount) {
+						deliver(completionService.take().get(), listener);
+						pendingCount--;
+						}
+					}
+				}
+
+			while (!pending.isEmpty())
+				deliver(pending.poll().get(), listener);
+			while (pendingCount-- > 0)
+				deliver(completionService.take().get(), listener);
+			}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			InterruptedIOException iioe = new InterruptedIOException("SD-file parsing interrupted");
+			iioe.initCause(ie);
+			throw iioe;
+			}
+		catch (ExecutionException ee) {
+			throw new RuntimeException(ee.getCause());
+			}
+		finally {
+			executor.shutdownNow();
+			}
+
+		return recordCount;
+		}
+
+	private void deliver(ArrayList<SDRecord> recordList, RecordListener listener) {
+		if (listener != null)
+			for (SDRecord record:recordList)
+				listener.recordParsed(record);
+		}
+
+	private ArrayList<SDRecord> parseChunk(byte[] chunk, int length, int firstIndex, String[] fieldName) {
+		// field data are handled by a conventional SDFileParser, while molecules are parsed directly from the bytes
+		SDFileParser parser = new SDFileParser(new StringReader(new String(chunk, 0, length, StandardCharsets.UTF_8)), fieldName);
+		MolfileParser molfileParser = new MolfileParser();
+		molfileParser.setAssumeChiralTrue(mAssumeChiralTrue);
+
+		ArrayList<SDRecord> recordList = new ArrayList<>();
+		int[] molfileRange = new int[2];
+		int recordStart = 0;
+		while (parser.next()) {
+			recordStart = findMolfile(chunk, recordStart, length, molfileRange);
+
+			SDRecord record = new SDRecord();
+			record.mIndex = firstIndex + recordList.size();
+			record.mMol = molfileParser.getCompactMolecule(chunk, molfileRange[0], molfileRange[1] - molfileRange[0]);
+			record.mName = parser.getMoleculeName();
+			if (record.mMol != null) {
+				if (record.mName == null)
+					record.mName = record.mMol.getName();
+				else if (record.mMol.getName() == null || record.mMol.getName().length() == 0)
+					record.mMol.setName(record.mName);
+				if (mCreateIDCodes) {
+					try {
+						StereoMolecule mol = new StereoMolecule(record.mMol);
+						mol.normalizeAmbiguousBonds();
+						mol.canonizeCharge(true);
+						Canonizer canonizer = new Canonizer(mol);
+						record.mIDCode = canonizer.getIDCode();
+						record.mCoordinates = canonizer.getEncodedCoordinates();
+						}
+					catch (Exception e) {}
+					}
+				}
+			record.mFieldData = new String[fieldName.length];
+			for (int i=0; i<fieldName.length; i++)
+				record.mFieldData[i] = parser.getFieldData(i);
+			recordList.add(record);
+			}
+		return recordList;
+		}
+
+	/**
+	 * Determines the molfile of the record starting at recordStart in the same way as SDFileParser does:
+	 * The molfile ends behind an 'M  END' line or before the first data field header line.
+	 * @param molfileRange receives start and end of the molfile
+	 * @return start of the next record, i.e. behind the record's '$$$$' line
+	 */
+	private static int findMolfile(byte[] buffer, int recordStart, int length, int[] molfileRange) {
+		molfileRange[0] = recordStart;
+		molfileRange[1] = -1;
+		int lineStart = recordStart;
+		while (lineStart < length) {
+			int lineEnd = lineStart;
+			while (lineEnd < length && buffer[lineEnd] != '\n')
+				lineEnd++;
+			int nextLineStart = Math.min(length, lineEnd + 1);
+
+			if (molfileRange[1] == -1) {
+				if (lineStart < lineEnd && buffer[lineStart] == '>')
+					molfileRange[1] = lineStart;
+				else if (startsWith(buffer, lineStart, lineEnd, M_END) || isRecordEnd(buffer, lineStart, lineEnd))
+					molfileRange[1] = nextLineStart;
+				}
+
+			if (isRecordEnd(buffer, lineStart, lineEnd))
+				return nextLineStart;
+
+			lineStart = nextLineStart;
+			}
+
+		if (molfileRange[1] == -1)
+			molfileRange[1] = length;
+		return length;
+		}
+
+	private static void skipBOM(FileChannel channel) throws IOException {
+		ByteBuffer bom = ByteBuffer.allocate(3);
+		while (bom.hasRemaining() && channel.read(bom) != -1);
+		if (bom.position() != 3 || bom.get(0) != (byte)0xEF || bom.get(1) != (byte)0xBB || bom.get(2) != (byte)0xBF)
+			channel.position(0);
+		}
+
+	/**
+	 * @return position behind the line feed of the last complete '$$$$' line or -1
+	 */
+	private static int findChunkEnd(byte[] buffer, int length) {
+		int lineFeed = -1;
+		for (int i=length-1; i>=0; i--) {
+			if (buffer[i] == '\n') {
+				if (lineFeed != -1 && isRecordEnd(buffer, i+1, length))
+					return lineFeed + 1;
+				lineFeed = i;
+				}
+			}
+		return (lineFeed != -1 && isRecordEnd(buffer, 0, length)) ? lineFeed + 1 : -1;
+		}
+
+	/**
+	 * @return number of lines starting with '$$$$', which is the number of records SDFileParser finds
+	 */
+	private static int countRecords(byte[] buffer, int length) {
+		int count = isRecordEnd(buffer, 0, length) ? 1 : 0;
+		for (int i=0; i<length; i++)
+			if (buffer[i] == '\n' && isRecordEnd(buffer, i+1, length))
+				count++;
+		return count;
+		}
+
+	private static boolean isRecordEnd(byte[] buffer, int lineStart, int length) {
+		return startsWith(buffer, lineStart, length, RECORD_END);
+		}
+
+	private static boolean startsWith(byte[] buffer, int lineStart, int length, byte[] s) {
+		if (lineStart + s.length > length)
+			return false;
+		for (int i=0; i<s.length; i++)
+			if (buffer[lineStart+i] != s[i])
+				return false;
+		return true;
+		}
+	}
@@ -63,7 +63,7 @@ public class AminoAcids {
             { "dazD@BADf{fjjL`OtIL[lFfza[n|Tw]wcF@", "Valine", "val" }
     };
 
-    private static TreeMap<String,StereoMolecule> sShortLabelMap;
+    private static volatile TreeMap<String,StereoMolecule> sShortLabelMap;
 
     public static StereoMolecule getStructure(String label) {
         return ensureAAMap().get(label.toLowerCase());
@@ -109,14 +109,16 @@ public class AminoAcids {
     }
 
     private static TreeMap<String,StereoMolecule> ensureAAMap() {
-        if (sShortLabelMap == null) {
-            sShortLabelMap = new TreeMap<>();
+        TreeMap<String,StereoMolecule> map = sShortLabelMap;
+        if (map == null) {	// residues may be built by multiple threads; publish the map only when complete
+            map = new TreeMap<>();
             for (String[] template : AA_TEMPLATES) {
                 StereoMolecule mol = new IDCodeParserWithoutCoordinateInvention().getCompactMolecule(template[0]);
                 mol.setName(template[1]);
-                sShortLabelMap.put(template[2], mol);
+                map.put(template[2], mol);
             }
+            sShortLabelMap = map;
         }
-        return sShortLabelMap;
+        return map;
     }
 }
@@ -46,6 +46,8 @@ import java.util.*;
  * based on the 3D coordinates of the atoms
  */
 public class BondsCalculator {
+	private static final double MAX_BOND_LENGTH = 3.2;
+
 	/**
 	 * Calculates the bonds of a molecule by checking the distance between
 	 * all atoms. The bond order is not set with this function.
@@ -63,18 +65,25 @@ public class BondsCalculator {
 		boolean displayWarning = true;
 
 		//1. Create a grid
-		MoleculeGrid grid = new MoleculeGrid(mol);
+		SpatialHash grid = new SpatialHash(mol, MAX_BOND_LENGTH/2);
 	 	List<int[]> potentialBonds = new ArrayList<int[]>();
 		int[] neighborCount = new int[mol.getAllAtoms()];
+		int[] neighbours = new int[32];
 	 	
 		//2. For each atom, check the neighbours and
 		//   Create a connection if the distance is close to the sum of VDW
 		for(int i=0; i<mol.getAllAtoms(); i++) {			
 			if(!mol.isOrganicAtom(i)) continue;
 			
-			//Get the neighbours
-			Set<Integer> set = grid.getNeighbours(mol.getAtomCoordinates(i), 3.2, false);
-			for(int j:set) {
+			//Get the neighbours in ascending order
+			int count = grid.getNeighbours(mol.getAtomCoordinates(i), MAX_BOND_LENGTH, neighbours);
+			if(count>neighbours.length) {
+				neighbours = new int[2*count];
+				count = grid.getNeighbours(mol.getAtomCoordinates(i), MAX_BOND_LENGTH, neighbours);
+			}
+			Arrays.sort(neighbours, 0, count);
+			for(int n=0; n<count; n++) {
+				int j = neighbours[n];
 				if(i>=j) continue;
 				if(!mol.isOrganicAtom(j)) continue;
 				
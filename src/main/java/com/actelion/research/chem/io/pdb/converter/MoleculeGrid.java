@@ -38,12 +38,15 @@ import com.actelion.research.chem.StereoMolecule;
 import com.actelion.research.chem.Coordinates;
 import com.actelion.research.chem.Molecule;
 
+import java.util.Arrays;
 import java.util.Set;
 import java.util.TreeSet;
 
 /**
  * Class used to speed up the calculation of neighbours by creating a grid. 
  * Each atom is indexed according to its 3D coordinates.
+ * For neighbour queries in inner loops consider SpatialHash, which avoids
+ * the creation of Sets and boxed atom indices.
  * 
  */
 public class MoleculeGrid {
@@ -54,6 +57,7 @@ public class MoleculeGrid {
 	protected final Coordinates max;
 	protected final int[] gridSize = new int[3];
 	protected final Set<Integer>[][][] grid;
+	private int[][] atomCell;	// grid coordinates of every indexed atom, null if outside of the grid
 	
 
 	
@@ -91,12 +95,14 @@ public class MoleculeGrid {
 		grid = new Set[Math.max(0, gridSize[0])][Math.max(0, gridSize[1])][Math.max(0, gridSize[2])];		
 		
 		//3. Put each atom in the grid
+		atomCell = new int[mol.getAllAtoms()][];
 		for (int i=0; i<mol.getAllAtoms(); i++) {
 			int x = (int)((mol.getAtomX(i)-min.x)/gridWidth);
 			int y = (int)((mol.getAtomY(i)-min.y)/gridWidth);
 			int z = (int)((mol.getAtomZ(i)-min.z)/gridWidth);			
 			if(grid[x][y][z]==null) grid[x][y][z] = new TreeSet<>();
 			grid[x][y][z].add(i); 
+			atomCell[i] = new int[] {x,y,z};
 		}
 	}
 	
@@ -252,35 +258,36 @@ public class MoleculeGrid {
 		return closest;
 	}
 	
+	/**
+	 * Moves the atoms of the (moved or modified) molecule into their new cells.
+	 * Only atoms that changed their cell are touched; atoms outside of the grid are not indexed.
+	 * @param mol
+	 */
 	public void updateGrid(StereoMolecule mol) {
+		if(atomCell.length<mol.getAllAtoms())
+			atomCell = Arrays.copyOf(atomCell, mol.getAllAtoms());
 		for (int i = 0; i < mol.getAllAtoms(); i++) {
-			int x = (int)((mol.getAtomX(i)-min.x)/gridWidth);
-			int y = (int)((mol.getAtomY(i)-min.y)/gridWidth);
-			int z = (int)((mol.getAtomZ(i)-min.z)/gridWidth);			
-			if(grid[x][y][z]==null) grid[x][y][z] = new TreeSet<Integer>();
-			if(grid[x][y][z].contains(i))
+			int x = (int)Math.floor((mol.getAtomX(i)-min.x)/gridWidth);
+			int y = (int)Math.floor((mol.getAtomY(i)-min.y)/gridWidth);
+			int z = (int)Math.floor((mol.getAtomZ(i)-min.z)/gridWidth);
+			int[] cell = atomCell[i];
+			if(cell!=null && cell[0]==x && cell[1]==y && cell[2]==z)
 				continue;
-			else {
-				removeAtom(i);
-				grid[x][y][z].add(i);
-			}
-				
-			}
+			removeAtom(i);
+			if(x<0 || y<0 || z<0 || x>=gridSize[0] || y>=gridSize[1] || z>=gridSize[2])
+				continue;
+			if(grid[x][y][z]==null) grid[x][y][z] = new TreeSet<Integer>();
+			grid[x][y][z].add(i);
+			atomCell[i] = new int[] {x,y,z};
+		}
 	}
 	
 	private void removeAtom(int index) {
-		int l = Math.max(0, gridSize[0]);
-		int m = Math.max(0, gridSize[1]);
-		int n = Math.max(0, gridSize[2]);
-		for(int i=0;i<l;i++) {
-			for(int j=0;j<m;j++) {
-				for(int k=0;k<n;n++) {
-					if (grid[i][k][k].contains(index))
-						grid[i][k][k].remove(index);
-				}
-			}
-		}
-		
+		int[] cell = atomCell[index];
+		if(cell==null)
+			return;
+		grid[cell[0]][cell[1]][cell[2]].remove(index);
+		atomCell[index] = null;
 	}
 	
 	public     Set<Integer> getNeighbours(Molecule mol, int atom, double maxDist) {
@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 1997 - 2016
+ * Actelion Pharmaceuticals Ltd.
+ * Gewerbestrasse 16
+ * CH-4123 Allschwil, Switzerland
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the the copyright holder nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.actelion.research.chem.io.pdb.converter;
+
+import com.actelion.research.chem.Coordinates;
+import com.actelion.research.chem.Molecule;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Spatial hash of points (usually atoms) identified by non-negative int indices.
+ * In contrast to MoleculeGrid no boxed Integers or Sets are created: neighbour queries
+ * fill a caller supplied int buffer or call an IntConsumer. Points may lie anywhere in space
+ * and may be moved, added or removed at any time at O(1) cost, which makes the class suitable
+ * for moving ligands. All neighbour queries return exactly the points within maxDist (inclusive).
+ * Queries don't modify the hash and may run concurrently, as long as no point is updated at the same time.
+ */
+public class SpatialHash {
+	private static final int NONE = -1;
+	private static final int MIN_TABLE_SIZE = 16;
+
+	private final double cellSize;
+	private double[] px,py,pz;
+	private int[] cx,cy,cz;
+	private int[] next,prev;
+	private int[] bucketOf;	// bucket of each point, NONE if the point is not contained
+	private int[] head;
+	private int mask;
+	private int size;
+
+	/**
+	 * Creates an empty spatial hash
+	 * @param cellSize edge length of one cell; for best performance in the order of the typical query distance
+	 * @param capacity expected highest point index + 1; the hash grows if needed
+	 */
+	public SpatialHash(double cellSize, int capacity) {
+		if(!(cellSize>0))
+			throw new IllegalArgumentException("cellSize must be positive");
+		this.cellSize = cellSize;
+		capacity = Math.max(1, capacity);
+		px = new double[capacity];
+		py = new double[capacity];
+		pz = new double[capacity];
+		cx = new int[capacity];
+		cy = new int[capacity];
+		cz = new int[capacity];
+		next = new int[capacity];
+		prev = new int[capacity];
+		bucketOf = new int[capacity];
+		Arrays.fill(bucketOf, NONE);
+		int tableSize = MIN_TABLE_SIZE;
+		while(tableSize<2*capacity) tableSize <<= 1;
+		head = new int[tableSize];
+		Arrays.fill(head, NONE);
+		mask = tableSize-1;
+	}
+
+	/**
+	 * Creates a spatial hash containing all atoms of mol including hydrogens
+	 * @param mol
+	 * @param cellSize
+	 */
+	public SpatialHash(Molecule mol, double cellSize) {
+		this(cellSize, mol.getAllAtoms());
+		for(int i=0; i<mol.getAllAtoms(); i++) put(i, mol.getCoordinates(i));
+	}
+
+	/**
+	 * Creates a spatial hash containing the given atoms of mol
+	 * @param mol
+	 * @param atoms
+	 * @param cellSize
+	 */
+	public SpatialHash(Molecule mol, Iterable<Integer> atoms, double cellSize) {
+		this(cellSize, mol.getAllAtoms());
+		for(int atom : atoms) put(atom, mol.getCoordinates(atom));
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * @return number of contained points
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean contains(int index) {
+		return index>=0 && index<bucketOf.length && bucketOf[index]!=NONE;
+	}
+
+	public void put(int index, Coordinates c) {
+		put(index, c.x, c.y, c.z);
+	}
+
+	/**
+	 * Adds a point or moves an already contained point to a new position.
+	 * The point is only relinked, if it moved into another cell.
+	 * @param index
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public void put(int index, double x, double y, double z) {
+		if(index<0)
+			throw new IllegalArgumentException("negative index");
+		if(index>=bucketOf.length)
+			grow(index+1);
+
+		px[index] = x;
+		py[index] = y;
+		pz[index] = z;
+		int ix = cell(x);
+		int iy = cell(y);
+		int iz = cell(z);
+		if(bucketOf[index]!=NONE) {
+			if(cx[index]==ix && cy[index]==iy && cz[index]==iz)
+				return;
+			unlink(index);
+		}
+		else {
+			size++;
+		}
+		cx[index] = ix;
+		cy[index] = iy;
+		cz[index] = iz;
+		int bucket = hash(ix, iy, iz);
+		bucketOf[index] = bucket;
+		prev[index] = NONE;
+		next[index] = head[bucket];
+		if(head[bucket]!=NONE) prev[head[bucket]] = index;
+		head[bucket] = index;
+	}
+
+	public void remove(int index) {
+		if(!contains(index))
+			return;
+		unlink(index);
+		bucketOf[index] = NONE;
+		size--;
+	}
+
+	public void clear() {
+		Arrays.fill(head, NONE);
+		Arrays.fill(bucketOf, NONE);
+		size = 0;
+	}
+
+	/**
+	 * Updates the positions of all contained atoms from mol, e.g. after the molecule
+	 * was moved or its conformation changed. Atoms that stay in their cell cost one comparison.
+	 * @param mol
+	 */
+	public void update(Molecule mol) {
+		int n = Math.min(bucketOf.length, mol.getAllAtoms());
+		for(int i=0; i<n; i++) {
+			if(bucketOf[i]!=NONE) put(i, mol.getCoordinates(i));
+		}
+	}
+
+	/**
+	 * Writes the indices of all points within maxDist of c into buffer, as long as there is space.
+	 * If the returned count is larger than buffer.length, the buffer was too small and the query
+	 * must be repeated with a larger buffer to get all neighbours.
+	 * The order of the returned indices is undefined.
+	 * @param c
+	 * @param maxDist
+	 * @param buffer
+	 * @return number of points within maxDist
+	 */
+	public int getNeighbours(Coordinates c, double maxDist, int[] buffer) {
+		return getNeighbours(c.x, c.y, c.z, maxDist, buffer);
+	}
+
+	public int getNeighbours(double x, double y, double z, double maxDist, int[] buffer) {
+		double maxDistSq = maxDist*maxDist;
+		int count = 0;
+		if(isFullScanCheaper(maxDist)) {
+			for(int i=0; i<bucketOf.length; i++) {
+				if(bucketOf[i]!=NONE && distSq(i, x, y, z)<=maxDistSq) {
+					if(count<buffer.length) buffer[count] = i;
+					count++;
+				}
+			}
+			return count;
+		}
+
+		int x1 = cell(x+maxDist), y1 = cell(y+maxDist), z1 = cell(z+maxDist);
+		for(int ix=cell(x-maxDist); ix<=x1; ix++) {
+			for(int iy=cell(y-maxDist); iy<=y1; iy++) {
+				for(int iz=cell(z-maxDist); iz<=z1; iz++) {
+					for(int i=head[hash(ix, iy, iz)]; i!=NONE; i=next[i]) {
+						if(cx[i]==ix && cy[i]==iy && cz[i]==iz && distSq(i, x, y, z)<=maxDistSq) {
+							if(count<buffer.length) buffer[count] = i;
+							count++;
+						}
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Calls consumer once for every point within maxDist of c. The hash must not be modified by the consumer.
+	 * @param c
+	 * @param maxDist
+	 * @param consumer
+	 */
+	public void forEachNeighbour(Coordinates c, double maxDist, IntConsumer consumer) {
+		double x = c.x, y = c.y, z = c.z;
+		double maxDistSq = maxDist*maxDist;
+		if(isFullScanCheaper(maxDist)) {
+			for(int i=0; i<bucketOf.length; i++) {
+				if(bucketOf[i]!=NONE && distSq(i, x, y, z)<=maxDistSq) consumer.accept(i);
+			}
+			return;
+		}
+
+		int x1 = cell(x+maxDist), y1 = cell(y+maxDist), z1 = cell(z+maxDist);
+		for(int ix=cell(x-maxDist); ix<=x1; ix++) {
+			for(int iy=cell(y-maxDist); iy<=y1; iy++) {
+				for(int iz=cell(z-maxDist); iz<=z1; iz++) {
+					for(int i=head[hash(ix, iy, iz)]; i!=NONE; i=next[i]) {
+						if(cx[i]==ix && cy[i]==iy && cz[i]==iz && distSq(i, x, y, z)<=maxDistSq) consumer.accept(i);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param c
+	 * @param maxDist
+	 * @return true, if at least one point lies within maxDist of c
+	 */
+	public boolean hasNeighbour(Coordinates c, double maxDist) {
+		double x = c.x, y = c.y, z = c.z;
+		double maxDistSq = maxDist*maxDist;
+		if(isFullScanCheaper(maxDist)) {
+			for(int i=0; i<bucketOf.length; i++) {
+				if(bucketOf[i]!=NONE && distSq(i, x, y, z)<=maxDistSq) return true;
+			}
+			return false;
+		}
+
+		int x1 = cell(x+maxDist), y1 = cell(y+maxDist), z1 = cell(z+maxDist);
+		for(int ix=cell(x-maxDist); ix<=x1; ix++) {
+			for(int iy=cell(y-maxDist); iy<=y1; iy++) {
+				for(int iz=cell(z-maxDist); iz<=z1; iz++) {
+					for(int i=head[hash(ix, iy, iz)]; i!=NONE; i=next[i]) {
+						if(cx[i]==ix && cy[i]==iy && cz[i]==iz && distSq(i, x, y, z)<=maxDistSq) return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the closest point. maxDist has to be given to take advantage of the speed
+	 * @param c
+	 * @param maxDist
+	 * @return index of the closest point within maxDist or -1
+	 */
+	public int getClosestNeighbour(Coordinates c, double maxDist) {
+		int[] closest = new int[1];
+		return getKNearestNeighbours(c, 1, maxDist, closest)==0 ? NONE : closest[0];
+	}
+
+	/**
+	 * Finds the k points closest to c within maxDist. The search starts with one cell around c
+	 * and doubles the search radius until k points were found or maxDist is reached.
+	 * @param c
+	 * @param k
+	 * @param maxDist use Double.POSITIVE_INFINITY to find k points anywhere
+	 * @param result receives the point indices sorted by increasing distance; must have at least k elements
+	 * @return number of points written into result, which is smaller than k, if fewer points are within maxDist
+	 */
+	public int getKNearestNeighbours(Coordinates c, int k, double maxDist, int[] result) {
+		if(k<=0 || size==0)
+			return 0;
+		k = Math.min(k, size);
+		double x = c.x, y = c.y, z = c.z;
+		double[] bestDistSq = new double[k];
+		double radius = Math.min(cellSize, maxDist);
+		while(true) {
+			double radiusSq = radius*radius;
+			int count = 0;
+			if(isFullScanCheaper(radius)) {
+				for(int i=0; i<bucketOf.length; i++) {
+					if(bucketOf[i]!=NONE) count = insertSorted(i, distSq(i, x, y, z), radiusSq, result, bestDistSq, count, k);
+				}
+			}
+			else {
+				int x1 = cell(x+radius), y1 = cell(y+radius), z1 = cell(z+radius);
+				for(int ix=cell(x-radius); ix<=x1; ix++) {
+					for(int iy=cell(y-radius); iy<=y1; iy++) {
+						for(int iz=cell(z-radius); iz<=z1; iz++) {
+							for(int i=head[hash(ix, iy, iz)]; i!=NONE; i=next[i]) {
+								if(cx[i]==ix && cy[i]==iy && cz[i]==iz)
+									count = insertSorted(i, distSq(i, x, y, z), radiusSq, result, bestDistSq, count, k);
+							}
+						}
+					}
+				}
+			}
+			// all points within radius were seen, thus the k found ones are the k closest
+			if(count==k || radius>=maxDist)
+				return count;
+			radius = Math.min(2*radius, maxDist);
+		}
+	}
+
+	/**
+	 * inserts point i into the sorted arrays, if it is within the search radius and among the k closest so far
+	 * @return new number of points in the arrays
+	 */
+	private static int insertSorted(int i, double d, double radiusSq, int[] index, double[] dist, int count, int k) {
+		if(d>radiusSq || (count==k && d>=dist[k-1]))
+			return count;
+		int pos = count==k ? k-1 : count++;
+		while(pos>0 && dist[pos-1]>d) {
+			dist[pos] = dist[pos-1];
+			index[pos] = index[pos-1];
+			pos--;
+		}
+		dist[pos] = d;
+		index[pos] = i;
+		return count;
+	}
+
+	/**
+	 * For large radii visiting all cells in the bounding cube is more expensive than checking all points
+	 */
+	private boolean isFullScanCheaper(double maxDist) {
+		double cells = 2*maxDist/cellSize+2;
+		return Double.isInfinite(maxDist) || cells*cells*cells>bucketOf.length;
+	}
+
+	private double distSq(int i, double x, double y, double z) {
+		double dx = px[i]-x;
+		double dy = py[i]-y;
+		double dz = pz[i]-z;
+		return dx*dx+dy*dy+dz*dz;
+	}
+
+	private int cell(double v) {
+		return (int)Math.floor(v/cellSize);
+	}
+
+	private int hash(int ix, int iy, int iz) {
+		int h = ix*73856093 ^ iy*19349663 ^ iz*83492791;
+		return (h ^ (h>>>16)) & mask;
+	}
+
+	private void unlink(int index) {
+		if(prev[index]!=NONE) next[prev[index]] = next[index];
+		else head[bucketOf[index]] = next[index];
+		if(next[index]!=NONE) prev[next[index]] = prev[index];
+	}
+
+	private void grow(int minCapacity) {
+		int capacity = Math.max(minCapacity, 2*bucketOf.length);
+		int oldCapacity = bucketOf.length;
+		px = Arrays.copyOf(px, capacity);
+		py = Arrays.copyOf(py, capacity);
+		pz = Arrays.copyOf(pz, capacity);
+		cx = Arrays.copyOf(cx, capacity);
+		cy = Arrays.copyOf(cy, capacity);
+		cz = Arrays.copyOf(cz, capacity);
+		next = Arrays.copyOf(next, capacity);
+		prev = Arrays.copyOf(prev, capacity);
+		bucketOf = Arrays.copyOf(bucketOf, capacity);
+		Arrays.fill(bucketOf, oldCapacity, capacity, NONE);
+		if(head.length<2*capacity) {
+			int tableSize = head.length;
+			while(tableSize<2*capacity) tableSize <<= 1;
+			head = new int[tableSize];
+			Arrays.fill(head, NONE);
+			mask = tableSize-1;
+			// rehash all contained points
+			for(int i=0; i<oldCapacity; i++) {
+				if(bucketOf[i]==NONE) continue;
+				int bucket = hash(cx[i], cy[i], cz[i]);
+				bucketOf[i] = bucket;
+				prev[i] = NONE;
+				next[i] = head[bucket];
+				if(head[bucket]!=NONE) prev[head[bucket]] = i;
+				head[bucket] = i;
+			}
+		}
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 1997 - 2016
+ * Actelion Pharmaceuticals Ltd.
+ * Gewerbestrasse 16
+ * CH-4123 Allschwil, Switzerland
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the the copyright holder nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.actelion.research.chem.io.pdb.parser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fast parser for the coordinate section of PDB files. In contrast to the PDBFileParser,
+ * it skips all header records and parses ATOM, HETATM, TER and CONECT records directly
+ * from bytes into the primitive arrays of a LazyPDBStructure. As with the PDBFileParser,
+ * atoms with an already used serial ID, e.g. those of further models, are skipped. No molecules are built
+ * during parsing. Instead, LazyPDBStructure.extractMols() builds molecules for
+ * selected chains, residues or binding sites on demand.
+ * Coordinates, atom properties and CONECT bonds are parsed exactly as by the PDBFileParser.
+ */
+public class LazyPDBFileParser {
+	private static final double[] POWER_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15 };
+
+	private final HashMap<Long,String> stringCache;
+	private final HashMap<String,Integer> residueMap;
+	private final StringBuilder residueKey;
+	private final BitSet proteinSerialSet,hetSerialSet;
+	private byte[] bytes;
+	private int lineNo;
+	private boolean lastAtomSkipped;
+
+	public LazyPDBFileParser() {
+		stringCache = new HashMap<>();
+		residueMap = new HashMap<>();
+		residueKey = new StringBuilder();
+		proteinSerialSet = new BitSet();
+		hetSerialSet = new BitSet();
+	}
+
+	public LazyPDBStructure parse(File fiPDB) throws IOException, ParseException {
+		try (InputStream stream = fiPDB.getName().toLowerCase().endsWith(".pdb.gz") ?
+				new GZIPInputStream(new FileInputStream(fiPDB))
+			  : new FileInputStream(fiPDB)) {
+			return parse(stream);
+		}
+	}
+
+	public LazyPDBStructure parse(InputStream stream) throws IOException, ParseException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 20);
+		byte[] b = new byte[65536];
+		int count;
+		while ((count = stream.read(b)) != -1)
+			buffer.write(b, 0, count);
+		return parse(buffer.toByteArray(), 0, buffer.size());
+	}
+
+	/**
+	 * @param bytes content of a PDB file
+	 * @param offset
+	 * @param length
+	 * @return the parsed structure
+	 * @throws ParseException if an ATOM, HETATM or CONECT record cannot be parsed
+	 */
+	public LazyPDBStructure parse(byte[] bytes, int offset, int length) throws ParseException {
+		this.bytes = bytes;
+		stringCache.clear();
+		residueMap.clear();
+		proteinSerialSet.clear();
+		hetSerialSet.clear();
+		lineNo = 0;
+		lastAtomSkipped = false;
+
+		LazyPDBStructure structure = new LazyPDBStructure();
+		int end = offset + length;
+		int lineStart = offset;
+		try {
+			while (lineStart < end) {
+				int lineEnd = lineStart;
+				while (lineEnd < end && bytes[lineEnd] != '\n')
+					lineEnd++;
+				int next = lineEnd + 1;
+				if (lineEnd > lineStart && bytes[lineEnd-1] == '\r')
+					lineEnd--;
+				lineNo++;
+
+				if (startsWith(lineStart, lineEnd, PDBFileParser.TAG_ATOM))
+					parseAtom(structure, lineStart, lineEnd, false);
+				else if (startsWith(lineStart, lineEnd, PDBFileParser.TAG_HETATM))
+					parseAtom(structure, lineStart, lineEnd, true);
+				else if ((startsWith(lineStart, lineEnd, PDBFileParser.TAG_TER)
+					   || startsWith(lineStart, lineEnd, PDBFileParser.TAG_ENDMDL))
+					  && !lastAtomSkipped)
+					structure.setLastAtomTerminal();
+				else if (startsWith(lineStart, lineEnd, PDBFileParser.TAG_CONECT))
+					parseConnection(structure, lineStart, lineEnd);
+
+				lineStart = next;
+			}
+		}
+		catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+			throw new ParseException("Invalid record in line "+lineNo+": "+e.getMessage(), lineNo);
+		}
+		finally {
+			this.bytes = null;
+		}
+
+		structure.finish();
+		return structure;
+	}
+
+	private boolean startsWith(int lineStart, int lineEnd, String tag) {
+		if (lineEnd - lineStart < tag.length())
+			return false;
+		for (int i=0; i<tag.length(); i++)
+			if (bytes[lineStart+i] != tag.charAt(i))
+				return false;
+		return true;
+	}
+
+	private void parseAtom(LazyPDBStructure structure, int lineStart, int lineEnd, boolean isHet) {
+		int length = lineEnd - lineStart;
+		if (length < 54)
+			throw new StringIndexOutOfBoundsException("atom record too short");
+
+		// Like PDBFileParser keep only the first atom with a given serial ID, i.e. atoms of the first model.
+		int serialId = parseInt(lineStart+6, lineStart+11);
+		BitSet serialSet = isHet ? hetSerialSet : proteinSerialSet;
+		lastAtomSkipped = (serialId >= 0 && serialSet.get(serialId));
+		if (lastAtomSkipped)
+			return;
+		if (serialId >= 0)
+			serialSet.set(serialId);
+
+		String atomName = getString(lineStart+12, lineStart+16);
+		String altLoc = getString(lineStart+16, lineStart+17);
+		String residueName = getString(lineStart+17, lineStart+20);
+		String chainId = getString(lineStart+21, lineStart+22);
+		int resNum = parseInt(lineStart+22, lineStart+26);
+		String insertionCode = getString(lineStart+26, lineStart+27);
+
+		//invert y and z coordinates for compatibility with Java coordinate system (as ModelParser does)
+		double x = parseDouble(lineStart+30, lineStart+38);
+		double y = -parseDouble(lineStart+38, lineStart+46);
+		double z = -parseDouble(lineStart+46, lineStart+54);
+
+		double occupancy = (length < 60) ? 1.0 : parseDouble(lineStart+54, lineStart+60);
+		double tempFactor = (length < 66) ? 50.0 : parseDouble(lineStart+60, lineStart+66);
+
+		String element = (length < 78) ? atomName.substring(0, 1) : getString(lineStart+76, lineStart+78);
+		if (element.length() > 1 || Character.isLowerCase(element.charAt(0))) {
+			element = element.toLowerCase();
+			element = element.substring(0, 1).toUpperCase() + element.substring(1);
+		}
+
+		int residue;
+		if (structure.isSameResidueAsLastAtom(isHet, residueName, chainId, resNum, insertionCode)) {
+			residue = structure.getLastAtomResidue();
+		}
+		else {
+			residueKey.setLength(0);
+			residueKey.append(isHet ? 'H' : 'A').append(residueName).append(' ').append(resNum)
+					  .append(insertionCode).append(' ').append(chainId);
+			String key = residueKey.toString();
+			Integer r = residueMap.get(key);
+			if (r == null) {
+				r = residueMap.size();
+				residueMap.put(key, r);
+			}
+			residue = r;
+		}
+
+		structure.addAtom(isHet, serialId, atomName, altLoc, residueName, chainId, resNum, insertionCode,
+				x, y, z, occupancy, tempFactor, element, residue);
+	}
+
+	/**
+	 * Parses the CONECT record the same way the PDBFileParser does.
+	 */
+	private void parseConnection(LazyPDBStructure structure, int lineStart, int lineEnd) {
+		int length = lineEnd - lineStart;
+		if (length >= 16) {
+			int atom1 = parseInt(lineStart+6, lineStart+11);
+			for (int index=16; length>=index; index+=5) {
+				if (isBlank(lineStart+index-5, lineStart+index))
+					break;
+				structure.addConnection(atom1, parseInt(lineStart+index-5, lineStart+index));
+			}
+		}
+	}
+
+	private boolean isBlank(int start, int end) {
+		for (int i=start; i<end; i++)
+			if (bytes[i] > ' ')
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return trimmed field content; short strings are cached to avoid creating duplicates
+	 */
+	private String getString(int start, int end) {
+		while (start < end && bytes[start] <= ' ')
+			start++;
+		while (end > start && bytes[end-1] <= ' ')
+			end--;
+		if (end - start > 7)
+			return new String(bytes, start, end-start, StandardCharsets.ISO_8859_1);
+
+		long key = end - start;
+		for (int i=start; i<end; i++)
+			key = (key << 8) | (bytes[i] & 0xFF);
+		String s = stringCache.get(key);
+		if (s == null) {
+			s = new String(bytes, start, end-start, StandardCharsets.ISO_8859_1);
+			stringCache.put(key, s);
+		}
+		return s;
+	}
+
+	private int parseInt(int start, int end) {
+		while (start < end && bytes[start] <= ' ')
+			start++;
+		while (end > start && bytes[end-1] <= ' ')
+			end--;
+		if (start == end)
+			throw new NumberFormatException("empty integer field");
+
+		boolean isNegative = (bytes[start] == '-');
+		int i = (isNegative || bytes[start] == '+') ? start+1 : start;
+		if (i == end)
+			throw new NumberFormatException("invalid integer field");
+		int value = 0;
+		for (; i<end; i++) {
+			int digit = bytes[i] - '0';
+			if (digit < 0 || digit > 9)
+				return Integer.parseInt(new String(bytes, start, end-start, StandardCharsets.ISO_8859_1));
+			value = 10 * value + digit;
+		}
+		return isNegative ? -value : value;
+	}
+
+	/**
+	 * Parses fixed point numbers like '-12.345' with up to 15 digits by dividing the exact integer mantissa
+	 * by an exact power of ten, which is correctly rounded and therefore gives the same
+	 * result as Double.parseDouble(). Any other notation is passed to Double.parseDouble().
+	 */
+	private double parseDouble(int start, int end) {
+		while (start < end && bytes[start] <= ' ')
+			start++;
+		while (end > start && bytes[end-1] <= ' ')
+			end--;
+
+		boolean isNegative = (start < end && bytes[start] == '-');
+		int i = (isNegative || (start < end && bytes[start] == '+')) ? start+1 : start;
+		long mantissa = 0;
+		int digits = 0;
+		int decimals = -1;
+		for (; i<end; i++) {
+			byte b = bytes[i];
+			if (b == '.' && decimals == -1) {
+				decimals = 0;
+			}
+			else if (b >= '0' && b <= '9' && digits < 16) {
+				mantissa = 10 * mantissa + (b - '0');
+				digits++;
+				if (decimals != -1)
+					decimals++;
+			}
+			else {
+				break;
+			}
+		}
+
+		if (i != end || digits == 0)
+			return Double.parseDouble(new String(bytes, start, end-start, StandardCharsets.ISO_8859_1));
+
+		double value = (decimals <= 0) ? mantissa : mantissa / POWER_OF_TEN[decimals];
+		return isNegative ? -value : value;
+	}
+}
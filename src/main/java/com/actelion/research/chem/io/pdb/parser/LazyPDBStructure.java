@@ -0,0 +1,590 @@
+/*
+ * Copyright (c) 1997 - 2016
+ * Actelion Pharmaceuticals Ltd.
+ * Gewerbestrasse 16
+ * CH-4123 Allschwil, Switzerland
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the the copyright holder nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.actelion.research.chem.io.pdb.parser;
+
+import com.actelion.research.chem.Molecule3D;
+import com.actelion.research.chem.io.pdb.converter.BondsCalculator;
+import com.actelion.research.chem.io.pdb.converter.SpatialHash;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Coordinate section of a PDB entry as created by the LazyPDBFileParser. Atom properties
+ * and coordinates are held in primitive arrays and atoms are grouped into residues.
+ * In contrast to PDBCoordEntryFile, molecules are built only on request and only
+ * for selected residues, e.g. all residues of some chains or all residues within some
+ * distance of a ligand. Residue molecules including their bond perception are built
+ * in parallel. Molecules are assembled into the same groups as by the StructureAssembler.
+ */
+public class LazyPDBStructure {
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private int atoms,residues,threadCount;
+	private int[] serialId,resNum,residueOfAtom;
+	private double[] x,y,z,occupancy,tempFactor;
+	private String[] atomName,altLoc,residueName,chainId,insertionCode,element;
+	private boolean[] isHetAtom,isTerminalC;
+	private int[] residueAtomStart,residueAtom,sortedSerialAtom;
+	private long[] connect;
+	private int connectCount;
+
+	LazyPDBStructure() {
+		serialId = new int[INITIAL_CAPACITY];
+		resNum = new int[INITIAL_CAPACITY];
+		residueOfAtom = new int[INITIAL_CAPACITY];
+		x = new double[INITIAL_CAPACITY];
+		y = new double[INITIAL_CAPACITY];
+		z = new double[INITIAL_CAPACITY];
+		occupancy = new double[INITIAL_CAPACITY];
+		tempFactor = new double[INITIAL_CAPACITY];
+		atomName = new String[INITIAL_CAPACITY];
+		altLoc = new String[INITIAL_CAPACITY];
+		residueName = new String[INITIAL_CAPACITY];
+		chainId = new String[INITIAL_CAPACITY];
+		insertionCode = new String[INITIAL_CAPACITY];
+		element = new String[INITIAL_CAPACITY];
+		isHetAtom = new boolean[INITIAL_CAPACITY];
+		isTerminalC = new boolean[INITIAL_CAPACITY];
+		connect = new long[INITIAL_CAPACITY];
+		threadCount = Runtime.getRuntime().availableProcessors();
+	}
+
+	void addAtom(boolean isHet, int serialId, String atomName, String altLoc, String residueName, String chainId,
+				 int resNum, String insertionCode, double x, double y, double z, double occupancy, double tempFactor,
+				 String element, int residue) {
+		if (atoms == this.serialId.length) {
+			int capacity = 2 * atoms;
+			this.serialId = Arrays.copyOf(this.serialId, capacity);
+			this.resNum = Arrays.copyOf(this.resNum, capacity);
+			this.residueOfAtom = Arrays.copyOf(this.residueOfAtom, capacity);
+			this.x = Arrays.copyOf(this.x, capacity);
+			this.y = Arrays.copyOf(this.y, capacity);
+			this.z = Arrays.copyOf(this.z, capacity);
+			this.occupancy = Arrays.copyOf(this.occupancy, capacity);
+			this.tempFactor = Arrays.copyOf(this.tempFactor, capacity);
+			this.atomName = Arrays.copyOf(this.atomName, capacity);
+			this.altLoc = Arrays.copyOf(this.altLoc, capacity);
+			this.residueName = Arrays.copyOf(this.residueName, capacity);
+			this.chainId = Arrays.copyOf(this.chainId, capacity);
+			this.insertionCode = Arrays.copyOf(this.insertionCode, capacity);
+			this.element = Arrays.copyOf(this.element, capacity);
+			this.isHetAtom = Arrays.copyOf(this.isHetAtom, capacity);
+			this.isTerminalC = Arrays.copyOf(this.isTerminalC, capacity);
+		}
+		this.isHetAtom[atoms] = isHet;
+		this.serialId[atoms] = serialId;
+		this.atomName[atoms] = atomName;
+		this.altLoc[atoms] = altLoc;
+		this.residueName[atoms] = residueName;
+		this.chainId[atoms] = chainId;
+		this.resNum[atoms] = resNum;
+		this.insertionCode[atoms] = insertionCode;
+		this.x[atoms] = x;
+		this.y[atoms] = y;
+		this.z[atoms] = z;
+		this.occupancy[atoms] = occupancy;
+		this.tempFactor[atoms] = tempFactor;
+		this.element[atoms] = element;
+		this.residueOfAtom[atoms] = residue;
+		residues = Math.max(residues, residue+1);
+		atoms++;
+	}
+
+	/**
+	 * @return whether residue and het flag of the atom match the most recently added atom
+	 */
+	boolean isSameResidueAsLastAtom(boolean isHet, String residueName, String chainId, int resNum, String insertionCode) {
+		int atom = atoms - 1;
+		return atom >= 0
+			&& this.isHetAtom[atom] == isHet
+			&& this.resNum[atom] == resNum
+			&& this.residueName[atom].equals(residueName)
+			&& this.chainId[atom].equals(chainId)
+			&& this.insertionCode[atom].equals(insertionCode);
+	}
+
+	int getLastAtomResidue() {
+		return residueOfAtom[atoms-1];
+	}
+
+	void setLastAtomTerminal() {
+		if (atoms != 0)
+			isTerminalC[atoms-1] = true;
+	}
+
+	void addConnection(int serial1, int serial2) {
+		if (connectCount == connect.length)
+			connect = Arrays.copyOf(connect, 2 * connectCount);
+		connect[connectCount++] = (serial1 < serial2) ?
+				((long)serial1 << 32) | (serial2 & 0xFFFFFFFFL)
+			  : ((long)serial2 << 32) | (serial1 & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Builds the residue index and removes duplicate connections after parsing.
+	 */
+	void finish() {
+		residueAtomStart = new int[residues+1];
+		for (int atom=0; atom<atoms; atom++)
+			residueAtomStart[residueOfAtom[atom]+1]++;
+		for (int r=0; r<residues; r++)
+			residueAtomStart[r+1] += residueAtomStart[r];
+		residueAtom = new int[atoms];
+		int[] count = new int[residues];
+		for (int atom=0; atom<atoms; atom++) {
+			int r = residueOfAtom[atom];
+			residueAtom[residueAtomStart[r] + count[r]++] = atom;
+		}
+
+		Integer[] order = new Integer[atoms];
+		for (int atom=0; atom<atoms; atom++)
+			order[atom] = atom;
+		Arrays.sort(order, Comparator.comparingInt(atom -> serialId[atom]));
+		sortedSerialAtom = new int[atoms];
+		for (int i=0; i<atoms; i++)
+			sortedSerialAtom[i] = order[i];
+
+		// sort and remove duplicates like the SortedList used by PDBFileParser
+		Arrays.sort(connect, 0, connectCount);
+		int unique = 0;
+		for (int i=0; i<connectCount; i++)
+			if (unique == 0 || connect[i] != connect[unique-1])
+				connect[unique++] = connect[i];
+		connectCount = unique;
+	}
+
+	/**
+	 * @param threadCount number of threads used to build residue molecules; 0 for all available processors
+	 */
+	public void setThreadCount(int threadCount) {
+		this.threadCount = (threadCount <= 0) ? Runtime.getRuntime().availableProcessors() : threadCount;
+	}
+
+	public int getAtomCount() {
+		return atoms;
+	}
+
+	public int getSerialId(int atom) {
+		return serialId[atom];
+	}
+
+	public String getAtomName(int atom) {
+		return atomName[atom];
+	}
+
+	public double getAtomX(int atom) {
+		return x[atom];
+	}
+
+	public double getAtomY(int atom) {
+		return y[atom];
+	}
+
+	public double getAtomZ(int atom) {
+		return z[atom];
+	}
+
+	public boolean isHetAtom(int atom) {
+		return isHetAtom[atom];
+	}
+
+	public int getResidue(int atom) {
+		return residueOfAtom[atom];
+	}
+
+	/**
+	 * @return number of residues, which are distinguished by name, number, insertion code, chain and ATOM/HETATM type
+	 */
+	public int getResidueCount() {
+		return residues;
+	}
+
+	public String getResidueName(int residue) {
+		return residueName[residueAtom[residueAtomStart[residue]]];
+	}
+
+	public int getResidueNumber(int residue) {
+		return resNum[residueAtom[residueAtomStart[residue]]];
+	}
+
+	public String getResidueChainID(int residue) {
+		return chainId[residueAtom[residueAtomStart[residue]]];
+	}
+
+	public String getResidueInsertionCode(int residue) {
+		return insertionCode[residueAtom[residueAtomStart[residue]]];
+	}
+
+	/**
+	 * @return true if the residue consists of HETATM records
+	 */
+	public boolean isHetResidue(int residue) {
+		return isHetAtom[residueAtom[residueAtomStart[residue]]];
+	}
+
+	public int[] getResidueAtoms(int residue) {
+		return Arrays.copyOfRange(residueAtom, residueAtomStart[residue], residueAtomStart[residue+1]);
+	}
+
+	/**
+	 * @param chainID one or more chain identifiers
+	 * @return all residues of the given chains in file order
+	 */
+	public int[] getChainResidues(String... chainID) {
+		Set<String> chainSet = new HashSet<>(Arrays.asList(chainID));
+		int[] residue = new int[residues];
+		int count = 0;
+		for (int r=0; r<residues; r++)
+			if (chainSet.contains(getResidueChainID(r)))
+				residue[count++] = r;
+		return Arrays.copyOf(residue, count);
+	}
+
+	/**
+	 * @param residueName e.g. a ligand's three letter code
+	 * @return all residues with the given name in file order
+	 */
+	public int[] findResidues(String residueName) {
+		int[] residue = new int[residues];
+		int count = 0;
+		for (int r=0; r<residues; r++)
+			if (getResidueName(r).equals(residueName))
+				residue[count++] = r;
+		return Arrays.copyOf(residue, count);
+	}
+
+	/**
+	 * Determines all residues, which have at least one atom within the given distance of any atom
+	 * of the given residues, e.g. the binding site of a ligand.
+	 * @param residue residues defining the center, e.g. a ligand
+	 * @param radius maximum distance in Angstrom
+	 * @param includeWater whether HOH residues shall be included
+	 * @return residues of the binding site including the given ones in file order
+	 */
+	public int[] getBindingSiteResidues(int[] residue, double radius, boolean includeWater) {
+		SpatialHash hash = new SpatialHash(radius, atoms);
+		for (int atom=0; atom<atoms; atom++)
+			hash.put(atom, x[atom], y[atom], z[atom]);
+
+		boolean[] isSelected = new boolean[residues];
+		for (int r:residue)
+			isSelected[r] = true;
+
+		int[] neighbour = new int[64];
+		for (int r:residue) {
+			for (int i=residueAtomStart[r]; i<residueAtomStart[r+1]; i++) {
+				int atom = residueAtom[i];
+				int count = hash.getNeighbours(x[atom], y[atom], z[atom], radius, neighbour);
+				if (count > neighbour.length) {
+					neighbour = new int[2*count];
+					count = hash.getNeighbours(x[atom], y[atom], z[atom], radius, neighbour);
+				}
+				for (int j=0; j<count; j++) {
+					int nr = residueOfAtom[neighbour[j]];
+					if (includeWater || !getResidueName(nr).equals("HOH"))
+						isSelected[nr] = true;
+				}
+			}
+		}
+
+		int[] selection = new int[residues];
+		int count = 0;
+		for (int r=0; r<residues; r++)
+			if (isSelected[r])
+				selection[count++] = r;
+		return Arrays.copyOf(selection, count);
+	}
+
+	/**
+	 * @return the atom as AtomRecord as PDBFileParser would create it
+	 */
+	private AtomRecord createAtomRecord(int atom) {
+		AtomRecord record = new AtomRecord(serialId[atom], atomName[atom], altLoc[atom], residueName[atom], chainId[atom],
+				resNum[atom], insertionCode[atom], x[atom], y[atom], z[atom], occupancy[atom], tempFactor[atom], element[atom]);
+		record.setTerminalC(isTerminalC[atom]);
+		return record;
+	}
+
+	private List<AtomRecord> createAtomRecords(List<Integer> residueList) {
+		List<AtomRecord> records = new ArrayList<>();
+		for (int r:residueList)
+			for (int i=residueAtomStart[r]; i<residueAtomStart[r+1]; i++)
+				records.add(createAtomRecord(residueAtom[i]));
+		return records;
+	}
+
+	private int getAtomFromSerial(int serial) {
+		int low = 0;
+		int high = atoms - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midSerial = serialId[sortedSerialAtom[mid]];
+			if (midSerial < serial)
+				low = mid + 1;
+			else if (midSerial > serial)
+				high = mid - 1;
+			else
+				return sortedSerialAtom[mid];
+		}
+		return -1;
+	}
+
+	/**
+	 * Builds molecules for all residues.
+	 * @see #extractMols(int[], boolean)
+	 */
+	public Map<String,List<Molecule3D>> extractMols(boolean detachCovalentLigands) {
+		int[] residue = new int[residues];
+		for (int r=0; r<residues; r++)
+			residue[r] = r;
+		return extractMols(residue, detachCovalentLigands);
+	}
+
+	/**
+	 * Builds molecules for the given residues only and returns them grouped by
+	 * StructureAssembler.PROTEIN_GROUP, LIGAND_GROUP and SOLVENT_GROUP. Residue molecules
+	 * and their bonds are created in parallel. Amino acid residues are then coupled into
+	 * one protein molecule as by the StructureAssembler. HETATM residues connected by
+	 * CONECT records are merged; if they are connected to selected protein residues,
+	 * they become part of the protein unless detachCovalentLigands is true. Bonds are then
+	 * completed and bond orders calculated as by the StructureAssembler, such that the molecules
+	 * are the same as those that PDBFileParser would create from the same atoms.
+	 * Note that this last step runs serially on the coupled protein: distance based bonds may connect
+	 * different residues (e.g. disulfide bridges) and bond orders depend on
+	 * ring and neighbour perception of the complete molecule. Doing it per residue would change the
+	 * result, so only residue construction and HETATM molecules profit from multiple threads.
+	 * @param residue selected residues, e.g. from getChainResidues() or getBindingSiteResidues()
+	 * @param detachCovalentLigands whether ligands bonded to the protein shall be separate molecules
+	 * @return map from group name to molecules
+	 */
+	public Map<String,List<Molecule3D>> extractMols(int[] residue, boolean detachCovalentLigands) {
+		boolean[] isSelected = new boolean[residues];
+		for (int r:residue)
+			isSelected[r] = true;
+
+		// group HETATM residues connected by CONECT records using union-find; group -1 is the protein
+		int[] group = new int[residues];
+		for (int r=0; r<residues; r++)
+			group[r] = isHetResidue(r) ? r : -1;
+		for (int i=0; i<connectCount; i++) {
+			int atom1 = getAtomFromSerial((int)(connect[i] >>> 32));
+			int atom2 = getAtomFromSerial((int)connect[i]);
+			if (atom1 == -1 || atom2 == -1
+			 || !isSelected[residueOfAtom[atom1]] || !isSelected[residueOfAtom[atom2]])
+				continue;
+			int group1 = findGroup(group, residueOfAtom[atom1]);
+			int group2 = findGroup(group, residueOfAtom[atom2]);
+			if (group1 == group2)
+				continue;
+			if (group1 == -1 || group2 == -1) {
+				if (!detachCovalentLigands)
+					group[Math.max(group1, group2)] = -1;
+			}
+			else {
+				group[Math.max(group1, group2)] = Math.min(group1, group2);
+			}
+		}
+
+		List<Integer> proteinResidueList = new ArrayList<>();
+		TreeMap<Integer,List<Integer>> hetGroupMap = new TreeMap<>();
+		for (int r=0; r<residues; r++) {
+			if (isSelected[r]) {
+				int g = findGroup(group, r);
+				if (g == -1)
+					proteinResidueList.add(r);
+				else
+					hetGroupMap.computeIfAbsent(g, k -> new ArrayList<>()).add(r);
+			}
+		}
+
+		List<Callable<Residue>> proteinTask = new ArrayList<>();
+		for (int r:proteinResidueList)
+			proteinTask.add(() -> new Residue(createAtomRecords(Collections.singletonList(r)), true, false));
+		List<Callable<Molecule3D>> hetTask = new ArrayList<>();
+		for (List<Integer> residueList:hetGroupMap.values())
+			hetTask.add(() -> createHetMolecule(residueList));
+
+		List<Residue> proteinResidues = new ArrayList<>();
+		List<Molecule3D> hetMols = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount, r -> {
+			Thread t = new Thread(r, "PDB Residue Builder");
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			for (Future<Residue> future:executor.invokeAll(proteinTask))
+				proteinResidues.add(future.get());
+			for (Future<Molecule3D> future:executor.invokeAll(hetTask))
+				hetMols.add(future.get());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		Map<String,List<Molecule3D>> mols = new HashMap<>();
+		mols.put(StructureAssembler.PROTEIN_GROUP, new ArrayList<>());
+		mols.put(StructureAssembler.LIGAND_GROUP, new ArrayList<>());
+		mols.put(StructureAssembler.SOLVENT_GROUP, new ArrayList<>());
+
+		Molecule3D protein = buildProtein(proteinResidues, mols);
+		if (protein != null) {
+			createBonds(protein);
+			mols.get(StructureAssembler.PROTEIN_GROUP).add(protein);
+		}
+
+		for (Molecule3D mol:hetMols) {
+			if (mol.getAtomAmino(0).equals("HOH"))
+				mols.get(StructureAssembler.SOLVENT_GROUP).add(mol);
+			else
+				mols.get(StructureAssembler.LIGAND_GROUP).add(mol);
+		}
+
+		return mols;
+	}
+
+	private static int findGroup(int[] group, int residue) {
+		while (group[residue] != residue) {
+			if (group[residue] == -1)
+				return -1;
+			residue = group[residue];
+		}
+		return residue;
+	}
+
+	private Molecule3D createHetMolecule(List<Integer> residueList) {
+		Molecule3D mol = new Residue(createAtomRecords(residueList), false, false).getMolecule();
+		createBonds(mol);
+		return mol;
+	}
+
+	/**
+	 * Adds bonds from CONECT records or, if there are none, from atom distances, and calculates
+	 * bond orders the same way the StructureAssembler does.
+	 */
+	private void createBonds(Molecule3D mol) {
+		if (connectCount == 0) {
+			if (mol.getAllAtoms() > 1) {
+				try {
+					BondsCalculator.createBonds(mol, true, null);
+					BondsCalculator.calculateBondOrders(mol, true);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		else {
+			addConnections(mol);
+			try {
+				if (mol.getAllBonds() == 0)	// CONECT records didn't cover this molecule
+					BondsCalculator.createBonds(mol, true, null);
+				BondsCalculator.calculateBondOrders(mol, true);
+			}
+			catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * Adds bonds from CONECT records between atoms of the molecule. Existing bonds are kept.
+	 */
+	private void addConnections(Molecule3D mol) {
+		TreeMap<Integer,Integer> sequenceToAtomMap = new TreeMap<>();
+		for (int atom=0; atom<mol.getAllAtoms(); atom++) {
+			int sequence = mol.getAtomSequence(atom);
+			if (sequence != -1)
+				sequenceToAtomMap.put(sequence, atom);
+		}
+
+		for (int i=0; i<connectCount; i++) {
+			Integer atom1 = sequenceToAtomMap.get((int)(connect[i] >>> 32));
+			Integer atom2 = sequenceToAtomMap.get((int)connect[i]);
+			if (atom1 != null && atom2 != null)
+				mol.addBond(atom1, atom2);
+		}
+	}
+
+	/**
+	 * Couples amino acid residues in chain and residue number order as the StructureAssembler does.
+	 * @return protein or null, if there are no protein residues
+	 */
+	private Molecule3D buildProtein(List<Residue> residues, Map<String,List<Molecule3D>> mols) {
+		residues.sort((c1,c2) -> {
+			if(!c1.getChainID().equals(c2.getChainID())) //different chains
+				return c1.getChainID().compareTo(c2.getChainID());
+			if(c1.getResnum()!=c2.getResnum())
+				return Integer.compare(c1.getResnum(), c2.getResnum());
+			return c1.getInsertionCode().compareTo(c2.getInsertionCode());
+		});
+
+		ProteinSynthesizer proteinSynthesizer = new ProteinSynthesizer();
+		List<Molecule3D> protMols = new ArrayList<>();
+		for(Residue residue : residues) {
+			Molecule3D fragment = residue.getMolecule();
+			if(fragment.getAtomAmino(0).trim().equals("ACT") || fragment.getAtomAmino(0).trim().equals("LIG")) {
+				mols.get(StructureAssembler.LIGAND_GROUP).add(fragment);
+				continue;
+			}
+			else if(fragment.getAtomAmino(0).trim().equals("HOH")) {
+				mols.get(StructureAssembler.SOLVENT_GROUP).add(fragment);
+				continue;
+			}
+
+			if(proteinSynthesizer.addResidue(fragment)) {
+				if(residue.isTerminal()) {
+					protMols.add(proteinSynthesizer.getProtein());
+					proteinSynthesizer = new ProteinSynthesizer();
+				}
+			}
+			else { //coupling failed
+				protMols.add(proteinSynthesizer.getProtein());
+				proteinSynthesizer = new ProteinSynthesizer();
+				proteinSynthesizer.addResidue(fragment);
+			}
+		}
+		Molecule3D nextMol = proteinSynthesizer.getProtein();
+		if(nextMol!=null && !protMols.contains(nextMol))
+			protMols.add(nextMol);
+		protMols.removeIf(Objects::isNull);
+		return protMols.stream().reduce((mol1,mol2) -> {
+			mol1.addMolecule(mol2);
+			return mol1;
+		}).orElse(null);
+	}
+}
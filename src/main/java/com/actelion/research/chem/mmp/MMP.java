@@ -39,23 +39,25 @@ import com.actelion.research.chem.StereoMolecule;
 import com.actelion.research.chem.io.CompoundFileParser;
 import com.actelion.research.chem.mmp.MMPFragmenter.MoleculeIndexID;
 
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.*;
 import java.math.BigDecimal;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class MMP {
 	private static String VERSION = "1.1";									  // Version 1.1 has a modified Enumerator method (slightly faster reading)
 	private static final String r1H = MMPFragmenter.createR1HMoleculeID();    // R1-H molecule IDCode (for Hydrogen replacements)
 	private static final boolean TRANSFORM_UM_TO_PIC50 = true;                // transforms uM to pIC50 if a field name finishes with "_uM"
-	private int maxValueAtoms = 0;                                            // size of the biggest fragment (value), for enumeration
+	private static final int BATCH_SIZE = 1000;                               // number of molecules read before the fragmented molecules are added
+	private static final String STATE_MAGIC = "MMPS";                         // identifies files written by saveState()
+	private static final int STATE_VERSION = 1;
 	
-	private MMPairs matchedMolecularPairs;                                    // container for all Matched Molecular Pairs (result of enumeration)
-	private HashMap<Integer, HashMap<String, ArrayList<int[]>>> mMPIndex;     // valueAtoms -- keys - list of values ({valueIndex, moleculeIndex})
+	private HashMap<Integer, HashMap<Long, ArrayList<int[]>>> mMPIndex;       // valueAtoms -- keys (see toKeys()) - list of values ({valueIndex, moleculeIndex})
 	private HashMap<String, ArrayList<MoleculeIndex>> wholeMoleculesIndex;    // IDCode - molIndex, molName, molData
 	private List<List<String[]>> moleculesFragmentsID;                        // container for "clean" fragments (without R-groups) and MolName
 	private MMPUniqueFragments mmpUniqueFragments;                            // Set of unique fragmentsID
@@ -67,6 +69,19 @@ public class MMP {
 	private float[] fieldPercentiles95;                                       // list of 95th percentile
 	private int moleculesRowCount;
 	private String datasetName;
+	private int threadCount;                                                  // number of threads for fragmentation, enumeration and FP calculation
+	private boolean verbose;
+	
+	/**
+	 * One row read from the Compound File Parser
+	 */
+	private static class MoleculeRow {
+		String molID;
+		String molIDCoord;
+		String moleculeName;
+		String[] moleculeData;
+		Future<MMPFragmenter> fragmenter;                                     // null if the molecule is already part of the data set
+	}
 	
 	static public class MoleculeIndex {
 		int moleculeIndex;
@@ -122,12 +137,31 @@ public class MMP {
 		return true;  
 	}
 	
+	/**
+	 * Packs the 'key' fragment indexes into one long
+	 * @param key1Index index of the 'left' key fragment
+	 * @param key2Index index of the 'right' key fragment, -1 for single cuts
+	 * @return packed keys
+	 */
+	static long toKeys(int key1Index, int key2Index) {
+		return ((long)key1Index << 32) | (key2Index & 0xffffffffL);
+	}
+	
+	/**
+	 * Returns the cut type of packed keys
+	 * @param keys packed keys (see toKeys())
+	 * @return "1" for single cuts, "2" for double cuts
+	 */
+	static String getCutType(long keys) {
+		return (int)keys == -1 ? "1" : "2";
+	}
+	
 	/**
 	 * Gets the mapped values corresponding to a defined size of the 'value' (variable part of the molecule)
 	 * @param valueAtoms Number of heavy atoms of the 'value' (variable part of the molecule)
 	 * @return Hashmap of keys - list of values ({valueIndex, moleculeIndex})
 	 */
-	private HashMap<String, ArrayList<int[]>> getIndex(int valueAtoms) {
+	private HashMap<Long, ArrayList<int[]>> getIndex(int valueAtoms) {
 		if (mMPIndex.containsKey(valueAtoms)) {
 			return mMPIndex.get(valueAtoms);
 		}
@@ -137,78 +171,84 @@ public class MMP {
 	/**
 	 * Add new value to mMPIndex
 	 * @param valueAtoms Number of heavy atoms of the 'value' (variable part of the molecule)
-	 * @param keys Array of one (single cut) or two (double cut) strings for the 'key' (constant part(s) of the molecule) 
+	 * @param keys packed 'left' and 'right' fragment indexes of the 'key' (constant part(s) of the molecule), see toKeys()
 	 * @param values Array of two integers (valueIndex, moleculeIndex)
-	 * @param isH true if the 'value' is a Hydrogen atom
-	 * @return true/false if the new values were added
 	 */
-	private boolean addValues(int valueAtoms, String keys, int[] values, boolean isH) {
-		boolean added = true;
-		HashMap<String, ArrayList<int[]>> keysHash = null;
-		ArrayList<int[]> valuesList = null;
-		if (mMPIndex.containsKey(valueAtoms)) {
-			keysHash = mMPIndex.get(valueAtoms);
+	private void addValues(int valueAtoms, long keys, int[] values) {
+		HashMap<Long, ArrayList<int[]>> keysHash = mMPIndex.get(valueAtoms);
+		if (keysHash == null) {
+			keysHash = new HashMap<Long, ArrayList<int[]>>();
+			mMPIndex.put(valueAtoms, keysHash);
 		}
-		else {
-			keysHash = new HashMap<String, ArrayList<int[]>>();
-		}
-		if (keysHash.containsKey(keys)) {
-			valuesList = keysHash.get(keys);
-			if (valuesList == null)
-				valuesList = new ArrayList<int[]>();
-			if (isH == true && !valuesList.isEmpty()) {
-				int[] lastItem = valuesList.get(valuesList.size() - 1);
-				if (lastItem[0] != r1HIndex)
-					valuesList.add(values);
-				else
-					added = false;
-			}
-			else {
-				valuesList.add(values);
-			}
-		}
-		else {
+		ArrayList<int[]> valuesList = keysHash.get(keys);
+		if (valuesList == null) {
 			valuesList = new ArrayList<int[]>();
-			valuesList.add(values);
+			keysHash.put(keys, valuesList);
 		}
-		keysHash.put(keys, valuesList);
-		mMPIndex.put(valueAtoms, keysHash);
-		return added;
+		valuesList.add(values);
 	}
 	
 	/**
 	 * Generates a hash table of keys - list of values;<br>
-	 * for double cuts, one key consists of a '\t'-separated string<br>
-	 * of the two 'left' and 'right' fragmentsID.
+	 * for double cuts, one key consists of the two 'left' and 'right'<br>
+	 * fragment indexes packed into one long.<br>
+	 * Molecules are fragmented in parallel using all available processors.
 	 * @param datasetName Name of the data set
 	 * @param compoundFileParser Compound File Parser (SD Reader, database link, ...)
 	 * @param verbose Verbose
 	 * @throws IOException
 	 */
 	public MMP(String datasetName, CompoundFileParser compoundFileParser, boolean verbose) throws IOException {
-		mMPIndex = new HashMap<Integer, HashMap<String, ArrayList<int[]>>>();
+		this(datasetName, compoundFileParser, Runtime.getRuntime().availableProcessors(), verbose);
+	}
+	
+	/**
+	 * Generates a hash table of keys - list of values
+	 * @param datasetName Name of the data set
+	 * @param compoundFileParser Compound File Parser (SD Reader, database link, ...)
+	 * @param threadCount Number of threads used for fragmentation and enumeration
+	 * @param verbose Verbose
+	 * @throws IOException
+	 */
+	public MMP(String datasetName, CompoundFileParser compoundFileParser, int threadCount, boolean verbose) throws IOException {
+		this(datasetName, compoundFileParser.getFieldNames(), threadCount, verbose);
+		addMolecules(compoundFileParser);
+	}
+	
+	private MMP(String datasetName, String[] fieldNames, int threadCount, boolean verbose) throws IOException {
+		mMPIndex = new HashMap<Integer, HashMap<Long, ArrayList<int[]>>>();
 		wholeMoleculesIndex = new LinkedHashMap<String, ArrayList<MoleculeIndex>>();
 		moleculesFragmentsID = new ArrayList<List<String[]>>();
-		matchedMolecularPairs = new MMPairs();
 		mmpUniqueFragments = new MMPUniqueFragments();
 		r1HIndex = mmpUniqueFragments.addFragment(r1H, 0, null); // we force the number of atoms to 0 because [H] counts for 1
 		mmpFragments = new MMPFragments();
 		moleculesRowCount = 0;
-		fieldNames = compoundFileParser.getFieldNames();
+		this.fieldNames = fieldNames;
 		fieldNumerics = new boolean[fieldNames.length];
 		fieldPercentiles5 = new float[fieldNames.length];
 		fieldPercentiles95 = new float[fieldNames.length];
-		IDCodeParser idCodeParser = new IDCodeParser();
-		boolean isSDFileParser = compoundFileParser.getClass().getName().contains("SDFileParser");
-		@SuppressWarnings("unchecked")
-		  ArrayList<Float>[] fieldDatas = (ArrayList<Float>[])new ArrayList[fieldNames.length];
-		for (int i = 0; i < fieldNames.length; i++) {
-			fieldDatas[i] = new ArrayList<Float>();
-		}
 		Arrays.fill(fieldNumerics, true);
 		this.datasetName = datasetName;
+		this.threadCount = Math.max(1, threadCount);
+		this.verbose = verbose;
+	}
+	
+	/**
+	 * Adds molecules to the data set; only molecules which are not yet part of the data set are fragmented.<br>
+	 * Molecules are read sequentially, fragmented in parallel and added in the order of the Compound File Parser.<br>
+	 * Data fields are matched by name with the data fields of the data set.
+	 * @param compoundFileParser Compound File Parser (SD Reader, database link, ...)
+	 * @throws IOException
+	 */
+	public void addMolecules(CompoundFileParser compoundFileParser) throws IOException {
+		int[] fieldIndexes = new int[fieldNames.length];
+		List<String> parserFieldNames = Arrays.asList(compoundFileParser.getFieldNames());
+		for (int i=0; i<fieldNames.length; i++) {
+			fieldIndexes[i] = parserFieldNames.indexOf(fieldNames[i]);
+		}
+		IDCodeParser idCodeParser = new IDCodeParser();
+		boolean isSDFileParser = compoundFileParser.getClass().getName().contains("SDFileParser");
 		NumberFormat formatter = new DecimalFormat("#.##");
-		int molCounter = 0;
 		if (verbose) {
 			if (compoundFileParser.getRowCount() != -1) {
 				System.out.println(getDateAndTime() + ": fragmenting " + compoundFileParser.getRowCount() + " molecules...");
@@ -217,175 +257,333 @@ public class MMP {
 				System.out.println(getDateAndTime() + ": fragmenting molecules...");
 			}
 		}
-		while (compoundFileParser.next()) {
-			StereoMolecule mol = compoundFileParser.getMolecule();
-			mol.stripSmallFragments();
-			String moleculeName = (compoundFileParser.getMoleculeName() == null) ? mol.getName() : compoundFileParser.getMoleculeName();
-			String molID = compoundFileParser.getIDCode();
-			String molIDCoord = compoundFileParser.getCoordinates();
-			if (isSDFileParser) {
-				// TODO: avoid re-parsing the IDCode to ensure that the saved molecule is the same as this one - problem occurs with SDF files...
-				idCodeParser.parse(mol, molID);
-			}
-			String moleculeData[] = new String[fieldNames.length];
-			for (int i=0; i<fieldNames.length; i++) {
-				if (fieldNumerics[i] != false) {
-					String fieldData = compoundFileParser.getFieldData(i);
-					if (fieldData == null || fieldData.equals("N/A") || fieldData.equals("?")) {
-						fieldData = null;
-					}
-					else if ((int) fieldData.charAt(0) == 65533) { // weird unicode question mark character
-						fieldData = null;
-					}
-					moleculeData[i] = fieldData;
-					if (!isNumeric(fieldData) && !isNumeric(fieldData.substring(1)) && !isNumeric(fieldData.substring(2))) { // for <, >, >= and <= symbols
-						fieldNumerics[i] = false;
-					}
-					else if (fieldData != null && isNumeric(fieldData)) {
-						if (TRANSFORM_UM_TO_PIC50 && fieldNames[i].endsWith("_uM")) {
-							float data = round((float)-Math.log10(Float.parseFloat(fieldData)*1.0E-6), 3);
-							fieldData = Float.toString(data);
-							moleculeData[i] = fieldData;
-							fieldDatas[i].add(data);
-						}
-						else {
-							fieldDatas[i].add(Float.parseFloat(fieldData));
-							moleculeData[i] = formatter.format(Float.parseFloat(fieldData));
-						}
-					}
-					else if (fieldData != null && !fieldData.startsWith("<") && !fieldData.startsWith(">")) {
-						fieldNumerics[i] = false;
+		ExecutorService executor = createExecutor("MMP-fragmenter");
+		try {
+			List<MoleculeRow> batch = new ArrayList<MoleculeRow>(BATCH_SIZE);
+			Set<String> batchMolIDs = new HashSet<String>();
+			boolean hasNext = true;
+			while (hasNext) {
+				hasNext = compoundFileParser.next();
+				if (hasNext) {
+					StereoMolecule mol = compoundFileParser.getMolecule();
+					mol.stripSmallFragments();
+					MoleculeRow row = new MoleculeRow();
+					row.moleculeName = (compoundFileParser.getMoleculeName() == null) ? mol.getName() : compoundFileParser.getMoleculeName();
+					row.molID = compoundFileParser.getIDCode();
+					row.molIDCoord = compoundFileParser.getCoordinates();
+					if (isSDFileParser) {
+						// TODO: avoid re-parsing the IDCode to ensure that the saved molecule is the same as this one - problem occurs with SDF files...
+						idCodeParser.parse(mol, row.molID);
 					}
-					else if (fieldData != null && (fieldData.startsWith("<=") || fieldData.startsWith(">="))) {
-						if (TRANSFORM_UM_TO_PIC50 && fieldNames[i].endsWith("_uM")) {
-							float data = round((float)-Math.log10(Float.parseFloat(fieldData.substring(2))*1.0E-6), 3);
-							if (fieldData.startsWith(">=")) {
-								moleculeData[i] = "<=" + Float.toString(data);
+					row.moleculeData = new String[fieldNames.length];
+					for (int i=0; i<fieldNames.length; i++) {
+						if (fieldNumerics[i] != false && fieldIndexes[i] != -1) {
+							String fieldData = compoundFileParser.getFieldData(fieldIndexes[i]);
+							if (fieldData == null || fieldData.equals("N/A") || fieldData.equals("?") || fieldData.isEmpty()) {
+								fieldData = null;
 							}
-							else {
-								moleculeData[i] = ">=" + Float.toString(data);
+							else if ((int) fieldData.charAt(0) == 65533) { // weird unicode question mark character
+								fieldData = null;
 							}
-						}
-						else {
-							moleculeData[i] = fieldData.substring(0, 2) + formatter.format(Float.parseFloat(fieldData.substring(2)));
-						}
-					}
-					else if (fieldData != null && (fieldData.startsWith("<") || fieldData.startsWith(">"))) {
-						if (TRANSFORM_UM_TO_PIC50 && fieldNames[i].endsWith("_uM")) {
-							float data = round((float)-Math.log10(Float.parseFloat(fieldData.substring(1))*1.0E-6), 3);
-							if (fieldData.startsWith(">")) {
-								moleculeData[i] = "<" + Float.toString(data);
+							row.moleculeData[i] = fieldData;
+							if (!isNumeric(fieldData) && !isNumeric(fieldData.substring(1)) && !isNumeric(fieldData.substring(2))) { // for <, >, >= and <= symbols
+								fieldNumerics[i] = false;
 							}
-							else {
-								moleculeData[i] = ">" + Float.toString(data);
+							else if (fieldData != null && isNumeric(fieldData)) {
+								if (TRANSFORM_UM_TO_PIC50 && fieldNames[i].endsWith("_uM")) {
+									float data = round((float)-Math.log10(Float.parseFloat(fieldData)*1.0E-6), 3);
+									row.moleculeData[i] = Float.toString(data);
+								}
+								else {
+									row.moleculeData[i] = formatter.format(Float.parseFloat(fieldData));
+								}
+							}
+							else if (fieldData != null && !fieldData.startsWith("<") && !fieldData.startsWith(">")) {
+								fieldNumerics[i] = false;
+							}
+							else if (fieldData != null && (fieldData.startsWith("<=") || fieldData.startsWith(">="))) {
+								if (TRANSFORM_UM_TO_PIC50 && fieldNames[i].endsWith("_uM")) {
+									float data = round((float)-Math.log10(Float.parseFloat(fieldData.substring(2))*1.0E-6), 3);
+									if (fieldData.startsWith(">=")) {
+										row.moleculeData[i] = "<=" + Float.toString(data);
+									}
+									else {
+										row.moleculeData[i] = ">=" + Float.toString(data);
+									}
+								}
+								else {
+									row.moleculeData[i] = fieldData.substring(0, 2) + formatter.format(Float.parseFloat(fieldData.substring(2)));
+								}
+							}
+							else if (fieldData != null && (fieldData.startsWith("<") || fieldData.startsWith(">"))) {
+								if (TRANSFORM_UM_TO_PIC50 && fieldNames[i].endsWith("_uM")) {
+									float data = round((float)-Math.log10(Float.parseFloat(fieldData.substring(1))*1.0E-6), 3);
+									if (fieldData.startsWith(">")) {
+										row.moleculeData[i] = "<" + Float.toString(data);
+									}
+									else {
+										row.moleculeData[i] = ">" + Float.toString(data);
+									}
+								}
+								else {
+									row.moleculeData[i] = fieldData.substring(0, 1) + formatter.format(Float.parseFloat(fieldData.substring(1)));
+								}
 							}
-						}
-						else {
-							moleculeData[i] = fieldData.substring(0, 1) + formatter.format(Float.parseFloat(fieldData.substring(1)));
 						}
 					}
-				}				
-			}
-			ArrayList<MoleculeIndex> moleculesIndex = new ArrayList<MoleculeIndex>();
-			int molIndex = molCounter; 
-			if (!wholeMoleculesIndex.containsKey(molID)) {
-				MMPFragmenter mmp = new MMPFragmenter(mol);
-				moleculesFragmentsID.add(mmp.getMoleculeFragmentsID());
-				List<MoleculeIndexID> moleculeIndexesID = mmp.getMoleculeIndexesID(false);
-				for (MoleculeIndexID moleculeIndexID: moleculeIndexesID) {
-					String[] keysID = moleculeIndexID.getKeysID();
-					String valueID = moleculeIndexID.getValueID();
-					int valueAtoms = moleculeIndexID.getValueIDAtoms();
-					int key1Index = mmpUniqueFragments.addFragment(keysID[0]);
-					int valueIndex = mmpUniqueFragments.addFragment(valueID);
-					moleculeIndexID.setValueIndex(valueIndex);
-					if (keysID.length == 1) { // single cut
-						addValues(valueAtoms, Integer.toString(key1Index) + "\t", new int[]{valueIndex, molCounter}, false);
-						moleculeIndexID.setKeysIndex(new int[]{key1Index});
+					if (!wholeMoleculesIndex.containsKey(row.molID) && batchMolIDs.add(row.molID)) {
+						row.fragmenter = submitFragmentation(executor, mol);
 					}
-					else { // double cut
-						int key2Index = mmpUniqueFragments.addFragment(keysID[1]);
-						addValues(valueAtoms, Integer.toString(key1Index) + "\t" + Integer.toString(key2Index), new int[]{valueIndex, molCounter}, false);
-						moleculeIndexID.setKeysIndex(new int[]{key1Index, key2Index});
-					}
-					mmpFragments.addFragments(molCounter, moleculeIndexID);
-					if (moleculeIndexID.getValueIDAtoms() > maxValueAtoms) {
-						maxValueAtoms = moleculeIndexID.getValueIDAtoms();
+					batch.add(row);
+				}
+				if (batch.size() == BATCH_SIZE || (!hasNext && batch.size() > 0)) {
+					for (MoleculeRow row: batch) {
+						addMoleculeRow(row);
 					}
+					batch.clear();
+					batchMolIDs.clear();
 				}
-				molCounter++;
-			}
-			else {
-				moleculesIndex = wholeMoleculesIndex.get(molID);
-				molIndex = moleculesIndex.get(0).moleculeIndex;
 			}
-			if (moleculesIndex.size() > 0) {
-				moleculesIndex.add(new MoleculeIndex(molIndex, moleculeName, moleculeData));
-			}
-			else {
-				moleculesIndex.add(new MoleculeIndex(molIndex, molIDCoord, molID, moleculeName, moleculeData));
+		}
+		finally {
+			if (executor != null) {
+				executor.shutdownNow();
 			}
-			wholeMoleculesIndex.put(molID, moleculesIndex);
-			moleculesRowCount++;
-			if (verbose) {
-				if (moleculesRowCount % 1000 == 0) {
-					System.out.println("# " + moleculesRowCount);
-				}
-				else if (moleculesRowCount % 100 == 0) {
-					System.out.print("#");
+		}
+		compoundFileParser.close();
+		if (verbose) {
+			System.out.println(" " + moleculesRowCount);
+		}
+	}
+	
+	/**
+	 * Fragments one molecule, in the calling thread if there is no executor
+	 * @param executor null or ExecutorService
+	 * @param mol molecule to be fragmented
+	 * @return the Future of the MMPFragmenter
+	 */
+	private static Future<MMPFragmenter> submitFragmentation(ExecutorService executor, StereoMolecule mol) {
+		Callable<MMPFragmenter> task = () -> {
+			MMPFragmenter mmp = new MMPFragmenter(mol);
+			mmp.getMoleculeIndexesID(false);
+			mmp.getMoleculeFragmentsID();
+			return mmp;
+		};
+		if (executor != null) {
+			return executor.submit(task);
+		}
+		FutureTask<MMPFragmenter> futureTask = new FutureTask<MMPFragmenter>(task);
+		futureTask.run();
+		return futureTask;
+	}
+	
+	/**
+	 * Adds one row (molecule name and data) to the data set; new molecules are added with their fragments
+	 * @param row
+	 */
+	private void addMoleculeRow(MoleculeRow row) {
+		ArrayList<MoleculeIndex> moleculesIndex = new ArrayList<MoleculeIndex>();
+		int molIndex = moleculesFragmentsID.size();
+		if (!wholeMoleculesIndex.containsKey(row.molID)) {
+			MMPFragmenter mmp = getResult(row.fragmenter);
+			moleculesFragmentsID.add(mmp.getMoleculeFragmentsID());
+			List<MoleculeIndexID> moleculeIndexesID = mmp.getMoleculeIndexesID(false);
+			for (MoleculeIndexID moleculeIndexID: moleculeIndexesID) {
+				String[] keysID = moleculeIndexID.getKeysID();
+				String valueID = moleculeIndexID.getValueID();
+				int valueAtoms = moleculeIndexID.getValueIDAtoms();
+				int key1Index = mmpUniqueFragments.addFragment(keysID[0]);
+				int valueIndex = mmpUniqueFragments.addFragment(valueID);
+				moleculeIndexID.setValueIndex(valueIndex);
+				if (keysID.length == 1) { // single cut
+					addValues(valueAtoms, toKeys(key1Index, -1), new int[]{valueIndex, molIndex});
+					moleculeIndexID.setKeysIndex(new int[]{key1Index});
 				}
-				else if (moleculesRowCount % 10 == 0) {
-					System.out.print(".");
+				else { // double cut
+					int key2Index = mmpUniqueFragments.addFragment(keysID[1]);
+					addValues(valueAtoms, toKeys(key1Index, key2Index), new int[]{valueIndex, molIndex});
+					moleculeIndexID.setKeysIndex(new int[]{key1Index, key2Index});
 				}
+				mmpFragments.addFragments(molIndex, moleculeIndexID);
 			}
 		}
-		// Getting percentiles
+		else {
+			moleculesIndex = wholeMoleculesIndex.get(row.molID);
+			molIndex = moleculesIndex.get(0).moleculeIndex;
+		}
+		if (moleculesIndex.size() > 0) {
+			moleculesIndex.add(new MoleculeIndex(molIndex, row.moleculeName, row.moleculeData));
+		}
+		else {
+			moleculesIndex.add(new MoleculeIndex(molIndex, row.molIDCoord, row.molID, row.moleculeName, row.moleculeData));
+		}
+		wholeMoleculesIndex.put(row.molID, moleculesIndex);
+		moleculesRowCount++;
 		if (verbose) {
-			System.out.println(" " + moleculesRowCount);
-			System.out.println(getDateAndTime() + ": getting percentiles...");
+			if (moleculesRowCount % 1000 == 0) {
+				System.out.println("# " + moleculesRowCount);
+			}
+			else if (moleculesRowCount % 100 == 0) {
+				System.out.print("#");
+			}
+			else if (moleculesRowCount % 10 == 0) {
+				System.out.print(".");
+			}
 		}
-		for (int i=0; i<fieldNames.length; i++) {
-			if (fieldNumerics[i] != false && fieldDatas[i].size() > 0) {
-				Collections.sort(fieldDatas[i]);
-				int index = (int)Math.floor(0.05 * fieldDatas[i].size()); // I use floor so that I don't have to correct for the array indexes starting at 0
-				if (Math.round(0.05f * fieldDatas[i].size()) != 0.05f * fieldDatas[i].size()) {
-					fieldPercentiles5[i] = fieldDatas[i].get(index);
+	}
+	
+	/**
+	 * Removes molecules from the data set; a molecule is removed with its fragments and<br>
+	 * Matched Molecular Pairs once all its names are removed. Molecule indexes are renumbered.
+	 * @param moleculeNames names of the molecules to be removed
+	 * @return number of removed rows
+	 * @throws IOException
+	 */
+	public int removeMolecules(Collection<String> moleculeNames) throws IOException {
+		Set<String> names = new HashSet<String>(moleculeNames);
+		int removedRows = 0;
+		boolean[] isRemoved = new boolean[moleculesFragmentsID.size()];
+		Iterator<ArrayList<MoleculeIndex>> it = wholeMoleculesIndex.values().iterator();
+		while (it.hasNext()) {
+			ArrayList<MoleculeIndex> moleculesIndex = it.next();
+			MoleculeIndex first = moleculesIndex.get(0);
+			for (int i=moleculesIndex.size()-1; i>=0; i--) {
+				if (names.contains(moleculesIndex.get(i).moleculeName)) {
+					moleculesIndex.remove(i);
+					removedRows++;
 				}
-				else {
-					fieldPercentiles5[i] = (fieldDatas[i].get(index) + fieldDatas[i].get(index+1)) / 2.0f;
+			}
+			if (moleculesIndex.isEmpty()) {
+				isRemoved[first.moleculeIndex] = true;
+				it.remove();
+			}
+			else if (moleculesIndex.get(0) != first) { // the first entry carries the idCode and the coordinates
+				moleculesIndex.get(0).setIDCode(first.moleculeIDCode);
+				moleculesIndex.get(0).setIDCoord(first.moleculeIDCoord);
+			}
+		}
+		if (removedRows == 0) {
+			return 0;
+		}
+		int[] newIndexes = new int[isRemoved.length];
+		int counter = 0;
+		for (int i=0; i<isRemoved.length; i++) {
+			newIndexes[i] = isRemoved[i] ? -1 : counter++;
+		}
+		if (counter < isRemoved.length) {
+			for (ArrayList<MoleculeIndex> moleculesIndex: wholeMoleculesIndex.values()) {
+				for (MoleculeIndex moleculeIndex: moleculesIndex) {
+					moleculeIndex.moleculeIndex = newIndexes[moleculeIndex.moleculeIndex];
 				}
-				index = (int)Math.floor(0.95 * fieldDatas[i].size());
-				if (Math.round(0.95f * fieldDatas[i].size()) != 0.95f * fieldDatas[i].size()) {
-					fieldPercentiles95[i] = fieldDatas[i].get(index);
+			}
+			List<List<String[]>> remainingFragmentsID = new ArrayList<List<String[]>>(counter);
+			for (int i=0; i<isRemoved.length; i++) {
+				if (!isRemoved[i]) {
+					remainingFragmentsID.add(moleculesFragmentsID.get(i));
 				}
-				else {
-					fieldPercentiles95[i] = (fieldDatas[i].get(index) + fieldDatas[i].get(index+1)) / 2.0f;
+			}
+			moleculesFragmentsID = remainingFragmentsID;
+			for (HashMap<Long, ArrayList<int[]>> keysHash: mMPIndex.values()) {
+				Iterator<ArrayList<int[]>> valuesIterator = keysHash.values().iterator();
+				while (valuesIterator.hasNext()) {
+					ArrayList<int[]> valuesList = valuesIterator.next();
+					for (int i=valuesList.size()-1; i>=0; i--) {
+						int[] values = valuesList.get(i);
+						if (newIndexes[values[1]] == -1) {
+							valuesList.remove(i);
+						}
+						else {
+							values[1] = newIndexes[values[1]];
+						}
+					}
+					if (valuesList.isEmpty()) {
+						valuesIterator.remove();
+					}
 				}
 			}
-//			else if (fieldNumerics[i] != false && fieldDatas[i].size() == 0) {
-//				fieldNumerics[i] = false;
-//			}
+			mmpFragments.removeMolecules(newIndexes);
 		}
-		// Processing Hydrogens replacements
-		if (verbose)
-			System.out.println(getDateAndTime() + ": processing hydrogen replacements...");
+		moleculesRowCount -= removedRows;
+		return removedRows;
+	}
+	
+	/**
+	 * Processes the Hydrogen replacements: for each fragment with a R-group, if the "clean" fragment<br>
+	 * (R-group replaced by a Hydrogen) is one of the molecules, the R-group fragment is added as 'key'<br>
+	 * with a R1-H 'value'.
+	 * @param hydrogenFragments receives the [keyIndex, r1HIndex, moleculeIndex] of the Hydrogen replacements
+	 * @return Hashmap of keys - list of values ({r1HIndex, moleculeIndex}) for 'values' of size 0
+	 */
+	private HashMap<Long, ArrayList<int[]>> processHydrogenReplacements(List<int[]> hydrogenFragments) {
+		HashMap<Long, ArrayList<int[]>> retVal = new HashMap<Long, ArrayList<int[]>>();
 		for (List<String[]> fragmentsID:moleculesFragmentsID) {
 			for (String[] fragmentID:fragmentsID) { // {R-group, "clean"}
 				if (wholeMoleculesIndex.containsKey(fragmentID[1])) {
 					int moleculeIndex = wholeMoleculesIndex.get(fragmentID[1]).get(0).moleculeIndex;
 					int fragmentIndex = mmpUniqueFragments.addFragment(fragmentID[0]);
-					boolean added = addValues(0, Integer.toString(fragmentIndex) + "\t", new int[]{r1HIndex, moleculeIndex}, true);
-					if (added) {
-						// to do: replace -1 by the correct value (is it needed?)
-						MoleculeIndexID moleculeIndexID = new MoleculeIndexID(new String[]{fragmentID[0]}, new int[]{fragmentIndex}, r1H, r1HIndex, null, 0, new int[]{-1}, new int[]{-1});
-						mmpFragments.addFragments(moleculeIndex, moleculeIndexID); // String[] keysID, String valueID, int[] keysIDAtoms, int valueIDAtoms
+					long keys = toKeys(fragmentIndex, -1);
+					if (!retVal.containsKey(keys)) {
+						ArrayList<int[]> valuesList = new ArrayList<int[]>();
+						valuesList.add(new int[]{r1HIndex, moleculeIndex});
+						retVal.put(keys, valuesList);
+						hydrogenFragments.add(new int[]{fragmentIndex, r1HIndex, moleculeIndex});
 					}
 				}
 			}
 		}
-		// Generating MMPs
+		return retVal;
+	}
+	
+	/**
+	 * Calculates the 5th and 95th percentiles of the numerical data fields
+	 */
+	private void calcPercentiles() {
+		for (int i=0; i<fieldNames.length; i++) {
+			if (fieldNumerics[i] != false) {
+				List<Float> fieldDatas = new ArrayList<Float>();
+				for (ArrayList<MoleculeIndex> moleculesIndex: wholeMoleculesIndex.values()) {
+					for (MoleculeIndex moleculeIndex: moleculesIndex) {
+						String fieldData = moleculeIndex.moleculeData[i];
+						if (fieldData != null && isNumeric(fieldData)) {
+							fieldDatas.add(Float.parseFloat(fieldData));
+						}
+					}
+				}
+				if (fieldDatas.size() > 0) {
+					Collections.sort(fieldDatas);
+					int index = (int)Math.floor(0.05 * fieldDatas.size()); // I use floor so that I don't have to correct for the array indexes starting at 0
+					if (Math.round(0.05f * fieldDatas.size()) != 0.05f * fieldDatas.size()) {
+						fieldPercentiles5[i] = fieldDatas.get(index);
+					}
+					else {
+						fieldPercentiles5[i] = (fieldDatas.get(index) + fieldDatas.get(index+1)) / 2.0f;
+					}
+					index = (int)Math.floor(0.95 * fieldDatas.size());
+					if (Math.round(0.95f * fieldDatas.size()) != 0.95f * fieldDatas.size()) {
+						fieldPercentiles95[i] = fieldDatas.get(index);
+					}
+					else {
+						fieldPercentiles95[i] = (fieldDatas.get(index) + fieldDatas.get(index+1)) / 2.0f;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Enumerates the Matched Molecular Pairs; combinations of sizes are enumerated in parallel<br>
+	 * and written in the order of the combinations.
+	 * @param hydrogenIndex Hashmap of keys - list of values for Hydrogen replacements
+	 * @return the Matched Molecular Pairs
+	 * @throws IOException
+	 */
+	private MMPairs generateMMPs(HashMap<Long, ArrayList<int[]>> hydrogenIndex) throws IOException {
 		if (verbose)
 			System.out.print(getDateAndTime() + ": generating MMPs");
+		int maxValueAtoms = 0;
+		for (Integer valueAtoms: mMPIndex.keySet()) {
+			maxValueAtoms = Math.max(maxValueAtoms, valueAtoms);
+		}
 		maxValueAtoms += 1;
 		int counter = 0;
 		int[][] combinations;
@@ -411,36 +609,85 @@ public class MMP {
 		}
 		if (verbose)
 			System.out.println(" (" + combinations.length + " combinations)...");
-		MMPEnumerator mMPEnumerator = new MMPEnumerator();
-		counter = 0;
-		for (int[] combination:combinations) {
-			if (combination[0] == combination[1] && combination[0] != 0) {
-				mMPEnumerator = new MMPEnumerator(combination, getIndex(combination[0]), null, VERSION);
-			}
-			else if (combination[0] != combination[1]) {
-				mMPEnumerator = new MMPEnumerator(combination, getIndex(combination[0]), getIndex(combination[1]), VERSION);
-			}
-			HashMap<String, List<String[]>> mMPs = mMPEnumerator.getMMPEnumeration();
-//			matchedMolecularPairs.addMMPs(mMPs);
-			if (mMPs != null && mMPs.size() > 0)
-				matchedMolecularPairs.writeMMPEnumeration(mMPs);
-			counter++;
-			if (verbose) {
-				if (counter % 1000 == 0) {
-					System.out.println("# " + counter);
+		MMPairs matchedMolecularPairs = new MMPairs();
+		ExecutorService executor = createExecutor("MMP-enumerator");
+		try {
+			LinkedList<Future<HashMap<String, List<String[]>>>> pending = new LinkedList<Future<HashMap<String, List<String[]>>>>();
+			counter = 0;
+			for (int c=0; c<=combinations.length; c++) {
+				if (c < combinations.length) {
+					int[] combination = combinations[c];
+					if (combination[0] != 0 || combination[1] != 0) {
+						HashMap<Long, ArrayList<int[]>> keysHash1 = combination[0] == 0 ? hydrogenIndex : getIndex(combination[0]);
+						HashMap<Long, ArrayList<int[]>> keysHash2 = combination[0] == combination[1] ? null : combination[1] == 0 ? hydrogenIndex : getIndex(combination[1]);
+						Callable<HashMap<String, List<String[]>>> task = () -> new MMPEnumerator(combination, keysHash1, keysHash2, VERSION).getMMPEnumeration();
+						if (executor != null) {
+							pending.add(executor.submit(task));
+						}
+						else {
+							FutureTask<HashMap<String, List<String[]>>> futureTask = new FutureTask<HashMap<String, List<String[]>>>(task);
+							futureTask.run();
+							pending.add(futureTask);
+						}
+					}
 				}
-				else if (counter % 100 == 0) {
-					System.out.print("#");
+				while (!pending.isEmpty() && (pending.size() > 2 * threadCount || c == combinations.length)) {
+					HashMap<String, List<String[]>> mMPs = getResult(pending.removeFirst());
+					if (mMPs != null && mMPs.size() > 0)
+						matchedMolecularPairs.writeMMPEnumeration(mMPs);
 				}
-				else if (counter % 10 == 0) {
-					System.out.print(".");
+				counter++;
+				if (verbose) {
+					if (counter % 1000 == 0) {
+						System.out.println("# " + counter);
+					}
+					else if (counter % 100 == 0) {
+						System.out.print("#");
+					}
+					else if (counter % 10 == 0) {
+						System.out.print(".");
+					}
 				}
 			}
 		}
-		compoundFileParser.close();
+		finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
 		if (verbose)
-			System.out.println(" " + counter + "\n" + getDateAndTime() + ": done.");
-  	}
+			System.out.println(" " + combinations.length + "\n" + getDateAndTime() + ": done.");
+		return matchedMolecularPairs;
+	}
+	
+	/**
+	 * Creates a thread pool with daemon threads
+	 * @param name name of the threads
+	 * @return null if only one thread is used
+	 */
+	private ExecutorService createExecutor(String name) {
+		if (threadCount == 1) {
+			return null;
+		}
+		return Executors.newFixedThreadPool(threadCount, r -> {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		});
+	}
+	
+	private static <T> T getResult(Future<T> future) {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ie);
+		}
+		catch (ExecutionException ee) {
+			throw new RuntimeException(ee.getCause());
+		}
+	}
 	
 	/**
 	 * Writes the Molecules block. A moleculeIndex column has been added<br>
@@ -460,13 +707,14 @@ public class MMP {
 		printWriter.println("<columnName=\"moleculeName\">");
 		for (int i=0; i<fieldNames.length; i++) {
 			if (fieldNumerics[i]) {
-				if (TRANSFORM_UM_TO_PIC50 && fieldNames[i].endsWith("_uM")) {
-					fieldNames[i] = "p" + fieldNames[i].substring(0, fieldNames[i].length()-3);
+				String fieldName = fieldNames[i];
+				if (TRANSFORM_UM_TO_PIC50 && fieldName.endsWith("_uM")) {
+					fieldName = "p" + fieldName.substring(0, fieldName.length()-3);
 				}
-				String columnName = fieldNames[i];
-				String longName = fieldNames[i];
+				String columnName = fieldName;
+				String longName = fieldName;
 				String category = "other";
-				String[] items = fieldNames[i].split("\t", -1);
+				String[] items = fieldName.split("\t", -1);
 				if (items.length > 1) {
 					category = items[0];
 					columnName = items[1];
@@ -508,11 +756,34 @@ public class MMP {
 	}
 	
 	/**
-	 * Writes the header (general information) block and calls the writing of the different blocks
+	 * Processes the Hydrogen replacements, calculates the percentiles, enumerates the Matched Molecular Pairs,<br>
+	 * writes the header (general information) block and calls the writing of the different blocks.<br>
+	 * The data set is not modified; molecules can be added or removed afterwards.
 	 * @param printWriter
 	 * @throws IOException
 	 */
 	public void writeMMPFile(PrintWriter printWriter) throws IOException {
+		// Processing Hydrogens replacements
+		if (verbose)
+			System.out.println(getDateAndTime() + ": processing hydrogen replacements...");
+		List<int[]> hydrogenFragments = new ArrayList<int[]>();
+		HashMap<Long, ArrayList<int[]>> hydrogenIndex = processHydrogenReplacements(hydrogenFragments);
+		// Getting percentiles
+		if (verbose)
+			System.out.println(getDateAndTime() + ": getting percentiles...");
+		calcPercentiles();
+		// Generating MMPs
+		MMPairs matchedMolecularPairs = generateMMPs(hydrogenIndex);
+		// Process fragments (adding FP)
+		ExecutorService executor = createExecutor("MMP-fragmentFP");
+		try {
+			mmpUniqueFragments.calcFragmentFPs(executor, threadCount);
+		}
+		finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
 		printWriter.println("<matchedmolecularpairs-fileinfo>");
 		printWriter.println("<version=\"" + VERSION + "\">");
 		DateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy");
@@ -521,18 +792,194 @@ public class MMP {
 		printWriter.println("<dataset=\"" + datasetName + "\">");
 		printWriter.println("<moleculesrowcount=" + Integer.toString(moleculesRowCount) + ">");
 		printWriter.println("<mmpuniquefragmentsrowcount=" + Integer.toString(mmpUniqueFragments.getUniqueFragmentsCount()) + ">");
-		printWriter.println("<mmpfragmentsrowcount=" + Integer.toString(mmpFragments.getFragmentsCount()) + ">");
+		printWriter.println("<mmpfragmentsrowcount=" + Integer.toString(mmpFragments.getFragmentsCount() + hydrogenFragments.size()) + ">");
 		printWriter.println("<mmprowcount=" + Integer.toString(matchedMolecularPairs.getMMPsCount()) + ">");
 		printWriter.println("<keysminatoms=\"" + Integer.toString(MMPFragmenter.KEYS_MIN_ATOMS) + "\">");
 		printWriter.println("</matchedmolecularpairs-fileinfo>");
-		// Process fragments (adding FP) and save them
 		writeMolecules(printWriter);
 		mmpUniqueFragments.writeUniqueFragments(printWriter);
-		mmpFragments.writeFragments(printWriter);
+		mmpFragments.writeFragments(printWriter, hydrogenFragments);
 		matchedMolecularPairs.writeMMPs(printWriter);
 		printWriter.close();
 	}
 	
+	/**
+	 * Saves the fragmented data set (molecules, fragments and index), such that new molecules<br>
+	 * can be added later on without fragmenting the whole data set again.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void saveState(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			writeString(out, STATE_MAGIC);
+			out.writeInt(STATE_VERSION);
+			writeString(out, datasetName);
+			out.writeInt(fieldNames.length);
+			for (int i=0; i<fieldNames.length; i++) {
+				writeString(out, fieldNames[i]);
+				out.writeBoolean(fieldNumerics[i]);
+			}
+			out.writeInt(moleculesRowCount);
+			out.writeInt(wholeMoleculesIndex.size());
+			for (Map.Entry<String, ArrayList<MoleculeIndex>> entry: wholeMoleculesIndex.entrySet()) {
+				writeString(out, entry.getKey());
+				out.writeInt(entry.getValue().size());
+				for (MoleculeIndex moleculeIndex: entry.getValue()) {
+					out.writeInt(moleculeIndex.moleculeIndex);
+					writeString(out, moleculeIndex.moleculeIDCoord);
+					writeString(out, moleculeIndex.moleculeName);
+					for (int i=0; i<fieldNames.length; i++) {
+						writeString(out, moleculeIndex.moleculeData[i]);
+					}
+				}
+			}
+			out.writeInt(moleculesFragmentsID.size());
+			for (List<String[]> fragmentsID: moleculesFragmentsID) {
+				out.writeInt(fragmentsID.size());
+				for (String[] fragmentID: fragmentsID) {
+					writeString(out, fragmentID[0]);
+					writeString(out, fragmentID[1]);
+				}
+			}
+			mmpUniqueFragments.writeState(out);
+			mmpFragments.writeState(out);
+			out.writeInt(mMPIndex.size());
+			for (Map.Entry<Integer, HashMap<Long, ArrayList<int[]>>> entry: mMPIndex.entrySet()) {
+				out.writeInt(entry.getKey());
+				out.writeInt(entry.getValue().size());
+				for (Map.Entry<Long, ArrayList<int[]>> keysEntry: entry.getValue().entrySet()) {
+					out.writeLong(keysEntry.getKey());
+					out.writeInt(keysEntry.getValue().size());
+					for (int[] values: keysEntry.getValue()) {
+						out.writeInt(values[0]);
+						out.writeInt(values[1]);
+					}
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Loads a data set saved with saveState()
+	 * @param file
+	 * @param threadCount Number of threads used for fragmentation and enumeration
+	 * @param verbose Verbose
+	 * @return the MMP object
+	 * @throws IOException
+	 */
+	public static MMP loadState(File file, int threadCount, boolean verbose) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (!STATE_MAGIC.equals(readString(in))) {
+				throw new IOException("not a MMP state file: " + file);
+			}
+			int version = in.readInt();
+			if (version != STATE_VERSION) {
+				throw new IOException("unsupported MMP state file version: " + version);
+			}
+			String datasetName = readString(in);
+			String[] fieldNames = new String[in.readInt()];
+			boolean[] fieldNumerics = new boolean[fieldNames.length];
+			for (int i=0; i<fieldNames.length; i++) {
+				fieldNames[i] = readString(in);
+				fieldNumerics[i] = in.readBoolean();
+			}
+			MMP retVal = new MMP(datasetName, fieldNames, threadCount, verbose);
+			retVal.fieldNumerics = fieldNumerics;
+			retVal.moleculesRowCount = in.readInt();
+			int molecules = in.readInt();
+			for (int i=0; i<molecules; i++) {
+				String molID = readString(in);
+				int entries = in.readInt();
+				ArrayList<MoleculeIndex> moleculesIndex = new ArrayList<MoleculeIndex>(entries);
+				for (int j=0; j<entries; j++) {
+					int moleculeIndex = in.readInt();
+					String moleculeIDCoord = readString(in);
+					String moleculeName = readString(in);
+					String[] moleculeData = new String[fieldNames.length];
+					for (int k=0; k<fieldNames.length; k++) {
+						moleculeData[k] = readString(in);
+					}
+					if (j == 0) {
+						moleculesIndex.add(new MoleculeIndex(moleculeIndex, moleculeIDCoord, molID, moleculeName, moleculeData));
+					}
+					else {
+						moleculesIndex.add(new MoleculeIndex(moleculeIndex, moleculeName, moleculeData));
+					}
+				}
+				retVal.wholeMoleculesIndex.put(molID, moleculesIndex);
+			}
+			int fragmentedMolecules = in.readInt();
+			for (int i=0; i<fragmentedMolecules; i++) {
+				int size = in.readInt();
+				List<String[]> fragmentsID = new ArrayList<String[]>(size);
+				for (int j=0; j<size; j++) {
+					fragmentsID.add(new String[]{readString(in), readString(in)});
+				}
+				retVal.moleculesFragmentsID.add(fragmentsID);
+			}
+			retVal.mmpUniqueFragments.readState(in);
+			retVal.mmpFragments.readState(in);
+			int valueSizes = in.readInt();
+			for (int i=0; i<valueSizes; i++) {
+				int valueAtoms = in.readInt();
+				int size = in.readInt();
+				HashMap<Long, ArrayList<int[]>> keysHash = new HashMap<Long, ArrayList<int[]>>();
+				for (int j=0; j<size; j++) {
+					long keys = in.readLong();
+					int values = in.readInt();
+					ArrayList<int[]> valuesList = new ArrayList<int[]>(values);
+					for (int k=0; k<values; k++) {
+						valuesList.add(new int[]{in.readInt(), in.readInt()});
+					}
+					keysHash.put(keys, valuesList);
+				}
+				retVal.mMPIndex.put(valueAtoms, keysHash);
+			}
+			return retVal;
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Writes a (nullable) String as length and UTF-8 bytes
+	 * @param out
+	 * @param str
+	 * @throws IOException
+	 */
+	static void writeString(DataOutputStream out, String str) throws IOException {
+		if (str == null) {
+			out.writeInt(-1);
+		}
+		else {
+			byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+	
+	/**
+	 * Reads a String written by writeString()
+	 * @param in
+	 * @return the String or null
+	 * @throws IOException
+	 */
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length == -1) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
 	/**
 	 * Helper function for rounding
 	 * @param f Input value
@@ -0,0 +1,1191 @@
+/*
+ * Copyright (c) 2017
+ * Actelion Pharmaceuticals Ltd.
+ * Gewerbestrasse 16
+ * CH-4123 Allschwil, Switzerland
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.actelion.research.chem.mmp;
+
+import com.actelion.research.chem.mmp.MMP.MoleculeIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Binary, memory-mapped store of a MMP file, which is used by the MMPReader instead of its in-heap maps.
+ * Only the header information is kept in the heap. Molecules, unique fragments, molecule fragments and
+ * Matched Molecular Pairs are read from the mapped file when they are requested.
+ * The file contains three kinds of indexes:
+ * - hash indexes from molecule idCodes, molecule names and fragment idCodes to their indexes
+ * - a sorted index on the 'keys' (constant part) with the [valueFragmentIndex, molIndex] list of each key
+ * - a sorted index on the transformations (seed 'value' index and number of heavy atoms of the target 'value')
+ *   with the target 'values' and their examples
+ * A database file is created from a text MMP file with convert(), which streams through the text file and
+ * keeps only primitive arrays in memory.
+ */
+public class MMPDatabase implements Closeable {
+	private static final int MAGIC = 0x4D4D5042; // "MMPB"
+	private static final int FORMAT_VERSION = 1;
+	private static final int SEGMENT_SHIFT = 30; // files are mapped in segments of 1 GB
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+	private static final int SECTION_INFO = 0;
+	private static final int SECTION_MOLECULE_OFFSETS = 1;
+	private static final int SECTION_FRAGMENT_OFFSETS = 2;
+	private static final int SECTION_KEY_INDEX = 3;
+	private static final int SECTION_KEY_ENTRIES = 4;
+	private static final int SECTION_MMP_INDEX = 5;
+	private static final int SECTION_MOLECULE_HASH = 6;
+	private static final int SECTION_NAME_HASH = 7;
+	private static final int SECTION_FRAGMENT_HASH = 8;
+	private static final int SECTION_COUNT = 9;
+	private static final int HEADER_SIZE = 16 + 8 * SECTION_COUNT;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer[] segments;
+	private long length;
+
+	private String datasetName;
+	private String date;
+	private String version;
+	private int keysMinAtoms;
+	private int moleculeCount;
+	private int uniqueMoleculeCount;
+	private int fragmentCount;
+	private int keyCount;
+	private int transformationCount;
+	private String[][] dataFields; // fieldName, longFieldName, categoryName, percentile5, percentile95
+	private long[] sections;
+
+	private MMPDatabase(File databaseFile) throws IOException {
+		file = new RandomAccessFile(databaseFile, "r");
+		length = file.length();
+		segments = map(file.getChannel(), length, FileChannel.MapMode.READ_ONLY);
+		if (length < HEADER_SIZE || getInt(0) != MAGIC) {
+			close();
+			throw new IOException("Not a MMP database file: " + databaseFile);
+		}
+		if (getInt(4) != FORMAT_VERSION) {
+			close();
+			throw new IOException("Unsupported MMP database version: " + getInt(4));
+		}
+		sections = new long[SECTION_COUNT];
+		for (int i=0; i<SECTION_COUNT; i++) {
+			sections[i] = getLong(16 + 8 * i);
+		}
+		long[] position = new long[]{sections[SECTION_INFO]};
+		datasetName = readString(position);
+		date = readString(position);
+		version = readString(position);
+		keysMinAtoms = readInt(position);
+		moleculeCount = readInt(position);
+		uniqueMoleculeCount = readInt(position);
+		fragmentCount = readInt(position);
+		keyCount = readInt(position);
+		transformationCount = readInt(position);
+		dataFields = new String[readInt(position)][5];
+		for (String[] dataField: dataFields) {
+			for (int i=0; i<dataField.length; i++) {
+				dataField[i] = readString(position);
+			}
+		}
+	}
+
+	/**
+	 * Opens a MMP database file created by convert()
+	 * @param databaseFile
+	 * @return the opened database; it is thread-safe for reading
+	 * @throws IOException
+	 */
+	public static MMPDatabase open(File databaseFile) throws IOException {
+		return new MMPDatabase(databaseFile);
+	}
+
+	@Override
+	public void close() throws IOException {
+		segments = null;
+		file.close();
+	}
+
+	public String getDatasetName() {
+		return datasetName;
+	}
+
+	public String getDate() {
+		return date;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public int getKeysMinAtoms() {
+		return keysMinAtoms;
+	}
+
+	/**
+	 * @return number of molecule indexes
+	 */
+	public int getMoleculeCount() {
+		return moleculeCount;
+	}
+
+	/**
+	 * @return number of distinct molecule idCodes
+	 */
+	public int getUniqueMoleculeCount() {
+		return uniqueMoleculeCount;
+	}
+
+	public int getFragmentCount() {
+		return fragmentCount;
+	}
+
+	/**
+	 * @return number of distinct seed 'value' / target size combinations
+	 */
+	public int getTransformationCount() {
+		return transformationCount;
+	}
+
+	/**
+	 * @return one array [fieldName, longFieldName, categoryName, percentile5, percentile95] per numerical data field
+	 */
+	public String[][] getDataFields() {
+		return dataFields;
+	}
+
+	/**
+	 * Returns the idCode of a molecule
+	 * @param molIndex
+	 * @return idCode
+	 */
+	public String getMoleculeIDCode(int molIndex) {
+		return readString(new long[]{getMoleculePosition(molIndex)});
+	}
+
+	/**
+	 * Returns the entries (names and data) of a molecule; only the first entry contains the idCode and coordinates
+	 * @param molIndex
+	 * @return List of MoleculeIndex objects
+	 */
+	public ArrayList<MoleculeIndex> getMoleculeEntries(int molIndex) {
+		long[] position = new long[]{getMoleculePosition(molIndex)};
+		String idCode = readString(position);
+		String idCoord = readString(position);
+		int entries = readInt(position);
+		ArrayList<MoleculeIndex> retVal = new ArrayList<MoleculeIndex>(entries);
+		for (int i=0; i<entries; i++) {
+			String name = readString(position);
+			String[] data = new String[dataFields.length];
+			for (int j=0; j<data.length; j++) {
+				data[j] = readString(position);
+			}
+			if (i == 0) {
+				retVal.add(new MoleculeIndex(molIndex, idCoord, idCode, name, data));
+			}
+			else {
+				retVal.add(new MoleculeIndex(molIndex, name, data));
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the index of a molecule from its idCode; if several molecule indexes share the same idCode, the last one is returned
+	 * @param idCode
+	 * @return molIndex or -1
+	 */
+	public int getMoleculeIndex(String idCode) {
+		long table = sections[SECTION_MOLECULE_HASH];
+		int mask = getInt(table) - 1;
+		for (int slot=spread(idCode.hashCode()) & mask; ; slot=(slot+1) & mask) {
+			int entry = getInt(table + 4 + 4L * slot);
+			if (entry == 0) {
+				return -1;
+			}
+			if (idCode.equals(getMoleculeIDCode(entry-1))) {
+				return entry-1;
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of the first molecule with a given name
+	 * @param molName
+	 * @return molIndex or -1
+	 */
+	public int getMoleculeIndexFromName(String molName) {
+		long table = sections[SECTION_NAME_HASH];
+		int mask = getInt(table) - 1;
+		for (int slot=spread(molName.hashCode()) & mask; ; slot=(slot+1) & mask) {
+			int entry = getInt(table + 4 + 4L * slot);
+			if (entry == 0) {
+				return -1;
+			}
+			for (MoleculeIndex moleculeIndex: getMoleculeEntries(entry-1)) {
+				if (molName.equals(moleculeIndex.moleculeName)) {
+					return entry-1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of a unique fragment
+	 * @param fragmentID idCode of the fragment
+	 * @return fragment index or -1
+	 */
+	public int getFragmentIndex(String fragmentID) {
+		long table = sections[SECTION_FRAGMENT_HASH];
+		int mask = getInt(table) - 1;
+		for (int slot=spread(fragmentID.hashCode()) & mask; ; slot=(slot+1) & mask) {
+			int entry = getInt(table + 4 + 4L * slot);
+			if (entry == 0) {
+				return -1;
+			}
+			if (fragmentID.equals(getFragmentIDCode(entry-1))) {
+				return entry-1;
+			}
+		}
+	}
+
+	/**
+	 * @param fragmentIndex
+	 * @return idCode of the unique fragment
+	 */
+	public String getFragmentIDCode(int fragmentIndex) {
+		return readString(new long[]{getFragmentPosition(fragmentIndex) + 4});
+	}
+
+	/**
+	 * @param fragmentIndex
+	 * @return number of heavy atoms of the unique fragment
+	 */
+	public int getFragmentAtoms(int fragmentIndex) {
+		return getInt(getFragmentPosition(fragmentIndex));
+	}
+
+	/**
+	 * @param fragmentIndex
+	 * @return fragments of size 1-6 rooted at the R-Group(s)
+	 */
+	public String[] getFragmentFP(int fragmentIndex) {
+		long[] position = new long[]{getFragmentPosition(fragmentIndex) + 4};
+		readString(position);
+		String[] retVal = new String[5];
+		for (int i=0; i<retVal.length; i++) {
+			retVal[i] = readString(position);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the molecules fragments of one or two 'keys'
+	 * @param key1Index fragment index of the first 'key'
+	 * @param key2Index fragment index of the second 'key' (double cut) or -1 (single cut)
+	 * @return List of [valueFragmentIndex, molIndex] or null if the 'keys' are not indexed
+	 */
+	public List<int[]> getFragments(int key1Index, int key2Index) {
+		long index = sections[SECTION_KEY_INDEX];
+		int i = find(index, keyCount, toKey(key1Index, key2Index));
+		if (i < 0) {
+			return null;
+		}
+		long offsets = index + 8L * keyCount;
+		long first = getLong(offsets + 8L * i);
+		long last = getLong(offsets + 8L * (i+1));
+		long entries = sections[SECTION_KEY_ENTRIES];
+		List<int[]> retVal = new ArrayList<int[]>((int)(last-first));
+		for (long entry=first; entry<last; entry++) {
+			retVal.add(new int[]{getInt(entries + 8 * entry), getInt(entries + 8 * entry + 4)});
+		}
+		return retVal;
+	}
+
+	/**
+	 * @param value1Index index of the seed 'value'
+	 * @return true if Matched Molecular Pairs exist for the seed 'value'
+	 */
+	public boolean containsTransformations(int value1Index) {
+		int i = find(sections[SECTION_MMP_INDEX], transformationCount, toKey(value1Index, 0));
+		return i >= 0 || (-i-1 < transformationCount && (int)(getLong(sections[SECTION_MMP_INDEX] + 8L * (-i-1)) >>> 32) == value1Index);
+	}
+
+	/**
+	 * Returns the number of target 'values' of a seed 'value' with a given number of heavy atoms
+	 * @param value1Index index of the seed 'value'
+	 * @param value2Atoms number of heavy atoms of the target 'value'
+	 * @return number of target 'values'
+	 */
+	public int getTransformationsSize(int value1Index, int value2Atoms) {
+		int i = find(sections[SECTION_MMP_INDEX], transformationCount, toKey(value1Index, value2Atoms));
+		return i < 0 ? 0 : getInt(getTransformationPosition(i));
+	}
+
+	/**
+	 * Returns the target 'values' and their examples of a seed 'value' with a given number of heavy atoms.
+	 * The examples are read from the mapped file only when this method is called.
+	 * @param value1Index index of the seed 'value'
+	 * @param value2Atoms number of heavy atoms of the target 'value'
+	 * @return List of [value2Index, example1 molIndex, example2 molIndex, ...] or null
+	 */
+	public List<int[]> getTransformations(int value1Index, int value2Atoms) {
+		int i = find(sections[SECTION_MMP_INDEX], transformationCount, toKey(value1Index, value2Atoms));
+		if (i < 0) {
+			return null;
+		}
+		long position = getTransformationPosition(i);
+		int count = getInt(position);
+		position += 4;
+		List<int[]> retVal = new ArrayList<int[]>(count);
+		for (int j=0; j<count; j++) {
+			int[] value2AndExamples = new int[getInt(position)];
+			position += 4;
+			for (int k=0; k<value2AndExamples.length; k++) {
+				value2AndExamples[k] = getInt(position);
+				position += 4;
+			}
+			retVal.add(value2AndExamples);
+		}
+		return retVal;
+	}
+
+	private long getMoleculePosition(int molIndex) {
+		if (molIndex < 0 || molIndex >= moleculeCount) {
+			throw new IndexOutOfBoundsException("molIndex: " + molIndex);
+		}
+		return getLong(sections[SECTION_MOLECULE_OFFSETS] + 8L * molIndex);
+	}
+
+	private long getFragmentPosition(int fragmentIndex) {
+		if (fragmentIndex < 0 || fragmentIndex >= fragmentCount) {
+			throw new IndexOutOfBoundsException("fragmentIndex: " + fragmentIndex);
+		}
+		return getLong(sections[SECTION_FRAGMENT_OFFSETS] + 8L * fragmentIndex);
+	}
+
+	private long getTransformationPosition(int i) {
+		return getLong(sections[SECTION_MMP_INDEX] + 8L * transformationCount + 8L * i);
+	}
+
+	/**
+	 * Binary search in a sorted array of longs
+	 * @return index of the key or (-(insertion point) - 1)
+	 */
+	private int find(long array, int size, long key) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long value = getLong(array + 8L * mid);
+			if (value < key) {
+				low = mid + 1;
+			}
+			else if (value > key) {
+				high = mid - 1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	private static long toKey(int index1, int index2) {
+		return ((long)index1 << 32) | (index2 & 0xFFFFFFFFL);
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private int getInt(long position) {
+		MappedByteBuffer segment = segments[(int)(position >>> SEGMENT_SHIFT)];
+		int offset = (int)(position & (SEGMENT_SIZE-1));
+		if (offset + 4 <= segment.limit()) {
+			return segment.getInt(offset);
+		}
+		return ((getByte(position) & 0xFF) << 24) | ((getByte(position+1) & 0xFF) << 16) | ((getByte(position+2) & 0xFF) << 8) | (getByte(position+3) & 0xFF);
+	}
+
+	private long getLong(long position) {
+		MappedByteBuffer segment = segments[(int)(position >>> SEGMENT_SHIFT)];
+		int offset = (int)(position & (SEGMENT_SIZE-1));
+		if (offset + 8 <= segment.limit()) {
+			return segment.getLong(offset);
+		}
+		return ((long)getInt(position) << 32) | (getInt(position+4) & 0xFFFFFFFFL);
+	}
+
+	private byte getByte(long position) {
+		return segments[(int)(position >>> SEGMENT_SHIFT)].get((int)(position & (SEGMENT_SIZE-1)));
+	}
+
+	private int readInt(long[] position) {
+		int retVal = getInt(position[0]);
+		position[0] += 4;
+		return retVal;
+	}
+
+	/**
+	 * Reads a string written by writeString() and advances the position
+	 * @param position
+	 * @return the string or null
+	 */
+	private String readString(long[] position) {
+		int size = readInt(position);
+		if (size == -1) {
+			return null;
+		}
+		byte[] bytes = new byte[size];
+		for (int i=0; i<size; ) {
+			long p = position[0] + i;
+			ByteBuffer segment = segments[(int)(p >>> SEGMENT_SHIFT)].duplicate();
+			segment.position((int)(p & (SEGMENT_SIZE-1)));
+			int chunk = Math.min(size-i, segment.remaining());
+			segment.get(bytes, i, chunk);
+			i += chunk;
+		}
+		position[0] += size;
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static MappedByteBuffer[] map(FileChannel channel, long length, FileChannel.MapMode mode) throws IOException {
+		MappedByteBuffer[] retVal = new MappedByteBuffer[(int)((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+		for (int i=0; i<retVal.length; i++) {
+			long start = (long)i << SEGMENT_SHIFT;
+			retVal[i] = channel.map(mode, start, Math.min(SEGMENT_SIZE, length - start));
+		}
+		return retVal;
+	}
+
+	/**
+	 * Converts a text MMP file into a binary MMP database file
+	 * @param br BufferedReader of the text MMP file; it is closed at the end
+	 * @param databaseFile binary file to be created
+	 * @param verbose
+	 * @throws IOException
+	 */
+	public static void convert(BufferedReader br, File databaseFile, boolean verbose) throws IOException {
+		new Converter(databaseFile, verbose).convert(br);
+	}
+
+	/**
+	 * OutputStream keeping track of the file position beyond 2 GB
+	 */
+	private static class PositionOutputStream extends FilterOutputStream {
+		private long position;
+
+		private PositionOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			position++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			position += len;
+		}
+	}
+
+	/**
+	 * Streams through a text MMP file and writes the binary database. Molecules and unique fragments
+	 * are written as they are read. Molecule fragments and Matched Molecular Pairs are sorted by their
+	 * 'keys' and seed 'values' with a stable counting sort before they are written.
+	 */
+	private static class Converter {
+		private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile("<(.*?)=\"(.*?)\">");
+		private static final Pattern ROWCOUNT_PATTERN = Pattern.compile("<(.*?rowcount)=([0-9]*?)>");
+		private static final Pattern COLUMN_PATTERN = Pattern.compile("<(columnName=.*?)>");
+		private static final Pattern COLUMN_ATTRIBUTE_PATTERN = Pattern.compile("(\\w+)=\"(.*?)\"");
+
+		private File databaseFile;
+		private boolean verbose;
+		private PositionOutputStream positionStream;
+		private DataOutputStream out;
+		private long[] sections = new long[SECTION_COUNT];
+
+		private String datasetName;
+		private String date;
+		private String version;
+		private int keysMinAtoms;
+		private List<String[]> dataFields = new ArrayList<String[]>();
+		private int moleculeCount;
+		private int uniqueMoleculeCount;
+		private long[] moleculePositions = new long[1024];
+		private int[] moleculeHashes = new int[1024];
+		private int nameCount;
+		private int[] nameHashes = new int[1024];
+		private int[] nameMolecules = new int[1024];
+		private int fragmentCount;
+		private long[] fragmentPositions;
+		private int[] fragmentHashes;
+		private int[] fragmentAtoms;
+		private int keyCount;
+		private int transformationCount;
+
+		private Converter(File databaseFile, boolean verbose) {
+			this.databaseFile = databaseFile;
+			this.verbose = verbose;
+		}
+
+		private void convert(BufferedReader br) throws IOException {
+			positionStream = new PositionOutputStream(new BufferedOutputStream(new FileOutputStream(databaseFile), 1 << 16));
+			out = new DataOutputStream(positionStream);
+			try {
+				out.write(new byte[HEADER_SIZE]);
+				int[] rowCounts = readHeader(br);
+				readMolecules(br, rowCounts[0]);
+				readUniqueFragments(br, rowCounts[1]);
+				readFragments(br, rowCounts[2]);
+				readMMPs(br, rowCounts[3]);
+				writeInfo();
+			}
+			finally {
+				out.close();
+				br.close();
+			}
+			writeHashTables();
+		}
+
+		private int[] readHeader(BufferedReader br) throws IOException {
+			int[] rowCounts = new int[4];
+			int rowCountsCounter = 0;
+			String strLine;
+			while (rowCountsCounter < 4 && (strLine = br.readLine()) != null) {
+				Matcher matcher1 = ATTRIBUTE_PATTERN.matcher(strLine);
+				if (matcher1.find()) {
+					if (matcher1.group(1).equals("dataset")) {
+						datasetName = matcher1.group(2);
+					}
+					else if (matcher1.group(1).equals("date")) {
+						date = matcher1.group(2);
+					}
+					else if (matcher1.group(1).equals("version")) {
+						version = matcher1.group(2);
+					}
+				}
+				else {
+					Matcher matcher2 = ROWCOUNT_PATTERN.matcher(strLine);
+					if (matcher2.find()) {
+						String name = matcher2.group(1);
+						int index = name.equals("moleculesrowcount") ? 0 : name.equals("mmpuniquefragmentsrowcount") ? 1 : name.equals("mmpfragmentsrowcount") ? 2 : name.equals("mmprowcount") ? 3 : -1;
+						if (index != -1) {
+							rowCounts[index] = Integer.parseInt(matcher2.group(2));
+							rowCountsCounter++;
+						}
+					}
+				}
+			}
+			if (rowCountsCounter < 4) {
+				throw new IOException("General: cannot find the four rowcount lines");
+			}
+			// the MMPReader always uses the default value, independent of the file header
+			keysMinAtoms = MMPFragmenter.KEYS_MIN_ATOMS;
+			if (verbose) {
+				System.out.println("The dataset contains " + rowCounts[0] + " molecules, " + rowCounts[1] + " unique fragments, " + rowCounts[2] + " molecules fragments combinations and " + rowCounts[3] + " MMPs.");
+			}
+			return rowCounts;
+		}
+
+		/**
+		 * Skips the lines up to the end of the column properties of a block and the column names line
+		 * @param br
+		 * @param blockTag first line of the block
+		 * @param columnLines receives the columnName lines, may be null
+		 */
+		private void skipToData(BufferedReader br, String blockTag, List<String> columnLines) throws IOException {
+			String strLine;
+			while ((strLine = br.readLine()) != null && !strLine.startsWith(blockTag)) {
+			}
+			while ((strLine = br.readLine()) != null && !strLine.startsWith("</column properties>")) {
+				if (columnLines != null) {
+					columnLines.add(strLine);
+				}
+			}
+			if (strLine == null || br.readLine() == null) {
+				throw new IOException(blockTag + ": unexpected end of file");
+			}
+		}
+
+		private void readMolecules(BufferedReader br, int rowCount) throws IOException {
+			List<String> columnLines = new ArrayList<String>();
+			skipToData(br, "<molecules>", columnLines);
+			for (String columnLine: columnLines) {
+				Matcher matcher = COLUMN_PATTERN.matcher(columnLine);
+				if (matcher.find()) {
+					matcher = COLUMN_ATTRIBUTE_PATTERN.matcher(matcher.group(1));
+					String[] dataField = new String[5];
+					while (matcher.find()) {
+						if (matcher.group(1).equals("columnName")) {
+							dataField[0] = matcher.group(2);
+						}
+						else if (matcher.group(1).equals("longName")) {
+							dataField[1] = matcher.group(2);
+						}
+						else if (matcher.group(1).equals("category")) {
+							dataField[2] = matcher.group(2);
+						}
+						else if (matcher.group(1).equals("percentile5")) {
+							dataField[3] = matcher.group(2);
+						}
+						else if (matcher.group(1).equals("percentile95")) {
+							dataField[4] = matcher.group(2);
+						}
+					}
+					String fieldName = dataField[0];
+					if (fieldName != null && !fieldName.equals("moleculeIndex") && !fieldName.equals("idcoordinates2D") && !fieldName.equals("molecule") && !fieldName.equals("moleculeName")) {
+						dataFields.add(dataField);
+					}
+				}
+			}
+			String strLine;
+			int entries = 0;
+			int lastEntryIndex = -1;
+			List<String[]> molEntries = new ArrayList<String[]>();
+			String[] molecule = null; // idcode, idcoord
+			while (entries < rowCount && (strLine = br.readLine()) != null) {
+				String[] items = strLine.split("\t", -1);
+				if (items.length == dataFields.size() + 4) {
+					items = strLine.split("\t", 5); // index, coordinates, idcode, name
+					int molIndex = Integer.parseInt(items[0]);
+					if (molIndex != lastEntryIndex) {
+						if (molecule != null) {
+							writeMolecule(molecule, molEntries);
+						}
+						if (molIndex != moleculeCount) {
+							throw new IOException("molecules: unexpected moleculeIndex " + molIndex);
+						}
+						molecule = new String[]{items[2], items[1]};
+						molEntries.clear();
+					}
+					molEntries.add(new String[]{items[3], items.length > 4 ? items[4] : ""});
+					entries++;
+					lastEntryIndex = molIndex;
+				}
+				else if (strLine.startsWith("</molecules>")) {
+					throw new IOException("molecules: Bad number of entries");
+				}
+			}
+			if (molecule != null) {
+				writeMolecule(molecule, molEntries);
+			}
+			moleculePositions = ensureCapacity(moleculePositions, moleculeCount+1);
+			moleculePositions[moleculeCount] = positionStream.position;
+			sections[SECTION_MOLECULE_OFFSETS] = align();
+			for (int i=0; i<=moleculeCount; i++) {
+				out.writeLong(moleculePositions[i]);
+			}
+			if (verbose) {
+				System.out.println("Molecules:        " + moleculeCount);
+			}
+		}
+
+		private void writeMolecule(String[] molecule, List<String[]> molEntries) throws IOException {
+			moleculePositions = ensureCapacity(moleculePositions, moleculeCount+1);
+			moleculeHashes = ensureCapacity(moleculeHashes, moleculeCount+1);
+			moleculePositions[moleculeCount] = positionStream.position;
+			moleculeHashes[moleculeCount] = molecule[0].hashCode();
+			writeString(molecule[0]);
+			writeString(molecule[1]);
+			out.writeInt(molEntries.size());
+			for (String[] entry: molEntries) {
+				writeString(entry[0]);
+				String[] data = entry[1].split("\t", -1);
+				for (int i=0; i<dataFields.size(); i++) {
+					writeString(i < data.length ? data[i] : "");
+				}
+				nameHashes = ensureCapacity(nameHashes, nameCount+1);
+				nameMolecules = ensureCapacity(nameMolecules, nameCount+1);
+				nameHashes[nameCount] = entry[0].hashCode();
+				nameMolecules[nameCount] = moleculeCount;
+				nameCount++;
+			}
+			moleculeCount++;
+		}
+
+		private void readUniqueFragments(BufferedReader br, int rowCount) throws IOException {
+			skipToData(br, "<mmpUniqueFragments>", null);
+			fragmentPositions = new long[rowCount+1];
+			fragmentHashes = new int[rowCount];
+			fragmentAtoms = new int[rowCount];
+			String strLine;
+			while (fragmentCount < rowCount && (strLine = br.readLine()) != null) {
+				String[] items = strLine.split("\t", -1);
+				if (items.length == 7) {
+					fragmentPositions[fragmentCount] = positionStream.position;
+					fragmentHashes[fragmentCount] = items[0].hashCode();
+					fragmentAtoms[fragmentCount] = Integer.parseInt(items[1]);
+					out.writeInt(fragmentAtoms[fragmentCount]);
+					writeString(items[0]);
+					for (int i=2; i<7; i++) {
+						writeString(items[i]);
+					}
+					fragmentCount++;
+				}
+				else if (strLine.startsWith("</mmpUniqueFragments>")) {
+					throw new IOException("mmpUniqueFragments: Bad number of entries");
+				}
+			}
+			fragmentPositions[fragmentCount] = positionStream.position;
+			sections[SECTION_FRAGMENT_OFFSETS] = align();
+			for (int i=0; i<=fragmentCount; i++) {
+				out.writeLong(fragmentPositions[i]);
+			}
+			if (verbose) {
+				System.out.println("Unique Fragments: " + fragmentCount);
+			}
+		}
+
+		private void readFragments(BufferedReader br, int rowCount) throws IOException {
+			skipToData(br, "<mmpFragments>", null);
+			int size = 0;
+			int[] key1 = new int[Math.max(16, rowCount + rowCount / 4)];
+			int[] key2 = new int[key1.length];
+			int[] value = new int[key1.length];
+			int[] molIndex = new int[key1.length];
+			String strLine;
+			int entries = 0;
+			while (entries < rowCount && (strLine = br.readLine()) != null) {
+				String[] items = strLine.split("\t", -1);
+				if (items.length == 5) {
+					if (size + 2 > key1.length) {
+						int capacity = key1.length + key1.length / 2;
+						key1 = Arrays.copyOf(key1, capacity);
+						key2 = Arrays.copyOf(key2, capacity);
+						value = Arrays.copyOf(value, capacity);
+						molIndex = Arrays.copyOf(molIndex, capacity);
+					}
+					int valueIndex = Integer.parseInt(items[2]);
+					int mol = Integer.parseInt(items[4]);
+					if (items[3].equals("1")) { // cutType
+						key1[size] = Integer.parseInt(items[0]);
+						key2[size] = -1;
+						value[size] = valueIndex;
+						molIndex[size++] = mol;
+						// This is to index also {key-value} for smaller keys (used later to sort by similarity) that wouldn't be otherwise indexed
+						if (fragmentAtoms[valueIndex] < keysMinAtoms) {
+							key1[size] = valueIndex;
+							key2[size] = -1;
+							value[size] = Integer.parseInt(items[0]);
+							molIndex[size++] = mol;
+						}
+					}
+					else {
+						key1[size] = Integer.parseInt(items[0]);
+						key2[size] = Integer.parseInt(items[1]);
+						value[size] = valueIndex;
+						molIndex[size++] = mol;
+					}
+					entries++;
+				}
+				else if (strLine.startsWith("</mmpFragments>")) {
+					throw new IOException("mmpFragments: Bad number of entries");
+				}
+			}
+
+			int[] order = sortByKeys(key1, key2, size);
+			long[] keys = new long[size];
+			long[] offsets = new long[size+1];
+			for (int i=0; i<size; i++) {
+				long key = toKey(key1[order[i]], key2[order[i]]);
+				if (keyCount == 0 || keys[keyCount-1] != key) {
+					keys[keyCount] = key;
+					offsets[keyCount] = i;
+					keyCount++;
+				}
+			}
+			offsets[keyCount] = size;
+			sections[SECTION_KEY_INDEX] = align();
+			for (int i=0; i<keyCount; i++) {
+				out.writeLong(keys[i]);
+			}
+			for (int i=0; i<=keyCount; i++) {
+				out.writeLong(offsets[i]);
+			}
+			sections[SECTION_KEY_ENTRIES] = align();
+			for (int i=0; i<size; i++) {
+				out.writeInt(value[order[i]]);
+				out.writeInt(molIndex[order[i]]);
+			}
+			if (verbose) {
+				System.out.println("Fragments:        " + entries + " (" + keyCount + " keys)");
+			}
+		}
+
+		/**
+		 * Matched Molecular Pairs are copied into a temporary file first, because their examples may not fit into the heap.
+		 */
+		private void readMMPs(BufferedReader br, int rowCount) throws IOException {
+			skipToData(br, "<matchedMolecularPairs>", null);
+			File temp = File.createTempFile("mmpdatabase", ".tmp");
+			try {
+				int[] value1 = new int[Math.max(16, rowCount)];
+				int[] value2Atoms = new int[value1.length];
+				long[] positions = new long[value1.length+1];
+				int size = 0;
+				PositionOutputStream tempPositionStream = new PositionOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+				DataOutputStream tempOut = new DataOutputStream(tempPositionStream);
+				try {
+					String strLine;
+					while (size < rowCount && (strLine = br.readLine()) != null) {
+						String[] items = strLine.split("\t", -1);
+						if (items.length == 7) {
+							String[] examples = items[6].split("\\|", -1);
+							value1[size] = Integer.parseInt(items[0]);
+							value2Atoms[size] = Integer.parseInt(items[3]);
+							positions[size] = tempPositionStream.position;
+							tempOut.writeInt(examples.length * 2 + 1);
+							tempOut.writeInt(Integer.parseInt(items[2]));
+							for (String value2AndExample: examples) {
+								String[] example = value2AndExample.split(",");
+								tempOut.writeInt(Integer.parseInt(example[0]));
+								tempOut.writeInt(Integer.parseInt(example[1]));
+							}
+							size++;
+						}
+						else if (strLine.startsWith("</matchedMolecularPairs>")) {
+							throw new IOException("matchedMolecularPairs: Bad number of entries");
+						}
+					}
+					positions[size] = tempPositionStream.position;
+				}
+				finally {
+					tempOut.close();
+				}
+
+				int[] order = sortByKeys(value1, value2Atoms, size);
+				long[] keys = new long[size];
+				int[] firsts = new int[size+1];
+				for (int i=0; i<size; i++) {
+					long key = toKey(value1[order[i]], value2Atoms[order[i]]);
+					if (transformationCount == 0 || keys[transformationCount-1] != key) {
+						keys[transformationCount] = key;
+						firsts[transformationCount] = i;
+						transformationCount++;
+					}
+				}
+				firsts[transformationCount] = size;
+
+				long[] recordPositions = new long[transformationCount];
+				try (RandomAccessFile tempFile = new RandomAccessFile(temp, "r")) {
+					MappedByteBuffer[] tempSegments = map(tempFile.getChannel(), tempFile.length(), FileChannel.MapMode.READ_ONLY);
+					byte[] buffer = new byte[1 << 16];
+					for (int t=0; t<transformationCount; t++) {
+						recordPositions[t] = positionStream.position;
+						out.writeInt(firsts[t+1] - firsts[t]);
+						for (int i=firsts[t]; i<firsts[t+1]; i++) {
+							int mmp = order[i];
+							copy(tempSegments, positions[mmp], positions[mmp+1], buffer);
+						}
+					}
+				}
+				sections[SECTION_MMP_INDEX] = align();
+				for (int t=0; t<transformationCount; t++) {
+					out.writeLong(keys[t]);
+				}
+				for (int t=0; t<transformationCount; t++) {
+					out.writeLong(recordPositions[t]);
+				}
+				if (verbose) {
+					System.out.println("MMPs:             " + size + " (" + transformationCount + " transformations)");
+				}
+			}
+			finally {
+				temp.delete();
+			}
+		}
+
+		private void copy(MappedByteBuffer[] source, long from, long to, byte[] buffer) throws IOException {
+			while (from < to) {
+				ByteBuffer segment = source[(int)(from >>> SEGMENT_SHIFT)].duplicate();
+				segment.position((int)(from & (SEGMENT_SIZE-1)));
+				int chunk = (int)Math.min(Math.min(to - from, segment.remaining()), buffer.length);
+				segment.get(buffer, 0, chunk);
+				out.write(buffer, 0, chunk);
+				from += chunk;
+			}
+		}
+
+		private void writeInfo() throws IOException {
+			uniqueMoleculeCount = moleculeCount; // corrected when the hash tables are built
+			sections[SECTION_INFO] = align();
+			writeString(datasetName);
+			writeString(date);
+			writeString(version);
+			out.writeInt(keysMinAtoms);
+			out.writeInt(moleculeCount);
+			out.writeInt(uniqueMoleculeCount);
+			out.writeInt(fragmentCount);
+			out.writeInt(keyCount);
+			out.writeInt(transformationCount);
+			out.writeInt(dataFields.size());
+			for (String[] dataField: dataFields) {
+				for (String s: dataField) {
+					writeString(s);
+				}
+			}
+		}
+
+		/**
+		 * Appends the hash tables to the database file. Keys with equal hash codes are compared by reading them from the file.
+		 */
+		private void writeHashTables() throws IOException {
+			MMPDatabase database = new MMPDatabase(databaseFile, sections, fragmentCount, moleculeCount, dataFields.size());
+			int[] moleculeTable = new int[tableSize(moleculeCount)];
+			int duplicates = 0;
+			for (int i=0; i<moleculeCount; i++) { // the last molecule with a given idcode is indexed
+				duplicates += insert(moleculeTable, moleculeHashes, i, true, j -> database.getMoleculeIDCode(j));
+			}
+			int[] nameTable = new int[tableSize(nameCount)];
+			for (int i=0; i<nameCount; i++) { // the first molecule with a given name is indexed
+				insertName(nameTable, database, i);
+			}
+			int[] fragmentTable = new int[tableSize(fragmentCount)];
+			for (int i=0; i<fragmentCount; i++) {
+				insert(fragmentTable, fragmentHashes, i, false, j -> database.getFragmentIDCode(j));
+			}
+			database.close();
+
+			try (RandomAccessFile raf = new RandomAccessFile(databaseFile, "rw")) {
+				long position = (raf.length() + 7) & ~7L;
+				DataOutputStream tableOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(raf.getFD()), 1 << 16));
+				raf.seek(position);
+				sections[SECTION_MOLECULE_HASH] = position;
+				position = writeTable(tableOut, moleculeTable, position);
+				sections[SECTION_NAME_HASH] = position;
+				position = writeTable(tableOut, nameTable, position);
+				sections[SECTION_FRAGMENT_HASH] = position;
+				writeTable(tableOut, fragmentTable, position);
+				tableOut.flush();
+
+				raf.seek(0);
+				raf.writeInt(MAGIC);
+				raf.writeInt(FORMAT_VERSION);
+				raf.writeInt(SECTION_COUNT);
+				raf.writeInt(0);
+				for (long section: sections) {
+					raf.writeLong(section);
+				}
+				// uniqueMoleculeCount within the info section
+				long[] infoPosition = new long[]{sections[SECTION_INFO]};
+				raf.seek(infoPosition[0]);
+				for (int i=0; i<3; i++) {
+					int size = raf.readInt();
+					if (size > 0) {
+						raf.skipBytes(size);
+					}
+				}
+				raf.skipBytes(8);
+				raf.writeInt(moleculeCount - duplicates);
+			}
+		}
+
+		private interface KeyReader {
+			String getKey(int index);
+		}
+
+		/**
+		 * Inserts an index into an open addressing hash table
+		 * @param replace if true, an existing entry with the same key is replaced, otherwise it is kept
+		 * @return 1 if an entry with the same key existed, otherwise 0
+		 */
+		private static int insert(int[] table, int[] hashes, int index, boolean replace, KeyReader keyReader) {
+			int mask = table.length - 1;
+			String key = null;
+			for (int slot=spread(hashes[index]) & mask; ; slot=(slot+1) & mask) {
+				int entry = table[slot];
+				if (entry == 0) {
+					table[slot] = index+1;
+					return 0;
+				}
+				if (hashes[entry-1] == hashes[index]) {
+					if (key == null) {
+						key = keyReader.getKey(index);
+					}
+					if (key.equals(keyReader.getKey(entry-1))) {
+						if (replace) {
+							table[slot] = index+1;
+						}
+						return 1;
+					}
+				}
+			}
+		}
+
+		private void insertName(int[] table, MMPDatabase database, int nameIndex) {
+			int mask = table.length - 1;
+			int molIndex = nameMolecules[nameIndex];
+			String name = null;
+			for (int slot=spread(nameHashes[nameIndex]) & mask; ; slot=(slot+1) & mask) {
+				int entry = table[slot];
+				if (entry == 0) {
+					table[slot] = molIndex+1;
+					return;
+				}
+				if (name == null) {
+					name = getName(database, nameIndex);
+				}
+				for (MoleculeIndex moleculeIndex: database.getMoleculeEntries(entry-1)) {
+					if (name.equals(moleculeIndex.moleculeName)) {
+						return;
+					}
+				}
+			}
+		}
+
+		private String getName(MMPDatabase database, int nameIndex) {
+			int molIndex = nameMolecules[nameIndex];
+			int first = nameIndex;
+			while (first > 0 && nameMolecules[first-1] == molIndex) {
+				first--;
+			}
+			return database.getMoleculeEntries(molIndex).get(nameIndex - first).moleculeName;
+		}
+
+		private static int tableSize(int count) {
+			int size = 16;
+			while (size < 2L * count) {
+				size <<= 1;
+			}
+			return size;
+		}
+
+		private static long writeTable(DataOutputStream out, int[] table, long position) throws IOException {
+			out.writeInt(table.length);
+			for (int entry: table) {
+				out.writeInt(entry);
+			}
+			out.writeInt(0); // padding to keep the alignment
+			return position + 8 + 4L * table.length;
+		}
+
+		/**
+		 * Stable counting sort by the first key and, within equal first keys, stable sort by the second key
+		 * @return order of the entries
+		 */
+		private int[] sortByKeys(int[] key1, int[] key2, int size) {
+			int max = 0;
+			for (int i=0; i<size; i++) {
+				max = Math.max(max, key1[i]);
+			}
+			int[] starts = new int[max+2];
+			for (int i=0; i<size; i++) {
+				starts[key1[i]+1]++;
+			}
+			for (int i=1; i<starts.length; i++) {
+				starts[i] += starts[i-1];
+			}
+			int[] order = new int[size];
+			int[] next = Arrays.copyOf(starts, starts.length);
+			for (int i=0; i<size; i++) {
+				order[next[key1[i]]++] = i;
+			}
+			for (int k=0; k<=max; k++) {
+				int from = starts[k];
+				int to = starts[k+1];
+				if (to - from > 1) {
+					Integer[] bucket = new Integer[to - from];
+					for (int i=from; i<to; i++) {
+						bucket[i-from] = order[i];
+					}
+					// unsigned, because toKey() stores the second key in the lower 32 bits; Arrays.sort() is stable for objects
+					Arrays.sort(bucket, (i1, i2) -> Integer.compareUnsigned(key2[i1], key2[i2]));
+					for (int i=from; i<to; i++) {
+						order[i] = bucket[i-from];
+					}
+				}
+			}
+			return order;
+		}
+
+		private long align() throws IOException {
+			while ((positionStream.position & 7) != 0) {
+				out.writeByte(0);
+			}
+			return positionStream.position;
+		}
+
+		private void writeString(String s) throws IOException {
+			if (s == null) {
+				out.writeInt(-1);
+			}
+			else {
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+
+		private static long[] ensureCapacity(long[] array, int size) {
+			return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, array.length + array.length / 2));
+		}
+
+		private static int[] ensureCapacity(int[] array, int size) {
+			return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, array.length + array.length / 2));
+		}
+	}
+
+	/**
+	 * Opens a partially written database during the conversion, the hash tables are not yet available
+	 */
+	private MMPDatabase(File databaseFile, long[] sections, int fragmentCount, int moleculeCount, int dataFieldCount) throws IOException {
+		file = new RandomAccessFile(databaseFile, "r");
+		length = file.length();
+		segments = map(file.getChannel(), length, FileChannel.MapMode.READ_ONLY);
+		this.sections = sections;
+		this.fragmentCount = fragmentCount;
+		this.moleculeCount = moleculeCount;
+		this.dataFields = new String[dataFieldCount][5];
+	}
+}
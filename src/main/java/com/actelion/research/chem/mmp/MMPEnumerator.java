@@ -50,7 +50,7 @@ public class MMPEnumerator {
 	/**
 	 * Adds new Matched Molecular Pair to mMPEnumeration
 	 * @param values Tab-delimited string of [pair1, pair2, pair1Size, pair2Size, cutType]
-	 * @param data Tab-delimited string of [example1a, example1b, leftKey, null|rightKey]
+	 * @param data [example1a, example1b] molecule indexes
 	 */
 	private void addMMP(String values, String[] data) {
 		List<String[]> datas = new ArrayList<String[]>();
@@ -66,45 +66,45 @@ public class MMPEnumerator {
 	/**
 	 * Creates a new MMPEnumerator
 	 * @param combination [A, B] array of two combination sizes (A=size of seed, B=size of replacement; sizes are number of heavy atoms)
-	 * @param keysHash1 HashMap of the keys of size A 
+	 * @param keysHash1 HashMap of the keys of size A (keys are packed 'left' and 'right' key fragment indexes, see MMP.toKeys())
 	 * @param keysHash2 HashMap of the keys of size B
 	 * @param version Version of the enumerator (1.0 or 1.1)
 	 */
-	public MMPEnumerator(int[] combination, HashMap<String, ArrayList<int[]>> keysHash1, HashMap<String, ArrayList<int[]>> keysHash2, String version) throws IOException {
+	public MMPEnumerator(int[] combination, HashMap<Long, ArrayList<int[]>> keysHash1, HashMap<Long, ArrayList<int[]>> keysHash2, String version) throws IOException {
 		mMPEnumeration = new HashMap<String, List<String[]>>();
 		if ((combination[0] == combination[1] && keysHash1 != null) || (combination[0] != combination[1] && keysHash1 != null && keysHash2 != null)) {			
 			if (combination[0] != combination[1]) {
-				Iterator<String> it = keysHash1.keySet().iterator();
+				Iterator<Long> it = keysHash1.keySet().iterator();
 				while (it.hasNext()) {
-					String keysString = it.next();
-					if (keysHash2.containsKey(keysString)) {
-						ArrayList<int[]> valuesList1 = keysHash1.get(keysString);
-						ArrayList<int[]> valuesList2 = keysHash2.get(keysString);
-						String cutType = Integer.toString(keysString.split("\t").length);
+					Long keys = it.next();
+					if (keysHash2.containsKey(keys)) {
+						ArrayList<int[]> valuesList1 = keysHash1.get(keys);
+						ArrayList<int[]> valuesList2 = keysHash2.get(keys);
+						String cutType = MMP.getCutType(keys);
 						for (int[] values1:valuesList1) {
 							for (int[] values2:valuesList2) {
-								addMMP(Integer.toString(values1[0]) + "\t" + Integer.toString(combination[0]) + "\t" + Integer.toString(values2[0]) + "\t" + Integer.toString(combination[1]) + "\t" + cutType, new String[]{Integer.toString(values1[1]), Integer.toString(values2[1]), keysString});
+								addMMP(Integer.toString(values1[0]) + "\t" + Integer.toString(combination[0]) + "\t" + Integer.toString(values2[0]) + "\t" + Integer.toString(combination[1]) + "\t" + cutType, new String[]{Integer.toString(values1[1]), Integer.toString(values2[1])});
 								if (version == "1.0")
-									addMMP(Integer.toString(values2[0]) + "\t" + Integer.toString(combination[1]) + "\t" + Integer.toString(values1[0]) + "\t" + Integer.toString(combination[0]) + "\t" + cutType, new String[]{Integer.toString(values2[1]), Integer.toString(values1[1]), keysString});
+									addMMP(Integer.toString(values2[0]) + "\t" + Integer.toString(combination[1]) + "\t" + Integer.toString(values1[0]) + "\t" + Integer.toString(combination[0]) + "\t" + cutType, new String[]{Integer.toString(values2[1]), Integer.toString(values1[1])});
 							}
 						}
 					}
 				}
 			}
 			else {
-				Iterator<String> it = keysHash1.keySet().iterator();
+				Iterator<Long> it = keysHash1.keySet().iterator();
 				while (it.hasNext()) {
-					String keysString = it.next();
-					ArrayList<int[]> valuesList = keysHash1.get(keysString);
-					String numberOfCuts = Integer.toString(keysString.split("\t").length);
+					Long keys = it.next();
+					ArrayList<int[]> valuesList = keysHash1.get(keys);
+					String numberOfCuts = MMP.getCutType(keys);
 					if (valuesList.size() > 1) {
 						for (int i=0; i<valuesList.size()-1; i++) {
 							for (int j=i+1; j<valuesList.size(); j++) {
 								int[] values1 = valuesList.get(i);
 								int[] values2 = valuesList.get(j);
 								if (values1[0] != values2[0]) { // needed to avoid replacing one fragment by the same
-									addMMP(Integer.toString(values1[0]) + "\t" + Integer.toString(combination[0]) + "\t" + Integer.toString(values2[0]) + "\t" + Integer.toString(combination[1]) + "\t" + numberOfCuts, new String[]{Integer.toString(values1[1]), Integer.toString(values2[1]), keysString});
-									addMMP(Integer.toString(values2[0]) + "\t" + Integer.toString(combination[1]) + "\t" + Integer.toString(values1[0]) + "\t" + Integer.toString(combination[0]) + "\t" + numberOfCuts, new String[]{Integer.toString(values2[1]), Integer.toString(values1[1]), keysString});
+									addMMP(Integer.toString(values1[0]) + "\t" + Integer.toString(combination[0]) + "\t" + Integer.toString(values2[0]) + "\t" + Integer.toString(combination[1]) + "\t" + numberOfCuts, new String[]{Integer.toString(values1[1]), Integer.toString(values2[1])});
+									addMMP(Integer.toString(values2[0]) + "\t" + Integer.toString(combination[1]) + "\t" + Integer.toString(values1[0]) + "\t" + Integer.toString(combination[0]) + "\t" + numberOfCuts, new String[]{Integer.toString(values2[1]), Integer.toString(values1[1])});
 								}
 							}
 						}
@@ -41,12 +41,14 @@ import java.util.List;
 
 
 public class MMPFragments {
+	private static final String HEADER = "key1FragmentIndex\tkey2FragmentIndex\tvalueFragmentIndex\tcutType\tmoleculeIndex";
 	private File temp = File.createTempFile("fragments", ".tmp");
 	private PrintWriter fragmentsWriter = new PrintWriter(temp);
 	private int numberOfLines = 0;
 	
 	public MMPFragments() throws IOException {
-		fragmentsWriter.println("key1FragmentIndex\tkey2FragmentIndex\tvalueFragmentIndex\tcutType\tmoleculeIndex");
+		temp.deleteOnExit();
+		fragmentsWriter.println(HEADER);
 	}
 	
 	/**
@@ -78,11 +80,83 @@ public class MMPFragments {
 	}
 	
 	/**
-	 * Writes the Molecules Fragments block
-	 * @param printWriter
+	 * Removes the fragments of removed molecules and renumbers the molecule indexes
+	 * @param newIndexes new index of each molecule, -1 if the molecule is removed
+	 * @throws IOException
 	 */
-	public void writeFragments(PrintWriter printWriter) throws IOException  {
+	public void removeMolecules(int[] newIndexes) throws IOException {
 		fragmentsWriter.close();
+		File newTemp = File.createTempFile("fragments", ".tmp");
+		newTemp.deleteOnExit();
+		PrintWriter newWriter = new PrintWriter(newTemp);
+		BufferedReader br = new BufferedReader(new FileReader(temp));
+		String strLine = br.readLine(); // header
+		newWriter.println(strLine);
+		numberOfLines = 0;
+		while ((strLine = br.readLine()) != null) {
+			int index = strLine.lastIndexOf('\t');
+			int moleculeIndex = newIndexes[Integer.parseInt(strLine.substring(index+1))];
+			if (moleculeIndex != -1) {
+				newWriter.println(strLine.substring(0, index+1) + Integer.toString(moleculeIndex));
+				numberOfLines++;
+			}
+		}
+		br.close();
+		temp.delete();
+		temp = newTemp;
+		fragmentsWriter = newWriter;
+	}
+	
+	/**
+	 * Writes the fragments (see MMP.saveState())
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeState(DataOutputStream out) throws IOException {
+		fragmentsWriter.flush();
+		out.writeInt(numberOfLines);
+		BufferedReader br = new BufferedReader(new FileReader(temp));
+		br.readLine(); // header
+		String strLine;
+		while ((strLine = br.readLine()) != null) {
+			String[] items = strLine.split("\t", -1);
+			out.writeInt(Integer.parseInt(items[0]));
+			out.writeInt(items[1].isEmpty() ? -1 : Integer.parseInt(items[1]));
+			out.writeInt(Integer.parseInt(items[2]));
+			out.writeInt(Integer.parseInt(items[4]));
+		}
+		br.close();
+	}
+	
+	/**
+	 * Reads the fragments written by writeState()
+	 * @param in
+	 * @throws IOException
+	 */
+	void readState(DataInputStream in) throws IOException {
+		int lines = in.readInt();
+		for (int i=0; i<lines; i++) {
+			int key1Index = in.readInt();
+			int key2Index = in.readInt();
+			int valueIndex = in.readInt();
+			int moleculeIndex = in.readInt();
+			if (key2Index == -1) {
+				fragmentsWriter.println(Integer.toString(key1Index) + "\t\t" + Integer.toString(valueIndex) + "\t1\t" + Integer.toString(moleculeIndex));
+			}
+			else {
+				fragmentsWriter.println(Integer.toString(key1Index) + "\t" + Integer.toString(key2Index) + "\t" + Integer.toString(valueIndex) + "\t2\t" + Integer.toString(moleculeIndex));
+			}
+			numberOfLines++;
+		}
+	}
+	
+	/**
+	 * Writes the Molecules Fragments block, followed by the Hydrogen replacements
+	 * @param printWriter
+	 * @param hydrogenFragments [keyIndex, r1HIndex, moleculeIndex] of the Hydrogen replacements
+	 */
+	public void writeFragments(PrintWriter printWriter, List<int[]> hydrogenFragments) throws IOException  {
+		fragmentsWriter.flush();
 		printWriter.println("<mmpFragments>");
 		printWriter.println("<column properties>");
 		printWriter.println("<columnName=\"key1FragmentIndex\">");
@@ -97,7 +171,9 @@ public class MMPFragments {
 			printWriter.println(strLine);
 		}
 		br.close();
-		temp.delete();
+		for (int[] hydrogenFragment: hydrogenFragments) {
+			printWriter.println(Integer.toString(hydrogenFragment[0]) + "\t\t" + Integer.toString(hydrogenFragment[1]) + "\t1\t" + Integer.toString(hydrogenFragment[2]));
+		}
 		printWriter.println("</mmpFragments>");
 	}
 	
@@ -52,6 +52,7 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.text.DecimalFormat;
@@ -73,6 +74,7 @@ public class MMPReader {
 	private MMPUniqueFragments mmpUniqueFragments;                           // List of unique fragments (index, number of atoms, fingerprints)
 	private HashMap<String, List<int[]>> mmpFragmentsIndex;                  // keys (tab-delimited) - {valueFragmentIndex, molIndex}
 	private HashMap<Integer, HashMap<Integer, List<int[]>>> mmpIndex;        // MMP container: <fragmentIndex of the first fragment ('value1'), <size of the second fragment, List of second fragments ('value2') and examples>  
+	private MMPDatabase database;                                            // memory-mapped MMP database, replaces all the above containers if not null
 	private String datasetName;
 	private String date;
 	private Integer keysMinAtoms;
@@ -400,6 +402,35 @@ public class MMPReader {
 		br.close();
 	}
 	
+	/**
+	 * Opens a MMP database file created by MMPDatabase.convert(); only the header information is loaded into memory
+	 * @param databaseFile
+	 * @throws IOException
+	 */
+	public MMPReader(File databaseFile) throws IOException {
+		database = MMPDatabase.open(databaseFile);
+		datasetName = database.getDatasetName();
+		date = database.getDate();
+		version = database.getVersion();
+		keysMinAtoms = database.getKeysMinAtoms();
+		dataFields = new ArrayList<DataField>();
+		for (String[] dataField: database.getDataFields()) {
+			dataFields.add(new DataField(dataField[0], dataField[1], dataField[2], dataField[3], dataField[4]));
+		}
+		mmpUniqueFragments = new MMPUniqueFragments();
+		mPropertyCalculator = new MMPPropertyCalculator();
+	}
+	
+	/**
+	 * Closes the MMP database file, if any
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (database != null) {
+			database.close();
+		}
+	}
+	
 	/**
 	 * Reads the header block of a MMP file
 	 * @param br
@@ -787,6 +818,10 @@ public class MMPReader {
 	 * @return fragment index
 	 */
 	public Integer fragmentToFragmentIndex(String fragment) {
+		if (database != null) {
+			int fragmentIndex = database.getFragmentIndex(fragment);
+			return fragmentIndex == -1 ? null : fragmentIndex;
+		}
 		if (uniqueFragmentsIndex.contains(fragment)) {
 			return uniqueFragmentsIndex.indexOf(fragment);
 		}
@@ -812,9 +847,156 @@ public class MMPReader {
 	 * @return number of heavy atoms
 	 */
 	public Integer fragmentToFragmentSize(String fragment) {
+		if (database != null) {
+			int fragmentIndex = database.getFragmentIndex(fragment);
+			return fragmentIndex == -1 ? null : database.getFragmentAtoms(fragmentIndex);
+		}
 		return mmpUniqueFragments.getFragmentAtoms(fragment);
 	}
 	
+	/**
+	 * Returns the idCode of a unique fragment
+	 * @param fragmentIndex index of the fragment
+	 * @return idCode of the fragment
+	 */
+	private String fragmentIndexToFragment(int fragmentIndex) {
+		if (database != null) {
+			return database.getFragmentIDCode(fragmentIndex);
+		}
+		return uniqueFragmentsIndex.get(fragmentIndex);
+	}
+	
+	/**
+	 * Returns a MMPUniqueFragment object from a fragment idCode
+	 * @param fragmentID idCode of the fragment
+	 * @return a MMPUniqueFragment object or null
+	 */
+	private MMPUniqueFragment getUniqueFragment(String fragmentID) {
+		if (database != null) {
+			int fragmentIndex = database.getFragmentIndex(fragmentID);
+			if (fragmentIndex == -1) {
+				return null;
+			}
+			return mmpUniqueFragments.createFragment(fragmentIndex, database.getFragmentAtoms(fragmentIndex), database.getFragmentFP(fragmentIndex));
+		}
+		return mmpUniqueFragments.fragmentIDToFragment(fragmentID);
+	}
+	
+	/**
+	 * Returns a MMPUniqueFragment object from an array of one (single cut) or two (double cut) fragment idCodes
+	 * @param fragmentsID idCodes of the fragments
+	 * @return a MMPUniqueFragment object or null
+	 */
+	private MMPUniqueFragment getUniqueFragment(String[] fragmentsID) {
+		String fragmentID = fragmentsID[0];
+		if (fragmentsID.length == 2) {
+			fragmentID = fragmentsID[0] + "\t" + fragmentsID[1];
+		}
+		return getUniqueFragment(fragmentID);
+	}
+	
+	/**
+	 * Returns the molecules fragments of one or two 'keys'
+	 * @param keys array of one (single cut) or two (double cut) fragment indexes of the 'keys'
+	 * @return List of [valueFragmentIndex, molIndex] or null
+	 */
+	private List<int[]> getFragmentsIndex(Integer[] keys) {
+		if (database != null) {
+			if (keys.length == 1 && keys[0] != null) {
+				return database.getFragments(keys[0], -1);
+			}
+			else if (keys.length == 2 && keys[0] != null && keys[1] != null) {
+				return database.getFragments(keys[0], keys[1]);
+			}
+			return null;
+		}
+		String keysString = keysToKeysString(keys);
+		if (keysString != null) {
+			return mmpFragmentsIndex.get(keysString);
+		}
+		return null;
+	}
+	
+	/**
+	 * Verifies if Matched Molecular Pairs exist for a seed 'value'
+	 * @param value1Index index of the seed 'value'
+	 * @return true/false if MMPs exist
+	 */
+	private boolean containsMMPs(int value1Index) {
+		if (database != null) {
+			return database.containsTransformations(value1Index);
+		}
+		return mmpIndex.containsKey(value1Index);
+	}
+	
+	/**
+	 * Returns the target 'values' and examples of a seed 'value' for a specific size of the target 'value'
+	 * @param value1Index index of the seed 'value'
+	 * @param size number of heavy atoms of the target 'value'
+	 * @return List of [value2Index, example1, example2, ...] or null
+	 */
+	private List<int[]> getMMPs(int value1Index, int size) {
+		if (database != null) {
+			return database.getTransformations(value1Index, size);
+		}
+		HashMap<Integer, List<int[]>> mmps = mmpIndex.get(value1Index);
+		if (mmps != null) {
+			return mmps.get(size);
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the number of target 'values' of a seed 'value' for a specific size of the target 'value'
+	 * @param value1Index index of the seed 'value'
+	 * @param size number of heavy atoms of the target 'value'
+	 * @return number of target 'values'
+	 */
+	private int getMMPsSize(int value1Index, int size) {
+		if (database != null) {
+			return database.getTransformationsSize(value1Index, size);
+		}
+		List<int[]> mmps = getMMPs(value1Index, size);
+		return mmps == null ? 0 : mmps.size();
+	}
+	
+	/**
+	 * Returns the idCode of a molecule
+	 * @param molIndex
+	 * @return idCode
+	 */
+	private String getMoleculeIDCode(int molIndex) {
+		if (database != null) {
+			return database.getMoleculeIDCode(molIndex);
+		}
+		return molecules.get(molIndex);
+	}
+	
+	/**
+	 * Returns the entries (names and data) of a molecule
+	 * @param molIndex
+	 * @return List of MoleculeIndex objects
+	 */
+	private ArrayList<MoleculeIndex> getMoleculeEntries(int molIndex) {
+		if (database != null) {
+			return database.getMoleculeEntries(molIndex);
+		}
+		return wholeMoleculesIndex.get(molecules.get(molIndex));
+	}
+	
+	/**
+	 * Returns the entries (names and data) of a molecule from its idCode
+	 * @param idCode
+	 * @return List of MoleculeIndex objects or null if the molecule is not in the data set
+	 */
+	private ArrayList<MoleculeIndex> getMoleculeEntries(String idCode) {
+		if (database != null) {
+			int molIndex = idCode == null ? -1 : database.getMoleculeIndex(idCode);
+			return molIndex == -1 ? null : database.getMoleculeEntries(molIndex);
+		}
+		return wholeMoleculesIndex.get(idCode);
+	}
+	
 	/**
 	 * Returns the size of the chemical space corresponding to a specific 'key' (constant part of a molecule)
 	 * @param key idCode of the 'key' (constant part of a molecule)
@@ -832,9 +1014,8 @@ public class MMPReader {
 	public int getChemicalSpaceSize(String[] keys) {
 		int chemicalSpaceSize = 0;
 		Integer[] keysIndex = fragmentToFragmentIndex(keys);
-		String keysString = keysToKeysString(keysIndex);
-		if (keysString != null && mmpFragmentsIndex.containsKey(keysString)) {
-			List<int[]> chemicalSpace = mmpFragmentsIndex.get(keysString);
+		List<int[]> chemicalSpace = getFragmentsIndex(keysIndex);
+		if (chemicalSpace != null) {
 			Set<Integer> molList = new HashSet<Integer>();
 			for (int[] chemSpace: chemicalSpace) {
 				molList.add(chemSpace[1]);
@@ -853,9 +1034,7 @@ public class MMPReader {
 	 */
 	public List<String> getChemicalSpace(String[] keys, String value, String dataField) {
 		List<String> chemicalSpaceMolecules = new ArrayList<String>();
-		List<int[]> chemicalSpace = new ArrayList<int[]>();
 		Integer[] keysIndex = fragmentToFragmentIndex(keys);
-		String keysString = keysToKeysString(keysIndex);
 		int dataFieldIndex = -1;
 		if (dataField != null) {
 			for (int i=0; i<dataFields.size(); i++) {
@@ -865,16 +1044,16 @@ public class MMPReader {
 				}
 			}
 		}
-		if (keysString != null && mmpFragmentsIndex.containsKey(keysString)) {
-			chemicalSpace = mmpFragmentsIndex.get(keysString);
+		List<int[]> chemicalSpace = getFragmentsIndex(keysIndex);
+		if (chemicalSpace != null) {
 			Set<Integer> molList = new HashSet<Integer>();
 			for (int[] chemSpace: chemicalSpace) {
 				molList.add(chemSpace[1]);
 			}
 			for (Integer molIndex: molList) {				
-				String idCode = molecules.get(molIndex);
+				String idCode = getMoleculeIDCode(molIndex);
 				String idCoord = null;
-				for (MoleculeIndex moleculeIndex: wholeMoleculesIndex.get(idCode)) {
+				for (MoleculeIndex moleculeIndex: getMoleculeEntries(molIndex)) {
 					if (idCoord == null) {
 						idCoord = moleculeIndex.moleculeIDCoord;
 					}
@@ -1116,16 +1295,13 @@ public class MMPReader {
 	 */
 	public int getTransformationsSize(String value1, int minAtoms, int maxAtoms) {
 		int mmpSize = 0;
-		MMPUniqueFragment value1Fragment = mmpUniqueFragments.fragmentIDToFragment(value1);
+		MMPUniqueFragment value1Fragment = getUniqueFragment(value1);
 		if (value1Fragment != null) {
 			Integer value1Atoms = value1Fragment.getFragmentAtoms();
 			Integer value1Index = value1Fragment.getFragmentIndex();
-			if (value1Index != null && mmpIndex.containsKey(value1Index)) {
-				HashMap<Integer, List<int[]>> mmps = mmpIndex.get(value1Index);
+			if (value1Index != null && containsMMPs(value1Index)) {
 				for (int size=value1Atoms+minAtoms; size<=value1Atoms+maxAtoms; size++) {
-					if (mmps.containsKey(size)) {
-						mmpSize += mmps.get(size).size();
-					}
+					mmpSize += getMMPsSize(value1Index, size);
 				}
 			}
 		}
@@ -1144,36 +1320,25 @@ public class MMPReader {
 	private List<MatchedMolecularPair> getTransformations(String moleculeIDCode, String[] keys, String value1, int minAtoms, int maxAtoms, String sortBy) {
 		List<MatchedMolecularPair> retVal = new ArrayList<MatchedMolecularPair>();
 		Integer[] keyIndex = fragmentToFragmentIndex(keys);
-		String keyIndexString = null;
-		if (keyIndex.length == 1 && keyIndex[0] != null) {
-			keyIndexString = Integer.toString(keyIndex[0]);
-		}
-		else if (keyIndex.length == 2 && keyIndex[0] != null && keyIndex[1] != null) {
-			keyIndexString = Integer.toString(keyIndex[0]) + "\t" + Integer.toString(keyIndex[1]);
-		}
-		MMPUniqueFragment value1Fragment = mmpUniqueFragments.fragmentIDToFragment(value1);
+		MMPUniqueFragment value1Fragment = getUniqueFragment(value1);
 		if (value1Fragment != null) {
 			Integer value1Atoms = value1Fragment.getFragmentAtoms();
 			Integer value1Index = value1Fragment.getFragmentIndex();
 			// TODO: obtain 2 keysFragment for doublecuts and two keysFP, and use them in examplesToMolecules
-			MMPUniqueFragment keysFragment = mmpUniqueFragments.fragmentIDToFragment(keys);
+			MMPUniqueFragment keysFragment = getUniqueFragment(keys);
 			String[] keysFP = null;
 			if (keysFragment != null) {
 				keysFP = keysFragment.getFragmentFP();	
 			}
 			String[] value1FP = value1Fragment.getFragmentFP();
-			if (value1Index != null && mmpIndex.containsKey(value1Index)) {
-				HashMap<Integer, List<int[]>> mmps = mmpIndex.get(value1Index);
-				List<int[]> fragmentsIndex = null;
-				if (keyIndexString != null && mmpFragmentsIndex.containsKey(keyIndexString)){
-					fragmentsIndex = mmpFragmentsIndex.get(keyIndexString);
-				}
+			if (value1Index != null && containsMMPs(value1Index)) {
+				List<int[]> fragmentsIndex = getFragmentsIndex(keyIndex);
 				for (int size=value1Atoms+minAtoms; size<=value1Atoms+maxAtoms; size++) {
-					if (mmps.containsKey(size)) {
-						List<int[]> values2 = mmps.get(size);
+					List<int[]> values2 = getMMPs(value1Index, size);
+					if (values2 != null) {
 						for (int[] value2_and_examples: values2) {
 							int value2Index = value2_and_examples[0];
-							String value2 = uniqueFragmentsIndex.get(value2Index);
+							String value2 = fragmentIndexToFragment(value2Index);
 //							int[] examples = Arrays.copyOfRange(value2_and_examples, 1, value2_and_examples.length);
 							int targetExists = -1;
 							if (fragmentsIndex != null) { // fragmentsIndex contains all [valueIndex, molIndex] for the seeded key 
@@ -1186,7 +1351,7 @@ public class MMPReader {
 							}
 							List<MatchedMolecularPairExamples> mmpExamples = examplesToMolecules(value2_and_examples, keysFP, value2Index, targetExists);
 							if (targetExists == -1) { 
-								ArrayList<MoleculeIndex> currents = wholeMoleculesIndex.get(moleculeIDCode);
+								ArrayList<MoleculeIndex> currents = getMoleculeEntries(moleculeIDCode);
 								if (currents == null) {
 									StereoMolecule virtualMol = new StereoMolecule();
 									IDCodeParser idCodeParser = new IDCodeParser();
@@ -1208,7 +1373,7 @@ public class MMPReader {
 								mmpExamples.add(0, matchedMolecularPairExamples);
 							}
 							Collections.sort(mmpExamples, EXAMPLES_SIMILARITY_SORT);
-							MMPUniqueFragment value2Fragment = mmpUniqueFragments.fragmentIDToFragment(value2);
+							MMPUniqueFragment value2Fragment = getUniqueFragment(value2);
 							String[] value2FP = value2Fragment.getFragmentFP();
 							retVal.add(new MatchedMolecularPair(value1, value1Index, value1Atoms, value1FP, value2, value2Index, size, value2FP, mmpExamples, dataFields.size(), targetExists));
 						}
@@ -1656,10 +1821,7 @@ public class MMPReader {
 	 */
 	private List<MatchedMolecularPairExamples> examplesToMolecules(int[] examples, String[] keys1FP, int value2Index, int targetExists) {
 		List<MatchedMolecularPairExamples> retVal = new ArrayList<MatchedMolecularPairExamples>();
-		List<int[]> fragmentsIndex = null;
-		if (mmpFragmentsIndex.containsKey(Integer.toString(value2Index))) {
-			fragmentsIndex = mmpFragmentsIndex.get(Integer.toString(value2Index));
-		}
+		List<int[]> fragmentsIndex = getFragmentsIndex(new Integer[]{value2Index});
 		// pass keyIndex and use that instead of value2Index in case of too small value
 		for (int i=1; i<examples.length; i+=2) { // examples[0] is the value2Index
 			ArrayList<MoleculeIndex> example1 = molIndexToMolecule(examples[i]);
@@ -1674,8 +1836,8 @@ public class MMPReader {
 						else {
 							similarity = 0;
 							int keyIndex = fragmentIndex[0];
-							String keyID = uniqueFragmentsIndex.get(keyIndex);
-							MMPUniqueFragment keysFragment = mmpUniqueFragments.fragmentIDToFragment(keyID);
+							String keyID = fragmentIndexToFragment(keyIndex);
+							MMPUniqueFragment keysFragment = getUniqueFragment(keyID);
 							String[] keys2FP = keysFragment.getFragmentFP();
 							if (keys1FP != null) {
 								for (int j=keys1FP.length-1; j>=0; j--) {
@@ -1702,8 +1864,8 @@ public class MMPReader {
 	 * @return
 	 */
 	private ArrayList<MoleculeIndex> molIndexToMolecule(int molIndex) {
-		String moleculeIDCode = molecules.get(molIndex);
-		ArrayList<MoleculeIndex> moleculesIndex = wholeMoleculesIndex.get(moleculeIDCode);
+		String moleculeIDCode = getMoleculeIDCode(molIndex);
+		ArrayList<MoleculeIndex> moleculesIndex = getMoleculeEntries(molIndex);
 		// here I could put the IDCode just for the first entry, since I only read the first one later on...
 		for (MoleculeIndex moleculeIndex: moleculesIndex) {
 			moleculeIndex.setIDCode(moleculeIDCode);
@@ -1717,6 +1879,18 @@ public class MMPReader {
 	 * @return null or idCode
 	 */
 	public String getIDCodeFromMolName(String molName) {
+		if (database != null) {
+			int molIndex = database.getMoleculeIndexFromName(molName);
+			if (molIndex == -1) {
+				return null;
+			}
+			String idCode = database.getMoleculeIDCode(molIndex);
+			String idCoord = database.getMoleculeEntries(molIndex).get(0).moleculeIDCoord;
+			if (idCoord != null) {
+				return idCode + "\t" + idCoord;
+			}
+			return idCode;
+		}
 		for (Entry<String, ArrayList<MoleculeIndex>> cursor : wholeMoleculesIndex.entrySet()) {
 			for (MoleculeIndex moleculeIndex: cursor.getValue()) {
 				if (moleculeIndex.moleculeName.equals(molName)) {
@@ -1803,13 +1977,17 @@ public class MMPReader {
 			return date;
 		}
 		else if (what.equals("numberOfMolecules")) {
+			if (database != null) {
+				return Integer.toString(database.getUniqueMoleculeCount());
+			}
 			return Integer.toString(wholeMoleculesIndex.size());
 		}
 		else if (what.equals("randomMoleculeName")) {
 			Random randomGenerator = new Random();
-			if (molecules.size() > 0) {
-				int index = randomGenerator.nextInt(molecules.size());
-				ArrayList<MoleculeIndex> moleculesIndex = wholeMoleculesIndex.get(molecules.get(index));
+			int moleculeCount = database != null ? database.getMoleculeCount() : molecules.size();
+			if (moleculeCount > 0) {
+				int index = randomGenerator.nextInt(moleculeCount);
+				ArrayList<MoleculeIndex> moleculesIndex = getMoleculeEntries(index);
 				if (moleculesIndex.size() > 0) {
 					return moleculesIndex.get(0).moleculeName;
 				}
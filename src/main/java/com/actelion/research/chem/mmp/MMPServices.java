@@ -35,6 +35,7 @@
 package com.actelion.research.chem.mmp;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -72,6 +73,19 @@ public class MMPServices {
 		return datasetName;
 	}
 	
+	/**
+	 * Opens a MMP database file (binary file created by MMPDatabase.convert())
+	 * @param databaseFile MMP database file
+	 * @return short name of the data set
+	 * @throws IOException
+	 */
+	public String readMMPDatabase(File databaseFile) throws IOException {
+		MMPReader mmpReader = new MMPReader(databaseFile);
+		String datasetName = mmpReader.getWhat("datasetName"); 
+		mmpReaders.put(datasetName, mmpReader);
+		return datasetName;
+	}
+	
 	/**
 	 * Gets the size of the chemical space for a specific data set
 	 * @param datasetName Short name of the data set
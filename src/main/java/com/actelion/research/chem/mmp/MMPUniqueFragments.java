@@ -37,11 +37,18 @@ package com.actelion.research.chem.mmp;
 import com.actelion.research.chem.IDCodeParser;
 import com.actelion.research.chem.StereoMolecule;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class MMPUniqueFragments {
 	
@@ -69,6 +76,12 @@ public class MMPUniqueFragments {
 			this.fragmentFP = fragmentFP;
 		}
 		
+		private MMPUniqueFragment(int fragmentIndex, int fragmentAtoms, String[] fragmentFP) {
+			this.fragmentIndex = fragmentIndex;
+			this.fragmentAtoms = fragmentAtoms;
+			this.fragmentFP = fragmentFP;
+		}
+		
 		/**
 		 * Generates fragments of size 2-6 rooted at the R-Group(s)
 		 * @param fragmentID idCode of the whole fragment
@@ -139,6 +152,18 @@ public class MMPUniqueFragments {
 		uniqueFragments = new LinkedHashMap<String, MMPUniqueFragment>();
 	}
 	
+	/**
+	 * Creates a MMPUniqueFragment object with a known index, without adding it to the LinkedHashMap
+	 * (used for fragments read from a MMPDatabase)
+	 * @param fragmentIndex index of the fragment
+	 * @param fragmentAtoms number of heavy atoms of the fragment
+	 * @param fragmentFP fragments of size 1-6 rooted at the R-group(s)
+	 * @return a MMPUniqueFragment object
+	 */
+	MMPUniqueFragment createFragment(int fragmentIndex, int fragmentAtoms, String[] fragmentFP) {
+		return new MMPUniqueFragment(fragmentIndex, fragmentAtoms, fragmentFP);
+	}
+	
 	/**
 	 * Returns the number of heavy atoms of a fragment
 	 * @param fragmentID idCode of the fragment
@@ -234,6 +259,104 @@ public class MMPUniqueFragments {
 		}
 	}
 	
+	/**
+	 * Generates the missing fragments rooted at the R-Group(s) of all unique fragments.<br>
+	 * Each thread works with its own parser and molecules.
+	 * @param executor null or ExecutorService
+	 * @param threadCount number of tasks
+	 */
+	void calcFragmentFPs(ExecutorService executor, int threadCount) {
+		List<Map.Entry<String, MMPUniqueFragment>> entries = new ArrayList<Map.Entry<String, MMPUniqueFragment>>();
+		for (Map.Entry<String, MMPUniqueFragment> entry: uniqueFragments.entrySet()) {
+			if (entry.getValue().fragmentFP == null) {
+				entries.add(entry);
+			}
+		}
+		if (executor == null || entries.size() < 2) {
+			threadCount = 1;
+		}
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int t=0; t<threadCount; t++) {
+			final int first = t;
+			final int step = threadCount;
+			Runnable task = () -> {
+				MMPUniqueFragments scratch = new MMPUniqueFragments();
+				scratch.fragment = new StereoMolecule(biggestFragment+1, biggestFragment+1);
+				for (int i=first; i<entries.size(); i+=step) {
+					Map.Entry<String, MMPUniqueFragment> entry = entries.get(i);
+					MMPUniqueFragment mmpFragment = scratch.createFragment(entry.getValue().fragmentIndex, entry.getValue().fragmentAtoms, null);
+					mmpFragment.addFP(entry.getKey());
+					entry.getValue().fragmentFP = mmpFragment.fragmentFP;
+				}
+			};
+			if (threadCount == 1) {
+				task.run();
+			}
+			else {
+				futures.add(executor.submit(task));
+			}
+		}
+		for (Future<?> future: futures) {
+			try {
+				future.get();
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(ie);
+			}
+			catch (ExecutionException ee) {
+				throw new RuntimeException(ee.getCause());
+			}
+		}
+	}
+	
+	/**
+	 * Writes the unique fragments (see MMP.saveState())
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeState(DataOutputStream out) throws IOException {
+		out.writeInt(uniqueFragments.size());
+		for (Map.Entry<String, MMPUniqueFragment> entry: uniqueFragments.entrySet()) {
+			MMP.writeString(out, entry.getKey());
+			out.writeInt(entry.getValue().fragmentAtoms);
+			String[] fragmentFP = entry.getValue().fragmentFP;
+			out.writeInt(fragmentFP == null ? -1 : fragmentFP.length);
+			if (fragmentFP != null) {
+				for (String fp: fragmentFP) {
+					MMP.writeString(out, fp);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reads the unique fragments written by writeState(); fragments are added in the order of their indexes
+	 * @param in
+	 * @throws IOException
+	 */
+	void readState(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		for (int i=0; i<size; i++) {
+			String fragmentID = MMP.readString(in);
+			int fragmentAtoms = in.readInt();
+			int fpLength = in.readInt();
+			String[] fragmentFP = null;
+			if (fpLength != -1) {
+				fragmentFP = new String[fpLength];
+				for (int j=0; j<fpLength; j++) {
+					fragmentFP[j] = MMP.readString(in);
+				}
+			}
+			if (uniqueFragments.containsKey(fragmentID)) {
+				uniqueFragments.get(fragmentID).fragmentFP = fragmentFP;
+			}
+			else {
+				addFragment(fragmentID, fragmentAtoms, fragmentFP);
+			}
+		}
+	}
+	
 	/**
 	 * Writes the Unique Fragments block
 	 * @param printWriter
@@ -70,6 +70,8 @@ public class DescriptorHandlerShape implements DescriptorHandler<PheSAMolecule,S
 	
 	protected ThreadMaster threadMaster;
 	
+	private PheSAPrefilter prefilter;
+	
 	// Maximum number of tries to generate conformers with the torsion rule based conformer generator from Thomas Sander
 	
 	
@@ -122,6 +124,19 @@ public class DescriptorHandlerShape implements DescriptorHandler<PheSAMolecule,S
 		this.phesaSetting = phesaSetting;
 	}
 
+	public PheSAPrefilter getPrefilter() {
+		return prefilter;
+	}
+
+	/**
+	 * If a prefilter is set, getSimilarity() returns 0.0 without alignment for pairs that
+	 * the prefilter rejects. Thread-safe copies share the prefilter and thus its statistics.
+	 * @param prefilter null to align all pairs
+	 */
+	public void setPrefilter(PheSAPrefilter prefilter) {
+		this.prefilter = prefilter;
+	}
+
 	public void setThreadMaster(ThreadMaster tm) {
 		this.threadMaster = tm;
 	}
@@ -225,6 +240,13 @@ public class DescriptorHandlerShape implements DescriptorHandler<PheSAMolecule,S
 	
 	public float getSimilarity(PheSAMolecule query, PheSAMolecule base) {
  		StereoMolecule[] bestPair = {query.getMolecule(),base.getMolecule()};
+		if(prefilter!=null) {
+			if(!prefilter.accept(PheSAPrefilter.createSignature(query), PheSAPrefilter.createSignature(base), phesaSetting)) {
+				this.setPreviousAlignment(bestPair);
+				this.setPreviousPheSAResult(new double[4]);
+				return 0.0f;
+			}
+		}
 		double[] result = PheSAAlignmentOptimizer.align(query,base,bestPair,phesaSetting);
 		this.setPreviousAlignment(bestPair);
 		this.setPreviousPheSAResult(result);
@@ -371,6 +393,7 @@ public class DescriptorHandlerShape implements DescriptorHandler<PheSAMolecule,S
 		dhs.ppWeight = ppWeight;
 		dhs.flexible = flexible;
 		dhs.maxConfs = maxConfs;
+		dhs.prefilter = prefilter;
 
 		return dhs;
 	}
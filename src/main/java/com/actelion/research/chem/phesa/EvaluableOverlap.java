@@ -5,7 +5,6 @@ import java.util.List;
 
 import com.actelion.research.chem.Coordinates;
 import com.actelion.research.chem.alignment3d.transformation.ExponentialMap;
-import com.actelion.research.chem.alignment3d.transformation.Quaternion;
 import com.actelion.research.chem.alignment3d.transformation.RotationDerivatives;
 import com.actelion.research.chem.optimization.Evaluable;
 import com.actelion.research.chem.phesa.pharmacophore.pp.PPGaussian;
@@ -37,8 +36,11 @@ public class EvaluableOverlap implements Evaluable  {
     private double [][] dv1PP;
     private double [][] dv2PP;
     private double[][] results;
-    private Coordinates[] fitAtGaussModCoords;
     private Coordinates[] fitPPGaussModCoords;
+    private GaussianOverlapKernel atomKernel;
+    private double[] fitAtX,fitAtY,fitAtZ;
+    private double[] atomGrad,ppGrad;
+    private double[][] rotMatrix,dRdvi_1,dRdvi_2,dRdvi_3;
 
     
     public EvaluableOverlap(PheSAAlignment shapeAlign, double[] transform) {
@@ -49,11 +51,13 @@ public class EvaluableOverlap implements Evaluable  {
     	this.ppWeight = ppWeight;
 		this.shapeAlign = shapeAlign; 
 		this.transform = transform;
-	    this.fitAtGaussModCoords = new Coordinates[shapeAlign.getMolGauss().getAtomicGaussians().size()];
+	    int fitAtCount = shapeAlign.getMolGauss().getAtomicGaussians().size();
 	    this.fitPPGaussModCoords = new Coordinates[shapeAlign.getMolGauss().getPPGaussians().size()];
-	    this.dv0At = new double[fitAtGaussModCoords.length][3];
-	    this.dv1At = new double[fitAtGaussModCoords.length][3];
-	    this.dv2At = new double[fitAtGaussModCoords.length][3];
+	    for(int i=0;i<fitPPGaussModCoords.length;i++)
+	    	fitPPGaussModCoords[i] = new Coordinates();
+	    this.dv0At = new double[fitAtCount][3];
+	    this.dv1At = new double[fitAtCount][3];
+	    this.dv2At = new double[fitAtCount][3];
 	    this.dv0PP = new double[fitPPGaussModCoords.length][3];
 	    this.dv1PP = new double[fitPPGaussModCoords.length][3];
 	    this.dv2PP = new double[fitPPGaussModCoords.length][3];
@@ -77,39 +81,84 @@ public class EvaluableOverlap implements Evaluable  {
 		for(Coordinates coords : cachedCoordsPP) {
 			coords.sub(origCOM);
 		}
-		
+		List<VolumeGaussian> volumeGaussians = new ArrayList<>();
+		if(shapeAlign.getRefMolGauss() instanceof MolecularVolume)
+			volumeGaussians = ((MolecularVolume)shapeAlign.getRefMolGauss()).getVolumeGaussians();
+		atomKernel = new GaussianOverlapKernel(shapeAlign.getRefMolGauss().getAtomicGaussians(), volumeGaussians,
+				shapeAlign.getMolGauss().getAtomicGaussians());
+		fitAtX = new double[cachedCoords.length];
+		fitAtY = new double[cachedCoords.length];
+		fitAtZ = new double[cachedCoords.length];
+		createScratchArrays();
+	}
 
-		
+	/**
+	 * gradients and rotation matrices are evaluated into these arrays on every call of getFGValue()
+	 */
+	private void createScratchArrays() {
+		atomGrad = new double[transform.length];
+		ppGrad = new double[transform.length];
+		rotMatrix = new double[3][3];
+		dRdvi_1 = new double[3][3];
+		dRdvi_2 = new double[3][3];
+		dRdvi_3 = new double[3][3];
 	}
 	
 	public EvaluableOverlap(EvaluableOverlap e) {
+		this.ppWeight = e.ppWeight;
 		this.shapeAlign = e.shapeAlign;
 		this.transform = e.transform;	
 	    this.dv0At = e.dv0At;
 	    this.dv1At = e.dv1At;
 	    this.dv2At = e.dv2At;
 	    this.dv0PP = e.dv0PP;
-	    this.dv0PP = e.dv1PP;
-	    this.dv0PP = e.dv2PP;
-		this.fitAtGaussModCoords = e.fitAtGaussModCoords;
+	    this.dv1PP = e.dv1PP;
+	    this.dv2PP = e.dv2PP;
 		this.fitPPGaussModCoords = e.fitPPGaussModCoords;
 		this.results = e.results;
+		this.cachedCoords = e.cachedCoords;
+		this.cachedCoordsPP = e.cachedCoordsPP;
+		this.origCOM = e.origCOM;
+		this.atomKernel = e.atomKernel;
+		this.fitAtX = e.fitAtX;
+		this.fitAtY = e.fitAtY;
+		this.fitAtZ = e.fitAtZ;
+		createScratchArrays();
+	}
 
+	/**
+	 * calculates the rotation matrix from the exponential map (transform[0-2]) like
+	 * ExponentialMap.toQuaternion().getRotMatrix(), but into the preallocated rotMatrix
+	 */
+	private void updateRotationMatrix() {
+		double theta = Math.sqrt(transform[0]*transform[0]+transform[1]*transform[1]+transform[2]*transform[2]);
+		double f = (theta < ExponentialMap.EPSILON) ? 0.5-theta*theta/48.0 : Math.sin(0.5*theta)/theta;
+		double q0 = Math.cos(0.5*theta);
+		double q1 = f*transform[0];
+		double q2 = f*transform[1];
+		double q3 = f*transform[2];
+		double[][] m = rotMatrix;
+		m[0][0] = 1.0-2*(q2*q2+q3*q3);
+		m[1][0] = 2*(q1*q2-q0*q3);
+		m[2][0] = 2*(q1*q3+q0*q2);
+		m[0][1] = 2*(q1*q2+q0*q3);
+		m[1][1] = 1.0-2*(q1*q1+q3*q3);
+		m[2][1] = 2*(q2*q3-q0*q1);
+		m[0][2] = 2*(q1*q3-q0*q2);
+		m[1][2] = 2*(q2*q3+q0*q1);
+		m[2][2] = 1.0-2*(q1*q1+q2*q2);
 	}
-	
+
 	private void getTransformedCoordinates(Coordinates[] modCoords,List<? extends Gaussian3D> fitMolGauss) {
-		 ExponentialMap em = new ExponentialMap(transform[0],transform[1],transform[2]);
-		 Quaternion q = em.toQuaternion();
-		 double[][] rotMatrix = q.getRotMatrix().getArray();
+		 double[][] m = rotMatrix;
 		 for(int k=0;k<fitMolGauss.size();k++) {
-		    Coordinates center = new Coordinates(fitMolGauss.get(k).center);
-		    center.sub(origCOM);
-		    center.rotate(rotMatrix);
-		    center.add(origCOM);
-		    center.x += transform[3];
-		    center.y += transform[4];
-		    center.z += transform[5]; 
-		    modCoords[k] = center;
+			Coordinates center = fitMolGauss.get(k).center;
+			double cx = center.x-origCOM.x;
+			double cy = center.y-origCOM.y;
+			double cz = center.z-origCOM.z;
+			modCoords[k].set(cx*m[0][0]+cy*m[1][0]+cz*m[2][0] + origCOM.x + transform[3],
+							 cx*m[0][1]+cy*m[1][1]+cz*m[2][1] + origCOM.y + transform[4],
+							 cx*m[0][2]+cy*m[1][2]+cz*m[2][2] + origCOM.z + transform[5]);
 		  }
 	}
 	
@@ -147,15 +196,15 @@ public class EvaluableOverlap implements Evaluable  {
 		ShapeVolume refMolGauss = shapeAlign.getRefMolGauss();
 		ShapeVolume fitMolGauss = shapeAlign.getMolGauss();
 		double value = 0.0;
-		double[] atomGrad = new double[grad.length];
-		List<VolumeGaussian> volumeGaussians = new ArrayList<>();
-		if(refMolGauss instanceof MolecularVolume)
-			volumeGaussians = ((MolecularVolume)refMolGauss).getVolumeGaussians();
-		value += (1.0-ppWeight)*this.getFGValueOverlap(atomGrad,refMolGauss.getAtomicGaussians(),fitMolGauss.getAtomicGaussians(),volumeGaussians,
-						dv0At,dv1At,dv2At,fitAtGaussModCoords);
+		for(int i=0;i<grad.length;i++) {
+			atomGrad[i] = 0.0;
+			ppGrad[i] = 0.0;
+		}
+		updateRotationMatrix();
+		updateRotationDerivatives();
+		value += (1.0-ppWeight)*this.getFGValueOverlap(atomGrad,fitMolGauss.getAtomicGaussians(),dv0At,dv1At,dv2At);
 			
 		
-		double[] ppGrad = new double[grad.length];
 		value += ppWeight*this.getFGValueOverlapPP(ppGrad,refMolGauss.getPPGaussians(),fitMolGauss.getPPGaussians(),
 						dv0PP,dv1PP,dv2PP,fitPPGaussModCoords);
 
@@ -169,44 +218,37 @@ public class EvaluableOverlap implements Evaluable  {
 	}
 	
 	
+	/**
+	 * calculates the partial derivatives of the rotation matrix with respect to the three elements of the exponential map
+	 * into dRdvi_1, dRdvi_2 and dRdvi_3; these are shared by the atom and the pharmacophore overlap
+	 */
+	private void updateRotationDerivatives() {
+		RotationDerivatives rotationDerivatives = new RotationDerivatives(transform); // only reads the exponential map (transform[0-2])
+		rotationDerivatives.dRdv(0, dRdvi_1);
+		rotationDerivatives.dRdv(1, dRdvi_2);
+		rotationDerivatives.dRdv(2, dRdvi_3);
+	}
+
 	private void getEMapGradient(double[][] dRdv0, double[][] dRdv1, double[][] dRdv2, Coordinates[] cachedCoords) {
 
 		    /**
-		     * we first calculate the partial derivatives with respect to the three elements of the exponential map
-		     * the final gradient has 7 elements, the first four elements are the gradients for the quaternion (rotation),
+		     * the derivatives of the rotation matrix are applied to the centered coordinates;
+		     * the final gradient has 6 elements, the first three elements are the gradients for the rotation,
 		     * the last three elements are for the translation
 		     */
-		
-		double[] v = new double[] {transform[0],transform[1],transform[2]}; //exponential map
-		RotationDerivatives rotationDerivatives = new RotationDerivatives(v);
-		double[][] dRdvi_1 = new double[3][3];
-		double[][] dRdvi_2 = new double[3][3];
-		double[][] dRdvi_3 = new double[3][3];
-		rotationDerivatives.dRdv(0, dRdvi_1);
-		rotationDerivatives.dRdv(1, dRdvi_2);
-		rotationDerivatives.dRdv(2, dRdvi_3);
+
 		 for(int a=0;a<cachedCoords.length;a++){
 			Coordinates xi = cachedCoords[a];
-			Coordinates dRij_dv0 = xi.rotateC(dRdvi_1);
-			Coordinates dRij_dv1 = xi.rotateC(dRdvi_2);
-			Coordinates dRij_dv2 = xi.rotateC(dRdvi_3);
-	
-			dRdv0[a][0] = dRij_dv0.x;
-			dRdv0[a][1] = dRij_dv0.y;
-			dRdv0[a][2] = dRij_dv0.z;
-			
-			dRdv1[a][0] = dRij_dv1.x;
-			dRdv1[a][1] = dRij_dv1.y;
-			dRdv1[a][2] = dRij_dv1.z;
-			
-			dRdv2[a][0] = dRij_dv2.x;
-			dRdv2[a][1] = dRij_dv2.y;
-			dRdv2[a][2] = dRij_dv2.z;
+			rotate(xi, dRdvi_1, dRdv0[a]);
+			rotate(xi, dRdvi_2, dRdv1[a]);
+			rotate(xi, dRdvi_3, dRdv2[a]);
 		}
-		 
-		 
+	}
 
-		
+	private static void rotate(Coordinates c, double[][] m, double[] result) {
+		result[0] = c.x*m[0][0]+c.y*m[1][0]+c.z*m[2][0];
+		result[1] = c.x*m[0][1]+c.y*m[1][1]+c.z*m[2][1];
+		result[2] = c.x*m[0][2]+c.y*m[1][2]+c.z*m[2][2];
 	}
 	
 
@@ -241,108 +283,40 @@ public class EvaluableOverlap implements Evaluable  {
 	 * @param grad 
 	 */
 	
-	private double getFGValueOverlap(double[] grad,List<AtomicGaussian> refMolGauss,List<AtomicGaussian> fitMolGauss,List<VolumeGaussian> volGaussians,
-			double[][] dRdv0, double[][] dRdv1, double[][] dRdv2, Coordinates[] fitGaussModCoords) {
+	private double getFGValueOverlap(double[] grad,List<AtomicGaussian> fitMolGauss,
+			double[][] dRdv0, double[][] dRdv1, double[][] dRdv2) {
 
 
 	    /**
-	     * we first calculate the partial derivatives with respect to the four elements of the quaternion q,r,s,u
-	     * the final gradient has 7 elements, the first four elements are the gradients for the quaternion (rotation),
+	     * we first calculate the partial derivatives with respect to the three elements of the exponential map
+	     * the final gradient has 6 elements, the first three elements are the gradients for the rotation,
 	     * the last three elements are for the translation
 	     */
-	    
-	    getTransformedCoordinates(fitGaussModCoords, fitMolGauss);
 
-	    this.getEMapGradient(dRdv0, dRdv1, dRdv2,cachedCoords);
+	    getTransformedCoordinates(fitAtX, fitAtY, fitAtZ, fitMolGauss);
 
+	    this.getEMapGradient(dRdv0, dRdv1, dRdv2,cachedCoords);
 
 		/**
-		 * derivative of ShapeOverlap with respect to the four elements of the quaternion and three elements of translation
-		 * 
+		 * overlaps of atomic and volume Gaussians of the reference with the fit Gaussians are summed up
+		 * by the GaussianOverlapKernel, which only considers pairs within the distance cutoff
 		 */
-	    
-	    double totalOverlap = 0.0;
-	    Coordinates fitCenterModCoord;
-		for(int i=0; i<refMolGauss.size();i++){
-			Gaussian3D refAt = refMolGauss.get(i);
-			for(int j=0; j<fitMolGauss.size();j++){
-				double atomOverlap = 0.0;
-				Gaussian3D fitAt = fitMolGauss.get(j);
-				fitCenterModCoord = fitGaussModCoords[j];
-				double alphaSum = refAt.getWidth() + fitAt.getWidth();
-
-				double dx = refAt.getCenter().x-fitCenterModCoord.x;
-				double dy = refAt.getCenter().y-fitCenterModCoord.y;
-				double dz = refAt.getCenter().z-fitCenterModCoord.z;
-				double Rij2 = dx*dx + dy*dy + dz*dz;
-				if(Rij2>=Gaussian3D.DIST_CUTOFF) 
-					continue;
-				atomOverlap = refAt.getHeight()*fitAt.getHeight()*QuickMathCalculator.getInstance().quickExp(-( refAt.getWidth() * fitAt.getWidth()* Rij2)/alphaSum) *
-							QuickMathCalculator.getInstance().getPrefactor(refAt.getAtomicNo(),fitAt.getAtomicNo());
-					
-				
-				if (atomOverlap>0.0) {
-					totalOverlap += atomOverlap;
-					double gradientPrefactor = atomOverlap*-2*refAt.getWidth()*fitAt.getWidth()/(refAt.getWidth()+fitAt.getWidth());
-					double dv0 = dRdv0[j][0]*dx+dRdv0[j][1]*dy+dRdv0[j][2]*dz; 
-					double dv1 = dRdv1[j][0]*dx+dRdv1[j][1]*dy+dRdv1[j][2]*dz; 
-					double dv2 = dRdv2[j][0]*dx+dRdv2[j][1]*dy+dRdv2[j][2]*dz; 
-
-					grad[0] += gradientPrefactor*dv0;
-					grad[1] += gradientPrefactor*dv1;
-					grad[2] += gradientPrefactor*dv2;
-					grad[3] += gradientPrefactor*dx;
-					grad[4] += gradientPrefactor*dy;
-					grad[5] += gradientPrefactor*dz;
-				    }
-				}
-		}
-			for(int k=0; k<volGaussians.size();k++){
-				VolumeGaussian refVol = volGaussians.get(k);
-				for(int j=0; j<fitMolGauss.size();j++){
-					double atomOverlap = 0.0;
-					Gaussian3D fitAt = fitMolGauss.get(j);
-					fitCenterModCoord = fitGaussModCoords[j];
-					double alphaSum = refVol.getWidth() + fitAt.getWidth();
-
-					double dx = refVol.getCenter().x-fitCenterModCoord.x;
-					double dy = refVol.getCenter().y-fitCenterModCoord.y;
-					double dz = refVol.getCenter().z-fitCenterModCoord.z;
-					double Rij2 = dx*dx + dy*dy + dz*dz;
-
-					if(Rij2>=Gaussian3D.DIST_CUTOFF) 
-						continue;
-					atomOverlap = refVol.getRole()*refVol.getHeight()*fitAt.getHeight()*QuickMathCalculator.getInstance().quickExp(-( refVol.getWidth() * fitAt.getWidth()* Rij2)/alphaSum) *
-								QuickMathCalculator.getInstance().getPrefactor(refVol.getAtomicNo(),fitAt.getAtomicNo());
-					
-					
-					if (Math.abs(atomOverlap)>0.0) {
-						totalOverlap += atomOverlap;
-						double gradientPrefactor = atomOverlap*-2*refVol.getWidth()*fitAt.getWidth()/(refVol.getWidth()+fitAt.getWidth());
-						double dv0 = dRdv0[j][0]*dx+dRdv0[j][1]*dy+dRdv0[j][2]*dz; 
-						double dv1 = dRdv1[j][0]*dx+dRdv1[j][1]*dy+dRdv1[j][2]*dz; 
-						double dv2 = dRdv2[j][0]*dx+dRdv2[j][1]*dy+dRdv2[j][2]*dz; 
-
-						grad[0] += gradientPrefactor*dv0;
-						grad[1] += gradientPrefactor*dv1;
-						grad[2] += gradientPrefactor*dv2;
-						grad[3] += gradientPrefactor*dx;
-						grad[4] += gradientPrefactor*dy;
-						grad[5] += gradientPrefactor*dz;
-					    }
-
-
-					}
-				
-			}
-
-
-
-
+	    double totalOverlap = atomKernel.getOverlapAndGradient(fitAtX, fitAtY, fitAtZ, dRdv0, dRdv1, dRdv2, grad);
 
 		return (-1.0*totalOverlap); //the negative overlap is returned as the objective, since we minimize the objective in the optimization algorithm
+	}
 
-	
+	private void getTransformedCoordinates(double[] x, double[] y, double[] z, List<? extends Gaussian3D> fitMolGauss) {
+		 double[][] m = rotMatrix;
+		 for(int k=0;k<fitMolGauss.size();k++) {
+			Coordinates center = fitMolGauss.get(k).center;
+			double cx = center.x-origCOM.x;
+			double cy = center.y-origCOM.y;
+			double cz = center.z-origCOM.z;
+			x[k] = cx*m[0][0]+cy*m[1][0]+cz*m[2][0] + origCOM.x + transform[3];
+			y[k] = cx*m[0][1]+cy*m[1][1]+cz*m[2][1] + origCOM.y + transform[4];
+			z[k] = cx*m[0][2]+cy*m[1][2]+cz*m[2][2] + origCOM.z + transform[5];
+		  }
 	}
 	    
 	   
@@ -0,0 +1,183 @@
+package com.actelion.research.chem.phesa;
+
+import java.util.List;
+
+/**
+ * Evaluation of the atomic Gaussian overlap (and its gradient) between a fixed reference volume and
+ * a moving fit volume, as needed by the PheSA alignment optimization. Overlap evaluations don't allocate;
+ * transformed fit coordinates and derivatives are passed in by the caller.
+ * Centers, widths, heights and atomic numbers of all Gaussians are stored in flat arrays.
+ * Reference Gaussians (atomic Gaussians and inclusion/exclusion volume Gaussians, the latter with their role
+ * folded into the height) are sorted into a cubic grid with a cell size equal to the overlap distance cutoff.
+ * Thus, for every fit Gaussian only reference Gaussians in the 27 surrounding cells need to be considered.
+ * Results equal the ones from the nested loops over List<AtomicGaussian> apart from the summation order.
+ */
+
+public class GaussianOverlapKernel {
+	private static final double CELL_SIZE = Math.sqrt(Gaussian3D.DIST_CUTOFF); // DIST_CUTOFF is applied to squared distances
+
+	private final QuickMathCalculator mathCalculator;
+	private final double[] refX,refY,refZ,refWidth,refHeight;
+	private final int[] refAtomicNo;
+	private final double[] fitWidth,fitHeight;
+	private final int[] fitAtomicNo;
+	private final int[] cellStart,cellMember;
+	private final double gridMinX,gridMinY,gridMinZ;
+	private final int cellsX,cellsY,cellsZ;
+
+	public GaussianOverlapKernel(List<AtomicGaussian> refGaussians, List<VolumeGaussian> volGaussians, List<AtomicGaussian> fitGaussians) {
+		mathCalculator = QuickMathCalculator.getInstance();
+
+		int refCount = refGaussians.size() + volGaussians.size();
+		refX = new double[refCount];
+		refY = new double[refCount];
+		refZ = new double[refCount];
+		refWidth = new double[refCount];
+		refHeight = new double[refCount];
+		refAtomicNo = new int[refCount];
+		int index = 0;
+		for(AtomicGaussian refAt : refGaussians)
+			addReference(index++, refAt, 1.0);
+		for(VolumeGaussian refVol : volGaussians)
+			addReference(index++, refVol, refVol.getRole());
+
+		fitWidth = new double[fitGaussians.size()];
+		fitHeight = new double[fitGaussians.size()];
+		fitAtomicNo = new int[fitGaussians.size()];
+		for(int j=0;j<fitGaussians.size();j++) {
+			AtomicGaussian fitAt = fitGaussians.get(j);
+			fitWidth[j] = fitAt.getWidth();
+			fitHeight[j] = fitAt.getHeight();
+			fitAtomicNo[j] = fitAt.getAtomicNo();
+		}
+
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+		for(int i=0;i<refCount;i++) {
+			minX = Math.min(minX, refX[i]);
+			minY = Math.min(minY, refY[i]);
+			minZ = Math.min(minZ, refZ[i]);
+			maxX = Math.max(maxX, refX[i]);
+			maxY = Math.max(maxY, refY[i]);
+			maxZ = Math.max(maxZ, refZ[i]);
+		}
+		if(refCount==0) {
+			minX = minY = minZ = maxX = maxY = maxZ = 0.0;
+		}
+		gridMinX = minX;
+		gridMinY = minY;
+		gridMinZ = minZ;
+		cellsX = 1 + (int)((maxX-minX)/CELL_SIZE);
+		cellsY = 1 + (int)((maxY-minY)/CELL_SIZE);
+		cellsZ = 1 + (int)((maxZ-minZ)/CELL_SIZE);
+
+		// counting sort of reference Gaussians into grid cells
+		int[] cell = new int[refCount];
+		cellStart = new int[cellsX*cellsY*cellsZ+1];
+		for(int i=0;i<refCount;i++) {
+			cell[i] = getCellIndex(cellIndex(refX[i],gridMinX), cellIndex(refY[i],gridMinY), cellIndex(refZ[i],gridMinZ));
+			cellStart[cell[i]+1]++;
+		}
+		for(int c=0;c<cellStart.length-1;c++)
+			cellStart[c+1] += cellStart[c];
+		cellMember = new int[refCount];
+		int[] fill = new int[cellStart.length-1];
+		for(int i=0;i<refCount;i++)
+			cellMember[cellStart[cell[i]] + fill[cell[i]]++] = i;
+	}
+
+	private void addReference(int index, Gaussian3D gaussian, double role) {
+		refX[index] = gaussian.getCenter().x;
+		refY[index] = gaussian.getCenter().y;
+		refZ[index] = gaussian.getCenter().z;
+		refWidth[index] = gaussian.getWidth();
+		refHeight[index] = role*gaussian.getHeight();
+		refAtomicNo[index] = gaussian.getAtomicNo();
+	}
+
+	private static int cellIndex(double value, double min) {
+		return (int)Math.floor((value-min)/CELL_SIZE);
+	}
+
+	private int getCellIndex(int cx, int cy, int cz) {
+		return (cz*cellsY + cy)*cellsX + cx;
+	}
+
+	public int getFitGaussianCount() {
+		return fitWidth.length;
+	}
+
+	/**
+	 * Calculates the overlap of the reference with the fit Gaussians at the given positions.
+	 * @param fitX transformed x-coordinates of the fit Gaussians
+	 * @param fitY
+	 * @param fitZ
+	 * @return total overlap
+	 */
+	public double getOverlap(double[] fitX, double[] fitY, double[] fitZ) {
+		return getOverlapAndGradient(fitX, fitY, fitZ, null, null, null, null);
+	}
+
+	/**
+	 * Calculates the overlap of the reference with the fit Gaussians at the given positions and adds
+	 * the gradient with respect to the three exponential map rotation parameters and the translation to grad.
+	 * @param fitX transformed x-coordinates of the fit Gaussians
+	 * @param fitY
+	 * @param fitZ
+	 * @param dRdv0 derivatives of the fit Gaussian positions with respect to the first rotation parameter or null
+	 * @param dRdv1
+	 * @param dRdv2
+	 * @param grad 6 elements, to which the gradient is added; null if no gradient is needed
+	 * @return total overlap
+	 */
+	public double getOverlapAndGradient(double[] fitX, double[] fitY, double[] fitZ,
+										double[][] dRdv0, double[][] dRdv1, double[][] dRdv2, double[] grad) {
+		double totalOverlap = 0.0;
+		for(int j=0;j<fitWidth.length;j++) {
+			double fx = fitX[j];
+			double fy = fitY[j];
+			double fz = fitZ[j];
+			int cx = cellIndex(fx,gridMinX);
+			int cy = cellIndex(fy,gridMinY);
+			int cz = cellIndex(fz,gridMinZ);
+			int minCX = Math.max(0, cx-1);
+			int maxCX = Math.min(cellsX-1, cx+1);
+			int minCY = Math.max(0, cy-1);
+			int maxCY = Math.min(cellsY-1, cy+1);
+			int minCZ = Math.max(0, cz-1);
+			int maxCZ = Math.min(cellsZ-1, cz+1);
+			for(int iz=minCZ;iz<=maxCZ;iz++) {
+				for(int iy=minCY;iy<=maxCY;iy++) {
+					for(int ix=minCX;ix<=maxCX;ix++) {
+						int c = getCellIndex(ix,iy,iz);
+						for(int m=cellStart[c];m<cellStart[c+1];m++) {
+							int i = cellMember[m];
+							double dx = refX[i]-fx;
+							double dy = refY[i]-fy;
+							double dz = refZ[i]-fz;
+							double Rij2 = dx*dx + dy*dy + dz*dz;
+							if(Rij2>=Gaussian3D.DIST_CUTOFF)
+								continue;
+							double alphaSum = refWidth[i] + fitWidth[j];
+							double atomOverlap = refHeight[i]*fitHeight[j]*mathCalculator.quickExp(-(refWidth[i]*fitWidth[j]*Rij2)/alphaSum) *
+									mathCalculator.getPrefactor(refAtomicNo[i],fitAtomicNo[j]);
+							if(atomOverlap==0.0)
+								continue;
+							totalOverlap += atomOverlap;
+							if(grad!=null) {
+								double gradientPrefactor = atomOverlap*-2*refWidth[i]*fitWidth[j]/alphaSum;
+								grad[0] += gradientPrefactor*(dRdv0[j][0]*dx+dRdv0[j][1]*dy+dRdv0[j][2]*dz);
+								grad[1] += gradientPrefactor*(dRdv1[j][0]*dx+dRdv1[j][1]*dy+dRdv1[j][2]*dz);
+								grad[2] += gradientPrefactor*(dRdv2[j][0]*dx+dRdv2[j][1]*dy+dRdv2[j][2]*dz);
+								grad[3] += gradientPrefactor*dx;
+								grad[4] += gradientPrefactor*dy;
+								grad[5] += gradientPrefactor*dz;
+							}
+						}
+					}
+				}
+			}
+		}
+		return totalOverlap;
+	}
+}
@@ -19,6 +19,9 @@ public class PheSAMolecule {
 	// As many objects as conformers.
 	private ArrayList<MolecularVolume> shape;
 
+	// calculated by the PheSAPrefilter on first use
+	private volatile PheSAPrefilter.Signature prefilterSignature;
+
 	
 	
 	public PheSAMolecule() {
@@ -75,6 +78,14 @@ public class PheSAMolecule {
 	public ArrayList<MolecularVolume> getVolumes() {
 		return this.shape;
 	}
+
+	PheSAPrefilter.Signature getPrefilterSignature() {
+		return this.prefilterSignature;
+	}
+
+	void setPrefilterSignature(PheSAPrefilter.Signature prefilterSignature) {
+		this.prefilterSignature = prefilterSignature;
+	}
 	
 	
 	
@@ -0,0 +1,298 @@
+package com.actelion.research.chem.phesa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.actelion.research.calc.Matrix;
+import com.actelion.research.calc.SingularValueDecomposition;
+import com.actelion.research.chem.Coordinates;
+import com.actelion.research.chem.alignment3d.PheSAAlignmentOptimizer.PheSASetting;
+import com.actelion.research.chem.alignment3d.PheSAAlignmentOptimizer.SimilarityMode;
+import com.actelion.research.chem.phesa.pharmacophore.PharmacophoreCalculator;
+import com.actelion.research.chem.phesa.pharmacophore.pp.PPGaussian;
+
+/**
+ * Fast screening stage in front of the PheSA alignment. For every conformer of a PheSAMolecule a small
+ * Signature (atomic self-overlap, principal moments, pharmacophore type counts) is calculated once and
+ * cached in the PheSAMolecule; comparing two signatures yields an upper estimate of the PheSA score that
+ * the alignment could reach. Pairs whose estimate falls below the threshold are rejected without alignment.
+ *
+ * With an aggressiveness of 0.0 only conservative estimates are used: the overlap of two exact Gaussian
+ * volumes never exceeds sqrt(Oaa*Obb) (Cauchy-Schwarz), the pharmacophore similarity is 0 if exactly one
+ * of the molecules lacks pharmacophore features, and differing exit vector counts always score 0.
+ * These are no strict bounds of the calculated PheSA score, because the alignment deviates from exact
+ * Gaussian overlaps: atom weights and Gaussian factors, the approximated exponential function, the
+ * distance cutoff and the pharmacophore correction factors may each let the score exceed the estimate.
+ * Therefore the shape estimate is raised by SAFETY_MARGIN; on drug-like test sets Tversky scores exceeded
+ * the unmodified estimate by less than 0.01. The margin is an empirical choice, not a proven limit.
+ * With increasing aggressiveness the estimate is interpolated towards a heuristic estimate from the
+ * principal moments (coaxial ellipsoid overlap) and the per-type pharmacophore counts, which rejects far
+ * more pairs but may occasionally discard a pair that the alignment would have scored above the threshold.
+ * Estimates refer to the rigid alignment; a subsequent flexible alignment may exceed them slightly.
+ *
+ * A PheSAPrefilter holds no per-pair state and may be shared between threads, so that the rejection
+ * statistics cover the whole screen.
+ */
+public class PheSAPrefilter {
+	// added to the principal moments to account for the atomic Gaussian width, in Angstrom^2
+	private static final double MOMENT_OFFSET = 1.0;
+	// added to the shape estimate to cover deviations of the PheSA overlap calculation from exact Gaussian overlaps
+	private static final double SAFETY_MARGIN = 0.05;
+	private static final int TYPE_COUNT = PharmacophoreCalculator.MAX_ID+1;
+
+	private volatile double threshold;
+	private volatile double aggressiveness;
+	private final AtomicLong pairCount;
+	private final AtomicLong rejectionCount;
+	private final AtomicLong exitVectorRejectionCount;
+
+	/**
+	 * @param threshold PheSA score below which pairs are of no interest
+	 */
+	public PheSAPrefilter(double threshold) {
+		this(threshold, 0.0);
+	}
+
+	/**
+	 * @param threshold PheSA score below which pairs are of no interest
+	 * @param aggressiveness 0.0: conservative estimates only; 1.0: heuristic estimates only
+	 */
+	public PheSAPrefilter(double threshold, double aggressiveness) {
+		setThreshold(threshold);
+		setAggressiveness(aggressiveness);
+		pairCount = new AtomicLong();
+		rejectionCount = new AtomicLong();
+		exitVectorRejectionCount = new AtomicLong();
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	public void setThreshold(double threshold) {
+		this.threshold = threshold;
+	}
+
+	public double getAggressiveness() {
+		return aggressiveness;
+	}
+
+	public void setAggressiveness(double aggressiveness) {
+		this.aggressiveness = Math.max(0.0, Math.min(1.0, aggressiveness));
+	}
+
+	/**
+	 * Returns the signatures of all conformers of a PheSAMolecule. They are calculated on first use
+	 * and cached in the PheSAMolecule, which is recognized as changed, if its conformer count changes.
+	 * @param mol
+	 * @return
+	 */
+	public static Signature createSignature(PheSAMolecule mol) {
+		Signature signature = mol.getPrefilterSignature();
+		if (signature == null || signature.getConformerCount() != mol.getVolumes().size()) {
+			signature = new Signature(mol);
+			mol.setPrefilterSignature(signature);
+		}
+		return signature;
+	}
+
+	/**
+	 * Decides whether the pair needs to be aligned and updates the rejection statistics.
+	 * @param query signature of the reference molecule
+	 * @param base signature of the molecule to be aligned
+	 * @param setting
+	 * @return false if the pair cannot reach the threshold
+	 */
+	public boolean accept(Signature query, Signature base, PheSASetting setting) {
+		pairCount.incrementAndGet();
+		if (query.exitVectorCount != 0 && query.exitVectorCount != base.exitVectorCount) {
+			exitVectorRejectionCount.incrementAndGet();
+			rejectionCount.incrementAndGet();
+			return false;
+		}
+		if (getUpperBound(query, base, setting) < threshold) {
+			rejectionCount.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Estimates the highest PheSA score any alignment of any pair of conformers may reach.
+	 * Statistics are not updated.
+	 * @param query
+	 * @param base
+	 * @param setting
+	 * @return
+	 */
+	public double getUpperBound(Signature query, Signature base, PheSASetting setting) {
+		if (query.exitVectorCount != 0 && query.exitVectorCount != base.exitVectorCount)
+			return 0.0;
+
+		SimilarityMode simMode = setting.getSimMode();
+		boolean tversky = simMode != SimilarityMode.TANIMOTO;
+		double tverskyCoeff = simMode == SimilarityMode.TVERSKY ? PheSAAlignment.TVERSKY_COEFFICIENT : 1.0-PheSAAlignment.TVERSKY_COEFFICIENT;
+		double ppWeight = setting.getPpWeight();
+		double a = aggressiveness;
+
+		// pharmacophore features are the same for all conformers
+		double ppBound;
+		double ppEstimate;
+		if (query.ppCount == 0 && base.ppCount == 0) {
+			ppBound = 1.0;
+			ppEstimate = 1.0;
+		}
+		else if (query.ppCount == 0 || base.ppCount == 0) {
+			ppBound = 0.0;
+			ppEstimate = 0.0;
+		}
+		else {
+			int common = 0;
+			for (int i=0; i<TYPE_COUNT; i++)
+				common += Math.min(query.typeCount[i], base.typeCount[i]);
+			ppBound = 1.0;
+			ppEstimate = tversky ? common/(tverskyCoeff*base.ppCount+(1.0-tverskyCoeff)*query.ppCount)
+								 : (double)common/(query.ppCount+base.ppCount-common);
+			ppEstimate = Math.min(1.0, ppEstimate);
+		}
+		ppEstimate = (1.0-a)*ppBound + a*ppEstimate;
+
+		double maxShape = 0.0;
+		for (int i=0; i<query.selfOverlap.length; i++) {
+			for (int j=0; j<base.selfOverlap.length; j++) {
+				double shape = getShapeBound(query, i, base, j, tversky, tverskyCoeff);
+				if (a != 0.0)
+					shape = (1.0-a)*shape + a*Math.min(shape, getMomentEstimate(query, i, base, j, tversky, tverskyCoeff));
+				if (shape > maxShape) {
+					maxShape = shape;
+					if (maxShape >= 1.0)
+						break;
+				}
+			}
+		}
+
+		return (1.0-ppWeight)*maxShape + ppWeight*ppEstimate;
+	}
+
+	private static double getShapeBound(Signature query, int i, Signature base, int j, boolean tversky, double tverskyCoeff) {
+		// inclusion/exclusion volumes carry negative or weighted roles, which voids the overlap bound
+		if (query.hasVolumeGaussians || base.hasVolumeGaussians)
+			return tversky ? Double.MAX_VALUE : 1.0;
+
+		double oaa = query.selfOverlap[i];
+		double obb = base.selfOverlap[j];
+		double maxOverlap = Math.sqrt(oaa*obb);
+		if (tversky)
+			return maxOverlap/(tverskyCoeff*obb+(1.0-tverskyCoeff)*oaa) + SAFETY_MARGIN;
+		return Math.min(1.0, maxOverlap/(oaa+obb-maxOverlap) + SAFETY_MARGIN);
+	}
+
+	/**
+	 * Treats both conformers as coaxial ellipsoids with semi-axes proportional to the square roots
+	 * of the principal moments and returns their similarity.
+	 */
+	private static double getMomentEstimate(Signature query, int i, Signature base, int j, boolean tversky, double tverskyCoeff) {
+		double[] mq = query.moments[i];
+		double[] mb = base.moments[j];
+		double vq = 1.0;
+		double vb = 1.0;
+		double vc = 1.0;
+		for (int k=0; k<3; k++) {
+			vq *= mq[k];
+			vb *= mb[k];
+			vc *= Math.min(mq[k], mb[k]);
+		}
+		if (tversky)
+			return vc/(tverskyCoeff*vb+(1.0-tverskyCoeff)*vq);
+		return vc/(vq+vb-vc);
+	}
+
+	public long getPairCount() {
+		return pairCount.get();
+	}
+
+	public long getRejectionCount() {
+		return rejectionCount.get();
+	}
+
+	/**
+	 * @return number of rejections caused by differing exit vector counts, included in getRejectionCount()
+	 */
+	public long getExitVectorRejectionCount() {
+		return exitVectorRejectionCount.get();
+	}
+
+	public double getRejectionRate() {
+		long pairs = pairCount.get();
+		return pairs == 0 ? 0.0 : (double)rejectionCount.get()/pairs;
+	}
+
+	public void resetStatistics() {
+		pairCount.set(0);
+		rejectionCount.set(0);
+		exitVectorRejectionCount.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "PheSAPrefilter: pairs=" + getPairCount() + " rejected=" + getRejectionCount()
+				+ " (exit vectors=" + getExitVectorRejectionCount() + ") rate=" + String.format("%.3f", getRejectionRate());
+	}
+
+	/**
+	 * Screening descriptor of all conformers of a PheSAMolecule.
+	 */
+	public static class Signature {
+		private final double[] selfOverlap;
+		private final double[][] moments;	// sorted sqrt(principal moment + offset) per conformer
+		private final int[] typeCount;
+		private final int ppCount;
+		private final int exitVectorCount;
+		private final boolean hasVolumeGaussians;
+
+		private Signature(PheSAMolecule mol) {
+			List<MolecularVolume> volumes = mol.getVolumes();
+			selfOverlap = new double[volumes.size()];
+			moments = new double[volumes.size()][];
+			boolean volumeGaussians = false;
+			for (int i=0; i<volumes.size(); i++) {
+				MolecularVolume molVol = volumes.get(i);
+				selfOverlap[i] = molVol.getSelfAtomOverlap();
+				moments[i] = getPrincipalMoments(molVol);
+				if (!molVol.getVolumeGaussians().isEmpty())
+					volumeGaussians = true;
+			}
+			hasVolumeGaussians = volumeGaussians;
+
+			typeCount = new int[TYPE_COUNT];
+			List<PPGaussian> ppGaussians = volumes.isEmpty() ? new ArrayList<>() : volumes.get(0).getPPGaussians();
+			for (PPGaussian ppg : ppGaussians) {
+				int type = ppg.getPharmacophorePoint().getFunctionalityIndex();
+				if (type >= 0 && type < TYPE_COUNT)
+					typeCount[type]++;
+			}
+			ppCount = ppGaussians.size();
+			exitVectorCount = volumes.isEmpty() ? 0 : volumes.get(0).getExitVectorGaussians().size();
+		}
+
+		private static double[] getPrincipalMoments(MolecularVolume molVol) {
+			Matrix cov = molVol.getCovarianceMatrix();
+			Coordinates com = molVol.getCOM();
+			double[] c = {com.x, com.y, com.z};
+			for (int r=0; r<3; r++)
+				for (int s=0; s<3; s++)
+					cov.set(r, s, cov.get(r, s) - c[r]*c[s]);
+			SingularValueDecomposition svd = new SingularValueDecomposition(cov.getArray(), null, null);
+			double[] sv = svd.getSingularValues();
+			double[] moment = new double[3];
+			for (int k=0; k<3; k++)
+				moment[k] = Math.sqrt(sv[k] + MOMENT_OFFSET);
+			return moment;
+		}
+
+		public int getConformerCount() {
+			return selfOverlap.length;
+		}
+	}
+}
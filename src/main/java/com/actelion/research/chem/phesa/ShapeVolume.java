@@ -44,7 +44,7 @@ public class ShapeVolume {
 			this.ppGaussians.add(new PPGaussian(pg));
 		}
 		
-		this.com = new Coordinates(original.com);
+		this.com = original.com==null ? null : new Coordinates(original.com);
 		
 	}
 	
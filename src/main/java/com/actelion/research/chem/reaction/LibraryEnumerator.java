@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 1997 - 2016
+ * Actelion Pharmaceuticals Ltd.
+ * Gewerbestrasse 16
+ * CH-4123 Allschwil, Switzerland
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the the copyright holder nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.actelion.research.chem.reaction;
+
+import com.actelion.research.calc.ProgressController;
+import com.actelion.research.chem.Molecule;
+import com.actelion.research.chem.StereoMolecule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Enumerates the products of a combinatorial library, which is defined by a generic reaction
+ * and one list of building blocks per generic reactant. Every building block is matched only once
+ * against its generic reactant. These matches are cached and reused for all building block combinations.
+ * Products are not kept, but passed as idcodes to a ProductConsumer as soon as they are built.
+ * Thus, memory consumption does not depend on the library size, unless duplicate products are
+ * removed across the entire library, which requires to keep all unique product idcodes.<br>
+ * Enumeration runs multi-threaded with every thread using its own Reactor. With more than one thread
+ * products are delivered in no particular order.
+ */
+public class LibraryEnumerator {
+	private static final int CHUNK_SIZE = 64;
+
+	private final Reaction mReaction;
+	private final int mReactorMode;
+	private final boolean mRemoveDuplicates;
+	private final StereoMolecule[][] mBuildingBlock;	// matching building blocks only
+	private final List<List<ArrayList<int[]>>> mMatchList;	// matches of every matching building block
+	private final int[][] mOriginalIndex;
+	private final AtomicLong mFailureCount;
+	private final Object mConsumerLock = new Object();
+	private volatile ProgressController mProgressController;
+	private volatile boolean mStop;
+	private int mThreadCount,mMaxProductsPerCombination;
+
+	public interface ProductConsumer {
+		/**
+		 * Is called for every product set, i.e. the products of one generic reaction for one building block
+		 * combination. Calls never overlap, even if multiple threads are enumerating.
+		 * @param buildingBlock index of used building block for every reactant referring to the lists passed to setBuildingBlocks()
+		 * @param productIDCode idcodes of all products of the generic reaction
+		 * @return false to stop the enumeration
+		 */
+		boolean accept(int[] buildingBlock, String[] productIDCode);
+		}
+
+	/**
+	 * @param reaction generic reaction; is not changed
+	 * @param mode 0 or Reactor.MODE_REMOVE_DUPLICATE_PRODUCTS and/or Reactor.MODE_ALLOW_CHARGE_CORRECTIONS.
+	 * MODE_REMOVE_DUPLICATE_PRODUCTS removes duplicates caused by symmetry within one combination as well as
+	 * identical products from different combinations.
+	 */
+	public LibraryEnumerator(Reaction reaction, int mode) {
+		mReaction = new Reaction(reaction);
+		mRemoveDuplicates = (mode & Reactor.MODE_REMOVE_DUPLICATE_PRODUCTS) != 0;
+		mReactorMode = (mode & (Reactor.MODE_REMOVE_DUPLICATE_PRODUCTS | Reactor.MODE_ALLOW_CHARGE_CORRECTIONS))
+					 | Reactor.MODE_SKIP_COORDINATES;
+		int reactants = reaction.getReactants();
+		mBuildingBlock = new StereoMolecule[reactants][];
+		mMatchList = new ArrayList<>();
+		for (int i=0; i<reactants; i++)
+			mMatchList.add(null);
+		mOriginalIndex = new int[reactants][];
+		mFailureCount = new AtomicLong();
+		mThreadCount = Runtime.getRuntime().availableProcessors();
+		mMaxProductsPerCombination = Integer.MAX_VALUE;
+		}
+
+	/**
+	 * @param threadCount 0 for all available processors
+	 */
+	public void setThreadCount(int threadCount) {
+		mThreadCount = (threadCount == 0) ? Runtime.getRuntime().availableProcessors() : Math.max(1, threadCount);
+		}
+
+	/**
+	 * Limits the number of product sets created from one building block combination,
+	 * if the generic reactants match multiple times because of symmetry.
+	 * @param maxProducts
+	 */
+	public void setMaxProductsPerCombination(int maxProducts) {
+		mMaxProductsPerCombination = maxProducts;
+		}
+
+	public void setProgressController(ProgressController pc) {
+		mProgressController = pc;
+		}
+
+	/**
+	 * Defines the building blocks for one generic reactant and determines their matches of the
+	 * generic reactant. Building blocks that don't match are ignored. The molecules are used
+	 * directly and must not be changed until the enumeration is finished.
+	 * @param reactantNo
+	 * @param buildingBlocks
+	 * @return number of building blocks matching the generic reactant
+	 */
+	public int setBuildingBlocks(int reactantNo, List<StereoMolecule> buildingBlocks) {
+		final int count = buildingBlocks.size();
+		final StereoMolecule[] bb = buildingBlocks.toArray(new StereoMolecule[0]);
+		final AtomicReferenceArray<ArrayList<int[]>> matchList = new AtomicReferenceArray<>(count);
+		final AtomicInteger nextIndex = new AtomicInteger();
+		mStop = false;
+
+		runThreads("Building Block Matching", Math.min(mThreadCount, 1+count/CHUNK_SIZE), () -> {
+			Reactor reactor = new Reactor(new Reaction(mReaction), mReactorMode, mMaxProductsPerCombination);
+			while (!mustStop()) {
+				int index = nextIndex.getAndIncrement();
+				if (index >= count)
+					break;
+				bb[index].ensureHelperArrays(Molecule.cHelperParities);
+				if (reactor.setReactant(reactantNo, bb[index]) && reactor.getReactantMatches(reactantNo).size() != 0)
+					matchList.set(index, reactor.getReactantMatches(reactantNo));
+				}
+			} );
+
+		int matchCount = 0;
+		for (int i=0; i<count; i++)
+			if (matchList.get(i) != null)
+				matchCount++;
+
+		mBuildingBlock[reactantNo] = new StereoMolecule[matchCount];
+		List<ArrayList<int[]>> matchingMatchList = new ArrayList<>(matchCount);
+		mOriginalIndex[reactantNo] = new int[matchCount];
+		matchCount = 0;
+		for (int i=0; i<count; i++) {
+			if (matchList.get(i) != null) {
+				mBuildingBlock[reactantNo][matchCount] = bb[i];
+				matchingMatchList.add(matchList.get(i));
+				mOriginalIndex[reactantNo][matchCount] = i;
+				matchCount++;
+				}
+			}
+		mMatchList.set(reactantNo, matchingMatchList);
+
+		return matchCount;
+		}
+
+	/**
+	 * @return number of building block combinations, i.e. the library size before duplicate removal
+	 */
+	public long getCombinationCount() {
+		long count = 1;
+		for (StereoMolecule[] bb:mBuildingBlock)
+			count = Math.multiplyExact(count, bb == null ? 0 : bb.length);
+		return count;
+		}
+
+	/**
+	 * @return number of building block combinations, for which product generation failed
+	 */
+	public long getFailureCount() {
+		return mFailureCount.get();
+		}
+
+	/**
+	 * Stops a running enumeration from another thread.
+	 */
+	public void stop() {
+		mStop = true;
+		}
+
+	/**
+	 * Builds the products of all building block combinations and passes their idcodes to the consumer.
+	 * @param consumer
+	 * @return number of product sets passed to the consumer
+	 */
+	public long enumerate(ProductConsumer consumer) {
+		final long combinationCount = getCombinationCount();
+		final AtomicLong nextIndex = new AtomicLong();
+		final AtomicLong productCount = new AtomicLong();
+		final Set<String> uniqueProducts = mRemoveDuplicates ? ConcurrentHashMap.newKeySet() : null;
+		mStop = false;
+
+		if (mProgressController != null)
+			mProgressController.startProgress("Enumerating products", 0, (int)Math.min(Integer.MAX_VALUE, combinationCount/CHUNK_SIZE));
+
+		runThreads("Library Enumeration", (int)Math.min(mThreadCount, 1+combinationCount/CHUNK_SIZE), () -> {
+			Reactor reactor = new Reactor(new Reaction(mReaction), mReactorMode, mMaxProductsPerCombination);
+			int reactants = mBuildingBlock.length;
+			int[] current = new int[reactants];
+			Arrays.fill(current, -1);
+			while (!mustStop()) {
+				long first = nextIndex.getAndAdd(CHUNK_SIZE);
+				if (first >= combinationCount)
+					break;
+
+				if (mProgressController != null)
+					mProgressController.updateProgress((int)Math.min(Integer.MAX_VALUE, first/CHUNK_SIZE));
+
+				long last = Math.min(first+CHUNK_SIZE, combinationCount);
+				for (long index=first; index<last && !mStop; index++) {
+					// the last reactant changes fastest; only changed reactants are passed to the reactor
+					long remainder = index;
+					for (int i=reactants-1; i>=0; i--) {
+						int bb = (int)(remainder % mBuildingBlock[i].length);
+						remainder /= mBuildingBlock[i].length;
+						if (current[i] != bb) {
+							reactor.setReactant(i, mBuildingBlock[i][bb], mMatchList.get(i).get(bb));
+							current[i] = bb;
+							}
+						}
+
+					String[][] productIDCode;
+					try {
+						productIDCode = reactor.getProductIDCodes();
+						}
+					catch (Exception e) {
+						mFailureCount.incrementAndGet();
+						continue;
+						}
+
+					for (String[] idcodes:productIDCode) {
+						if (uniqueProducts != null && !uniqueProducts.add(idcodes.length == 1 ? idcodes[0] : String.join(" ", idcodes)))
+							continue;
+
+						int[] originalIndex = new int[reactants];
+						for (int i=0; i<reactants; i++)
+							originalIndex[i] = mOriginalIndex[i][current[i]];
+
+						synchronized (mConsumerLock) {
+							if (mStop)
+								break;
+							productCount.incrementAndGet();
+							if (!consumer.accept(originalIndex, idcodes))
+								mStop = true;
+							}
+						}
+					}
+				}
+			} );
+
+		return productCount.get();
+		}
+
+	private boolean mustStop() {
+		return mStop || (mProgressController != null && mProgressController.threadMustDie());
+		}
+
+	private void runThreads(String name, int threadCount, Runnable task) {
+		if (threadCount <= 1) {
+			task.run();
+			return;
+			}
+
+		Thread[] t = new Thread[threadCount];
+		for (int i=0; i<threadCount; i++) {
+			t[i] = new Thread(task, name+" "+(i+1));
+			t[i].setPriority(Thread.MIN_PRIORITY);
+			t[i].start();
+			}
+
+		try {
+			for (int i=0; i<threadCount; i++)
+				t[i].join();
+			}
+		catch (InterruptedException e) {
+			mStop = true;	// let the remaining threads finish quickly
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+			}
+		}
+	}
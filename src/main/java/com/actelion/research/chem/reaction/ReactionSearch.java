@@ -51,6 +51,8 @@ public class ReactionSearch {
 
 	private volatile ReactionSearchSpecification mSpecification;
 	private volatile ReactionSearchDataSource mDataSource;
+	private volatile ReactionSearchIndex mIndex;
+	private volatile int[] mCandidateRow;
 	private volatile StructureSearchController mSearchController;
 	private volatile ProgressController mProgressController;
 	private volatile Reaction[] mQueryReaction;
@@ -119,6 +121,16 @@ public class ReactionSearch {
 		mMaxMillis = maxMillis;
 		}
 
+	/**
+	 * If an index of the data source rows is available, then the search only visits those rows,
+	 * which the index considers potential matches. The index is ignored, if it does not support
+	 * the search type or if its row count differs from the row count of the data source.
+	 * @param index null or index created from the data source of this search
+	 */
+	public void setIndex(ReactionSearchIndex index) {
+		mIndex = index;
+		}
+
 	public String getCompletionStatus() {
 		return StructureSearch.COMPLETION_TEXT[mStatus];
 		}
@@ -190,7 +202,13 @@ public class ReactionSearch {
 				}
 			}
 
-    	mSMPIndex = new AtomicInteger(mDataSource.getRowCount());
+		mCandidateRow = null;
+		if (mIndex != null
+		 && mIndex.getRowCount() == mDataSource.getRowCount()
+		 && mIndex.supportsSearchType(mSpecification))
+			mCandidateRow = getCandidateRows();
+
+    	mSMPIndex = new AtomicInteger(mCandidateRow != null ? mCandidateRow.length : mDataSource.getRowCount());
 
     	mResultQueue = new ConcurrentLinkedQueue<>();
 
@@ -232,6 +250,30 @@ public class ReactionSearch {
     	return result;
 		}
 
+	/**
+	 * @return sorted rows, which the index considers potential matches; null if all rows need to be searched
+	 */
+	private int[] getCandidateRows() {
+		if (mSpecification.isSubreactionSearch())
+			return mIndex.getSubreactionCandidates(mQueryReactantDescriptor, mQueryProductDescriptor);
+		if (mSpecification.isRetronSearch())
+			return mIndex.getRetronCandidates(mQueryRetronDescriptor);
+		if (mSpecification.isSimilaritySearch())
+			return mIndex.getSimilarityCandidates(mQueryReactionDescriptor,
+					mSpecification.getReactionCenterSimilarity(), mSpecification.getPeripherySimilarity());
+		if (mSpecification.isExactSearch() || mSpecification.isNoStereoSearch())
+			return mIndex.getHashMatches(mQueryHash, mSpecification.isNoStereoSearch());
+		return null;
+		}
+
+	/**
+	 * @return next row to be searched or -1, if all rows have been searched
+	 */
+	private int nextRow() {
+		int index = mSMPIndex.decrementAndGet();
+		return (index < 0 || mCandidateRow == null) ? index : mCandidateRow[index];
+		}
+
 	private void ensureMoleculeDescriptors() {
 		final int queryReactionCount = mSpecification.getReactionCount();
 		mQueryReactantDescriptor = new long[queryReactionCount][];
@@ -384,7 +426,7 @@ public class ReactionSearch {
 			}
 
 		public void run() {
-			int row = mSMPIndex.decrementAndGet();
+			int row = nextRow();
 			while (row >= 0) {
 				if ((mProgressController != null && mProgressController.threadMustDie())) {
 					mStatus = StructureSearch.SEARCH_STOPPED;
@@ -508,7 +550,7 @@ public class ReactionSearch {
 						}
 					}
 
-				row = mSMPIndex.decrementAndGet();
+				row = nextRow();
 				}
 			}
 		}
@@ -0,0 +1,662 @@
+/*
+ * Copyright (c) 1997 - 2016
+ * Actelion Pharmaceuticals Ltd.
+ * Gewerbestrasse 16
+ * CH-4123 Allschwil, Switzerland
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the the copyright holder nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.actelion.research.chem.reaction;
+
+import com.actelion.research.chem.descriptor.DescriptorHandlerReactionFP;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Persistent index over the rows of a ReactionSearchDataSource, which lets a ReactionSearch
+ * visit only those rows that may match the query:<br>
+ * - Inverted postings for every bit of the merged reactant and product FFP512 descriptors.
+ * Frequent bits are stored as bit slices over all rows, rare bits as sorted row lists.
+ * A sub-reaction or retron query only visits rows that contain all query bits.<br>
+ * - Number of set bits of the reaction center and periphery part of the reaction descriptor
+ * with rows sorted by reaction center bit count. A similarity query only visits rows, whose
+ * bit counts allow the required Tanimoto similarities.<br>
+ * - Hash tables of the exact and no-stereo reaction hash codes.<br>
+ * The index refers to row numbers and must be rebuilt or replaced whenever the rows of the
+ * data source change. Rows without FFP descriptors are always returned as sub-reaction and
+ * retron candidates. Similarity queries don't visit rows without reaction descriptor, and hash
+ * queries only return rows with a matching hash code.
+ */
+public class ReactionSearchIndex {
+	private static final int MAGIC = 0x52584958;	// "RXIX"
+	private static final int VERSION = 1;
+
+	private static final int FFP_BITS = 512;
+	private static final int SPARSE_POSTING_FACTOR = 32;	// bits occurring in less than 1/32 of the rows are stored as row lists
+	private static final int CENTER_BITS = 64 * DescriptorHandlerReactionFP.REACTION_CENTER_LONG_COUNT;
+	private static final short NO_DESCRIPTOR = -1;
+
+	private int mRowCount;
+	private Postings mReactantPostings,mProductPostings;
+	private short[] mCenterBitCount,mPeripheryBitCount;
+	private int[] mRowsByCenterBitCount,mCenterBitCountOffset;
+	private HashTable mExactHashTable,mNoStereoHashTable;
+
+	private ReactionSearchIndex() {}
+
+	/**
+	 * Creates the index from all rows of the data source. Index parts, for which the data source
+	 * provides no data in any row, are not created and the respective searches are not supported.
+	 * The FFP descriptors are read twice: first to count every bit's rows, then to fill postings
+	 * of exactly the needed size. Thus, bit slices are only allocated for frequent bits.
+	 * @param dataSource
+	 * @return
+	 */
+	public static ReactionSearchIndex create(ReactionSearchDataSource dataSource) {
+		ReactionSearchIndex index = new ReactionSearchIndex();
+		int rowCount = dataSource.getRowCount();
+		index.mRowCount = rowCount;
+
+		PostingsBuilder reactantBuilder = new PostingsBuilder(rowCount);
+		PostingsBuilder productBuilder = new PostingsBuilder(rowCount);
+		short[] centerBitCount = new short[rowCount];
+		short[] peripheryBitCount = new short[rowCount];
+		long[] exactHash = new long[rowCount];
+		long[] noStereoHash = new long[rowCount];
+		boolean hasReactionDescriptor = false;
+		boolean hasExactHash = false;
+		boolean hasNoStereoHash = false;
+
+		for (int row=0; row<rowCount; row++) {
+			reactantBuilder.count(dataSource.getMergedReactantDescriptor(row));
+			productBuilder.count(dataSource.getMergedProductDescriptor(row));
+
+			long[] rxnFP = dataSource.getReactionDescriptor(row);
+			if (rxnFP == null || rxnFP.length == 0) {
+				centerBitCount[row] = NO_DESCRIPTOR;
+				peripheryBitCount[row] = NO_DESCRIPTOR;
+				}
+			else {
+				centerBitCount[row] = (short)bitCount(rxnFP, 0, DescriptorHandlerReactionFP.REACTION_CENTER_LONG_COUNT);
+				peripheryBitCount[row] = (short)bitCount(rxnFP, DescriptorHandlerReactionFP.REACTION_CENTER_LONG_COUNT, rxnFP.length);
+				hasReactionDescriptor = true;
+				}
+
+			exactHash[row] = dataSource.getExactHash(row);
+			if (exactHash[row] != ReactionSearchDataSource.SEARCH_TYPE_NOT_SUPPORTED)
+				hasExactHash = true;
+			noStereoHash[row] = dataSource.getNoStereoHash(row);
+			if (noStereoHash[row] != ReactionSearchDataSource.SEARCH_TYPE_NOT_SUPPORTED)
+				hasNoStereoHash = true;
+			}
+
+		reactantBuilder.allocate();
+		productBuilder.allocate();
+		if (reactantBuilder.hasDescriptor() || productBuilder.hasDescriptor()) {
+			for (int row=0; row<rowCount; row++) {
+				reactantBuilder.add(row, dataSource.getMergedReactantDescriptor(row));
+				productBuilder.add(row, dataSource.getMergedProductDescriptor(row));
+				}
+			}
+
+		index.mReactantPostings = reactantBuilder.build();
+		index.mProductPostings = productBuilder.build();
+		if (hasReactionDescriptor)
+			index.setBitCounts(centerBitCount, peripheryBitCount);
+		if (hasExactHash)
+			index.mExactHashTable = new HashTable(exactHash);
+		if (hasNoStereoHash)
+			index.mNoStereoHashTable = new HashTable(noStereoHash);
+
+		return index;
+		}
+
+	/**
+	 * @return number of data source rows this index was created from
+	 */
+	public int getRowCount() {
+		return mRowCount;
+		}
+
+	/**
+	 * @param specification
+	 * @return whether this index can narrow down the rows for this kind of search
+	 */
+	public boolean supportsSearchType(ReactionSearchSpecification specification) {
+		if (specification.isSubreactionSearch())
+			return mReactantPostings != null && mProductPostings != null;
+		if (specification.isRetronSearch())
+			return mProductPostings != null;
+		if (specification.isSimilaritySearch())
+			return mCenterBitCount != null;
+		if (specification.isExactSearch())
+			return mExactHashTable != null;
+		if (specification.isNoStereoSearch())
+			return mNoStereoHashTable != null;
+		return false;
+		}
+
+	/**
+	 * Returns all rows, which contain all reactant FFP bits and all product FFP bits
+	 * of at least one of the query reactions.
+	 * @param reactantFFP merged reactant FFP512 of every query reaction
+	 * @param productFFP merged product FFP512 of every query reaction
+	 * @return sorted candidate rows or null, if all rows are candidates
+	 */
+	public int[] getSubreactionCandidates(long[][] reactantFFP, long[][] productFFP) {
+		if (mReactantPostings == null || mProductPostings == null)
+			return null;
+
+		long[] candidates = new long[wordCount()];
+		for (int i=0; i<reactantFFP.length; i++) {
+			if (isEmpty(reactantFFP[i]) && isEmpty(productFFP[i]))
+				return null;
+
+			long[] reactantRows = mReactantPostings.getRowsContaining(reactantFFP[i]);
+			long[] productRows = mProductPostings.getRowsContaining(productFFP[i]);
+			for (int j=0; j<candidates.length; j++)
+				candidates[j] |= (reactantRows == null ? -1L : reactantRows[j]) & (productRows == null ? -1L : productRows[j]);
+			}
+		return toRows(candidates);
+		}
+
+	/**
+	 * Returns all rows, which contain all product FFP bits of at least one of the query retrons.
+	 * @param retronFFP FFP512 of every query retron
+	 * @return sorted candidate rows or null, if all rows are candidates
+	 */
+	public int[] getRetronCandidates(long[][] retronFFP) {
+		if (mProductPostings == null)
+			return null;
+
+		long[] candidates = new long[wordCount()];
+		for (int i=0; i<retronFFP.length; i++) {
+			if (retronFFP[i] == null)
+				return null;
+			if (retronFFP[i].length == 0)
+				continue;	// failed descriptor calculation; this query cannot match
+
+			long[] productRows = mProductPostings.getRowsContaining(retronFFP[i]);
+			if (productRows == null)
+				return null;
+			for (int j=0; j<candidates.length; j++)
+				candidates[j] |= productRows[j];
+			}
+		return toRows(candidates);
+		}
+
+	/**
+	 * Returns all rows, whose reaction center and periphery bit counts allow a reaction center
+	 * and periphery similarity to at least one of the query reactions, which meet the given minimum values.
+	 * @param reactionFP reaction descriptor of every query reaction
+	 * @param centerSimilarity minimum reaction center similarity
+	 * @param peripherySimilarity minimum periphery similarity
+	 * @return sorted candidate rows or null, if all rows are candidates
+	 */
+	public int[] getSimilarityCandidates(long[][] reactionFP, float centerSimilarity, float peripherySimilarity) {
+		if (mCenterBitCount == null
+		 || (centerSimilarity <= 0f && peripherySimilarity <= 0f))
+			return null;
+
+		long[] candidates = new long[wordCount()];
+		for (long[] fp:reactionFP) {
+			if (fp == null || fp.length == 0)
+				continue;	// similarity is 0.0 for every row
+
+			int queryCenterCount = bitCount(fp, 0, DescriptorHandlerReactionFP.REACTION_CENTER_LONG_COUNT);
+			int queryPeripheryCount = bitCount(fp, DescriptorHandlerReactionFP.REACTION_CENTER_LONG_COUNT, fp.length);
+			for (int count=0; count<=CENTER_BITS; count++) {
+				if (getMaxSimilarity(queryCenterCount, count) >= centerSimilarity) {
+					for (int i=mCenterBitCountOffset[count]; i<mCenterBitCountOffset[count+1]; i++) {
+						int row = mRowsByCenterBitCount[i];
+						if (getMaxSimilarity(queryPeripheryCount, mPeripheryBitCount[row]) >= peripherySimilarity)
+							candidates[row >>> 6] |= (1L << row);
+						}
+					}
+				}
+			}
+		return toRows(candidates);
+		}
+
+	/**
+	 * Returns all rows, whose exact resp. no-stereo hash code equals one of the query hash codes.
+	 * @param hash query hash codes
+	 * @param noStereo whether no-stereo hash codes or exact hash codes are compared
+	 * @return sorted matching rows or null, if no hash codes are indexed
+	 */
+	public int[] getHashMatches(long[] hash, boolean noStereo) {
+		HashTable table = noStereo ? mNoStereoHashTable : mExactHashTable;
+		if (table == null)
+			return null;
+
+		long[] candidates = new long[wordCount()];
+		for (long h:hash)
+			table.addRows(h, candidates);
+		return toRows(candidates);
+		}
+
+	/**
+	 * Writes the index into a file, which can be read with read().
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(mRowCount);
+			writePostings(out, mReactantPostings);
+			writePostings(out, mProductPostings);
+			out.writeBoolean(mCenterBitCount != null);
+			if (mCenterBitCount != null) {
+				for (int row=0; row<mRowCount; row++) {
+					out.writeShort(mCenterBitCount[row]);
+					out.writeShort(mPeripheryBitCount[row]);
+					}
+				}
+			writeHashes(out, mExactHashTable);
+			writeHashes(out, mNoStereoHashTable);
+			}
+		}
+
+	/**
+	 * Reads an index file written by write().
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static ReactionSearchIndex read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a reaction search index file.");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported reaction search index version: "+version);
+
+			ReactionSearchIndex index = new ReactionSearchIndex();
+			index.mRowCount = in.readInt();
+			index.mReactantPostings = readPostings(in, index.mRowCount);
+			index.mProductPostings = readPostings(in, index.mRowCount);
+			if (in.readBoolean()) {
+				short[] centerBitCount = new short[index.mRowCount];
+				short[] peripheryBitCount = new short[index.mRowCount];
+				for (int row=0; row<index.mRowCount; row++) {
+					centerBitCount[row] = in.readShort();
+					peripheryBitCount[row] = in.readShort();
+					}
+				index.setBitCounts(centerBitCount, peripheryBitCount);
+				}
+			index.mExactHashTable = readHashes(in, index.mRowCount);
+			index.mNoStereoHashTable = readHashes(in, index.mRowCount);
+			return index;
+			}
+		}
+
+	private void setBitCounts(short[] centerBitCount, short[] peripheryBitCount) {
+		mCenterBitCount = centerBitCount;
+		mPeripheryBitCount = peripheryBitCount;
+
+		// counting sort of rows by reaction center bit count; rows without descriptor are not listed
+		mCenterBitCountOffset = new int[CENTER_BITS+2];
+		for (short count:centerBitCount)
+			if (count != NO_DESCRIPTOR)
+				mCenterBitCountOffset[count+1]++;
+		for (int i=1; i<mCenterBitCountOffset.length; i++)
+			mCenterBitCountOffset[i] += mCenterBitCountOffset[i-1];
+		mRowsByCenterBitCount = new int[mCenterBitCountOffset[CENTER_BITS+1]];
+		int[] position = Arrays.copyOf(mCenterBitCountOffset, CENTER_BITS+1);
+		for (int row=0; row<centerBitCount.length; row++)
+			if (centerBitCount[row] != NO_DESCRIPTOR)
+				mRowsByCenterBitCount[position[centerBitCount[row]]++] = row;
+		}
+
+	/**
+	 * The Tanimoto similarity of two bit sets with the given numbers of set bits cannot exceed min/max.
+	 * A small tolerance makes sure that float rounding never excludes a matching row.
+	 */
+	private static float getMaxSimilarity(int count1, int count2) {
+		if (count2 == NO_DESCRIPTOR)
+			return 0f;
+		if (count1 == count2)
+			return 1f;
+		return (float)Math.min(count1, count2) / (float)Math.max(count1, count2) + 0.0001f;
+		}
+
+	private int wordCount() {
+		return (mRowCount + 63) >>> 6;
+		}
+
+	private static boolean isEmpty(long[] ffp) {
+		if (ffp == null)
+			return true;
+		for (long l:ffp)
+			if (l != 0)
+				return false;
+		return true;
+		}
+
+	private static int bitCount(long[] fp, int from, int to) {
+		int count = 0;
+		for (int i=from; i<to; i++)
+			count += Long.bitCount(fp[i]);
+		return count;
+		}
+
+	private static int[] toRows(long[] words) {
+		int count = 0;
+		for (long word:words)
+			count += Long.bitCount(word);
+		int[] rows = new int[count];
+		count = 0;
+		for (int i=0; i<words.length; i++) {
+			long word = words[i];
+			while (word != 0) {
+				rows[count++] = (i << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+				}
+			}
+		return rows;
+		}
+
+	private static void writePostings(DataOutputStream out, Postings postings) throws IOException {
+		out.writeBoolean(postings != null);
+		if (postings == null)
+			return;
+
+		writeLongs(out, postings.mUnscreenedRows);
+		for (int bit=0; bit<FFP_BITS; bit++) {
+			if (postings.mSlice[bit] != null) {
+				out.writeByte(1);
+				writeLongs(out, postings.mSlice[bit]);
+				}
+			else {
+				out.writeByte(0);
+				out.writeInt(postings.mRowList[bit].length);
+				for (int row:postings.mRowList[bit])
+					out.writeInt(row);
+				}
+			}
+		}
+
+	private static Postings readPostings(DataInputStream in, int rowCount) throws IOException {
+		if (!in.readBoolean())
+			return null;
+
+		Postings postings = new Postings(rowCount);
+		postings.mUnscreenedRows = readLongs(in);
+		for (int bit=0; bit<FFP_BITS; bit++) {
+			if (in.readByte() == 1) {
+				postings.mSlice[bit] = readLongs(in);
+				}
+			else {
+				int[] rows = new int[in.readInt()];
+				for (int i=0; i<rows.length; i++)
+					rows[i] = in.readInt();
+				postings.mRowList[bit] = rows;
+				}
+			}
+		return postings;
+		}
+
+	private static void writeHashes(DataOutputStream out, HashTable table) throws IOException {
+		out.writeBoolean(table != null);
+		if (table != null)
+			for (long hash:table.mRowHash)
+				out.writeLong(hash);
+		}
+
+	private static HashTable readHashes(DataInputStream in, int rowCount) throws IOException {
+		if (!in.readBoolean())
+			return null;
+
+		long[] hash = new long[rowCount];
+		for (int row=0; row<rowCount; row++)
+			hash[row] = in.readLong();
+		return new HashTable(hash);
+		}
+
+	private static void writeLongs(DataOutputStream out, long[] l) throws IOException {
+		out.writeInt(l.length);
+		for (long v:l)
+			out.writeLong(v);
+		}
+
+	private static long[] readLongs(DataInputStream in) throws IOException {
+		long[] l = new long[in.readInt()];
+		for (int i=0; i<l.length; i++)
+			l[i] = in.readLong();
+		return l;
+		}
+
+	/**
+	 * Postings of all FFP512 bits. Every bit is either a bit slice over all rows or a sorted list of rows.
+	 */
+	private static class Postings {
+		private final int mRowCount;
+		private final long[][] mSlice;
+		private final int[][] mRowList;
+		private long[] mUnscreenedRows;	// rows without descriptor
+
+		private Postings(int rowCount) {
+			mRowCount = rowCount;
+			mSlice = new long[FFP_BITS][];
+			mRowList = new int[FFP_BITS][];
+			}
+
+		private boolean containsRow(int bit, int row) {
+			if (mSlice[bit] != null)
+				return (mSlice[bit][row >>> 6] & (1L << row)) != 0;
+			return Arrays.binarySearch(mRowList[bit], row) >= 0;
+			}
+
+		/**
+		 * @param ffp query descriptor
+		 * @return bit set of all rows containing all bits of ffp or without descriptor; null if ffp is empty
+		 */
+		private long[] getRowsContaining(long[] ffp) {
+			int[] queryBit = new int[FFP_BITS];
+			int queryBitCount = 0;
+			if (ffp != null)
+				for (int i=0; i<Math.min(ffp.length, FFP_BITS/64); i++)
+					for (int j=0; j<64; j++)
+						if ((ffp[i] & (1L << j)) != 0)
+							queryBit[queryBitCount++] = 64*i+j;
+			if (queryBitCount == 0)
+				return null;
+
+			// the shortest row list, if there is any, is the cheapest starting point
+			int sparsestBit = -1;
+			for (int i=0; i<queryBitCount; i++) {
+				int bit = queryBit[i];
+				if (mRowList[bit] != null
+				 && (sparsestBit == -1 || mRowList[bit].length < mRowList[sparsestBit].length))
+					sparsestBit = bit;
+				}
+
+			long[] rows;
+			if (sparsestBit != -1) {
+				rows = new long[(mRowCount + 63) >>> 6];
+				for (int row:mRowList[sparsestBit]) {
+					boolean found = true;
+					for (int i=0; i<queryBitCount; i++) {
+						if (queryBit[i] != sparsestBit && !containsRow(queryBit[i], row)) {
+							found = false;
+							break;
+							}
+						}
+					if (found)
+						rows[row >>> 6] |= (1L << row);
+					}
+				}
+			else {
+				rows = mSlice[queryBit[0]].clone();
+				for (int i=1; i<queryBitCount; i++) {
+					long[] slice = mSlice[queryBit[i]];
+					for (int j=0; j<rows.length; j++)
+						rows[j] &= slice[j];
+					}
+				}
+
+			for (int j=0; j<rows.length; j++)
+				rows[j] |= mUnscreenedRows[j];
+			return rows;
+			}
+		}
+
+	/**
+	 * Builds postings in two passes over all rows: count() must be called for every row,
+	 * then allocate() once, and then add() for every row.
+	 */
+	private static class PostingsBuilder {
+		private final int mRowCount;
+		private final int[] mBitCount;
+		private final int[] mRowListSize;
+		private Postings mPostings;
+		private boolean mHasDescriptor;
+
+		private PostingsBuilder(int rowCount) {
+			mRowCount = rowCount;
+			mBitCount = new int[FFP_BITS];
+			mRowListSize = new int[FFP_BITS];
+			}
+
+		private void count(long[] ffp) {
+			if (ffp == null || ffp.length == 0)
+				return;
+
+			mHasDescriptor = true;
+			for (int i=0; i<Math.min(ffp.length, FFP_BITS/64); i++) {
+				long word = ffp[i];
+				while (word != 0) {
+					mBitCount[64*i+Long.numberOfTrailingZeros(word)]++;
+					word &= word - 1;
+					}
+				}
+			}
+
+		private boolean hasDescriptor() {
+			return mHasDescriptor;
+			}
+
+		/**
+		 * Allocates bit slices for frequent bits and row lists of the counted size for rare bits.
+		 */
+		private void allocate() {
+			if (!mHasDescriptor)
+				return;
+
+			mPostings = new Postings(mRowCount);
+			mPostings.mUnscreenedRows = new long[(mRowCount + 63) >>> 6];
+			for (int bit=0; bit<FFP_BITS; bit++) {
+				if ((long)mBitCount[bit] * SPARSE_POSTING_FACTOR < mRowCount)
+					mPostings.mRowList[bit] = new int[mBitCount[bit]];
+				else
+					mPostings.mSlice[bit] = new long[(mRowCount + 63) >>> 6];
+				}
+			}
+
+		private void add(int row, long[] ffp) {
+			if (mPostings == null)
+				return;
+
+			if (ffp == null || ffp.length == 0) {
+				mPostings.mUnscreenedRows[row >>> 6] |= (1L << row);
+				return;
+				}
+
+			for (int i=0; i<Math.min(ffp.length, FFP_BITS/64); i++) {
+				long word = ffp[i];
+				while (word != 0) {
+					int bit = 64*i+Long.numberOfTrailingZeros(word);
+					if (mPostings.mSlice[bit] != null) {
+						mPostings.mSlice[bit][row >>> 6] |= (1L << row);
+						}
+					else {
+						if (mRowListSize[bit] == mPostings.mRowList[bit].length)
+							throw new IllegalStateException("Data source rows changed while creating the index.");
+						mPostings.mRowList[bit][mRowListSize[bit]++] = row;
+						}
+					word &= word - 1;
+					}
+				}
+			}
+
+		/**
+		 * @return postings; null if no row has a descriptor
+		 */
+		private Postings build() {
+			if (mPostings != null)
+				for (int bit=0; bit<FFP_BITS; bit++)
+					if (mPostings.mRowList[bit] != null && mRowListSize[bit] != mPostings.mRowList[bit].length)
+						throw new IllegalStateException("Data source rows changed while creating the index.");
+			return mPostings;
+			}
+		}
+
+	/**
+	 * Open addressing hash table from reaction hash code to the chain of rows having that hash code.
+	 */
+	private static class HashTable {
+		private final long[] mRowHash;
+		private final long[] mKey;
+		private final int[] mFirstRow;
+		private final int[] mNextRow;
+
+		private HashTable(long[] rowHash) {
+			mRowHash = rowHash;
+			int size = Integer.highestOneBit(Math.max(2, rowHash.length) * 2 - 1) * 2;
+			mKey = new long[size];
+			mFirstRow = new int[size];
+			Arrays.fill(mFirstRow, -1);
+			mNextRow = new int[rowHash.length];
+			for (int row=rowHash.length-1; row>=0; row--) {
+				if (rowHash[row] == ReactionSearchDataSource.SEARCH_TYPE_NOT_SUPPORTED) {
+					mNextRow[row] = -1;
+					continue;
+					}
+				int slot = findSlot(rowHash[row]);
+				mKey[slot] = rowHash[row];
+				mNextRow[row] = mFirstRow[slot];
+				mFirstRow[slot] = row;
+				}
+			}
+
+		private int findSlot(long hash) {
+			int mask = mKey.length - 1;
+			int slot = (int)(hash ^ (hash >>> 32)) * 0x9E3779B9 & mask;
+			while (mFirstRow[slot] != -1 && mKey[slot] != hash)
+				slot = (slot + 1) & mask;
+			return slot;
+			}
+
+		private void addRows(long hash, long[] rows) {
+			for (int row=mFirstRow[findSlot(hash)]; row != -1; row=mNextRow[row])
+				rows[row >>> 6] |= (1L << row);
+			}
+		}
+	}
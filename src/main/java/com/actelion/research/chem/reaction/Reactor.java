@@ -46,13 +46,14 @@ public class Reactor {
 	public static final int MODE_FULLY_MAP_REACTIONS = 2;
 	public static final int MODE_REMOVE_DUPLICATE_PRODUCTS = 4;
 	public static final int MODE_ALLOW_CHARGE_CORRECTIONS = 8;
+	public static final int MODE_SKIP_COORDINATES = 16;
 
 	private final Reaction		mGenericReaction;
 	private final SSSearcher	mSSSearcher;
 	private	final StereoMolecule[] mReactant;
 	private final int[][]		mMinFreeValence;	// minimum required free valence on reactant atoms
 	private final boolean[][]	mIsReactionCenter;	// reaction center flags on product atoms
-	private final boolean		mRetainCoordinates,mFullyMapReactions,mUniqueProductsOnly,mAllowChargeCorrections;
+	private final boolean		mRetainCoordinates,mFullyMapReactions,mUniqueProductsOnly,mAllowChargeCorrections,mSkipCoordinates;
 	private final int			mMaxCount;
 	private int					mMaxGenericMapNo,mReactantMatchCombinationCount;
 	private final ArrayList<int[]>[] mMatchList;
@@ -115,6 +116,8 @@ public class Reactor {
 	 * if the matching generic reactant atom has no charge. E.g. this would allow carboxylate anions to represent
 	 * a carboxylic acid in an esterification despite formally the anion oxygen has no free valence to form a new bond.
 	 * WARNING: This may produce products with unbalanced atom charges.<br>
+	 * MODE_SKIP_COORDINATES: If set, then no atom coordinates are created for the products. Stereo configurations
+	 * are defined by atom and bond parities only. This is considerably faster, if only product idcodes are needed.<br>
 	 * @param reaction generic reaction with reactant & product substructures with optional query features (reactant)
 	 * @param mode 0 or any combination of MODE_xxx flags
 	 * @param maxProducts limitation of products/reactions to be enumerated in case of heavy symmetries
@@ -124,6 +127,7 @@ public class Reactor {
 		mFullyMapReactions = (mode & MODE_FULLY_MAP_REACTIONS) != 0;
 		mUniqueProductsOnly = (mode & MODE_REMOVE_DUPLICATE_PRODUCTS) != 0;
 		mAllowChargeCorrections = (mode & MODE_ALLOW_CHARGE_CORRECTIONS) != 0;
+		mSkipCoordinates = (mode & MODE_SKIP_COORDINATES) != 0;
 		mMaxCount = maxProducts;
 
 		mGenericReaction = reaction;
@@ -314,11 +318,42 @@ public class Reactor {
 				}
 			}
 
+		updateMatchCombinationCount();
+		return true;
+		}
+
+	/**
+	 * Defines a real world reactant together with its generic reactant matches, which were determined
+	 * earlier by setReactant(no, reactant) on this or another Reactor of the same generic reaction and
+	 * retrieved with getReactantMatches(no). This skips the sub-structure search and free valence checks,
+	 * which is useful, if the same building blocks are combined many times, e.g. in combinatorial
+	 * library enumeration. The match list is not modified by the Reactor and may be shared between
+	 * multiple Reactors.
+	 * @param no
+	 * @param reactant with correctly set parity flags
+	 * @param matchList valid generic reactant matches as returned by getReactantMatches()
+	 * @return whether the generic reactant matches at least once
+	 */
+	public boolean setReactant(int no, StereoMolecule reactant, ArrayList<int[]> matchList) {
+		mReactant[no] = reactant;
+		mProduct = null;
+		mMatchList[no] = matchList;
+		updateMatchCombinationCount();
+		return matchList.size() != 0;
+		}
+
+	/**
+	 * @param no
+	 * @return valid matches of the generic reactant no in the real world reactant defined last with setReactant()
+	 */
+	public ArrayList<int[]> getReactantMatches(int no) {
+		return mMatchList[no];
+		}
+
+	private void updateMatchCombinationCount() {
 		mReactantMatchCombinationCount = 1;
 		for (int i=0; i<mReactant.length; i++)
 			mReactantMatchCombinationCount *= (mMatchList[i] == null) ? 0 : mMatchList[i].size();
-
-		return true;
 		}
 
 
@@ -783,9 +818,11 @@ public class Reactor {
 
 		product.setParitiesValid(0);
 
-		int mode = CoordinateInventor.MODE_REMOVE_HYDROGEN
-				 | (mRetainCoordinates ? CoordinateInventor.MODE_PREFER_MARKED_ATOM_COORDS : 0);
-		new CoordinateInventor(mode).invent(product);
+		if (!mSkipCoordinates) {
+			int mode = CoordinateInventor.MODE_REMOVE_HYDROGEN
+					 | (mRetainCoordinates ? CoordinateInventor.MODE_PREFER_MARKED_ATOM_COORDS : 0);
+			new CoordinateInventor(mode).invent(product);
+			}
 
 		if (racemicAtomList != null) {
 			product.ensureHelperArrays(Molecule.cHelperParities);
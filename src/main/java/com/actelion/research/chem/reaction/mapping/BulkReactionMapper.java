@@ -0,0 +1,516 @@
+/*
+ * Copyright (c) 1997 - 2016
+ * Actelion Pharmaceuticals Ltd.
+ * Gewerbestrasse 16
+ * CH-4123 Allschwil, Switzerland
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the the copyright holder nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.actelion.research.chem.reaction.mapping;
+
+import com.actelion.research.chem.CanonizerUtil;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.io.RDFileParser;
+import com.actelion.research.chem.io.RXNFileParser;
+import com.actelion.research.chem.reaction.Reaction;
+import com.actelion.research.chem.reaction.ReactionEncoder;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Maps large numbers of reactions with the ChemicalRuleEnhancedReactionMapper using multiple threads.
+ * Reactions are read from RD-files, RXN-files or any reaction iterator and are mapped in parallel.
+ * The results are passed to a MappingListener in the order of the input reactions
+ * and from the calling thread, i.e. the listener doesn't need to be thread-safe.
+ * Mapping results are cached by a hash of the unmapped reaction, such that duplicate reactions
+ * are mapped only once. Throughput and the distribution of mapping scores are collected
+ * and can be retrieved after mapping with getStatistics().
+ */
+public class BulkReactionMapper {
+	public static final int DEFAULT_CACHE_SIZE = 1 << 20;
+	private static final int QUEUED_REACTIONS_PER_THREAD = 8;
+
+	public interface MappingListener {
+		void reactionMapped(MappingResult result);
+		}
+
+	public static class MappingResult {
+		private int mIndex;
+		private Reaction mReaction;
+		private String[] mEncodedReaction;
+		private float mScore;
+		private String mRuleName,mError;
+		private boolean mIsCached,mIsTimeLimitExceeded;
+		private long mMillis;
+		private TreeMap<String,String> mFieldData;
+
+		/**
+		 * @return zero based position of the reaction in the input
+		 */
+		public int getIndex() {
+			return mIndex;
+			}
+
+		/**
+		 * @return mapped reaction or null, if the reaction couldn't be read or mapped
+		 */
+		public Reaction getReaction() {
+			return mReaction;
+			}
+
+		/**
+		 * @return idcode, mapping and coordinates of the mapped reaction as created by ReactionEncoder; null if failed
+		 */
+		public String[] getEncodedReaction() {
+			return mEncodedReaction;
+			}
+
+		public float getScore() {
+			return mScore;
+			}
+
+		/**
+		 * @return name of the chemical rule, which led to the best mapping, or null
+		 */
+		public String getRuleName() {
+			return mRuleName;
+			}
+
+		/**
+		 * @return null or the reason, why the reaction couldn't be read or mapped
+		 */
+		public String getError() {
+			return mError;
+			}
+
+		/**
+		 * @return whether the mapping was taken from the mapping of an identical earlier reaction
+		 */
+		public boolean isCached() {
+			return mIsCached;
+			}
+
+		/**
+		 * @return whether the mapper stopped trying chemical rules because of the time limit
+		 */
+		public boolean isTimeLimitExceeded() {
+			return mIsTimeLimitExceeded;
+			}
+
+		/**
+		 * @return elapsed milliseconds for mapping this reaction
+		 */
+		public long getMillis() {
+			return mMillis;
+			}
+
+		/**
+		 * @return data fields of the RD-file record or null
+		 */
+		public TreeMap<String,String> getFieldData() {
+			return mFieldData;
+			}
+		}
+
+	public static class Statistics {
+		private int mReactionCount,mCachedCount,mFailedCount,mTimeLimitExceededCount;
+		private long mElapsedMillis,mMappingMillis;
+		private double mScoreSum;
+		private float mMinScore = Float.MAX_VALUE,mMaxScore = -Float.MAX_VALUE;
+		private TreeMap<Integer,Integer> mScoreHistogram = new TreeMap<>();
+
+		private void add(MappingResult result) {
+			mReactionCount++;
+			mMappingMillis += result.mMillis;
+			if (result.mError != null) {
+				mFailedCount++;
+				return;
+				}
+			if (result.mIsCached)
+				mCachedCount++;
+			if (result.mIsTimeLimitExceeded)
+				mTimeLimitExceededCount++;
+			mScoreSum += result.mScore;
+			mMinScore = Math.min(mMinScore, result.mScore);
+			mMaxScore = Math.max(mMaxScore, result.mScore);
+			mScoreHistogram.merge((int)Math.floor(result.mScore), 1, Integer::sum);
+			}
+
+		public int getReactionCount() {
+			return mReactionCount;
+			}
+
+		public int getCachedCount() {
+			return mCachedCount;
+			}
+
+		public int getFailedCount() {
+			return mFailedCount;
+			}
+
+		public int getTimeLimitExceededCount() {
+			return mTimeLimitExceededCount;
+			}
+
+		/**
+		 * @return wall clock milliseconds of the mapping run
+		 */
+		public long getElapsedMillis() {
+			return mElapsedMillis;
+			}
+
+		/**
+		 * @return milliseconds summed up over all reactions and threads
+		 */
+		public long getMappingMillis() {
+			return mMappingMillis;
+			}
+
+		public double getReactionsPerSecond() {
+			return mElapsedMillis == 0 ? 0.0 : 1000.0 * mReactionCount / mElapsedMillis;
+			}
+
+		public float getMeanScore() {
+			int count = mReactionCount - mFailedCount;
+			return count == 0 ? Float.NaN : (float)(mScoreSum / count);
+			}
+
+		public float getMinScore() {
+			return mMinScore;
+			}
+
+		public float getMaxScore() {
+			return mMaxScore;
+			}
+
+		/**
+		 * @return number of mapped reactions per score interval; the key is the lower interval bound, i.e. floor(score)
+		 */
+		public TreeMap<Integer,Integer> getScoreHistogram() {
+			return mScoreHistogram;
+			}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("reactions:").append(mReactionCount)
+			  .append(" cached:").append(mCachedCount)
+			  .append(" failed:").append(mFailedCount)
+			  .append(" timeLimitExceeded:").append(mTimeLimitExceededCount)
+			  .append(" millis:").append(mElapsedMillis)
+			  .append(" reactions/s:").append(String.format("%.1f", getReactionsPerSecond())).append("\n");
+			if (mReactionCount > mFailedCount) {
+				sb.append("score mean:").append(getMeanScore())
+				  .append(" min:").append(mMinScore)
+				  .append(" max:").append(mMaxScore).append("\n");
+				for (Map.Entry<Integer,Integer> entry:mScoreHistogram.entrySet())
+					sb.append("[").append(entry.getKey()).append(",").append(entry.getKey()+1).append(")\t").append(entry.getValue()).append("\n");
+				}
+			return sb.toString();
+			}
+		}
+
+	private static class Record {
+		Reaction reaction;
+		TreeMap<String,String> fieldData;
+		String error;
+		}
+
+	private static class CachedMapping {
+		String[] encodedReaction;
+		float score;
+		String ruleName;
+		boolean isTimeLimitExceeded;
+		}
+
+	private final int mThreadCount;
+	private int mMaxRuleTries,mCacheSize;
+	private long mMaxMillis;
+	private Map<Long,CachedMapping> mCache;
+	private Statistics mStatistics;
+
+	/**
+	 * @param threadCount number of mapping threads, 0 for all available processors
+	 */
+	public BulkReactionMapper(int threadCount) {
+		mThreadCount = (threadCount <= 0) ? Runtime.getRuntime().availableProcessors() : threadCount;
+		mMaxRuleTries = Integer.MAX_VALUE;
+		mCacheSize = DEFAULT_CACHE_SIZE;
+		}
+
+	/**
+	 * @param max maximum number of chemical rule applications per reaction, see ChemicalRuleEnhancedReactionMapper
+	 */
+	public void setMaximumRuleTries(int max) {
+		mMaxRuleTries = max;
+		}
+
+	/**
+	 * @param maxMillis maximum milliseconds per reaction for applying chemical rules (0: no limit)
+	 */
+	public void setTimeLimit(long maxMillis) {
+		mMaxMillis = maxMillis;
+		}
+
+	/**
+	 * @param size maximum number of cached reaction mappings (0: no caching); the least recently used are discarded
+	 */
+	public void setCacheSize(int size) {
+		mCacheSize = size;
+		}
+
+	/**
+	 * @return statistics of the last mapping run
+	 */
+	public Statistics getStatistics() {
+		return mStatistics;
+		}
+
+	/**
+	 * Maps all reactions of a non-hierarchical RD-file. The data fields of every record are
+	 * passed to the listener with the mapping result.
+	 * @param file
+	 * @param listener
+	 * @return number of processed reactions
+	 */
+	public int mapRDFile(File file, MappingListener listener) {
+		RDFileParser parser = new RDFileParser(file);
+		Iterator<Record> iterator = new Iterator<Record>() {
+			private Record mNext = read();
+
+			private Record read() {
+				while (parser.hasNext()) {
+					Reaction rxn = parser.getNextReaction();
+					if (rxn != null) {
+						Record record = new Record();
+						record.reaction = rxn;
+						record.fieldData = new TreeMap<>(parser.getFieldData());
+						return record;
+						}
+					}
+				return null;
+				}
+
+			@Override
+			public boolean hasNext() {
+				return mNext != null;
+				}
+
+			@Override
+			public Record next() {
+				Record record = mNext;
+				mNext = read();
+				return record;
+				}
+			};
+		return mapRecords(iterator, listener);
+		}
+
+	/**
+	 * Maps the reactions of all given RXN-files. Files that cannot be parsed are reported
+	 * to the listener as failed results.
+	 * @param file
+	 * @param listener
+	 * @return number of processed reactions
+	 */
+	public int mapRXNFiles(File[] file, MappingListener listener) {
+		Iterator<Record> iterator = new Iterator<Record>() {
+			private int mIndex = 0;
+
+			@Override
+			public boolean hasNext() {
+				return mIndex < file.length;
+				}
+
+			@Override
+			public Record next() {
+				Record record = new Record();
+				try {
+					record.reaction = new RXNFileParser().getReaction(file[mIndex]);
+					}
+				catch (Exception e) {
+					record.error = file[mIndex].getName()+": "+e.getMessage();
+					}
+				mIndex++;
+				return record;
+				}
+			};
+		return mapRecords(iterator, listener);
+		}
+
+	/**
+	 * Maps all reactions provided by the iterator. Reactions are mapped in place, unless
+	 * their mapping is taken from the cache.
+	 * @param reactions
+	 * @param listener
+	 * @return number of processed reactions
+	 */
+	public int map(Iterator<Reaction> reactions, MappingListener listener) {
+		Iterator<Record> iterator = new Iterator<Record>() {
+			@Override
+			public boolean hasNext() {
+				return reactions.hasNext();
+				}
+
+			@Override
+			public Record next() {
+				Record record = new Record();
+				record.reaction = reactions.next();
+				return record;
+				}
+			};
+		return mapRecords(iterator, listener);
+		}
+
+	private int mapRecords(Iterator<Record> records, MappingListener listener) {
+		mStatistics = new Statistics();
+		mCache = (mCacheSize <= 0) ? null : Collections.synchronizedMap(new LinkedHashMap<Long,CachedMapping>(1024, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long,CachedMapping> eldest) {
+				return size() > mCacheSize;
+				}
+			});
+
+		long startMillis = System.currentTimeMillis();
+		ThreadLocal<ChemicalRuleEnhancedReactionMapper> mapper = ThreadLocal.withInitial(() -> {
+			ChemicalRuleEnhancedReactionMapper m = new ChemicalRuleEnhancedReactionMapper();
+			m.setMaximumRuleTries(mMaxRuleTries);
+			m.setTimeLimit(mMaxMillis);
+			return m;
+			});
+		ExecutorService executor = Executors.newFixedThreadPool(mThreadCount, r -> {
+			Thread t = new Thread(r, "Bulk Reaction Mapper");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+			});
+
+		int index = 0;
+		try {
+			ArrayDeque<Future<MappingResult>> pending = new ArrayDeque<>();
+			while (records.hasNext() || !pending.isEmpty()) {
+				if (records.hasNext() && pending.size() < QUEUED_REACTIONS_PER_THREAD * mThreadCount) {
+					Record record = records.next();
+					int recordIndex = index++;
+					pending.add(executor.submit(() -> mapRecord(record, recordIndex, mapper.get())));
+					continue;
+					}
+
+				MappingResult result = pending.poll().get();
+				mStatistics.add(result);
+				if (listener != null)
+					listener.reactionMapped(result);
+				}
+			}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+			}
+		finally {
+			executor.shutdownNow();
+			mStatistics.mElapsedMillis = System.currentTimeMillis() - startMillis;
+			mCache = null;
+			}
+
+		return index;
+		}
+
+	private MappingResult mapRecord(Record record, int index, ChemicalRuleEnhancedReactionMapper mapper) {
+		long start = System.currentTimeMillis();
+		MappingResult result = new MappingResult();
+		result.mIndex = index;
+		result.mFieldData = record.fieldData;
+		result.mError = record.error;
+		Reaction rxn = record.reaction;
+		if (result.mError == null && (rxn == null || rxn.getReactants() == 0 || rxn.getProducts() == 0))
+			result.mError = "reactants or products missing";
+
+		if (result.mError == null) {
+			try {
+				long hash = 0;
+				CachedMapping cached = null;
+				if (mCache != null) {
+					hash = getReactionHash(rxn);
+					cached = mCache.get(hash);
+					}
+
+				if (cached != null) {
+					result.mReaction = ReactionEncoder.decode(cached.encodedReaction[0], cached.encodedReaction[1],
+							cached.encodedReaction[2], null, null, false, null);
+					result.mIsCached = true;
+					}
+				else {
+					mapper.map(rxn);
+					cached = new CachedMapping();
+					cached.encodedReaction = ReactionEncoder.encode(rxn, false, true);
+					cached.score = mapper.getScore();
+					cached.ruleName = (mapper.getAppliedRule() == null) ? null : mapper.getAppliedRule().getName();
+					cached.isTimeLimitExceeded = mapper.isTimeLimitExceeded();
+					if (cached.encodedReaction == null)
+						throw new Exception("reaction cannot be encoded");
+					if (mCache != null)
+						mCache.put(hash, cached);
+					result.mReaction = rxn;
+					}
+
+				result.mEncodedReaction = cached.encodedReaction;
+				result.mScore = cached.score;
+				result.mRuleName = cached.ruleName;
+				result.mIsTimeLimitExceeded = cached.isTimeLimitExceeded;
+				}
+			catch (Exception e) {
+				result.mError = (e.getMessage() == null) ? e.toString() : e.getMessage();
+				result.mReaction = null;
+				result.mEncodedReaction = null;
+				}
+			}
+
+		result.mMillis = System.currentTimeMillis() - start;
+		return result;
+		}
+
+	/**
+	 * @param rxn
+	 * @return hash code of the reaction ignoring any atom mapping and the order of reactants and products
+	 */
+	private static long getReactionHash(Reaction rxn) throws Exception {
+		Reaction copy = new Reaction(rxn);
+		for (int i=0; i<copy.getMolecules(); i++) {
+			StereoMolecule mol = copy.getMolecule(i);
+			for (int atom=0; atom<mol.getAllAtoms(); atom++)
+				mol.setAtomMapNo(atom, 0, false);
+			}
+		String[] code = ReactionEncoder.encode(copy, false, true);
+		if (code == null)
+			throw new Exception("reaction cannot be encoded");
+		return CanonizerUtil.StrongHasher.hash(code[0]);
+		}
+	}
@@ -34,12 +34,17 @@
 
 package com.actelion.research.chem.reaction.mapping;
 
+import com.actelion.research.chem.Canonizer;
 import com.actelion.research.chem.Molecule;
 import com.actelion.research.chem.SSSearcher;
 import com.actelion.research.chem.StereoMolecule;
 import com.actelion.research.chem.reaction.IReactionMapper;
 import com.actelion.research.chem.reaction.Reaction;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
 public class ChemicalRuleEnhancedReactionMapper implements IReactionMapper {
 	private static final int MAX_MATCH_COUNT = 512;  // Protection for combinatorial explosion, e.g. for metathesis or DielsAlder in fullerene
 
@@ -125,7 +130,9 @@ public class ChemicalRuleEnhancedReactionMapper implements IReactionMapper {
 
 	private StereoMolecule mReactant,mProduct;
 	private float mScore;
-	private int mMaxRuleTries;
+	private int mMaxRuleTries,mRuleApplicationCount,mMappedRuleApplicationCount;
+	private long mMaxMillis;
+	private boolean mTimeLimitExceeded,mIsPruning;
 	private ChemicalRule mAppliedRule;
 	private StringBuilder mHistory;
 
@@ -139,6 +146,7 @@ public class ChemicalRuleEnhancedReactionMapper implements IReactionMapper {
 				}
 			}
 		mMaxRuleTries = Integer.MAX_VALUE;
+		mIsPruning = true;
 		}
 
 	@Override
@@ -162,78 +170,191 @@ public class ChemicalRuleEnhancedReactionMapper implements IReactionMapper {
 		reactantSearcher.setMolecule(mReactant);
 		productSearcher.setMolecule(mProduct);
 
-		mScore = Integer.MIN_VALUE;
-		int[] bestReactantMapNo = null;
-		int[] bestProductMapNo = null;
-		int bestGraphMapNoCount = 0;
 		mAppliedRule = null;
 		int ruleApplicationCount = 0;
 		mHistory = new StringBuilder();
+		mTimeLimitExceeded = false;
+		mRuleApplicationCount = 0;
+		mMappedRuleApplicationCount = 0;
+		long stopTime = (mMaxMillis == 0) ? Long.MAX_VALUE : System.currentTimeMillis() + mMaxMillis;
 
 if (SimilarityGraphBasedReactionMapper.DEBUG)
  System.out.println("Reaction\tScore");
 
+		// Map and score the reaction without applying any rules first. Any rule must beat this score.
+		// Mappings are cached by the canonical form of the (modified) reactant, because different rules
+		// or matches frequently lead to the same reaction center or to symmetrically equivalent ones,
+		// e.g. if a rule matches two equivalent ester groups or if a rule doesn't change anything.
+		// Cached mappings are transferred to equivalent reactants via the canonical atom order and re-scored.
+		// With manually mapped atoms symmetry must not be used; then only identical reactants are shared.
+		boolean useSymmetry = !hasManualMapping(mReactant);
+		HashMap<String,Mapping> mappingCache = new HashMap<>();
+		Mapping noRuleMapping = new Mapping(mapper, mReactant, mProduct);
+		cacheMapping(mappingCache, mReactant, noRuleMapping, useSymmetry);
+		mScore = noRuleMapping.score;
+		Mapping bestMapping = noRuleMapping;
+
+		// Collect all rule applications together with an upper limit of their achievable scores.
+		// Applications, which cannot beat the rule-less mapping are abandoned right away.
 		StereoMolecule reactant = new StereoMolecule(); // reusable container
-
-		for (ChemicalRule rule:CHEMICAL_RULE) {
-			if (ruleApplicationCount++ == mMaxRuleTries)
+		ArrayList<RuleApplication> applicationList = new ArrayList<>();
+		boolean[] isRuleMatching = new boolean[CHEMICAL_RULE.length];
+		for (int ruleIndex=0; ruleIndex<CHEMICAL_RULE.length; ruleIndex++) {
+			if (System.currentTimeMillis() > stopTime) {
+				mTimeLimitExceeded = true;
 				break;
+				}
 
+			ChemicalRule rule = CHEMICAL_RULE[ruleIndex];
 			reactantSearcher.setFragment(rule.getReactant());
 			reactantSearcher.setFragmentSymmetryConstraints(rule.getReactantAtomSymmetryConstraints());
 			if (0 != reactantSearcher.findFragmentInMolecule(SSSearcher.cCountModeUnique, SSSearcher.cDefaultMatchMode)) {
 				productSearcher.setFragment(rule.getProduct());
 				if (productSearcher.isFragmentInMolecule()
 				 && reactantSearcher.getMatchList().size() <= MAX_MATCH_COUNT) {
-float historyScore = -10000;
+					isRuleMatching[ruleIndex] = true;
 					for (int[] reactantMatch:reactantSearcher.getMatchList()) {
-						if (ruleApplicationCount++ >= mMaxRuleTries)
-							break;
-
 						mReactant.copyMolecule(reactant);
 						rule.apply(reactant, reactantMatch);
-						int[] reactantMapNo = new int[mReactant.getAtoms()];
-						int[] productMapNo = new int[mProduct.getAtoms()];
-//System.out.println(new MolfileCreator(reactant).getMolfile());
-						mapper.map(reactant, mProduct, reactantMapNo, productMapNo);
-						float score = mapper.getScore() - rule.getPanalty();
-
-if (historyScore < score) historyScore = score;
-						if (mScore < score) {
-							mScore = score;
-							bestReactantMapNo = reactantMapNo;
-							bestProductMapNo = productMapNo;
-							bestGraphMapNoCount = mapper.getGraphMapNoCount();
-							mAppliedRule = rule;
-							}
+						float maxScore = MappingScorer.getMaxScore(reactant, mProduct) - rule.getPanalty();
+						mRuleApplicationCount++;
+						if (!mIsPruning || maxScore > noRuleMapping.score)
+							applicationList.add(new RuleApplication(ruleIndex, applicationList.size(), reactantMatch, maxScore));
 						}
-String pairSequences = mapper.getAtomPairSequenceCount() <= 1 ? "" : " (rootPairSets:"+mapper.getAtomPairSequenceCount()+")";
-mHistory.append(rule.getName()+historyScore+pairSequences+"\n");
 					}
 				}
 			}
 
-		// map and score the reaction without applying any rules
-		int[] reactantMapNo = new int[mReactant.getAtoms()];
-		int[] productMapNo = new int[mProduct.getAtoms()];
-		mapper.map(mReactant, mProduct, reactantMapNo, productMapNo);
-		float score = mapper.getScore();
-
-		if (mScore <= score) {
-			mAppliedRule = null;
-			mScore = score;
-			bestReactantMapNo = reactantMapNo;
-			bestProductMapNo = productMapNo;
-			bestGraphMapNoCount = mapper.getGraphMapNoCount();
+		// Best-first: most promising applications are mapped first. As soon as the upper score limit
+		// drops below the best score found, no remaining application can win anymore.
+		// Among equal scores the rule coming first in rule order wins, as if all rules were tried in order.
+		applicationList.sort((a1, a2) -> a1.maxScore != a2.maxScore ? (a1.maxScore > a2.maxScore ? -1 : 1)
+																	: Integer.compare(a1.order, a2.order));
+		float[] ruleScore = new float[CHEMICAL_RULE.length];
+		int[] rulePairSequences = new int[CHEMICAL_RULE.length];
+		Arrays.fill(ruleScore, -10000);
+		RuleApplication bestApplication = null;
+		for (RuleApplication application:applicationList) {
+			if (mIsPruning && bestApplication != null
+			 && (application.maxScore < mScore
+			  || (application.maxScore == mScore && application.order > bestApplication.order)))
+				break;
+
+			if (ruleApplicationCount++ >= mMaxRuleTries)
+				break;
+
+			if (System.currentTimeMillis() > stopTime) {
+				mTimeLimitExceeded = true;
+				break;
+				}
+
+			ChemicalRule rule = CHEMICAL_RULE[application.ruleIndex];
+			mReactant.copyMolecule(reactant);
+			rule.apply(reactant, application.match);
+			Mapping mapping = getCachedMapping(mappingCache, reactant, useSymmetry);
+			if (mapping == null) {
+//System.out.println(new MolfileCreator(reactant).getMolfile());
+				mapping = new Mapping(mapper, reactant, mProduct);
+				cacheMapping(mappingCache, reactant, mapping, useSymmetry);
+				mMappedRuleApplicationCount++;
+				}
+			float score = mapping.score - rule.getPanalty();
+
+			if (ruleScore[application.ruleIndex] < score) ruleScore[application.ruleIndex] = score;
+			rulePairSequences[application.ruleIndex] = mapping.pairSequenceCount;
+
+			if (mScore < score
+			 || (mScore == score && bestApplication != null && application.order < bestApplication.order)) {
+				mScore = score;
+				bestMapping = mapping;
+				bestApplication = application;
+				mAppliedRule = rule;
+				}
+			}
+
+		for (int ruleIndex=0; ruleIndex<CHEMICAL_RULE.length; ruleIndex++) {
+			if (isRuleMatching[ruleIndex]) {
+String pairSequences = rulePairSequences[ruleIndex] <= 1 ? "" : " (rootPairSets:"+rulePairSequences[ruleIndex]+")";
+mHistory.append(CHEMICAL_RULE[ruleIndex].getName()+ruleScore[ruleIndex]+pairSequences+"\n");
+				}
 			}
-String pairSequences = mapper.getAtomPairSequenceCount() <= 1 ? "" : " (rootPairSets:"+mapper.getAtomPairSequenceCount()+")";
-mHistory.append("no rule:"+score+pairSequences+"\n");
+String pairSequences = noRuleMapping.pairSequenceCount <= 1 ? "" : " (rootPairSets:"+noRuleMapping.pairSequenceCount+")";
+mHistory.append("no rule:"+noRuleMapping.score+pairSequences+"\n");
 
-		if (mScore != Integer.MIN_VALUE)
-			mapper.copyMapNosToReaction(rxn, bestReactantMapNo, bestProductMapNo, bestGraphMapNoCount);
+		mapper.copyMapNosToReaction(rxn, bestMapping.reactantMapNo, bestMapping.productMapNo, bestMapping.graphMapNoCount);
 
 if (SimilarityGraphBasedReactionMapper.DEBUG)
- System.out.println("Done; used "+ruleApplicationCount+" of "+mMaxRuleTries+" allowed rule application tries.");
+ System.out.println("Done; mapped "+mMappedRuleApplicationCount+" of "+applicationList.size()+" promising rule applications ("+mMaxRuleTries+" allowed).");
+		}
+
+	private static boolean hasManualMapping(StereoMolecule mol) {
+		for (int atom=0; atom<mol.getAtoms(); atom++)
+			if (mol.getAtomMapNo(atom) != 0 && !mol.isAutoMappedAtom(atom))
+				return true;
+		return false;
+		}
+
+	private void cacheMapping(HashMap<String,Mapping> mappingCache, StereoMolecule reactant, Mapping mapping, boolean useSymmetry) {
+		if (useSymmetry) {
+			Canonizer canonizer = new Canonizer(new StereoMolecule(reactant));
+			mapping.graphAtom = canonizer.getGraphAtoms();
+			mappingCache.put(canonizer.getIDCode(), mapping);
+			}
+		else {
+			mappingCache.put(getBondingKey(reactant), mapping);
+			}
+		}
+
+	/**
+	 * @return cached mapping of an identical or symmetrically equivalent reactant adapted to the given reactant or null
+	 */
+	private Mapping getCachedMapping(HashMap<String,Mapping> mappingCache, StereoMolecule reactant, boolean useSymmetry) {
+		if (!useSymmetry)
+			return mappingCache.get(getBondingKey(reactant));
+
+		Canonizer canonizer = new Canonizer(new StereoMolecule(reactant));
+		Mapping mapping = mappingCache.get(canonizer.getIDCode());
+		return (mapping == null) ? null : new Mapping(mapping, canonizer.getGraphAtoms(), reactant, mProduct);
+		}
+
+	/**
+	 * Creates a key that is equal for two molecules derived from the same parent molecule,
+	 * if they have the same bonds in the same order and the same atom parities, i.e. if they map identically.
+	 * @param mol
+	 * @return
+	 */
+	private static String getBondingKey(StereoMolecule mol) {
+		StringBuilder key = new StringBuilder();
+		for (int bond=0; bond<mol.getAllBonds(); bond++)
+			key.append(mol.getBondAtom(0, bond)).append(',').append(mol.getBondAtom(1, bond)).append(',').append(mol.getBondType(bond)).append(';');
+		for (int atom=0; atom<mol.getAllAtoms(); atom++)
+			key.append(mol.getAtomParity(atom));
+		return key.toString();
+		}
+
+	/**
+	 * @return number of rule applications, i.e. rule matches in the reactant, found by the last map() call
+	 */
+	public int getRuleApplicationCount() {
+		return mRuleApplicationCount;
+		}
+
+	/**
+	 * Rule applications that cannot beat the best mapping's score are not mapped. Nor are rule applications,
+	 * which lead to a reactant that is equal or symmetrically equivalent to an already mapped one.
+	 * @return number of rule applications that needed a mapping of their own in the last map() call
+	 */
+	public int getMappedRuleApplicationCount() {
+		return mMappedRuleApplicationCount;
+		}
+
+	/**
+	 * Pruning skips rule applications whose upper score limit cannot beat the best score found.
+	 * Pruning does not change the result. Switching it off is for testing only.
+	 * @param b
+	 */
+	void setPruning(boolean b) {
+		mIsPruning = b;
 		}
 
 	/**
@@ -244,6 +365,23 @@ if (SimilarityGraphBasedReactionMapper.DEBUG)
 		mMaxRuleTries = max;
 		}
 
+	/**
+	 * This limits the time spent on applying chemical rules to improve the mapping.
+	 * When the time limit is reached, no further rules are tried, and the best mapping found so far
+	 * competes with the mapping without any rule applied, which is always calculated.
+	 * @param maxMillis maximum milliseconds for applying rules (0: no limit)
+	 */
+	public void setTimeLimit(long maxMillis) {
+		mMaxMillis = maxMillis;
+		}
+
+	/**
+	 * @return whether the last map() call stopped applying rules because the time limit was reached
+	 */
+	public boolean isTimeLimitExceeded() {
+		return mTimeLimitExceeded;
+		}
+
 	public String getHistory() {
 		return mHistory.toString();
 	}
@@ -255,4 +393,55 @@ if (SimilarityGraphBasedReactionMapper.DEBUG)
 	public ChemicalRule getAppliedRule() {
 		return mAppliedRule;
 		}
+
+	private static class RuleApplication {
+		int ruleIndex,order;
+		int[] match;
+		float maxScore;
+
+		public RuleApplication(int ruleIndex, int order, int[] match, float maxScore) {
+			this.ruleIndex = ruleIndex;
+			this.order = order;
+			this.match = match;
+			this.maxScore = maxScore;
+			}
+		}
+
+	private static class Mapping {
+		int[] reactantMapNo,productMapNo;
+		int[] graphAtom;    // canonical atom order of the reactant
+		int graphMapNoCount,pairSequenceCount;
+		float score;
+
+		public Mapping(SimilarityGraphBasedReactionMapper mapper, StereoMolecule reactant, StereoMolecule product) {
+			reactantMapNo = new int[reactant.getAtoms()];
+			productMapNo = new int[product.getAtoms()];
+			mapper.map(reactant, product, reactantMapNo, productMapNo);
+			score = mapper.getScore();
+			graphMapNoCount = mapper.getGraphMapNoCount();
+			pairSequenceCount = mapper.getAtomPairSequenceCount();
+			}
+
+		/**
+		 * Transfers the mapping of a symmetrically equivalent reactant to the given reactant and scores it.
+		 * @param source mapping of an equivalent reactant
+		 * @param graphAtom canonical atom order of reactant
+		 * @param reactant
+		 * @param product
+		 */
+		public Mapping(Mapping source, int[] graphAtom, StereoMolecule reactant, StereoMolecule product) {
+			reactantMapNo = new int[source.reactantMapNo.length];
+			productMapNo = source.productMapNo;
+			for (int i=0; i<graphAtom.length; i++)
+				if (graphAtom[i] < reactantMapNo.length && source.graphAtom[i] < reactantMapNo.length)
+					reactantMapNo[graphAtom[i]] = source.reactantMapNo[source.graphAtom[i]];
+			this.graphAtom = graphAtom;
+			graphMapNoCount = source.graphMapNoCount;
+			pairSequenceCount = source.pairSequenceCount;
+
+			reactant.ensureHelperArrays(Molecule.cHelperRings);
+			MappingScorer scorer = new MappingScorer(reactant, product);
+			score = scorer.scoreMapping(scorer.createReactantToProductAtomMap(reactantMapNo, productMapNo));
+			}
+		}
 	}
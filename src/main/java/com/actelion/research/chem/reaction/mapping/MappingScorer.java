@@ -38,6 +38,7 @@ import com.actelion.research.chem.Molecule;
 import com.actelion.research.chem.StereoMolecule;
 
 import java.util.Arrays;
+import java.util.TreeMap;
 
 public class MappingScorer {
 	// Simple scoring just adds bond order changes (delocalized=1.5) of every added, broken, or changed bond.
@@ -62,6 +63,192 @@ public class MappingScorer {
 		mProduct = product;
 		}
 
+	/**
+	 * Calculates an upper limit for the score any mapping of reactant to product can reach.
+	 * Mapped atoms always share the same atomic number. Thus, a product bond between atoms of a given
+	 * element pair can only be covered by a reactant bond of the same element pair. If the product contains
+	 * more bonds of an element pair than the reactant, then the surplus bonds must be created, which costs
+	 * at least 1.7 each. In addition, every product bond of an element pair and bond type that is more
+	 * frequent than in the reactant must either be created or change its type, which costs at least 1.0.
+	 * A second limit considers every product atom's neighbourhood: The atom is either unmapped, then all
+	 * its bonds are created, or it is mapped to a reactant atom of the same element, whose bonds to
+	 * neighbours of any element are compared. Every bond that cannot have a counterpart on the other side
+	 * is broken or created, and every bond that cannot keep its type is changed. Half of these penalties
+	 * are assigned to the atom, because every bond has two ends. Choosing the cheapest reactant atom
+	 * for every product atom independently underestimates the penalty of any real mapping.
+	 * The tighter of both limits is returned. Parity inversions only lower the score further.
+	 * @param reactant
+	 * @param product
+	 * @return maximum achievable score (<= 0)
+	 */
+	public static float getMaxScore(StereoMolecule reactant, StereoMolecule product) {
+		// exclude group atoms don't count as bond partners; thus, we cannot tell for fragments
+		if (SCORE_SIMPLE || reactant.isFragment() || product.isFragment())
+			return 0f;
+
+		reactant.ensureHelperArrays(Molecule.cHelperRings);
+		product.ensureHelperArrays(Molecule.cHelperRings);
+
+		// manually mapped atoms are taken as they are, even if their atomic numbers differ
+		if (!haveManualMappingsSameAtomicNo(reactant, product)) {
+			int createdBondCount = product.getBonds() - reactant.getBonds();
+			return (createdBondCount <= 0) ? 0f : -1.69f * createdBondCount;
+			}
+
+		TreeMap<Long,int[]> bondCount = new TreeMap<>();	// reactant minus product bond count per element pair and per element pair with bond type
+		countBonds(reactant, 1, bondCount);
+		countBonds(product, -1, bondCount);
+
+		int createdBondCount = 0;
+		int changedBondCount = 0;
+		for (Long key:bondCount.keySet()) {
+			int count = bondCount.get(key)[0];
+			if (count < 0) {
+				if ((key & 0xFF) == 0xFF)   // element pair only
+					createdBondCount -= count;
+				else
+					changedBondCount -= count;
+				}
+			}
+
+		// Any created bond is also counted in changedBondCount: 1.7*created + 1.0*(changed-created).
+		float bondCountPenalty = 0.7f * createdBondCount + changedBondCount;
+
+		float atomPenalty = getMinimumAtomPenalty(reactant, product);
+
+		// Slightly less than the penalty to stay on the safe side with float rounding of summed up penalties.
+		return -0.99f * Math.max(bondCountPenalty, atomPenalty);
+		}
+
+	/**
+	 * Sums up for every product atom the minimum penalty share it must contribute to any mapping.
+	 * @param reactant
+	 * @param product
+	 * @return lower limit of the penalty of any mapping
+	 */
+	private static float getMinimumAtomPenalty(StereoMolecule reactant, StereoMolecule product) {
+		int[][] reactantNeighbours = getSortedNeighbours(reactant);
+		int[][] productNeighbours = getSortedNeighbours(product);
+
+		float penalty = 0f;
+		for (int pAtom=0; pAtom<product.getAtoms(); pAtom++) {
+			float minPenalty = 0.85f * productNeighbours[pAtom].length;	// unmapped product atom
+			for (int rAtom=0; rAtom<reactant.getAtoms() && minPenalty != 0f; rAtom++)
+				if (reactant.getAtomicNo(rAtom) == product.getAtomicNo(pAtom))
+					minPenalty = Math.min(minPenalty, getAtomPairPenalty(reactantNeighbours[rAtom], productNeighbours[pAtom]));
+			penalty += minPenalty;
+			}
+
+		return penalty;
+		}
+
+	/**
+	 * @param mol
+	 * @return for every atom the sorted neighbours encoded as (neighbour atomicNo << 8) + bond type
+	 */
+	private static int[][] getSortedNeighbours(StereoMolecule mol) {
+		int[][] neighbour = new int[mol.getAtoms()][];
+		for (int atom=0; atom<mol.getAtoms(); atom++) {
+			neighbour[atom] = new int[mol.getConnAtoms(atom)];
+			for (int i=0; i<mol.getConnAtoms(atom); i++)
+				neighbour[atom][i] = (mol.getAtomicNo(mol.getConnAtom(atom, i)) << 8) + getBondType(mol, mol.getConnBond(atom, i));
+			Arrays.sort(neighbour[atom]);
+			}
+		return neighbour;
+		}
+
+	/**
+	 * Calculates the half penalty of all bonds that must be broken, created or changed
+	 * at a product atom, if the product atom is mapped to the given reactant atom.
+	 * @param rNeighbour sorted neighbours of reactant atom
+	 * @param pNeighbour sorted neighbours of product atom
+	 * @return
+	 */
+	private static float getAtomPairPenalty(int[] rNeighbour, int[] pNeighbour) {
+		float penalty = 0f;
+		int r = 0;
+		int p = 0;
+		while (r < rNeighbour.length || p < pNeighbour.length) {
+			int atomicNo = Math.min(r < rNeighbour.length ? rNeighbour[r] >> 8 : Integer.MAX_VALUE,
+									p < pNeighbour.length ? pNeighbour[p] >> 8 : Integer.MAX_VALUE);
+			int rCount = 0;
+			int pCount = 0;
+			int sameTypeCount = 0;
+			while (r < rNeighbour.length && rNeighbour[r] >> 8 == atomicNo
+				|| p < pNeighbour.length && pNeighbour[p] >> 8 == atomicNo) {
+				if (r < rNeighbour.length && p < pNeighbour.length && rNeighbour[r] == pNeighbour[p]) {
+					sameTypeCount++;
+					rCount++;
+					pCount++;
+					r++;
+					p++;
+					}
+				else if (p == pNeighbour.length || pNeighbour[p] >> 8 != atomicNo
+					  || (r < rNeighbour.length && rNeighbour[r] >> 8 == atomicNo && rNeighbour[r] < pNeighbour[p])) {
+					rCount++;
+					r++;
+					}
+				else {
+					pCount++;
+					p++;
+					}
+				}
+
+			int createdOrBroken = Math.abs(pCount - rCount);
+			int changed = Math.min(pCount, rCount) - sameTypeCount;
+			penalty += 0.85f * createdOrBroken + 0.5f * changed;
+			}
+		return penalty;
+		}
+
+	/**
+	 * Adds (or subtracts) the number of bonds per element pair and per element pair and bond type.
+	 * @param mol
+	 * @param increment 1 or -1
+	 * @param bondCount map from pair key to count balance
+	 */
+	private static void countBonds(StereoMolecule mol, int increment, TreeMap<Long,int[]> bondCount) {
+		for (int bond=0; bond<mol.getBonds(); bond++) {
+			long atomicNo1 = mol.getAtomicNo(mol.getBondAtom(0, bond));
+			long atomicNo2 = mol.getAtomicNo(mol.getBondAtom(1, bond));
+			long pairKey = (Math.min(atomicNo1, atomicNo2) << 24) + (Math.max(atomicNo1, atomicNo2) << 8);
+			addCount(bondCount, pairKey + 0xFF, increment);
+			addCount(bondCount, pairKey + getBondType(mol, bond), increment);
+			}
+		}
+
+	private static void addCount(TreeMap<Long,int[]> bondCount, long key, int increment) {
+		int[] count = bondCount.get(key);
+		if (count == null) {
+			count = new int[1];
+			bondCount.put(key, count);
+			}
+		count[0] += increment;
+		}
+
+	private static boolean haveManualMappingsSameAtomicNo(StereoMolecule reactant, StereoMolecule product) {
+		int[] mapNoToAtomicNo = null;
+		for (int atom=0; atom<reactant.getAtoms(); atom++) {
+			int mapNo = reactant.getAtomMapNo(atom);
+			if (mapNo != 0 && !reactant.isAutoMappedAtom(atom)) {
+				if (mapNoToAtomicNo == null || mapNoToAtomicNo.length <= mapNo)
+					mapNoToAtomicNo = (mapNoToAtomicNo == null) ? new int[mapNo+1] : Arrays.copyOf(mapNoToAtomicNo, mapNo+1);
+				mapNoToAtomicNo[mapNo] = reactant.getAtomicNo(atom);
+				}
+			}
+		if (mapNoToAtomicNo == null)
+			return true;
+
+		for (int atom=0; atom<product.getAtoms(); atom++) {
+			int mapNo = product.getAtomMapNo(atom);
+			if (mapNo != 0 && !product.isAutoMappedAtom(atom)
+			 && mapNo < mapNoToAtomicNo.length && mapNoToAtomicNo[mapNo] != 0
+			 && mapNoToAtomicNo[mapNo] != product.getAtomicNo(atom))
+				return false;
+			}
+		return true;
+		}
+
 	public int[] createReactantToProductAtomMap(int[] reactantMapNo, int[] productMapNo) {
 		int[] mapNoToProductAtom = new int[mReactant.getAtoms()+1];
 		Arrays.fill(mapNoToProductAtom, -1);
@@ -222,7 +409,7 @@ public class MappingScorer {
 		return mol. isDelocalizedBond(bond) ? 1.5f : mol.getBondOrder(bond);
 		}
 
-	private int getBondType(StereoMolecule mol, int bond) {
+	private static int getBondType(StereoMolecule mol, int bond) {
 		if (mol.isDelocalizedBond(bond))
 			return 0;
 		return mol.getBondTypeSimple(bond);
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 1997 - 2016
+ * Actelion Pharmaceuticals Ltd.
+ * Gewerbestrasse 16
+ * CH-4123 Allschwil, Switzerland
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the the copyright holder nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.actelion.research.util.hash;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Hash map with primitive long keys and long values, which is stored outside of the Java heap
+ * in an OffHeapMemory. Entries use open addressing with linear probing and take 16 bytes each.
+ * Thus, hundreds of millions of entries can be held without burdening the garbage collector.
+ * If a directory is given, then the table is kept in a memory mapped file in that directory,
+ * which allows tables larger than main memory. Entries cannot be removed.
+ * Instances are not thread-safe.
+ */
+public class OffHeapLongHashMap implements Closeable {
+	public static final long NO_VALUE = Long.MIN_VALUE;
+
+	private static final int ENTRY_SIZE = 16;
+	private static final int MINIMUM_CAPACITY = 1 << 10;
+	private static final float LOAD_FACTOR = 0.7f;
+
+	private final File directory;
+	private OffHeapMemory memory;
+	private File file;
+	private long capacity,threshold,size,zeroKeyValue;
+
+	/**
+	 * @param expectedSize number of entries that can be put without rehashing
+	 * @param directory null to use direct memory; otherwise directory for a temporary file holding the table
+	 */
+	public OffHeapLongHashMap(long expectedSize, File directory) {
+		this.directory = directory;
+		zeroKeyValue = NO_VALUE;
+		long capacity = MINIMUM_CAPACITY;
+		while (capacity * LOAD_FACTOR < expectedSize)
+			capacity <<= 1;
+		allocate(capacity);
+	}
+
+	private void allocate(long capacity) {
+		try {
+			file = (directory == null) ? null : File.createTempFile("hashmap", ".tmp", directory);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		memory = new OffHeapMemory(file);
+		memory.ensureCapacity(capacity * ENTRY_SIZE);
+		this.capacity = capacity;
+		threshold = (long)(capacity * LOAD_FACTOR);
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @param key
+	 * @return value associated with key or NO_VALUE
+	 */
+	public long get(long key) {
+		if (key == 0)
+			return zeroKeyValue;
+
+		long mask = capacity - 1;
+		for (long slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+			long position = slot * ENTRY_SIZE;
+			long k = memory.getLong(position);
+			if (k == key)
+				return memory.getLong(position + 8);
+			if (k == 0)
+				return NO_VALUE;
+		}
+	}
+
+	/**
+	 * Associates value with key, if key is not yet contained in the map.
+	 * @param key
+	 * @param value any value except NO_VALUE
+	 * @return the value already associated with key or NO_VALUE, if value was added
+	 */
+	public long putIfAbsent(long key, long value) {
+		if (key == 0) {
+			long old = zeroKeyValue;
+			if (old == NO_VALUE) {
+				zeroKeyValue = value;
+				size++;
+			}
+			return old;
+		}
+
+		long mask = capacity - 1;
+		for (long slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+			long position = slot * ENTRY_SIZE;
+			long k = memory.getLong(position);
+			if (k == key)
+				return memory.getLong(position + 8);
+			if (k == 0) {
+				memory.putLong(position, key);
+				memory.putLong(position + 8, value);
+				if (++size > threshold)
+					rehash();
+				return NO_VALUE;
+			}
+		}
+	}
+
+	private void rehash() {
+		OffHeapMemory oldMemory = memory;
+		long oldCapacity = capacity;
+		allocate(2 * capacity);
+
+		long mask = capacity - 1;
+		for (long oldSlot=0; oldSlot<oldCapacity; oldSlot++) {
+			long key = oldMemory.getLong(oldSlot * ENTRY_SIZE);
+			if (key != 0) {
+				long slot = mix(key) & mask;
+				while (memory.getLong(slot * ENTRY_SIZE) != 0)
+					slot = (slot + 1) & mask;
+				memory.putLong(slot * ENTRY_SIZE, key);
+				memory.putLong(slot * ENTRY_SIZE + 8, oldMemory.getLong(oldSlot * ENTRY_SIZE + 8));
+			}
+		}
+
+		oldMemory.close();
+	}
+
+	/**
+	 * Spreads the key bits, because keys may not be uniformly distributed in the lower bits.
+	 */
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xFF51AFD7ED558CCDL;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	/**
+	 * Releases the memory and deletes the temporary file, if any.
+	 */
+	@Override
+	public void close() {
+		memory.close();
+		size = 0;
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 1997 - 2016
+ * Actelion Pharmaceuticals Ltd.
+ * Gewerbestrasse 16
+ * CH-4123 Allschwil, Switzerland
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 3. Neither the name of the the copyright holder nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.actelion.research.util.hash;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Growable memory outside of the Java heap, which is addressed by long positions and may
+ * therefore exceed 2 GB. The memory consists of equally sized segments, which are either
+ * direct ByteBuffers or, if a file is given, memory mapped regions of that file. In the latter
+ * case the operating system pages the data to disk as needed, which allows storing much more
+ * data than fits into main memory. The file is deleted when the memory is closed.
+ * Direct ByteBuffers are limited by the JVM option -XX:MaxDirectMemorySize.
+ * Instances are not thread-safe.
+ */
+public class OffHeapMemory implements Closeable {
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private final File file;
+	private RandomAccessFile raf;
+	private ByteBuffer[] segment;
+	private long capacity;
+
+	/**
+	 * @param file null to allocate direct memory; otherwise the file to be mapped, which is created or overwritten
+	 */
+	public OffHeapMemory(File file) {
+		this.file = file;
+		segment = new ByteBuffer[0];
+		if (file != null) {
+			try {
+				raf = new RandomAccessFile(file, "rw");
+				raf.setLength(0);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * @return number of bytes currently addressable
+	 */
+	public long capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Grows the memory such that at least the given number of bytes are addressable.
+	 * Newly allocated memory is zero.
+	 * @param size
+	 */
+	public void ensureCapacity(long size) {
+		if (size <= capacity)
+			return;
+
+		int segments = (int)((size + SEGMENT_MASK) >>> SEGMENT_BITS);
+		int lastSegmentSize = (segments == 1) ? (int)Math.max(size, Math.min(SEGMENT_SIZE, 2 * capacity)) : (int)SEGMENT_SIZE;
+		lastSegmentSize = (lastSegmentSize + 7) & ~7;
+
+		try {
+			ByteBuffer[] newSegment = Arrays.copyOf(segment, segments);
+			for (int i=0; i<segments; i++) {
+				int segmentSize = (i == segments-1) ? lastSegmentSize : (int)SEGMENT_SIZE;
+				if (newSegment[i] == null || newSegment[i].capacity() < segmentSize) {
+					ByteBuffer buffer = allocate((long)i << SEGMENT_BITS, segmentSize);
+					if (newSegment[i] != null && raf == null) {	// mapped regions of the file contain the data already
+						ByteBuffer old = newSegment[i].duplicate();
+						old.clear();
+						buffer.put(old);
+						buffer.clear();
+					}
+					newSegment[i] = buffer;
+				}
+			}
+			segment = newSegment;
+			capacity = ((long)(segments-1) << SEGMENT_BITS) + segment[segments-1].capacity();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private ByteBuffer allocate(long position, int size) throws IOException {
+		ByteBuffer buffer = (raf == null) ? ByteBuffer.allocateDirect(size)
+				: raf.getChannel().map(FileChannel.MapMode.READ_WRITE, position, size);
+		return buffer.order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * @param position must be a multiple of 8
+	 */
+	public long getLong(long position) {
+		return segment[(int)(position >>> SEGMENT_BITS)].getLong((int)(position & SEGMENT_MASK));
+	}
+
+	/**
+	 * @param position must be a multiple of 8
+	 */
+	public void putLong(long position, long value) {
+		segment[(int)(position >>> SEGMENT_BITS)].putLong((int)(position & SEGMENT_MASK), value);
+	}
+
+	/**
+	 * @param position must be a multiple of 4
+	 */
+	public int getInt(long position) {
+		return segment[(int)(position >>> SEGMENT_BITS)].getInt((int)(position & SEGMENT_MASK));
+	}
+
+	/**
+	 * @param position must be a multiple of 4
+	 */
+	public void putInt(long position, int value) {
+		segment[(int)(position >>> SEGMENT_BITS)].putInt((int)(position & SEGMENT_MASK), value);
+	}
+
+	public byte get(long position) {
+		return segment[(int)(position >>> SEGMENT_BITS)].get((int)(position & SEGMENT_MASK));
+	}
+
+	/**
+	 * Copies bytes from this memory into the array.
+	 */
+	public void get(long position, byte[] dst, int offset, int length) {
+		while (length != 0) {
+			ByteBuffer buffer = segment[(int)(position >>> SEGMENT_BITS)].duplicate();
+			buffer.position((int)(position & SEGMENT_MASK));
+			int count = Math.min(length, buffer.remaining());
+			buffer.get(dst, offset, count);
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Copies bytes from the array into this memory.
+	 */
+	public void put(long position, byte[] src, int offset, int length) {
+		while (length != 0) {
+			ByteBuffer buffer = segment[(int)(position >>> SEGMENT_BITS)].duplicate();
+			buffer.position((int)(position & SEGMENT_MASK));
+			int count = Math.min(length, buffer.remaining());
+			buffer.put(src, offset, count);
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Releases all segments and deletes the file, if memory was mapped.
+	 * Any further access to this memory causes an exception.
+	 */
+	@Override
+	public void close() {
+		segment = new ByteBuffer[0];
+		capacity = 0;
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				raf = null;
+				file.delete();
+			}
+		}
+	}
+}
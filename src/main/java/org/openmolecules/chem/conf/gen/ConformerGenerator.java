@@ -40,9 +40,15 @@ import com.actelion.research.util.IntArrayComparator;
 import org.openmolecules.chem.conf.so.ConformationSelfOrganizer;
 import org.openmolecules.chem.conf.so.SelfOrganizedConformer;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This class generates 3D-conformers of a given molecule using the following strategy:
@@ -65,7 +71,11 @@ import java.util.TreeMap;
  * one of them. If half of a set of stereo isomers consists of the enantiomers of the other half, then it is advisable
  * to generate conformes for one half only and to generate the second half by just mirroring the first halfs coordinates.
  * To do that use option skipEnantiomers==true create a mirrored set of conformers, if isSkippingEnantiomers() of the
- * StereoIsomerEnumerator returns true.
+ * StereoIsomerEnumerator returns true.<br>
+ * For speeding up the conformer generation of one single molecule on multi-core machines, setThreadCount() lets
+ * the ConformerGenerator request batches of torsion sets from the TorsionSetStrategy, whose conformers are then
+ * built and checked for collisions by multiple threads. Results are reported back to the strategy in the original
+ * order. Thus, conformers are still reproducible, if a random seed is given.
  */
 public class ConformerGenerator {
 	public static final int STRATEGY_LIKELY_SYSTEMATIC = 1;
@@ -83,6 +93,8 @@ public class ConformerGenerator {
 	// We try to translate arbitrary collision values into a kcal/mol energy scale
 	public static final double COLLISION_STRAIN_TO_ENERGY_FACTOR = 20;
 
+	private static final int TORSION_SETS_PER_THREAD = 2;	// batch size factor in multi-threaded mode
+
 	private StereoMolecule mMolecule;
 	private TreeMap<int[],BaseConformer> mBaseConformerMap;
 	private RotatableBond[] mRotatableBond;
@@ -100,6 +112,9 @@ public class ConformerGenerator {
 	private final Random mRandom;
 	private ThreadMaster mThreadMaster;
 	private ConformerSetDiagnostics mDiagnostics;
+	private int mThreadCount;
+	private ExecutorService mExecutor;
+	private ArrayDeque<TorsionSet> mPendingTorsionSets;
 
 	/**
 	 * Assuming that the given molecule has 2D-coordinates, this method
@@ -300,6 +315,44 @@ public class ConformerGenerator {
 		return mDiagnostics;
 	}
 
+	/**
+	 * By default, conformers of one molecule are generated in the calling thread only.
+	 * If a thread count other than 1 is defined, then getNextConformer() requests batches of
+	 * torsion sets from the TorsionSetStrategy, derives their conformers, checks them for collisions
+	 * and tries to fix collisions using multiple threads. Torsion sets of a batch are returned
+	 * and reported back to the strategy in the order they were created. Therefore, conformers
+	 * are reproducible, if a seed was given and the thread count isn't changed. Since the batch
+	 * size depends on the thread count, other thread counts may produce different conformers.
+	 * In diagnostic mode conformers are always generated by the calling thread.
+	 * This ConformerGenerator's threads are daemon threads, which are terminated when
+	 * the thread count is changed again or when shutdown() is called.
+	 * @param threadCount 1 for single threaded mode; 0 to use all available processors
+	 */
+	public void setThreadCount(int threadCount) {
+		if (threadCount == 0)
+			threadCount = Runtime.getRuntime().availableProcessors();
+
+		if (threadCount != mThreadCount) {
+			shutdown();
+			mThreadCount = threadCount;
+			}
+	}
+
+	/**
+	 * Terminates the threads used to generate conformers in multi-threaded mode, if any.
+	 * A subsequent call of getNextConformer() would start new threads again.
+	 */
+	public void shutdown() {
+		if (mExecutor != null) {
+			mExecutor.shutdownNow();
+			mExecutor = null;
+			}
+	}
+
+	private boolean isMultiThreaded() {
+		return mThreadCount > 1 && !mIsDiagnosticsMode;
+	}
+
 	/**
 	 * If the conformer generation shall be stopped after a certain time
 	 * of unsuccessfully trying generating conformers, then set a timeout.
@@ -439,6 +492,7 @@ public class ConformerGenerator {
 		mReturnedConformerCount = 0;
 		mTorsionSet = null;
 		mRotatableBond = null;
+		mPendingTorsionSets = null;
 
 		// check, whether we have disconnected fragments
 		mDisconnectedFragmentNo = new int[mol.getAllAtoms()];
@@ -560,6 +614,9 @@ public class ConformerGenerator {
 		if (mBaseConformerMap.isEmpty())
 			getBaseConformer(new int[mRigidFragment.length]);
 
+		if (isMultiThreaded())
+			return getNextConformerSMP(torsionSetHolder);
+
 		mTorsionSet = mTorsionSetStrategy.getNextTorsionSet(mTorsionSet, mDiagnostics);
 		while (mTorsionSet != null && !mustStop()) {
 			BaseConformer baseConformer = getBaseConformer(mTorsionSet.getConformerIndexes());
@@ -639,6 +696,128 @@ public class ConformerGenerator {
 		return null;
 		}
 
+	/**
+	 * Multi-threaded variant of getNextConformer(), which takes evaluated torsion sets
+	 * from a batch, which is refilled whenever all torsion sets have been consumed.
+	 * @param torsionSetHolder
+	 * @return conformer or null, if all/maximum torsion permutations have been tried
+	 */
+	private Conformer getNextConformerSMP(TorsionSet[] torsionSetHolder) {
+		if (mPendingTorsionSets == null)
+			mPendingTorsionSets = new ArrayDeque<>();
+
+		while (!mustStop()) {
+			if (mPendingTorsionSets.isEmpty() && !evaluateTorsionSetBatch())
+				break;
+
+			mTorsionSet = mPendingTorsionSets.poll();
+			if (mTorsionSet.getCollisionStrainSum() > mTorsionSetStrategy.calculateCollisionTolerance()) {
+				mTorsionSetStrategy.reportTorsionSet(mTorsionSet, null);
+				continue;
+				}
+
+			mTorsionSet.setUsed();
+			mTorsionSetStrategy.reportTorsionSet(mTorsionSet, null);
+			separateDisconnectedFragments(mTorsionSet.getConformer());
+			mReturnedConformerCount++;
+
+			if (torsionSetHolder != null)
+				torsionSetHolder[0] = new TorsionSet(mTorsionSet);
+
+			return mTorsionSet.getConformer();
+			}
+
+		if (mustStop() || mReturnedConformerCount != 0)
+			return null;
+
+		if (mUseSelfOrganizerIfAllFails) {
+			// We couldn't create torsion strategy based conformers: switch to self organizer!
+			mSelfOrganizer = new ConformationSelfOrganizer(mMolecule, true);
+			mSelfOrganizer.setThreadMaster(mThreadMaster);
+			mSelfOrganizer.setStopTime(mStopMillis);
+			mSelfOrganizer.initializeConformers(mRandomSeed, -1);
+			SelfOrganizedConformer conformer = mSelfOrganizer.getNextConformer();
+			if (conformer != null) {
+				separateDisconnectedFragments(conformer);
+				mReturnedConformerCount++;
+				conformer.setName("SO#"+(++mAllConformerCount));
+				return conformer;
+				}
+			}
+
+		// we didn't get any torsion set that didn't collide; take the best we had
+		mTorsionSet = mTorsionSetStrategy.getBestCollidingTorsionIndexes();
+		mIsFinished = true;
+
+		if (mTorsionSet == null)
+			return null;
+
+		separateDisconnectedFragments(mTorsionSet.getConformer());
+		mTorsionSet.setUsed();
+		mReturnedConformerCount++;
+
+		if (torsionSetHolder != null)
+			torsionSetHolder[0] = new TorsionSet(mTorsionSet);
+
+		return mTorsionSet.getConformer();
+		}
+
+	/**
+	 * Requests the next batch of torsion sets from the strategy and builds their conformers.
+	 * Base conformers are created in this thread, because they depend on the random generator.
+	 * Then collision strains are calculated and collisions are fixed, if possible, in parallel.
+	 * @return false, if the strategy didn't deliver any more torsion sets
+	 */
+	private boolean evaluateTorsionSetBatch() {
+		ArrayList<TorsionSet> batch = mTorsionSetStrategy.getNextTorsionSets(TORSION_SETS_PER_THREAD*mThreadCount, null);
+		ArrayList<BaseConformer> baseConformers = new ArrayList<>();
+		for (TorsionSet torsionSet:batch) {
+			BaseConformer baseConformer = getBaseConformer(torsionSet.getConformerIndexes());
+			if (torsionSet.getConformer() == null)
+				torsionSet.setConformer(baseConformer.deriveConformer(torsionSet.getTorsionIndexes(), "#" + (++mAllConformerCount)));
+			baseConformers.add(baseConformer);
+			}
+
+		if (batch.isEmpty())
+			return false;
+
+		if (mExecutor == null)
+			mExecutor = Executors.newFixedThreadPool(mThreadCount, r -> {
+				Thread t = new Thread(r, "ConformerGenerator");
+				t.setDaemon(true);
+				return t;
+				} );
+
+		ArrayList<Future<?>> futures = new ArrayList<>();
+		for (int i=0; i<batch.size(); i++) {
+			TorsionSet torsionSet = batch.get(i);
+			BaseConformer baseConformer = baseConformers.get(i);
+
+			// Second choice torsion sets have a collision value below the tolerance. No need to check or fix again.
+			if (torsionSet.getCollisionStrainSum() == 0.0)
+				futures.add(mExecutor.submit(() -> {
+					calculateCollision(torsionSet, torsionSet.getConformer());
+					if (torsionSet.getCollisionStrainSum() != 0.0)
+						tryFixCollisions(baseConformer, torsionSet);
+					} ));
+			}
+
+		try {
+			for (Future<?> future:futures)
+				future.get();
+			}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+			}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+			}
+
+		mPendingTorsionSets.addAll(batch);
+		return true;
+		}
+
 /*private void printDebugConformers(BaseConformer bc) {
  int degreesA = bc.getBondTorsion(mRotatableBond[0].getBond());
  int degreesB = bc.getBondTorsion(mRotatableBond[1].getBond());
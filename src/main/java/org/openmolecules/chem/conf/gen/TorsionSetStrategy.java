@@ -88,7 +88,7 @@ public abstract class TorsionSetStrategy {
 	private UniqueList<TorsionSet> mTorsionSetList;
 	private SortedList<TorsionSet> mSecondChoiceList;
 	private SortedList<TorsionSetWithEliminationRuleStrain> mStrainedTorsionSetCache;
-	private TorsionSet mBestUnacceptableTorsionSet;
+	private TorsionSet mBestUnacceptableTorsionSet,mLastReportedTorsionSet;
 
 	public TorsionSetStrategy(ConformerGenerator conformerGenerator) {
 		mConformerGenerator = conformerGenerator;
@@ -226,14 +226,8 @@ public abstract class TorsionSetStrategy {
 	 * @return torsion index set that adheres to already known collision rules
 	 */
 	public final TorsionSet getNextTorsionSet(TorsionSet previousTorsionSet, ConformerSetDiagnostics diagnostics) {
-		if (previousTorsionSet != null && previousTorsionSet.isUsed())
-			mSuccessCount++;
-
-		// Some molecules have unavoidable internal strains,
-		// which we try to determine until we start returning second choices.
-		if (previousTorsionSet != null
-		 && mLowestCollisionStrain > previousTorsionSet.getCollisionStrainSum())
-			mLowestCollisionStrain = previousTorsionSet.getCollisionStrainSum();
+		if (previousTorsionSet != null)
+			registerOutcome(previousTorsionSet);
 
 		// If we switched to second choices then return second choices until no one is left.
 		if (mUsingSecondChoices)
@@ -249,29 +243,62 @@ public abstract class TorsionSetStrategy {
 		// - Learn from the collisions of the previous torsion set, if the strain is high enough to potentially be a problem later.
 		// - If collision is tolerable, keep the torsion set among second choices for later
 		if (previousTorsionSet != null
-		 && previousTorsionSet.getCollisionStrainSum() > SECOND_CHOICE_TOLERANCE) {
+		 && previousTorsionSet.getCollisionStrainSum() > SECOND_CHOICE_TOLERANCE)
+			learnFromCollisions(previousTorsionSet, diagnostics);
 
-			BaseConformer baseConformer = (diagnostics != null) ? mConformerGenerator.getBaseConformer(previousTorsionSet.getConformerIndexes()) : null;
-			ArrayList<TorsionSetEliminationRule> eliminationRules = (diagnostics != null) ? baseConformer.getEliminationRules() : null;
-			int elimRuleCount = (diagnostics == null) ? 0 : eliminationRules.size();
-
-			processCollisions(previousTorsionSet);
+		return createNextTorsionSet(previousTorsionSet, diagnostics);
+		}
 
-			if (diagnostics != null)
-				for (int i=elimRuleCount; i<eliminationRules.size(); i++)
-					diagnostics.get(previousTorsionSet).addEliminationRule(mTorsionSetEncoder.createRuleString(eliminationRules.get(i), baseConformer));
-
-			if (!previousTorsionSet.isUsed()) {
-				if (previousTorsionSet.getCollisionStrainSum() <MAX_COLLISION_STRAIN)
-					mSecondChoiceList.add(previousTorsionSet);
-				else if (mBestUnacceptableTorsionSet == null
-					  || mBestUnacceptableTorsionSet.getCollisionStrainSum() > previousTorsionSet.getCollisionStrainSum())
-					mBestUnacceptableTorsionSet = previousTorsionSet;
+	/**
+	 * Creates multiple new torsion sets without knowing the collisions of the preceding ones.
+	 * This is needed, if the ConformerGenerator evaluates a batch of torsion sets in multiple threads.
+	 * Like getNextTorsionSet() this considers the collision rules known so far and never returns
+	 * a torsion set twice. The strategy implementation is guided by the most recently reported
+	 * torsion set, which lets adaptive strategies learn from the previous batch. All torsion sets
+	 * returned must be reported with reportTorsionSet() in the order they were delivered,
+	 * before this method is called again.
+	 * @param count maximum number of torsion sets to be created
+	 * @param diagnostics
+	 * @return up to count new torsion sets; empty list, if no further torsion set exists
+	 */
+	public ArrayList<TorsionSet> getNextTorsionSets(int count, ConformerSetDiagnostics diagnostics) {
+		ArrayList<TorsionSet> torsionSetList = new ArrayList<>();
+		TorsionSet guideTorsionSet = mLastReportedTorsionSet;
+		while (torsionSetList.size() < count) {
+			TorsionSet ts;
+			if (mUsingSecondChoices) {
+				ts = getBestSecondChoice();
+				}
+			else if (mTorsionSetList.size() == mMaxTotalCount) {
+				if (diagnostics != null)
+					diagnostics.setExitReason("maxTotal(" + mMaxTotalCount + ") reached A; collisions:" + mCollisionCount);
+				ts = null;
+				}
+			else {
+				ts = createNextTorsionSet(guideTorsionSet, diagnostics);
 				}
 
-			mCollisionCount++;
+			if (ts == null)
+				break;
+
+			torsionSetList.add(ts);
+
+			// Only the very first torsion set is created without guide, which may be the most probable one.
+			if (guideTorsionSet == null)
+				guideTorsionSet = ts;
 			}
 
+		return torsionSetList;
+		}
+
+	/**
+	 * Creates a new torsion set, which adheres to the known collision rules, from the strategy implementation
+	 * or switches to second choices, if the strategy doesn't deliver any more torsion sets.
+	 * @param previousTorsionSet torsion set passed to the strategy implementation
+	 * @param diagnostics
+	 * @return new torsion set or null
+	 */
+	private TorsionSet createNextTorsionSet(TorsionSet previousTorsionSet, ConformerSetDiagnostics diagnostics) {
 		double tolerance = calculateCollisionTolerance();
 
 		// Calculate a tolerable collision threshold that increases with the number of returned torsion sets.
@@ -339,6 +366,63 @@ public abstract class TorsionSetStrategy {
 		return ts;
 		}
 
+	/**
+	 * Reports the outcome of a torsion set, which was obtained from getNextTorsionSet(),
+	 * without requesting a new one. This is needed, if multiple torsion sets are requested
+	 * before their collisions are known, i.e. if the ConformerGenerator evaluates a batch of
+	 * torsion sets from getNextTorsionSets() in multiple threads. Then all torsion sets must be
+	 * reported with this method in the same order they were delivered.
+	 * Collision strains must have been calculated before.
+	 * @param torsionSet torsion set with calculated collision strain; may have been flagged as used
+	 * @param diagnostics null or diagnostics object to record elimination rules
+	 */
+	public void reportTorsionSet(TorsionSet torsionSet, ConformerSetDiagnostics diagnostics) {
+		registerOutcome(torsionSet);
+		mLastReportedTorsionSet = torsionSet;
+
+		if (!mUsingSecondChoices
+		 && torsionSet.getCollisionStrainSum() > SECOND_CHOICE_TOLERANCE)
+			learnFromCollisions(torsionSet, diagnostics);
+		}
+
+	private void registerOutcome(TorsionSet torsionSet) {
+		if (torsionSet.isUsed())
+			mSuccessCount++;
+
+		// Some molecules have unavoidable internal strains,
+		// which we try to determine until we start returning second choices.
+		if (mLowestCollisionStrain > torsionSet.getCollisionStrainSum())
+			mLowestCollisionStrain = torsionSet.getCollisionStrainSum();
+		}
+
+	/**
+	 * Derives elimination rules from the collisions of the given torsion set and keeps it
+	 * as second choice, if its strain is tolerable and it was not used to build a conformer.
+	 * @param torsionSet
+	 * @param diagnostics
+	 */
+	private void learnFromCollisions(TorsionSet torsionSet, ConformerSetDiagnostics diagnostics) {
+		BaseConformer baseConformer = (diagnostics != null) ? mConformerGenerator.getBaseConformer(torsionSet.getConformerIndexes()) : null;
+		ArrayList<TorsionSetEliminationRule> eliminationRules = (diagnostics != null) ? baseConformer.getEliminationRules() : null;
+		int elimRuleCount = (diagnostics == null) ? 0 : eliminationRules.size();
+
+		processCollisions(torsionSet);
+
+		if (diagnostics != null)
+			for (int i=elimRuleCount; i<eliminationRules.size(); i++)
+				diagnostics.get(torsionSet).addEliminationRule(mTorsionSetEncoder.createRuleString(eliminationRules.get(i), baseConformer));
+
+		if (!torsionSet.isUsed()) {
+			if (torsionSet.getCollisionStrainSum() <MAX_COLLISION_STRAIN)
+				mSecondChoiceList.add(torsionSet);
+			else if (mBestUnacceptableTorsionSet == null
+				  || mBestUnacceptableTorsionSet.getCollisionStrainSum() > torsionSet.getCollisionStrainSum())
+				mBestUnacceptableTorsionSet = torsionSet;
+			}
+
+		mCollisionCount++;
+		}
+
 	/**
 	 * If we have an earlier created unused torsion set in the cache, return that.
 	 * Otherwise creates a new torsion set using the strategy implementation.
@@ -0,0 +1,85 @@
+package com.actelion.research.chem;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CanonizerTest {
+	private static final int[] MODES = {
+			0,
+			Canonizer.ENCODE_ATOM_CUSTOM_LABELS | Canonizer.ENCODE_ATOM_SELECTION,
+			Canonizer.COORDS_ARE_3D
+	};
+
+	/**
+	 * A Canonizer reused via reset() for alternating large and small molecules, stereo and ESR
+	 * features and query fragments must produce the same results as a new Canonizer per molecule.
+	 */
+	@Test
+	public void testResetEqualsNewCanonizer() throws Exception {
+		List<StereoMolecule> molList = createMolecules();
+		for (int mode : MODES) {
+			Canonizer reused = null;
+			for (int round=0; round<2; round++) {
+				for (StereoMolecule mol : molList) {
+					if (reused == null)
+						reused = new Canonizer(new StereoMolecule(mol), mode);
+					else
+						reused.reset(new StereoMolecule(mol));
+					Canonizer fresh = new Canonizer(new StereoMolecule(mol), mode);
+
+					String message = "mode " + mode + ": " + fresh.getIDCode();
+					assertEquals(message, fresh.getIDCode(), reused.getIDCode());
+					assertEquals(message, fresh.getEncodedCoordinates(), reused.getEncodedCoordinates());
+					assertArrayEquals(message, fresh.getFinalRank(), reused.getFinalRank());
+					assertArrayEquals(message, fresh.getIDCodeBytes(), reused.getIDCodeBytes());
+				}
+			}
+		}
+	}
+
+	private static List<StereoMolecule> createMolecules() throws Exception {
+		StringBuilder large = new StringBuilder("OC(=O)");
+		for (int i=0; i<12; i++)
+			large.append(i % 2 == 0 ? "[C@@H](C)NC(=O)c1ccc(cc1)" : "[C@H](CC(C)C)NC(=O)c1ccncc1");
+		large.append("C/C=C/C");
+
+		List<StereoMolecule> molList = new ArrayList<>();
+		SmilesParser parser = new SmilesParser();
+		molList.add(parser.parseMolecule(large.toString()));
+		molList.add(parser.parseMolecule("CCO"));
+		molList.add(parser.parseMolecule("C[C@H]1CC[C@@H](C)CC1"));
+		molList.add(parser.parseMolecule("[Na+].[O-]C(=O)c1ccccc1"));
+
+		// two stereo centers in one AND group, one in an OR group
+		StereoMolecule esr = parser.parseMolecule("C[C@H](O)[C@@H](N)C[C@H](Cl)CC");
+		esr.ensureHelperArrays(Molecule.cHelperParities);
+		int group = 0;
+		for (int atom=0; atom<esr.getAtoms(); atom++) {
+			if (esr.isAtomStereoCenter(atom)) {
+				esr.setAtomESR(atom, group < 2 ? Molecule.cESRTypeAnd : Molecule.cESRTypeOr, 0);
+				group++;
+			}
+		}
+		molList.add(esr);
+		molList.add(parser.parseMolecule("C"));
+
+		// query fragment with atom list, atom and bond query features, custom label and selection
+		StereoMolecule query = parser.parseMolecule("c1ccccc1CC(=O)N");
+		query.setFragment(true);
+		query.setAtomList(query.getAllAtoms()-1, new int[] { 7, 8 });
+		query.setAtomQueryFeature(0, Molecule.cAtomQFNoMoreNeighbours, true);
+		query.setBondQueryFeature(6, Molecule.cBondTypeDouble | Molecule.cBondQFNotRing, true);
+		query.setAtomCustomLabel(7, "X");
+		query.setAtomSelection(8, true);
+		molList.add(query);
+
+		molList.add(molList.get(0));
+		molList.add(parser.parseMolecule("N[C@@H](C)C(=O)O"));
+		return molList;
+	}
+}
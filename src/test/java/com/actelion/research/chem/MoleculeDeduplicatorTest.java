@@ -0,0 +1,95 @@
+package com.actelion.research.chem;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class MoleculeDeduplicatorTest {
+	private static final String[] SMILES = {
+			"N[C@@H](C)C(=O)O.Cl",
+			"N[C@H](C)C(=O)O.Cl",
+			"C/C=C/C",
+			"C/C=C\\C",
+			"OC(=O)[C@@H]1CCCN1",
+			"OC(=O)[C@H]1CCCN1",
+			"CCO",
+			"OCC"
+	};
+
+	private static final CanonizerUtil.IDCODE_TYPE[] TYPES = {
+			CanonizerUtil.IDCODE_TYPE.NORMAL,
+			CanonizerUtil.IDCODE_TYPE.NOSTEREO,
+			CanonizerUtil.IDCODE_TYPE.TAUTOMER
+	};
+
+	@Test
+	public void testMoleculeAndIDCodeInputAgree() throws Exception {
+		List<StereoMolecule> molList = new ArrayList<>();
+		List<String> idcodeList = new ArrayList<>();
+		for (String smiles : SMILES) {
+			StereoMolecule mol = new StereoMolecule();
+			new SmilesParser().parse(mol, smiles);
+			molList.add(mol);
+			idcodeList.add(new Canonizer(mol).getIDCode());
+		}
+
+		for (boolean largestFragmentOnly : new boolean[] { false, true }) {
+			long[][] fromMolecules = new long[TYPES.length][SMILES.length];
+			try (MoleculeDeduplicator deduplicator = new MoleculeDeduplicator(TYPES, largestFragmentOnly, 2)) {
+				deduplicator.process(molList.iterator(), result -> {
+					for (int i=0; i<TYPES.length; i++)
+						fromMolecules[i][(int)result.getIndex()] = result.getFirstIndex(TYPES[i]);
+				});
+			}
+
+			long[][] fromIDCodes = new long[TYPES.length][SMILES.length];
+			try (MoleculeDeduplicator deduplicator = new MoleculeDeduplicator(TYPES, largestFragmentOnly, 2)) {
+				deduplicator.processIDCodes(idcodeList.iterator(), result -> {
+					for (int i=0; i<TYPES.length; i++)
+						fromIDCodes[i][(int)result.getIndex()] = result.getFirstIndex(TYPES[i]);
+				});
+			}
+
+			for (int i=0; i<TYPES.length; i++)
+				assertArrayEquals(TYPES[i].toString(), fromMolecules[i], fromIDCodes[i]);
+
+			// enantiomers must not be duplicates on the NORMAL level
+			assertNotEquals(fromIDCodes[0][0], fromIDCodes[0][1]);
+		}
+	}
+
+	/**
+	 * Idcode input is parsed without coordinates, if no stereo aware level is requested.
+	 * Idcodes must still be the same as the ones from molecule input.
+	 */
+	@Test
+	public void testIDCodeInputWithoutStereoLevels() throws Exception {
+		CanonizerUtil.IDCODE_TYPE[] types = {
+				CanonizerUtil.IDCODE_TYPE.NOSTEREO,
+				CanonizerUtil.IDCODE_TYPE.BACKBONE,
+				CanonizerUtil.IDCODE_TYPE.NOSTEREO_TAUTOMER
+		};
+		List<String> idcodeList = new ArrayList<>();
+		for (String smiles : SMILES)
+			idcodeList.add(new Canonizer(new SmilesParser().parseMolecule(smiles)).getIDCode());
+
+		for (boolean largestFragmentOnly : new boolean[] { false, true }) {
+			String[][] idcodes = new String[SMILES.length][types.length];
+			try (MoleculeDeduplicator deduplicator = new MoleculeDeduplicator(types, largestFragmentOnly, 2)) {
+				deduplicator.processIDCodes(idcodeList.iterator(), result -> {
+					for (int i=0; i<types.length; i++)
+						idcodes[(int)result.getIndex()][i] = result.getIDCode(types[i]);
+				});
+			}
+
+			for (int m=0; m<SMILES.length; m++)
+				for (int i=0; i<types.length; i++)
+					assertEquals(SMILES[m], CanonizerUtil.getIDCode(new SmilesParser().parseMolecule(SMILES[m]), types[i], largestFragmentOnly), idcodes[m][i]);
+		}
+	}
+}
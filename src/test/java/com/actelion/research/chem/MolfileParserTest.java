@@ -0,0 +1,124 @@
+package com.actelion.research.chem;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MolfileParserTest {
+	// atom list, charges, two-letter labels, an alias and coordinates in exponent notation
+	private static final String[] V2000_QUERY = {
+			"",
+			"  -OCL-  09302413352D",
+			"",
+			"  7  6  0  0  0  0  0  0  0  0999 V2000",
+			"    0.0000    0.0000    0.0000 C   0  0  0  0  0  0  0  0  0  0  0  0",
+			"    1.2990    0.7500    0.0000 C   0  0  0  0  0  0  0  0  0  0  0  0",
+			"    2.5981    0.0000    0.0000 N   0  3  0  0  0  0  0  0  0  0  0  0",
+			"    1.2990    2.2500    0.0000 O   0  0  0  0  0  0  0  0  0  0  0  0",
+			"   -1.2990    0.7500    0.0000 Cl  0  0  0  0  0  0  0  0  0  0  0  0",
+			"    3.8971    0.7500    0.0000 L   0  0  0  0  0  0  0  0  0  0  0  0",
+			"1.2990E+00-7.500E-010.0000E+00 Br  0  0  0  0  0  0  0  0  0  0  0  0",
+			"  1  2  1  0",
+			"  2  3  1  0",
+			"  2  4  2  0",
+			"  1  5  1  0",
+			"  3  6  1  0",
+			"  1  7  1  1",
+			"A    7",
+			"OMe",
+			"M  CHG  1   4  -1",
+			"M  ALS   6  2 F O   S   ",
+			"M  END"
+	};
+
+	// charge, atom list, exponent coordinate; is passed on to the String based parser
+	private static final String[] V3000 = {
+			"",
+			"  -OCL-  09302413352D",
+			"",
+			"  0  0  0     0  0            999 V3000",
+			"M  V30 BEGIN CTAB",
+			"M  V30 COUNTS 4 3 0 0 0",
+			"M  V30 BEGIN ATOM",
+			"M  V30 1 C 0 0 0 0",
+			"M  V30 2 N 1.299 0.75 0 0 CHG=1",
+			"M  V30 3 [O,S] 2.598 0 0 0",
+			"M  V30 4 Cl -1.299E+0 0.75 0 0",
+			"M  V30 END ATOM",
+			"M  V30 BEGIN BOND",
+			"M  V30 1 1 1 2",
+			"M  V30 2 1 2 3",
+			"M  V30 3 1 1 4",
+			"M  V30 END BOND",
+			"M  V30 END CTAB",
+			"M  END"
+	};
+
+	private static final String[] LINE_ENDINGS = { "\n", "\r\n" };
+
+	/**
+	 * Molecules parsed from bytes must be the same as the ones parsed from a String.
+	 */
+	@Test
+	public void testByteInputEqualsStringInput() throws Exception {
+		for (String[] molfile : new String[][] { V2000_QUERY, V3000 }) {
+			for (String lineEnding : LINE_ENDINGS) {
+				String text = String.join(lineEnding, molfile) + lineEnding;
+				StereoMolecule expected = new MolfileParser().getCompactMolecule(text);
+
+				// embed the molfile in a larger array to check offset and length handling
+				byte[] bytes = ("xx" + text + "$$$$" + lineEnding).getBytes(StandardCharsets.UTF_8);
+				int length = text.getBytes(StandardCharsets.UTF_8).length;
+				assertSameMolecule(expected, new MolfileParser().getCompactMolecule(bytes, 2, length));
+
+				StereoMolecule reused = new StereoMolecule();
+				assertTrue(new MolfileParser().parse(reused, bytes, 2, length));
+				assertSameMolecule(expected, reused);
+			}
+		}
+	}
+
+	/**
+	 * Checks some properties, which the String and the byte based V2000 parser could have in common wrong.
+	 */
+	@Test
+	public void testV2000Properties() throws Exception {
+		byte[] bytes = String.join("\n", V2000_QUERY).getBytes(StandardCharsets.UTF_8);
+		StereoMolecule mol = new MolfileParser().getCompactMolecule(bytes, 0, bytes.length);
+		assertTrue(mol.isFragment());
+		assertEquals(1, mol.getAtomCharge(2));
+		assertEquals(-1, mol.getAtomCharge(3));
+		assertEquals(17, mol.getAtomicNo(4));
+		assertArrayEquals(new int[] { 8, 16 }, mol.getAtomList(5));
+		assertEquals(35, mol.getAtomicNo(6));
+		assertEquals(1.299, mol.getAtomX(6), 1e-6);
+		assertEquals(0.75, mol.getAtomY(6), 1e-6);
+	}
+
+	private static void assertSameMolecule(StereoMolecule expected, StereoMolecule mol) {
+		assertEquals(expected.isFragment(), mol.isFragment());
+		assertEquals(expected.getAllAtoms(), mol.getAllAtoms());
+		assertEquals(expected.getAllBonds(), mol.getAllBonds());
+		for (int atom=0; atom<expected.getAllAtoms(); atom++) {
+			assertEquals(expected.getAtomicNo(atom), mol.getAtomicNo(atom));
+			assertEquals(expected.getAtomCharge(atom), mol.getAtomCharge(atom));
+			assertEquals(expected.getAtomMass(atom), mol.getAtomMass(atom));
+			assertEquals(expected.getAtomQueryFeatures(atom), mol.getAtomQueryFeatures(atom));
+			assertArrayEquals(expected.getAtomList(atom), mol.getAtomList(atom));
+			assertEquals(expected.getAtomX(atom), mol.getAtomX(atom), 0.0);
+			assertEquals(expected.getAtomY(atom), mol.getAtomY(atom), 0.0);
+			assertEquals(expected.getAtomZ(atom), mol.getAtomZ(atom), 0.0);
+		}
+		for (int bond=0; bond<expected.getAllBonds(); bond++) {
+			assertEquals(expected.getBondAtom(0, bond), mol.getBondAtom(0, bond));
+			assertEquals(expected.getBondAtom(1, bond), mol.getBondAtom(1, bond));
+			assertEquals(expected.getBondType(bond), mol.getBondType(bond));
+			assertEquals(expected.getBondQueryFeatures(bond), mol.getBondQueryFeatures(bond));
+		}
+		assertEquals(new Canonizer(expected).getIDCode(), new Canonizer(mol).getIDCode());
+	}
+}
@@ -0,0 +1,77 @@
+package com.actelion.research.chem.docking.scoring;
+
+import com.actelion.research.chem.Coordinates;
+import com.actelion.research.chem.SmilesParser;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.conf.Conformer;
+import com.actelion.research.chem.docking.DockingContext;
+import com.actelion.research.chem.docking.DockingEngine;
+import com.actelion.research.chem.docking.LigandPose;
+import org.junit.Test;
+import org.openmolecules.chem.conf.gen.ConformerGenerator;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChemPLPTest {
+	private static final double HBOND_DISTANCE = 1.9;
+
+	/**
+	 * A ligand amide N-H donates a hydrogen bond to the carbonyl oxygen of an acetone receptor.
+	 * Scoring with grid maps must keep the directional hydrogen bond terms
+	 * and differ from pairwise scoring only by the interpolation error of the PLP terms.
+	 */
+	@Test
+	public void testGridMapScoreMatchesPairwiseScore() throws Exception {
+		StereoMolecule ligand = new StereoMolecule();
+		new SmilesParser().parse(ligand, "CC(=O)NCc1ccccc1");
+		ligand = new ConformerGenerator(4711L, false).getOneConformerAsMolecule(ligand);
+		ligand.ensureHelperArrays(StereoMolecule.cHelperNeighbours);
+
+		int donorH = -1;
+		for (int atom=ligand.getAtoms(); atom<ligand.getAllAtoms(); atom++)
+			if (ligand.getAtomicNo(ligand.getConnAtom(atom, 0)) == 7)
+				donorH = atom;
+		// acetone as receptor: a reflection puts its oxygen in front of the ligand's N-H with the C=O bond pointing away
+		StereoMolecule receptor = new StereoMolecule();
+		new SmilesParser().parse(receptor, "CC(=O)C");
+		receptor = new ConformerGenerator(4711L, false).getOneConformerAsMolecule(receptor);
+		receptor.ensureHelperArrays(StereoMolecule.cHelperNeighbours);
+		int oxygen = -1;
+		for (int atom=0; atom<receptor.getAtoms(); atom++)
+			if (receptor.getAtomicNo(atom) == 8)
+				oxygen = atom;
+		Coordinates h = ligand.getCoordinates(donorH);
+		Coordinates v = h.subC(ligand.getCoordinates(ligand.getConnAtom(donorH, 0))).unit();
+		Coordinates o = new Coordinates(receptor.getCoordinates(oxygen));
+		Coordinates u = receptor.getCoordinates(receptor.getConnAtom(oxygen, 0)).subC(o).unit();
+		Coordinates w = u.subC(v).unit();
+		Coordinates bent = v.addC(v.cross(new Coordinates(0, 0, 1)).unit().scale(0.2)).unit();	// angle terms are not defined for exactly 180 degrees
+		Coordinates target = h.addC(bent.scaleC(HBOND_DISTANCE));
+		for (int atom=0; atom<receptor.getAllAtoms(); atom++) {
+			Coordinates r = receptor.getCoordinates(atom).subC(o);
+			r.sub(w.scaleC(2.0 * r.dot(w)));
+			receptor.getCoordinates(atom).set(target.addC(r));
+			}
+
+		Map<String,Double> pairwise = getContributions(receptor, ligand, 0.0);
+		Map<String,Double> gridBased = getContributions(receptor, ligand, 0.2);
+
+		assertTrue(pairwise.get("HBOND") < -0.1);
+		assertEquals(pairwise.get("HBOND"), gridBased.get("HBOND"), 1e-8);
+		assertEquals(pairwise.get("METAL"), gridBased.get("METAL"), 1e-8);
+		assertEquals(pairwise.get("PLP"), gridBased.get("PLP"), 0.05 * Math.abs(pairwise.get("PLP")) + 0.1);
+	}
+
+	private static Map<String,Double> getContributions(StereoMolecule receptor, StereoMolecule ligand,
+			double gridMapSpacing) throws Exception {
+		DockingContext context = new DockingContext(receptor, ligand, DockingEngine.GRID_DIMENSION,
+				DockingEngine.ScoringFunction.CHEMPLP, gridMapSpacing);
+		AbstractScoringEngine engine = context.createScoringEngine();
+		assertEquals(gridMapSpacing != 0.0, engine.getGridMaps() != null);
+		LigandPose pose = new LigandPose(new Conformer(context.getNativeLigand()), engine, 0.0);
+		return pose.getContributions();
+	}
+}
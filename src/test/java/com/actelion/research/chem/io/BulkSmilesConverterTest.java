@@ -0,0 +1,168 @@
+package com.actelion.research.chem.io;
+
+import com.actelion.research.chem.Canonizer;
+import com.actelion.research.chem.SmilesParser;
+import com.actelion.research.chem.StereoMolecule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BulkSmilesConverterTest {
+	private static final String[] SMILES = {
+			"CC(=O)Nc1ccc(O)cc1",
+			"C[C@H](N)C(=O)O",
+			"c1ccccc1",
+			"CN1CCC[C@H]1c1cccnc1",
+			"O=C([O-])CC[NH3+]",
+			"Clc1ccc(cc1)C(c1ccccc1)N1CCNCC1",
+			"C/C=C/C",
+			"[Na+].[Cl-]"
+	};
+	private static final String INVALID_SMILES = "C1CC(";
+
+	/**
+	 * Results must arrive in input order with the idcodes of a serial conversion,
+	 * no matter how many threads and batches are used.
+	 */
+	@Test
+	public void testOrderedOutput() throws Exception {
+		List<String> lines = new ArrayList<>();
+		List<String> expected = new ArrayList<>();
+		for (int i=0; i<200; i++) {
+			String smiles = SMILES[i % SMILES.length];
+			lines.add(smiles + "\tcompound-" + i);
+			expected.add(getIDCode(smiles));
+			if (i % 17 == 0)
+				lines.add("   ");
+		}
+
+		for (int batchSize : new int[] { 1, 3, 256 }) {
+			BulkSmilesConverter converter = new BulkSmilesConverter(4);
+			converter.setBatchSize(batchSize);
+			List<BulkSmilesConverter.ConversionResult> resultList = new ArrayList<>();
+			int count = converter.convert(lines.iterator(), resultList::add);
+
+			assertEquals(expected.size(), count);
+			assertEquals(expected.size(), resultList.size());
+			for (int i=0; i<resultList.size(); i++) {
+				BulkSmilesConverter.ConversionResult result = resultList.get(i);
+				assertEquals(i, result.getIndex());
+				assertEquals(SMILES[i % SMILES.length], result.getSmiles());
+				assertEquals("compound-" + i, result.getName());
+				assertEquals(expected.get(i), result.getIDCode());
+				assertEquals(BulkSmilesConverter.STAGE_NONE, result.getFailedStage());
+			}
+		}
+	}
+
+	/**
+	 * Unparsable SMILES must be reported with their failed stage and counted,
+	 * without affecting the other results.
+	 */
+	@Test
+	public void testFailureCounting() throws Exception {
+		List<String> lines = new ArrayList<>();
+		for (int i=0; i<50; i++)
+			lines.add(i % 5 == 0 ? INVALID_SMILES : SMILES[i % SMILES.length]);
+
+		BulkSmilesConverter converter = new BulkSmilesConverter(3);
+		converter.setBatchSize(4);
+		List<BulkSmilesConverter.ConversionResult> resultList = new ArrayList<>();
+		assertEquals(50, converter.convert(lines.iterator(), resultList::add));
+
+		for (int i=0; i<resultList.size(); i++) {
+			BulkSmilesConverter.ConversionResult result = resultList.get(i);
+			if (i % 5 == 0) {
+				assertEquals(BulkSmilesConverter.STAGE_PARSE, result.getFailedStage());
+				assertNotNull(result.getError());
+				assertNull(result.getIDCode());
+			}
+			else {
+				assertNull(result.getError());
+				assertEquals(getIDCode(SMILES[i % SMILES.length]), result.getIDCode());
+			}
+		}
+
+		BulkSmilesConverter.Statistics statistics = converter.getStatistics();
+		assertEquals(50, statistics.getSmilesCount());
+		assertEquals(10, statistics.getParseFailureCount());
+		assertEquals(0, statistics.getCanonizeFailureCount());
+		assertEquals(10, statistics.getFailedCount());
+	}
+
+	/**
+	 * Statistics must count all SMILES of a run and attribute time spent in the listener to the listener stage.
+	 */
+	@Test
+	public void testStageStatistics() throws Exception {
+		List<String> lines = new ArrayList<>();
+		for (int i=0; i<20; i++)
+			lines.add(SMILES[i % SMILES.length]);
+
+		BulkSmilesConverter converter = new BulkSmilesConverter(2);
+		converter.setBatchSize(5);
+		converter.convert(lines.iterator(), result -> {
+			try {
+				Thread.sleep(2);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+
+		BulkSmilesConverter.Statistics statistics = converter.getStatistics();
+		assertEquals(20, statistics.getSmilesCount());
+		assertEquals(0, statistics.getFailedCount());
+		assertTrue(statistics.getListenerMillis() >= 40);
+		assertTrue(statistics.getElapsedMillis() >= statistics.getListenerMillis());
+		assertTrue(statistics.getReadMillis() >= 0);
+		assertTrue(statistics.getParseMillis() >= 0);
+		assertTrue(statistics.getCanonizeMillis() >= 0);
+
+		// a second run must not accumulate the statistics of the first one
+		converter.convert(lines.subList(0, 5).iterator(), null);
+		assertEquals(5, converter.getStatistics().getSmilesCount());
+	}
+
+	/**
+	 * After an interrupt the returned count must match the number of results passed to the listener.
+	 */
+	@Test
+	public void testInterruptedCountEqualsDeliveredResults() throws Exception {
+		List<String> lines = new ArrayList<>();
+		for (int i=0; i<2000; i++)
+			lines.add(SMILES[i % SMILES.length]);
+
+		BulkSmilesConverter converter = new BulkSmilesConverter(2);
+		converter.setBatchSize(10);
+		List<BulkSmilesConverter.ConversionResult> resultList = new ArrayList<>();
+		int count;
+		try {
+			count = converter.convert(lines.iterator(), result -> {
+				resultList.add(result);
+				if (resultList.size() == 1)
+					Thread.currentThread().interrupt();
+			});
+		}
+		finally {
+			assertTrue(Thread.interrupted());
+		}
+
+		assertEquals(resultList.size(), count);
+		assertEquals(count, converter.getStatistics().getSmilesCount());
+		assertTrue(count < lines.size());
+	}
+
+	private static String getIDCode(String smiles) throws Exception {
+		StereoMolecule mol = new StereoMolecule();
+		new SmilesParser(SmilesParser.SMARTS_MODE_IS_SMILES).parse(mol, smiles.getBytes(), false, true);
+		mol.setUnknownParitiesToExplicitlyUnknown();
+		return new Canonizer(mol).getIDCode();
+	}
+}
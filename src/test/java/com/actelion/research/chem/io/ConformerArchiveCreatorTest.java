@@ -0,0 +1,91 @@
+package com.actelion.research.chem.io;
+
+import com.actelion.research.chem.Canonizer;
+import com.actelion.research.chem.Coordinates;
+import com.actelion.research.chem.SmilesParser;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.conf.Conformer;
+import com.actelion.research.chem.conf.ConformerSet;
+import com.actelion.research.chem.conf.ConformerSetGenerator;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConformerArchiveCreatorTest {
+	private static final String[] SMILES = {
+			"CC(=O)Nc1ccc(O)cc1",
+			"C[C@H](N)C(=O)O",
+			"c1ccccc1",
+			"CN1CCC[C@H]1c1cccnc1",
+			"O=C([O-])CC[NH3+]",
+			"Clc1ccc(cc1)C(c1ccccc1)N1CCNCC1"
+	};
+	private static final double TOLERANCE = 0.002;
+
+	/**
+	 * Conformers read from an archive must have the coordinates of the written conformers,
+	 * with the atoms being in the order of the molecule that is parsed from the row's idcode.
+	 */
+	@Test
+	public void testRoundTripKeepsCoordinates() throws Exception {
+		ArrayList<ConformerSet> conformerSets = new ArrayList<>();
+		ConformerSetGenerator generator = new ConformerSetGenerator(4);
+		for (String smiles:SMILES)
+			conformerSets.add(generator.generateConformerSet(new SmilesParser().parseMolecule(smiles)));
+
+		File file = File.createTempFile("conformerArchive", ".occ");
+		file.deleteOnExit();
+		try (ConformerArchiveCreator creator = new ConformerArchiveCreator(file.getPath())) {
+			for (ConformerSet conformerSet:conformerSets)
+				creator.addConformers(conformerSet);
+		}
+
+		try (ConformerArchiveParser parser = new ConformerArchiveParser(file.getPath())) {
+			assertEquals(SMILES.length, parser.getRowCount());
+			for (int row=0; row<SMILES.length; row++) {
+				ArrayList<Conformer> written = new ArrayList<>(conformerSets.get(row));
+				StereoMolecule mol = written.get(0).toMolecule();
+				Canonizer canonizer = new Canonizer(mol, Canonizer.COORDS_ARE_3D);
+				assertEquals(SMILES[row], canonizer.getIDCode(), parser.getIDCode(row));
+				assertEquals(SMILES[row], written.size(), parser.getConformerCount(row));
+
+				ArrayList<Conformer> read = new ArrayList<>(parser.getConformerSet(row));
+				for (int i=0; i<written.size(); i++) {
+					assertMatches(SMILES[row], canonizer.getGraphAtoms(), written.get(i), parser.getConformer(row, i));
+					assertMatches(SMILES[row], canonizer.getGraphAtoms(), written.get(i), read.get(i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Heavy atoms are parsed in the order of the canonical graph. Hydrogen atoms follow and must be
+	 * attached to the same heavy atom and located at the position of one of its written hydrogens.
+	 */
+	private static void assertMatches(String smiles, int[] graphAtom, Conformer written, Conformer read) {
+		StereoMolecule writtenMol = written.getMolecule();
+		StereoMolecule readMol = read.getMolecule();
+		writtenMol.ensureHelperArrays(StereoMolecule.cHelperNeighbours);
+		readMol.ensureHelperArrays(StereoMolecule.cHelperNeighbours);
+		assertEquals(smiles, writtenMol.getAllAtoms(), readMol.getAllAtoms());
+		for (int atom=0; atom<readMol.getAllAtoms(); atom++) {
+			Coordinates c = read.getCoordinates(atom);
+			if (atom < readMol.getAtoms()) {
+				assertEquals(smiles, writtenMol.getAtomicNo(graphAtom[atom]), readMol.getAtomicNo(atom));
+				assertTrue(smiles, c.distance(written.getCoordinates(graphAtom[atom])) < TOLERANCE);
+			}
+			else {
+				int writtenParent = graphAtom[readMol.getConnAtom(atom, 0)];
+				boolean found = false;
+				for (int i=writtenMol.getConnAtoms(writtenParent); i<writtenMol.getAllConnAtoms(writtenParent); i++)
+					if (c.distance(written.getCoordinates(writtenMol.getConnAtom(writtenParent, i))) < TOLERANCE)
+						found = true;
+				assertTrue(smiles, found);
+			}
+		}
+	}
+}
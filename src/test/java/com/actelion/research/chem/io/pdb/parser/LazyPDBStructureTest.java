@@ -0,0 +1,128 @@
+package com.actelion.research.chem.io.pdb.parser;
+
+import com.actelion.research.chem.Canonizer;
+import com.actelion.research.chem.Molecule3D;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class LazyPDBStructureTest {
+	/**
+	 * Two threonine residues, a phosphate bonded to the protein by a CONECT record, two HETATM residues
+	 * that are joined by CONECT records, two waters, and a second model with shifted coordinates.
+	 */
+	private static final String[] PDB = {
+			"HEADER    TEST STRUCTURE                          01-JAN-25   TEST",
+			"MODEL        1",
+			"ATOM      1  N   THR A   1      17.047  14.099   3.625  1.00 10.00           N",
+			"ATOM      2  CA  THR A   1      16.967  12.784   4.338  1.00 10.00           C",
+			"ATOM      3  C   THR A   1      15.685  12.755   5.133  1.00 10.00           C",
+			"ATOM      4  O   THR A   1      15.268  13.825   5.594  1.00 10.00           O",
+			"ATOM      5  CB  THR A   1      18.170  12.703   5.337  1.00 10.00           C",
+			"ATOM      6  OG1 THR A   1      19.334  12.829   4.463  1.00 10.00           O",
+			"ATOM      7  CG2 THR A   1      18.150  11.546   6.304  1.00 10.00           C",
+			"ATOM      8  N   THR A   2      15.115  11.555   5.265  1.00 10.00           N",
+			"ATOM      9  CA  THR A   2      13.856  11.469   6.066  1.00 10.00           C",
+			"ATOM     10  C   THR A   2      14.164  10.785   7.379  1.00 10.00           C",
+			"ATOM     11  O   THR A   2      14.993   9.862   7.443  1.00 10.00           O",
+			"ATOM     12  CB  THR A   2      12.732  10.711   5.261  1.00 10.00           C",
+			"ATOM     13  OG1 THR A   2      12.484  11.442   4.079  1.00 10.00           O",
+			"ATOM     14  CG2 THR A   2      11.410  10.675   6.077  1.00 10.00           C",
+			"TER      15      THR A   2",
+			"HETATM   16  P   PO4 B 101      12.000  12.500   2.950  1.00 20.00           P",
+			"HETATM   17  O2  PO4 B 101      13.050  12.900   1.950  1.00 20.00           O",
+			"HETATM   18  O3  PO4 B 101      11.250  13.700   3.400  1.00 20.00           O",
+			"HETATM   19  O4  PO4 B 101      11.100  11.500   2.300  1.00 20.00           O",
+			"HETATM   20  C1  EOH C 201      22.000  10.000   0.000  1.00 20.00           C",
+			"HETATM   21  C2  EOH C 201      23.520  10.000   0.000  1.00 20.00           C",
+			"HETATM   22  O   EOH C 201      24.000  11.350   0.000  1.00 20.00           O",
+			"HETATM   23  C1  ACE C 202      25.300  11.600   0.000  1.00 20.00           C",
+			"HETATM   24  O   ACE C 202      26.000  10.620   0.000  1.00 20.00           O",
+			"HETATM   25  CH3 ACE C 202      25.800  13.000   0.000  1.00 20.00           C",
+			"HETATM   26  O   HOH W 301       5.000   5.000   5.000  1.00 20.00           O",
+			"HETATM   27  O   HOH W 302       8.000  20.000   1.000  1.00 20.00           O",
+			"ENDMDL",
+			"MODEL        2",
+			"ATOM      1  N   THR A   1      17.547  14.099   3.625  1.00 10.00           N",
+			"ATOM      2  CA  THR A   1      17.467  12.784   4.338  1.00 10.00           C",
+			"ATOM      3  C   THR A   1      16.185  12.755   5.133  1.00 10.00           C",
+			"ATOM      4  O   THR A   1      15.768  13.825   5.594  1.00 10.00           O",
+			"ATOM      5  CB  THR A   1      18.670  12.703   5.337  1.00 10.00           C",
+			"ATOM      6  OG1 THR A   1      19.834  12.829   4.463  1.00 10.00           O",
+			"ATOM      7  CG2 THR A   1      18.650  11.546   6.304  1.00 10.00           C",
+			"ATOM      8  N   THR A   2      15.615  11.555   5.265  1.00 10.00           N",
+			"ATOM      9  CA  THR A   2      14.356  11.469   6.066  1.00 10.00           C",
+			"ATOM     10  C   THR A   2      14.664  10.785   7.379  1.00 10.00           C",
+			"ATOM     11  O   THR A   2      15.493   9.862   7.443  1.00 10.00           O",
+			"ATOM     12  CB  THR A   2      13.232  10.711   5.261  1.00 10.00           C",
+			"ATOM     13  OG1 THR A   2      12.984  11.442   4.079  1.00 10.00           O",
+			"ATOM     14  CG2 THR A   2      11.910  10.675   6.077  1.00 10.00           C",
+			"TER      15      THR A   2",
+			"HETATM   16  P   PO4 B 101      12.500  12.500   2.950  1.00 20.00           P",
+			"HETATM   17  O2  PO4 B 101      13.550  12.900   1.950  1.00 20.00           O",
+			"HETATM   18  O3  PO4 B 101      11.750  13.700   3.400  1.00 20.00           O",
+			"HETATM   19  O4  PO4 B 101      11.600  11.500   2.300  1.00 20.00           O",
+			"HETATM   20  C1  EOH C 201      22.500  10.000   0.000  1.00 20.00           C",
+			"HETATM   21  C2  EOH C 201      24.020  10.000   0.000  1.00 20.00           C",
+			"HETATM   22  O   EOH C 201      24.500  11.350   0.000  1.00 20.00           O",
+			"HETATM   23  C1  ACE C 202      25.800  11.600   0.000  1.00 20.00           C",
+			"HETATM   24  O   ACE C 202      26.500  10.620   0.000  1.00 20.00           O",
+			"HETATM   25  CH3 ACE C 202      26.300  13.000   0.000  1.00 20.00           C",
+			"HETATM   26  O   HOH W 301       5.500   5.000   5.000  1.00 20.00           O",
+			"HETATM   27  O   HOH W 302       8.500  20.000   1.000  1.00 20.00           O",
+			"ENDMDL",
+			"CONECT   13   16",
+			"CONECT   16   13   17   18   19",
+			"CONECT   17   16",
+			"CONECT   18   16",
+			"CONECT   19   16",
+			"CONECT   20   21",
+			"CONECT   21   20   22",
+			"CONECT   22   21   23",
+			"CONECT   23   22   24   25",
+			"CONECT   24   23",
+			"CONECT   25   23",
+			"END"
+	};
+
+	@Test
+	public void testMoleculesEqualStructureAssembler() throws Exception {
+		String pdb = String.join("\n", PDB) + "\n";
+		PDBCoordEntryFile entryFile = new PDBFileParser().parse(new BufferedReader(new StringReader(pdb)));
+		byte[] bytes = pdb.getBytes(StandardCharsets.US_ASCII);
+		LazyPDBStructure structure = new LazyPDBFileParser().parse(bytes, 0, bytes.length);
+		assertEquals(27 - 1, structure.getAtomCount());	// model 1 without TER
+
+		for (boolean detachCovalentLigands : new boolean[] {false, true}) {
+			Map<String,List<Molecule3D>> expected = entryFile.extractMols(detachCovalentLigands);
+			Map<String,List<Molecule3D>> lazy = structure.extractMols(detachCovalentLigands);
+			for (String group : new String[] {StructureAssembler.PROTEIN_GROUP, StructureAssembler.LIGAND_GROUP, StructureAssembler.SOLVENT_GROUP})
+				assertEquals(group, getCodes(expected.get(group)), getCodes(lazy.get(group)));
+
+			assertEquals(1, lazy.get(StructureAssembler.PROTEIN_GROUP).size());
+			assertEquals(detachCovalentLigands ? 2 : 1, lazy.get(StructureAssembler.LIGAND_GROUP).size());
+			assertEquals(2, lazy.get(StructureAssembler.SOLVENT_GROUP).size());
+		}
+	}
+
+	/**
+	 * @return sorted idcodes with 3D coordinates, which don't depend on the order of molecules or atoms
+	 */
+	private static List<String> getCodes(List<Molecule3D> mols) {
+		List<String> codes = new ArrayList<>();
+		for (Molecule3D mol : mols) {
+			Canonizer canonizer = new Canonizer(mol, Canonizer.COORDS_ARE_3D);
+			codes.add(canonizer.getIDCode() + " " + canonizer.getEncodedCoordinates(true));
+		}
+		Collections.sort(codes);
+		return codes;
+	}
+}
@@ -0,0 +1,82 @@
+package com.actelion.research.chem.reaction;
+
+import com.actelion.research.chem.SmilesParser;
+import com.actelion.research.chem.StereoMolecule;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class LibraryEnumeratorTest {
+	private static final String AMIDE_COUPLING = "[C:1](=[O:2])[OH]..[N;!H0:3]>>[C:1](=[O:2])[N:3]";
+
+	private static final String[] ACIDS = {
+			"OC(=O)c1ccccc1",
+			"OC(=O)[C@@H]1CCCN1C(=O)OC(C)(C)C",
+			"OC(=O)[C@H]1CCCN1C(=O)OC(C)(C)C",
+			"OC(=O)/C=C/c1ccccc1",
+			"OC(=O)/C=C\\c1ccccc1",
+			"OC(=O)[C@H]1C[C@@H](O)CN1"
+	};
+
+	private static final String[] AMINES = {
+			"NCc1ccccc1",
+			"N[C@@H](C)c1ccccc1",
+			"N[C@H](C)c1ccccc1",
+			"C1CCNCC1",
+			"N[C@H]1CC[C@@H](C)CC1",
+			"NC/C=C/C"
+	};
+
+	/**
+	 * LibraryEnumerator uses Reactor.MODE_SKIP_COORDINATES. Its product idcodes must be the same
+	 * as those of a Reactor, which creates product coordinates.
+	 */
+	@Test
+	public void testSkipCoordinatesGivesSameIDCodes() throws Exception {
+		Reaction reaction = new SmilesParser(SmilesParser.SMARTS_MODE_IS_SMARTS).parseReaction(AMIDE_COUPLING);
+		List<StereoMolecule> acids = parse(ACIDS);
+		List<StereoMolecule> amines = parse(AMINES);
+
+		Map<String,List<String>> expected = new TreeMap<>();
+		Reactor reactor = new Reactor(new Reaction(reaction), 0, Integer.MAX_VALUE);
+		for (int i=0; i<acids.size(); i++) {
+			for (int j=0; j<amines.size(); j++) {
+				reactor.setReactant(0, acids.get(i));
+				reactor.setReactant(1, amines.get(j));
+				List<String> products = new ArrayList<>();
+				for (String[] idcodes : reactor.getProductIDCodes())
+					products.add(String.join(" ", idcodes));
+				Collections.sort(products);
+				expected.put(i+"_"+j, products);
+			}
+		}
+
+		Map<String,List<String>> enumerated = new TreeMap<>();
+		LibraryEnumerator enumerator = new LibraryEnumerator(reaction, 0);
+		enumerator.setThreadCount(2);
+		enumerator.setBuildingBlocks(0, parse(ACIDS));
+		enumerator.setBuildingBlocks(1, parse(AMINES));
+		enumerator.enumerate((buildingBlock, productIDCode) -> {
+			enumerated.computeIfAbsent(buildingBlock[0]+"_"+buildingBlock[1], k -> new ArrayList<>()).add(String.join(" ", productIDCode));
+			return true;
+		});
+		for (List<String> products : enumerated.values())
+			Collections.sort(products);
+
+		assertFalse(expected.isEmpty());
+		assertEquals(expected, enumerated);
+	}
+
+	private static List<StereoMolecule> parse(String[] smiles) throws Exception {
+		List<StereoMolecule> molList = new ArrayList<>();
+		for (String s : smiles) {
+			StereoMolecule mol = new StereoMolecule();
+			new SmilesParser().parse(mol, s);
+			molList.add(mol);
+		}
+		return molList;
+	}
+}
@@ -0,0 +1,180 @@
+package com.actelion.research.chem.reaction;
+
+import com.actelion.research.chem.CanonizerUtil;
+import com.actelion.research.chem.IDCodeParser;
+import com.actelion.research.chem.SmilesParser;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.descriptor.DescriptorHandlerLongFFP512;
+import com.actelion.research.chem.descriptor.DescriptorHandlerReactionFP;
+import com.actelion.research.chem.reaction.mapping.ChemicalRuleEnhancedReactionMapper;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReactionSearchIndexTest {
+	// acids and amides are built by appending "O" resp. the amine
+	private static final String[] ACYLS = {
+			"CC(=O)", "c1ccccc1C(=O)", "c1cnccc1C(=O)", "C1CCCCC1C(=O)", "Clc1ccc(cc1)CC(=O)", "c1ccc2cc(ccc2c1)C(=O)"
+			};
+	private static final String[] AMINES = {
+			"NCc1ccccc1", "N1CCCCC1", "NC1CCCC1", "Nc1ccc(F)cc1", "N(C)C", "NCCO"
+			};
+	private static final String[] OTHER_REACTIONS = {
+			"C=CC=C.C=CC(=O)OC>>COC(=O)C1CC=CCC1",
+			"OB(O)c1ccccc1.Brc1ccc(C)cc1>>Cc1ccc(-c2ccccc2)cc1",
+			"O=Cc1ccccc1.NCC>>CCNCc1ccccc1",
+			"CC(C)(C)OC(=O)NCCc1ccccc1>>NCCc1ccccc1",
+			"OCc1ccccc1.O=C(Cl)c1ccccc1>>O=C(OCc1ccccc1)c1ccccc1",
+			"CC(O)c1ccccc1>>CC(=O)c1ccccc1",
+			"C#Cc1ccccc1.[N-]=[N+]=NCc1ccccc1>>c1ccc(Cn2cc(-c3ccccc3)nn2)cc1"
+			};
+
+	/**
+	 * Every search type must return the same rows with and without an index,
+	 * also after writing and reading the index.
+	 */
+	@Test
+	public void testIndexedSearchEqualsFullSearch() throws Exception {
+		TestDataSource dataSource = new TestDataSource(createReactions());
+		ReactionSearchIndex index = ReactionSearchIndex.create(dataSource);
+		File file = File.createTempFile("reactionSearchIndex", ".rxix");
+		file.deleteOnExit();
+		index.write(file);
+		ReactionSearchIndex readIndex = ReactionSearchIndex.read(file);
+
+		Reaction amideCoupling = new SmilesParser().parseReaction("CC(=O)O.NC>>CC(=O)NC");
+		new ChemicalRuleEnhancedReactionMapper().map(amideCoupling);
+		Reaction suzuki = new SmilesParser().parseReaction(OTHER_REACTIONS[1]);
+		String[] query = { ReactionEncoder.encode(amideCoupling, false, ReactionEncoder.INCLUDE_DEFAULT) };
+		String[] rowQuery = { ReactionEncoder.encode(dataSource.mReaction.get(3), false, ReactionEncoder.INCLUDE_DEFAULT) };
+		StereoMolecule retron = new SmilesParser().parseMolecule("CC(=O)N");
+		retron.setFragment(true);
+
+		ReactionSearchSpecification[] specifications = {
+				new ReactionSearchSpecification(ReactionSearchSpecification.TYPE_SUBREACTION, query, null, null, null),
+				new ReactionSearchSpecification(new String[] { retron.getIDCode() }, null),
+				new ReactionSearchSpecification(ReactionSearchSpecification.TYPE_SIMILARITY, rowQuery, null, null, null, 0.6f, 0.2f),
+				new ReactionSearchSpecification(ReactionSearchSpecification.TYPE_EXACT_STRICT, rowQuery, null, null, null),
+				new ReactionSearchSpecification(ReactionSearchSpecification.TYPE_EXACT_NO_STEREO,
+						new String[] { ReactionEncoder.encode(suzuki, false, ReactionEncoder.INCLUDE_DEFAULT) }, null, null, null)
+				};
+
+		for (ReactionSearchSpecification specification:specifications) {
+			assertTrue(index.supportsSearchType(specification));
+			int[] expected = search(specification, dataSource, null);
+			assertTrue(expected.length != 0);
+			assertTrue(expected.length < dataSource.getRowCount());
+			assertArrayEquals(expected, search(specification, dataSource, index));
+			assertArrayEquals(expected, search(specification, dataSource, readIndex));
+			}
+		}
+
+	/**
+	 * Rare bits are stored as row lists, frequent bits as bit slices. Both must contain the same rows.
+	 */
+	@Test
+	public void testRetronCandidatesContainAllMatchingRows() throws Exception {
+		TestDataSource dataSource = new TestDataSource(createReactions());
+		ReactionSearchIndex index = ReactionSearchIndex.create(dataSource);
+		for (int row=0; row<dataSource.getRowCount(); row++) {
+			long[] productFFP = dataSource.getMergedProductDescriptor(row);
+			if (productFFP == null)
+				continue;
+
+			int[] candidates = index.getRetronCandidates(new long[][] { productFFP });
+			assertTrue(Arrays.binarySearch(candidates, row) >= 0);
+			for (int candidate:candidates) {
+				long[] candidateFFP = dataSource.getMergedProductDescriptor(candidate);
+				if (candidateFFP != null)
+					for (int i=0; i<productFFP.length; i++)
+						assertEquals(productFFP[i], productFFP[i] & candidateFFP[i]);
+				}
+			}
+		}
+
+	private static int[] search(ReactionSearchSpecification specification, ReactionSearchDataSource dataSource, ReactionSearchIndex index) {
+		ReactionSearch search = new ReactionSearch(specification, dataSource, null, null);
+		search.setIndex(index);
+		int[] rows = search.start();
+		Arrays.sort(rows);
+		return rows;
+		}
+
+	private static ArrayList<Reaction> createReactions() throws Exception {
+		ArrayList<Reaction> reactionList = new ArrayList<>();
+		for (String acyl:ACYLS)
+			for (String amine:AMINES)
+				reactionList.add(new SmilesParser().parseReaction(acyl+"O."+amine+">>"+acyl+amine));
+		for (String smiles:OTHER_REACTIONS)
+			reactionList.add(new SmilesParser().parseReaction(smiles));
+		for (Reaction rxn:reactionList)
+			new ChemicalRuleEnhancedReactionMapper().map(rxn);
+		return reactionList;
+		}
+
+	private static class TestDataSource implements ReactionSearchDataSource {
+		private final ArrayList<Reaction> mReaction;
+		private final byte[][] mCode,mMapping,mCoords;
+		private final long[][] mReactionFP,mReactantFFP,mProductFFP;
+		private final long[] mExactHash,mNoStereoHash;
+
+		private TestDataSource(ArrayList<Reaction> reactionList) {
+			mReaction = reactionList;
+			int rowCount = reactionList.size();
+			mCode = new byte[rowCount][];
+			mMapping = new byte[rowCount][];
+			mCoords = new byte[rowCount][];
+			mReactionFP = new long[rowCount][];
+			mReactantFFP = new long[rowCount][];
+			mProductFFP = new long[rowCount][];
+			mExactHash = new long[rowCount];
+			mNoStereoHash = new long[rowCount];
+			DescriptorHandlerLongFFP512 ffpHandler = DescriptorHandlerLongFFP512.getDefaultInstance();
+			DescriptorHandlerReactionFP rxnFPHandler = DescriptorHandlerReactionFP.getDefaultInstance();
+			for (int row=0; row<rowCount; row++) {
+				Reaction rxn = reactionList.get(row);
+				String[] encoded = ReactionEncoder.encode(rxn, false);
+				mCode[row] = encoded[0].getBytes();
+				mMapping[row] = encoded[1] == null ? null : encoded[1].getBytes();
+				mCoords[row] = encoded[2] == null ? null : encoded[2].getBytes();
+				// hash codes are calculated like the ones of ReactionSearch queries
+				for (String idcode:encoded[0].split(ReactionEncoder.MOLECULE_DELIMITER_STRING)) {
+					mExactHash[row] += CanonizerUtil.StrongHasher.hash(idcode);
+					mNoStereoHash[row] += CanonizerUtil.getNoStereoHash(new IDCodeParser(false).getCompactMolecule(idcode), false);
+					}
+
+				// every 7th row lacks descriptors, which makes it a candidate of every sub-reaction search
+				if (row % 7 != 6) {
+					mReactionFP[row] = rxnFPHandler.createDescriptor(rxn);
+					mReactantFFP[row] = ffpHandler.createDescriptor(merge(rxn, true));
+					mProductFFP[row] = ffpHandler.createDescriptor(merge(rxn, false));
+					}
+				}
+			}
+
+		private static StereoMolecule merge(Reaction rxn, boolean reactants) {
+			StereoMolecule mol = new StereoMolecule();
+			int count = reactants ? rxn.getReactants() : rxn.getProducts();
+			for (int i=0; i<count; i++)
+				mol.addMolecule(reactants ? rxn.getReactant(i) : rxn.getProduct(i));
+			return mol;
+			}
+
+		@Override public boolean isSupportedSearchType(ReactionSearchSpecification specification) { return true; }
+		@Override public int getRowCount() { return mCode.length; }
+		@Override public long[] getReactionDescriptor(int row) { return mReactionFP[row]; }
+		@Override public long[] getMergedReactantDescriptor(int row) { return mReactantFFP[row]; }
+		@Override public long[] getMergedProductDescriptor(int row) { return mProductFFP[row]; }
+		@Override public byte[] getReactionCode(int row) { return mCode[row]; }
+		@Override public byte[] getCoordinates(int row) { return mCoords[row]; }
+		@Override public byte[] getMapping(int row) { return mMapping[row]; }
+		@Override public long getExactHash(int row) { return mExactHash[row]; }
+		@Override public long getNoStereoHash(int row) { return mNoStereoHash[row]; }
+		}
+	}
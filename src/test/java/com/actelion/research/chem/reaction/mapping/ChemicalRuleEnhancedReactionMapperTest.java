@@ -0,0 +1,88 @@
+package com.actelion.research.chem.reaction.mapping;
+
+import com.actelion.research.chem.SmilesParser;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.reaction.Reaction;
+import com.actelion.research.chem.reaction.ReactionEncoder;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChemicalRuleEnhancedReactionMapperTest {
+	private static final String[] REACTIONS = {
+			"CC(=O)C.O=Cc1ccccc1>>CC(=O)CC(O)c1ccccc1",
+			"C=CCC(O)C=C>>O=CCCC=CC",
+			"C=CCCC=C.C=CC>>C1=CCCC1.C=C",
+			"C=CC=C.C=CC=C>>C=CC1CCC=CC1",
+			"C=CC=C.C=CC(=O)OC>>COC(=O)C1CC=CCC1",
+			"C1=CCC=C1.O=C1C=CC(=O)O1>>O=C1OC(=O)C2C3C=CC(C3)C12",
+			"C=C(C)C=C.O=C(OC)C#CC(=O)OC>>COC(=O)C1=C(C(=O)OC)CC=C(C)C1",
+			"OC(C=C)CC=C>>O=CCCC=C",
+			"C=CC(C)(O)CCC=C(C)C>>CC(C)=CCCC(C)=CC=O",
+			"OCC=C(C)CCC=C(C)C.CC(=O)OC(C)=O>>CC(=O)OCC=C(C)CCC=C(C)C",
+			"C[C@H](O)CCc1ccccc1.OC(=O)c1ccccc1>>C[C@@H](CCc1ccccc1)OC(=O)c1ccccc1",
+			"OB(O)c1ccccc1.Brc1ccc(C)cc1>>Cc1ccc(-c2ccccc2)cc1",
+			"CCOC(=O)CC(=O)OCC.BrCCCBr>>CCOC(=O)C1(C(=O)OCC)CCC1"
+	};
+
+	/**
+	 * No mapping may score better than the upper limit calculated by the MappingScorer.
+	 */
+	@Test
+	public void testMaxScoreIsUpperLimit() throws Exception {
+		for (String smiles:REACTIONS) {
+			SimilarityGraphBasedReactionMapper mapper = new SimilarityGraphBasedReactionMapper();
+			mapper.mergeReactantsAndProducts(new SmilesParser().parseReaction(smiles));
+			StereoMolecule reactant = mapper.getReactant();
+			StereoMolecule product = mapper.getProduct();
+			float maxScore = MappingScorer.getMaxScore(reactant, product);
+			mapper.map(reactant, product, new int[reactant.getAtoms()], new int[product.getAtoms()]);
+			assertTrue(smiles, mapper.getScore() <= maxScore);
+			}
+		}
+
+	/**
+	 * Skipping hopeless or equivalent rule applications must neither change the mapping nor its score,
+	 * but it must reduce the number of rule applications that are mapped.
+	 */
+	@Test
+	public void testPruningKeepsResults() throws Exception {
+		int ruleApplicationCount = 0;
+		int mappedRuleApplicationCount = 0;
+		for (String smiles:REACTIONS) {
+			Reaction rxn1 = new SmilesParser().parseReaction(smiles);
+			ChemicalRuleEnhancedReactionMapper pruningMapper = new ChemicalRuleEnhancedReactionMapper();
+			pruningMapper.map(rxn1);
+
+			Reaction rxn2 = new SmilesParser().parseReaction(smiles);
+			ChemicalRuleEnhancedReactionMapper exhaustiveMapper = new ChemicalRuleEnhancedReactionMapper();
+			exhaustiveMapper.setPruning(false);
+			exhaustiveMapper.map(rxn2);
+
+			assertEquals(smiles, exhaustiveMapper.getScore(), pruningMapper.getScore(), 0f);
+			assertEquals(smiles, exhaustiveMapper.getAppliedRule(), pruningMapper.getAppliedRule());
+			assertEquals(smiles, ReactionEncoder.encode(rxn2, false, ReactionEncoder.INCLUDE_MAPPING),
+								 ReactionEncoder.encode(rxn1, false, ReactionEncoder.INCLUDE_MAPPING));
+			assertTrue(smiles, pruningMapper.getMappedRuleApplicationCount() <= exhaustiveMapper.getMappedRuleApplicationCount());
+
+			ruleApplicationCount += pruningMapper.getRuleApplicationCount();
+			mappedRuleApplicationCount += pruningMapper.getMappedRuleApplicationCount();
+			}
+
+		assertTrue(mappedRuleApplicationCount < ruleApplicationCount);
+		}
+
+	/**
+	 * Butadiene dimerisation matches the Diels-Alder rule multiple times with symmetrically equivalent
+	 * reaction centers. Only one of them needs to be mapped.
+	 */
+	@Test
+	public void testEquivalentRuleApplicationsAreMappedOnce() throws Exception {
+		ChemicalRuleEnhancedReactionMapper mapper = new ChemicalRuleEnhancedReactionMapper();
+		mapper.map(new SmilesParser().parseReaction("C=CC=C.C=CC=C>>C=CC1CCC=CC1"));
+		assertEquals("Diels-Alder", mapper.getAppliedRule().getName());
+		assertTrue(mapper.getRuleApplicationCount() > 1);
+		assertEquals(1, mapper.getMappedRuleApplicationCount());
+		}
+	}